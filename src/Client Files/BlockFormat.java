@@ -0,0 +1,199 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  Class for BlockFormat
+ *      - The body format of compressed transfers (kept in step with the server's CompressedBlocks): blocks of up to
+ *        BLOCK_SIZE raw bytes, each compressed on its own so both sides stream with one block in memory.
+ *      - Each block is: method (1 byte: 0 = stored as is, 1 = compressed) | raw length (int) | payload length (int)
+ *        | payload.
+ *      - Also the registry of codecs this client can offer.
+ */
+public final class BlockFormat {
+    // Raw bytes per block
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    private static final byte METHOD_STORED = 0;
+    private static final byte METHOD_COMPRESSED = 1;
+    private static final int HEADER_SIZE = 9;
+
+    // A sample that does not shrink below this fraction means the data is already compressed
+    private static final double SKIP_RATIO = 0.9;
+
+    // Ranges this small are sent as they are
+    private static final long MIN_LENGTH = 4 * 1024;
+
+    private static final Map<String, CompressionCodec> CODECS = new LinkedHashMap<>();
+
+    static {
+        register(new DeflateCompression());
+    }
+
+    private BlockFormat() {
+    }
+
+    /**
+     * Method: register(CompressionCodec codec)
+     *      - Adds a codec to the ones offered to the server (earlier registrations are preferred).
+     */
+    public static synchronized void register(CompressionCodec codec) {
+        CODECS.put(codec.name(), codec);
+    }
+
+    /**
+     * Method: codec(String name)
+     *
+     * @return: The registered codec with this name, or null.
+     */
+    public static synchronized CompressionCodec codec(String name) {
+        return CODECS.get(name);
+    }
+
+    /**
+     * Method: offer()
+     *
+     * @return: The registered codec names, comma-separated, for '/compress'.
+     */
+    public static synchronized String offer() {
+        return String.join(",", CODECS.keySet());
+    }
+
+    /**
+     * Method: isWorthCompressing(RandomAccessFile source, long offset, long length, CompressionCodec codec)
+     *      - Compresses the first block of the range as a sample and checks that it shrank noticeably.
+     *
+     * @return: False for small ranges and data that is already compressed.
+     */
+    public static boolean isWorthCompressing(RandomAccessFile source, long offset, long length, CompressionCodec codec) throws IOException {
+        if (length < MIN_LENGTH) return false;
+
+        int sampleLength = (int) Math.min(BLOCK_SIZE, length);
+        byte[] sample = new byte[sampleLength];
+        source.seek(offset);
+        source.readFully(sample);
+        int compressed = codec.compress(sample, sampleLength, new byte[sampleLength]);
+        return compressed >= 0 && compressed <= sampleLength * SKIP_RATIO;
+    }
+
+    /**
+     * Method: encode(RandomAccessFile source, long offset, long length, CompressionCodec codec, File target)
+     *      - Writes the range as compressed blocks into target.
+     *
+     * @return: The length of the compressed body.
+     */
+    public static long encode(RandomAccessFile source, long offset, long length, CompressionCodec codec, File target) throws IOException {
+        byte[] raw = new byte[BLOCK_SIZE];
+        byte[] packed = new byte[BLOCK_SIZE];
+        long done = 0;
+
+        source.seek(offset);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 64 * 1024))) {
+            while (done < length) {
+                int rawLength = (int) Math.min(BLOCK_SIZE, length - done);
+                source.readFully(raw, 0, rawLength);
+
+                // Keep the block as it is unless compressing it saves something
+                int packedLength = codec.compress(raw, rawLength, packed);
+                boolean compressed = packedLength >= 0 && packedLength < rawLength;
+                out.writeByte(compressed ? METHOD_COMPRESSED : METHOD_STORED);
+                out.writeInt(rawLength);
+                out.writeInt(compressed ? packedLength : rawLength);
+                out.write(compressed ? packed : raw, 0, compressed ? packedLength : rawLength);
+                done += rawLength;
+            }
+            return out.size();
+        }
+    }
+
+    /**
+     *  Class for Decoder
+     *      - Turns compressed blocks back into raw bytes as they arrive, in pieces of any size.
+     */
+    public static final class Decoder {
+
+        /**
+         * Interface for Sink
+         *      - Takes the raw bytes of each block, in order.
+         */
+        public interface Sink {
+            void write(byte[] buffer, int offset, int length);
+        }
+
+        private final CompressionCodec codec;
+        private final byte[] header = new byte[HEADER_SIZE];
+        private int headerFilled;
+        private byte[] payload;
+        private byte[] raw;
+        private int rawLength;
+        private int payloadLength;
+        private int payloadFilled;
+        private boolean compressed;
+        private boolean inPayload;
+
+        /**
+         * Constructor for Decoder
+         *
+         * @param codec: The codec the blocks were compressed with.
+         */
+        public Decoder(CompressionCodec codec) {
+            this.codec = codec;
+        }
+
+        /**
+         * Method: feed(byte[] buffer, int offset, int length, Sink sink)
+         *      - Consumes the bytes, handing each block's raw bytes to the sink once the block is complete.
+         */
+        public void feed(byte[] buffer, int offset, int length, Sink sink) throws IOException {
+            int end = offset + length;
+            while (offset < end) {
+                if (!inPayload) {
+                    // Block header, possibly split across pieces
+                    int count = Math.min(HEADER_SIZE - headerFilled, end - offset);
+                    System.arraycopy(buffer, offset, header, headerFilled, count);
+                    headerFilled += count;
+                    offset += count;
+                    if (headerFilled < HEADER_SIZE) return;
+
+                    headerFilled = 0;
+                    compressed = header[0] == METHOD_COMPRESSED;
+                    rawLength = readInt(1);
+                    payloadLength = readInt(5);
+                    if (rawLength <= 0 || rawLength > BLOCK_SIZE || payloadLength < 0 || payloadLength > BLOCK_SIZE
+                            || (!compressed && (header[0] != METHOD_STORED || payloadLength != rawLength))) {
+                        throw new IOException("Invalid compressed block header");
+                    }
+                    if (payload == null) payload = new byte[BLOCK_SIZE];
+                    payloadFilled = 0;
+                    inPayload = true;
+                    continue;
+                }
+
+                int count = Math.min(payloadLength - payloadFilled, end - offset);
+                System.arraycopy(buffer, offset, payload, payloadFilled, count);
+                payloadFilled += count;
+                offset += count;
+                if (payloadFilled < payloadLength) return;
+
+                // Whole block: hand over its raw bytes
+                inPayload = false;
+                if (!compressed) {
+                    sink.write(payload, 0, rawLength);
+                } else {
+                    if (raw == null) raw = new byte[BLOCK_SIZE];
+                    codec.decompress(payload, payloadLength, raw, rawLength);
+                    sink.write(raw, 0, rawLength);
+                }
+            }
+        }
+
+        private int readInt(int at) {
+            return ((header[at] & 0xff) << 24) | ((header[at + 1] & 0xff) << 16) | ((header[at + 2] & 0xff) << 8) | (header[at + 3] & 0xff);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+
+/**
+ *  Class for ChunkChecksums
+ *      - The CRC32C of every chunk of a file on the server, collected from 'CHECKSUMS <file name> <size> <chunk size>
+ *        <chunk count> <whole-file checksum>' and the 'CRCS <file name> <first chunk> <crc,crc,...>' lines after it.
+ *      - Lets a download check each chunk as it arrives, and find the damaged chunks of a file that failed its
+ *        whole-file check, so only those are fetched again.
+ */
+public class ChunkChecksums {
+    private final String filename;
+    private final long size;
+    private final int chunkSize;
+    private final long whole;
+    private final long[] crcs;
+    private int received;
+
+    /**
+     * Constructor for ChunkChecksums
+     *
+     * @param filename: The name of the file on the server.
+     * @param size: The size of the file.
+     * @param chunkSize: The bytes covered by each checksum (the last chunk may be shorter).
+     * @param count: The number of chunk checksums that will follow.
+     * @param whole: The checksum of the whole file.
+     */
+    public ChunkChecksums(String filename, long size, int chunkSize, int count, long whole) {
+        this.filename = filename;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.whole = whole;
+        this.crcs = new long[count];
+    }
+
+    /**
+     * Method: addChecksums(int first, String list)
+     *      - Takes one 'CRCS' batch: comma-separated checksums in hex, starting at chunk first.
+     */
+    public void addChecksums(int first, String list) {
+        String[] checksums = list.split(",");
+        for (int i = 0; i < checksums.length && first + i < crcs.length; i++) {
+            crcs[first + i] = parse(checksums[i]);
+            received++;
+        }
+    }
+
+    /**
+     * Method: isComplete()
+     *
+     * @return True once every chunk's checksum has arrived.
+     */
+    public boolean isComplete() {
+        return received >= crcs.length;
+    }
+
+    /**
+     * Method: matches(int chunk, long crc)
+     *
+     * @return True if crc is the server's checksum of the chunk.
+     */
+    public boolean matches(int chunk, long crc) {
+        return chunk < crcs.length && crcs[chunk] == crc;
+    }
+
+    /**
+     * Method: damaged(File file)
+     *      - Reads a local copy of the file and checks it chunk by chunk.
+     *
+     * @param file: The local copy; bytes it is missing count as damaged.
+     * @return The chunks that do not match the server's checksums.
+     */
+    public BitSet damaged(File file) throws IOException {
+        BitSet damaged = new BitSet(crcs.length);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+        CRC32C crc = new CRC32C();
+        try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int chunk = 0; chunk < crcs.length; chunk++) {
+                long start = (long) chunk * chunkSize;
+                buffer.clear().limit((int) Math.min(chunkSize, size - start));
+                while (buffer.hasRemaining() && input.read(buffer, start + buffer.position()) >= 0) {
+                    // Keep reading until the chunk is full or the file ends
+                }
+                if (buffer.hasRemaining()) {
+                    damaged.set(chunk);
+                    continue;
+                }
+                buffer.flip();
+                crc.reset();
+                crc.update(buffer);
+                if (crc.getValue() != crcs[chunk]) damaged.set(chunk);
+            }
+        }
+        return damaged;
+    }
+
+    /**
+     * Method: parse(String hex)
+     *
+     * @return The checksum written as 8 hex digits.
+     */
+    public static long parse(String hex) {
+        return Long.parseLong(hex, 16);
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getWhole() {
+        return whole;
+    }
+}
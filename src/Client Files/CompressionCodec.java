@@ -0,0 +1,30 @@
+import java.io.IOException;
+
+/**
+ *  Interface for CompressionCodec
+ *      - A compression method file transfers can use (kept in step with the server's Codec). Codecs are registered
+ *        with BlockFormat and offered to the server with '/compress' in order of registration.
+ *      - Works on one block at a time (see BlockFormat).
+ */
+public interface CompressionCodec {
+
+    /**
+     * Method: name()
+     *
+     * @return: The name the codec is negotiated and announced by, e.g. "deflate".
+     */
+    String name();
+
+    /**
+     * Method: compress(byte[] source, int length, byte[] target)
+     *
+     * @return: The compressed length of the first length bytes of source, written into target, or -1 if they do not fit.
+     */
+    int compress(byte[] source, int length, byte[] target);
+
+    /**
+     * Method: decompress(byte[] source, int length, byte[] target, int rawLength)
+     *      - Restores exactly rawLength bytes into target from the first length bytes of source.
+     */
+    void decompress(byte[] source, int length, byte[] target, int rawLength) throws IOException;
+}
@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Class for DeflateCompression
+ *      - Deflate (java.util.zip), the codec every server knows.
+ */
+public class DeflateCompression implements CompressionCodec {
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public int compress(byte[] source, int length, byte[] target) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(source, 0, length);
+            deflater.finish();
+            int compressed = deflater.deflate(target);
+            return deflater.finished() ? compressed : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void decompress(byte[] source, int length, byte[] target, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(source, 0, length);
+            int restored = inflater.inflate(target, 0, rawLength);
+            if (restored != rawLength || !inflater.finished()) throw new IOException("Corrupt deflate block");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
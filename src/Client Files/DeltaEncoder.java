@@ -0,0 +1,281 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Class for DeltaEncoder
+ *      - Client side of delta uploads (rsync-style): holds the block signatures of the server's copy of a file and
+ *        turns the local file into a delta that only carries the bytes the server does not have.
+ *      - A weak checksum is rolled over the local file one byte at a time, so blocks are found again even after
+ *        bytes were inserted or removed before them; a strong hash confirms each match.
+ *      - Delta format (kept in step with the server's DeltaPatch), big-endian:
+ *        'C' <first block (int)> <block count (int)> copies blocks of the server's copy,
+ *        'D' <length (int)> <bytes> inserts bytes that are not in it.
+ */
+public class DeltaEncoder {
+    private static final byte OP_COPY = 'C';
+    private static final byte OP_DATA = 'D';
+
+    // Longest literal written as one operation
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private final String filename;
+    private final long basisSize;
+    private final int blockSize;
+    private final String version;
+    private final int[] weak;
+    private final String[] strong;
+    private int received;
+
+    // Reading the local file (encode only)
+    private InputStream input;
+    private final byte[] inputBuffer = new byte[256 * 1024];
+    private int inputPosition;
+    private int inputLength;
+    private long sourceSize;
+
+    // Delta being written (encode only)
+    private DataOutputStream output;
+    private final byte[] literal = new byte[MAX_LITERAL];
+    private int literalLength;
+    private long literalBytes;
+    private int copyFirst;
+    private int copyCount;
+
+    /**
+     * Constructor for DeltaEncoder
+     *
+     * @param filename: The name of the file on the server.
+     * @param basisSize: The size of the server's copy.
+     * @param blockSize: The block size of its signatures.
+     * @param count: The number of signatures that will follow.
+     * @param version: The server's version of its copy, sent back with the delta.
+     */
+    public DeltaEncoder(String filename, long basisSize, int blockSize, int count, String version) {
+        this.filename = filename;
+        this.basisSize = basisSize;
+        this.blockSize = blockSize;
+        this.version = version;
+        this.weak = new int[count];
+        this.strong = new String[count];
+    }
+
+    /**
+     * Method: addSignatures(int first, String list)
+     *      - Takes one 'SIGS' batch: comma-separated '<weak>:<strong>' signatures starting at block first.
+     */
+    public void addSignatures(int first, String list) {
+        String[] signatures = list.split(",");
+        for (int i = 0; i < signatures.length && first + i < weak.length; i++) {
+            weak[first + i] = (int) Long.parseLong(signatures[i].substring(0, 8), 16);
+            strong[first + i] = signatures[i].substring(9);
+            received++;
+        }
+    }
+
+    /**
+     * Method: isComplete()
+     *
+     * @return True once every block's signature has arrived.
+     */
+    public boolean isComplete() {
+        return received >= weak.length;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Method: getSourceSize()
+     *
+     * @return The size of the file as it was read by the last encode, i.e. the size the delta builds.
+     */
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    /**
+     * Method: encode(File source, File delta)
+     *      - Writes the delta that turns the server's copy into the source file.
+     *
+     * @return The number of literal bytes in the delta, i.e. the bytes of the file the server did not have.
+     */
+    public long encode(File source, File delta) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+
+        // Full blocks by weak checksum (the server's short last block is never matched)
+        Map<Integer, List<Integer>> index = new HashMap<>();
+        int fullBlocks = (int) (basisSize / blockSize);
+        for (int block = 0; block < fullBlocks; block++) {
+            index.computeIfAbsent(weak[block], key -> new ArrayList<>(1)).add(block);
+        }
+
+        byte[] window = new byte[blockSize]; // ring buffer over the last blockSize bytes
+        byte[] ordered = new byte[blockSize];
+        literalLength = 0;
+        literalBytes = 0;
+        copyCount = 0;
+        inputPosition = 0;
+        inputLength = 0;
+        sourceSize = 0;
+
+        try (InputStream in = new FileInputStream(source);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta), 256 * 1024))) {
+            this.input = in;
+            this.output = out;
+
+            int head = 0;    // Oldest byte of the window
+            int filled = 0;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                // Fill the window afresh (at the start and after a match)
+                while (filled < blockSize) {
+                    int x = nextByte();
+                    if (x < 0) break;
+                    window[filled] = (byte) x;
+                    a += x;
+                    b += (blockSize - filled) * x;
+                    filled++;
+                }
+                if (filled < blockSize) break;
+
+                // Weak match confirmed by the strong hash: the block is already on the server
+                int block = match(index, (a & 0xffff) | (b << 16), window, head, ordered, digest);
+                if (block >= 0) {
+                    flushLiteral();
+                    if (copyCount > 0 && block == copyFirst + copyCount) {
+                        copyCount++;
+                    } else {
+                        flushCopy();
+                        copyFirst = block;
+                        copyCount = 1;
+                    }
+                    head = 0;
+                    filled = 0;
+                    a = 0;
+                    b = 0;
+                    continue;
+                }
+
+                // No match: the oldest byte is literal, and the window slides on by one byte
+                flushCopy();
+                int old = window[head] & 0xff;
+                addLiteral((byte) old);
+                int x = nextByte();
+                if (x < 0) {
+                    head = (head + 1) % blockSize;
+                    filled--;
+                    break;
+                }
+                window[head] = (byte) x;
+                head = (head + 1) % blockSize;
+                a = a - old + x;
+                b = b - blockSize * old + a;
+            }
+
+            // What is left in the window at the end of the file is literal
+            flushCopy();
+            for (int i = 0; i < filled; i++) {
+                addLiteral(window[(head + i) % blockSize]);
+            }
+            flushLiteral();
+        } finally {
+            this.input = null;
+            this.output = null;
+        }
+        return literalBytes;
+    }
+
+    /**
+     * Method: match(Map<Integer, List<Integer>> index, int checksum, byte[] window, int head, byte[] ordered, MessageDigest digest)
+     *
+     * @return The server block with this content, preferring the one that continues the current copy, or -1.
+     */
+    private int match(Map<Integer, List<Integer>> index, int checksum, byte[] window, int head, byte[] ordered, MessageDigest digest) {
+        List<Integer> candidates = index.get(checksum);
+        if (candidates == null) return -1;
+
+        // Only now is the strong hash worth computing
+        System.arraycopy(window, head, ordered, 0, blockSize - head);
+        System.arraycopy(window, 0, ordered, blockSize - head, head);
+        byte[] hash = digest.digest(ordered);
+        StringBuilder hex = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        String strongHash = hex.toString();
+
+        int found = -1;
+        for (int block : candidates) {
+            if (!strong[block].equals(strongHash)) continue;
+            if (copyCount > 0 && block == copyFirst + copyCount) return block;
+            if (found < 0) found = block;
+        }
+        return found;
+    }
+
+    /**
+     * Method: nextByte()
+     *
+     * @return The next byte of the local file, or -1 at its end.
+     */
+    private int nextByte() throws IOException {
+        if (inputPosition == inputLength) {
+            inputLength = input.read(inputBuffer);
+            inputPosition = 0;
+            if (inputLength <= 0) {
+                inputLength = 0;
+                return -1;
+            }
+            sourceSize += inputLength;
+        }
+        return inputBuffer[inputPosition++] & 0xff;
+    }
+
+    private void addLiteral(byte value) throws IOException {
+        literal[literalLength++] = value;
+        if (literalLength == MAX_LITERAL) flushLiteral();
+    }
+
+    private void flushLiteral() throws IOException {
+        if (literalLength == 0) return;
+        output.writeByte(OP_DATA);
+        output.writeInt(literalLength);
+        output.write(literal, 0, literalLength);
+        literalBytes += literalLength;
+        literalLength = 0;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyCount == 0) return;
+        output.writeByte(OP_COPY);
+        output.writeInt(copyFirst);
+        output.writeInt(copyCount);
+        copyCount = 0;
+    }
+}
@@ -0,0 +1,413 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ *  Class for DownloadFile
+ *      - A file (or a range of it) being downloaded from the server.
+ *      - Bytes go into '<name>.part' with positional writes; the file only gets its real name once it is complete.
+ *      - A compressed download is decompressed block by block on the way (see BlockFormat).
+ *      - Next to it, '<name>.part.state' records the total size and how many leading bytes are safely on disk, so an
+ *        interrupted download can be resumed from there with '/get <name> <offset>'.
+ *      - A whole file smaller than one checkpoint is simply fetched again if interrupted: it keeps no state file
+ *        and is not forced to disk, so a batch of many small files costs no sync per file.
+ *      - If the server sent the file's CRC32C ahead of it ('/verify'), the finished file is checked before it gets
+ *        its real name; the CRC is kept up as the bytes are written, and only a resumed file is read again.
+ *      - Progress and errors go to the notices given (the console by default); whoever waits for the file learns
+ *        the outcome through whenDone.
+ */
+public class DownloadFile {
+    // Bytes written between two checkpoints of the state file
+    private static final long CHECKPOINT_BYTES = 8L * 1024 * 1024;
+
+    private final String filename;
+    private final long total;
+    private final long start;
+    private RandomAccessFile output;
+    private long position;
+    private long remaining;
+
+    // Leading bytes of the file known to be on disk, and whether this range continues them
+    private long verified;
+    private final boolean extendsVerified;
+    private long unsaved;
+
+    // False for a whole file smaller than one checkpoint, which keeps no state file (see the class comment)
+    private final boolean resumable;
+
+    // Compressed downloads only: decodes the incoming bytes, and counts them
+    private BlockFormat.Decoder decoder;
+    private long wireRemaining;
+
+    // Checked downloads only: the server's CRC32C of the whole file, the CRC of the bytes so far (downloads from the
+    // start only), and what to do if the finished file does not match
+    private long expected = -1;
+    private CRC32C crc;
+    private Runnable repair;
+
+    // Where messages for the user go, and who is told once the download has ended (see whenDone)
+    private Consumer<String> notices = System.out::println;
+    private BiConsumer<File, String> done;
+    private boolean failed;
+
+    /**
+     * Constructor for DownloadFile
+     *
+     * @param filename: The name of the file on the server (and locally, once complete).
+     * @param offset: The offset of the first byte that will arrive.
+     * @param length: The number of bytes that will arrive.
+     * @param total: The size of the whole file on the server.
+     */
+    public DownloadFile(String filename, long offset, long length, long total) {
+        this.filename = filename;
+        this.total = total;
+        this.start = offset;
+        this.position = offset;
+        this.remaining = length;
+
+        // A download from the start begins a new partial file; otherwise build on what the state file recorded
+        this.verified = (offset == 0) ? 0 : resumeOffset(filename);
+        this.extendsVerified = offset <= verified;
+        this.resumable = !(offset == 0 && length == total && total < CHECKPOINT_BYTES);
+        try {
+            this.output = new RandomAccessFile(partFile(filename), "rw");
+            if (offset == 0 && length == total) this.output.setLength(0);
+            // A state file left by an earlier download would claim bytes of this one
+            if (resumable) saveState();
+            else stateFile(filename).delete();
+        } catch (IOException e) {
+            // The bytes still have to be read off the connection; they are just not kept (reported by finish)
+            failed = true;
+            close();
+        }
+    }
+
+    /**
+     * Constructor for a DownloadFile that only consumes its bytes
+     */
+    private DownloadFile(String filename, long length) {
+        this.filename = filename;
+        this.total = length;
+        this.start = 0;
+        this.remaining = length;
+        this.extendsVerified = false;
+        this.resumable = false;
+    }
+
+    /**
+     * Method: discarding(String filename, long length)
+     *
+     * @return: A download that reads its range off the connection without keeping it.
+     */
+    public static DownloadFile discarding(String filename, long length) {
+        return new DownloadFile(filename, length);
+    }
+
+    /**
+     * Method: resumeOffset(String filename)
+     *
+     * @return: The offset an earlier, interrupted download of the file can resume from, or 0.
+     */
+    public static long resumeOffset(String filename) {
+        long[] state = readState(filename);
+        if (state == null || !partFile(filename).isFile()) return 0;
+        return Math.min(state[1], partFile(filename).length());
+    }
+
+    /**
+     * Method: resumeTotal(String filename)
+     *
+     * @return: The total size recorded for an interrupted download of the file, or -1 if there is none.
+     */
+    public static long resumeTotal(String filename) {
+        long[] state = readState(filename);
+        return state == null ? -1 : state[0];
+    }
+
+    /**
+     * Method: discard(String filename)
+     *      - Deletes the partial file and its state, e.g. because the file changed on the server.
+     */
+    public static void discard(String filename) {
+        partFile(filename).delete();
+        stateFile(filename).delete();
+    }
+
+    /**
+     * Method: decompressing(CompressionCodec codec, long wireLength)
+     *      - The range arrives as compressed blocks, wireLength bytes in all.
+     *
+     * @return: This download.
+     */
+    public DownloadFile decompressing(CompressionCodec codec, long wireLength) {
+        this.decoder = new BlockFormat.Decoder(codec);
+        this.wireRemaining = wireLength;
+        return this;
+    }
+
+    /**
+     * Method: verifying(long expected, Runnable repair)
+     *      - The finished file must have the given CRC32C; if it does not, it is handed to repair under the name a
+     *        parallel download uses ('<name>.pget') instead of getting its real name.
+     *
+     * @return: This download.
+     */
+    public DownloadFile verifying(long expected, Runnable repair) {
+        this.expected = expected;
+        this.repair = repair;
+        if (start == 0) this.crc = new CRC32C();
+        return this;
+    }
+
+    /**
+     * Method: reportingTo(Consumer<String> notices)
+     *      - Sends this download's messages for the user to notices instead of the console.
+     *
+     * @return: This download.
+     */
+    public DownloadFile reportingTo(Consumer<String> notices) {
+        this.notices = notices;
+        return this;
+    }
+
+    /**
+     * Method: whenDone(BiConsumer<File, String> done)
+     *      - done is told once the download has ended: with the file (the partial file for a range that does not
+     *        complete it), or with the reason it failed. A download handed to repair is not done yet.
+     *
+     * @return: This download.
+     */
+    public DownloadFile whenDone(BiConsumer<File, String> done) {
+        this.done = done;
+        return this;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Method: remaining()
+     *
+     * @return: The bytes of this range still to arrive (compressed bytes for a compressed download).
+     */
+    public long remaining() {
+        return decoder != null ? wireRemaining : remaining;
+    }
+
+    /**
+     * Method: write(byte[] buffer, int offset, int length)
+     *      - Takes the next bytes of the range as they arrive, decompressing them if needed.
+     */
+    public void write(byte[] buffer, int offset, int length) {
+        if (decoder == null) {
+            writeRaw(buffer, offset, length);
+            return;
+        }
+        wireRemaining -= length;
+        if (output == null) return;
+        try {
+            decoder.feed(buffer, offset, length, this::writeRaw);
+        } catch (IOException e) {
+            notices.accept("Error receiving file from the server :( " + e.getMessage());
+            failed = true;
+            close();
+        }
+    }
+
+    /**
+     * Method: writeRaw(byte[] buffer, int offset, int length)
+     *      - Writes the next bytes of the file; after a disk failure they are dropped.
+     */
+    private void writeRaw(byte[] buffer, int offset, int length) {
+        remaining -= length;
+        if (output == null) return;
+        try {
+            output.seek(position);
+            output.write(buffer, offset, length);
+            if (crc != null) crc.update(buffer, offset, length);
+            position += length;
+            unsaved += length;
+            if (unsaved >= CHECKPOINT_BYTES) checkpoint();
+        } catch (IOException e) {
+            notices.accept("Error receiving file from the server :(");
+            failed = true;
+            close();
+        }
+    }
+
+    /**
+     * Method: finish()
+     *      - Called once the whole range has arrived. A complete file is renamed into place; otherwise the partial
+     *        file is kept for the next request.
+     */
+    public void finish() {
+        if (output == null) {
+            if (failed) {
+                notices.accept("Error receiving file from the server :(");
+                report(null, "could not write " + partFile(filename));
+            }
+            return;
+        }
+        try {
+            checkpoint();
+            output.close();
+            output = null;
+            if (verified < total) {
+                notices.accept("Received bytes " + start + " to " + position + " of " + filename + " (" + total + " bytes) into " + partFile(filename));
+                report(partFile(filename), null);
+                return;
+            }
+
+            // Check the whole file before it gets its real name
+            if (expected >= 0) {
+                long actual = (crc != null) ? crc.getValue() : checksumOf(partFile(filename));
+                if (actual != expected) {
+                    notices.accept("Checksum mismatch for " + filename + "; fetching its damaged chunks again");
+                    Files.move(partFile(filename).toPath(), ParallelDownload.partFile(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    stateFile(filename).delete();
+                    repair.run();
+                    return;
+                }
+            }
+            moveIntoPlace();
+            if (resumable) stateFile(filename).delete();
+            notices.accept("Successfully received " + filename + (expected >= 0 ? " (checksum verified)" : ""));
+            report(new File(filename), null);
+        } catch (IOException e) {
+            notices.accept("Error receiving file from the server :(");
+            close();
+            report(null, e.getMessage());
+        }
+    }
+
+    /**
+     * Method: abort()
+     *      - The connection was lost mid-range: saves how far the download got so it can be resumed.
+     */
+    public void abort() {
+        if (output == null) {
+            report(null, "connection lost");
+            return;
+        }
+        try {
+            checkpoint();
+            if (resumable) notices.accept("Download of " + filename + " interrupted at byte " + verified + "; \"/get " + filename + "\" resumes it");
+            else notices.accept("Download of " + filename + " interrupted; \"/get " + filename + "\" fetches it again");
+        } catch (IOException e) {
+            notices.accept("Error receiving file from the server :(");
+        }
+        close();
+        report(null, "connection lost at byte " + verified);
+    }
+
+    /**
+     * Method: report(File file, String failure)
+     *      - Tells whoever waits for the download how it ended, once.
+     */
+    private void report(File file, String failure) {
+        BiConsumer<File, String> waiting = done;
+        done = null;
+        if (waiting != null) waiting.accept(file, failure);
+    }
+
+    /**
+     * Method: checkpoint()
+     *      - Forces the written bytes to disk, then records them in the state file, so the recorded offset is never
+     *        ahead of the data.
+     */
+    private void checkpoint() throws IOException {
+        unsaved = 0;
+        if (!extendsVerified || position <= verified) return;
+        if (!resumable) {
+            verified = position;
+            return;
+        }
+        output.getChannel().force(false);
+        verified = position;
+        saveState();
+    }
+
+    /**
+     * Method: checksumOf(File file)
+     *
+     * @return: The CRC32C of the whole file, read from disk.
+     */
+    private static long checksumOf(File file) throws IOException {
+        CRC32C checksum = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel input = FileChannel.open(file.toPath())) {
+            while (input.read(buffer) >= 0) {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Method: saveState()
+     *      - Writes '<total size> <verified offset>' to the state file.
+     */
+    private void saveState() throws IOException {
+        Files.write(stateFile(filename).toPath(), (total + " " + verified).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Method: moveIntoPlace()
+     *      - Renames the complete partial file to the file's real name, atomically where the file system allows.
+     */
+    private void moveIntoPlace() throws IOException {
+        try {
+            Files.move(partFile(filename).toPath(), new File(filename).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile(filename).toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Method: close()
+     *      - Closes the partial file and drops the rest of the range.
+     */
+    private void close() {
+        try {
+            if (output != null) output.close();
+        } catch (IOException e) {
+            notices.accept("Error receiving file from the server :(");
+        }
+        output = null;
+    }
+
+    /**
+     * Method: readState(String filename)
+     *
+     * @return: The recorded total size and verified offset, or null if there is no usable state file.
+     */
+    private static long[] readState(String filename) {
+        try {
+            String[] words = new String(Files.readAllBytes(stateFile(filename).toPath()), StandardCharsets.UTF_8).trim().split(" ");
+            return new long[] {Long.parseLong(words[0]), Long.parseLong(words[1])};
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static File partFile(String filename) {
+        return new File(filename + ".part");
+    }
+
+    private static File stateFile(String filename) {
+        return new File(filename + ".part.state");
+    }
+}
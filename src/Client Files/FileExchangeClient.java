@@ -0,0 +1,1666 @@
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.io.*;
+
+/**
+ *  Class for FileExchangeClient
+ *      - One connection to the server, driven from code instead of the console: connect, register, store, get and
+ *        chat return futures that complete when the server has answered, so a script or a test can chain them
+ *        (client.connect(host, port).thenCompose(v -> client.register("bot")).thenCompose(v -> client.get("a.txt"))).
+ *      - A single reader thread waits on a Selector for the non-blocking channel and handles whatever has arrived:
+ *        lines, frames and download bodies are cut out of one buffer as they come in whole, downloads are written
+ *        as they arrive and the futures completed, and the thread never blocks on a read. Nothing here reads
+ *        stdin; MPClient is the console on top of it.
+ *      - Messages meant for a person (chat, progress, the server's notices) go to the notices given to the
+ *        constructor; a headless caller may log or ignore them.
+ *      - Uploads and parallel downloads run on threads of their own, as before; commands from any thread take
+ *        turns on the connection under the send lock.
+ *      - Whole directories go as batches (storeAll, getAll): many files in flight at once on this one connection,
+ *        their small commands and frames leaving together in large writes.
+ */
+public class FileExchangeClient {
+
+    private volatile SocketChannel channel;
+    private volatile InetSocketAddress server;
+    private DataOutputStream serverOutput;
+    private volatile boolean usesFrames;
+
+    // Tells the reader thread when the server has sent something, and the writers when they can send again
+    private volatile Selector selector;
+    private volatile ChannelOutput channelOutput;
+
+    // Bytes from the server not handled yet (reader thread only)
+    private ByteBuffer inbound;
+
+    // Whether the answer to the '/protocol' sent on joining is still awaited (reader thread only)
+    private boolean negotiating;
+
+    // A reply whose two lines after it have not both arrived ('FILE_EXISTS', 'FILE_COMPRESSED', 'FILE_RANGE'), and
+    // those that have (reader thread only)
+    private String openReply;
+    private final List<String> replyLines;
+
+    // On the line protocol, the download whose body is arriving right after its reply (reader thread only)
+    private DownloadFile body;
+
+    // Codec the server agreed to for file transfers, or null for raw bytes
+    private volatile CompressionCodec codec;
+    private volatile boolean isRegistered;
+
+    // Where messages for the user go
+    private final Consumer<String> notices;
+
+    // Complete once the connection is set up, and once it is gone
+    private final CompletableFuture<Void> connected;
+    private final CompletableFuture<Void> closed;
+
+    // Set by close(), so the reader does not report the socket it was reading from closing under it
+    private volatile boolean closing;
+
+    // Connections '/pget' opens unless told otherwise
+    public static final int PARALLEL_CONNECTIONS = 4;
+
+    // Fair lock around writes to the server, so uploads take turns frame by frame and commands slip in between
+    private final ReentrantLock sendLock;
+
+    // Stream id for the next upload (odd ids; the server's downloads use even ones)
+    private final AtomicInteger nextUploadStream;
+
+    // Downloads in progress by stream id (server reader thread only)
+    private final Map<Integer, DownloadFile> downloads;
+
+    // Block signatures still arriving for delta uploads, by file name (server reader thread only)
+    private final Map<String, DeltaEncoder> signatures;
+
+    // Token the server gave for attaching extra download connections ('/session'), once asked for
+    private volatile String sessionToken;
+
+    // Connections asked for by '/pget', by file name, until the server's '/checksums' reply arrives
+    private final Map<String, Integer> parallelGets;
+
+    // Server's CRC32C of files about to be downloaded ('CHECKSUM' lines), by file name (server reader thread only)
+    private final Map<String, Long> expectedChecksums;
+
+    // Chunk checksums still arriving, by file name (server reader thread only)
+    private final Map<String, ChunkChecksums> chunkChecksums;
+
+    // Downloads that failed their checksum, waiting for the chunk checksums to find the damaged chunks
+    private final Set<String> repairs;
+
+    // Times the damaged chunks of an upload were sent again, by file name
+    private final Map<String, Integer> uploadRetries;
+
+    // Times the server may reject chunks of one upload before the client gives up on it
+    private static final int MAX_UPLOAD_RETRIES = 3;
+
+    // '/register' commands waiting for REGISTER_TRUE or REGISTER_FALSE, in the order sent
+    private final Queue<CompletableFuture<Void>> registrations;
+
+    // Files of the '/get' commands not answered yet, in the order sent (FILE_FALSE does not name the file)
+    private final Queue<String> pendingGets;
+
+    // Callers waiting for a download or an upload, by file name
+    private final Map<String, CompletableFuture<File>> fileWaiters;
+    private final Map<String, CompletableFuture<Void>> storeWaiters;
+
+    // Files in a batch ('/store -r', '/get -r'), whose progress is summed up instead of shown file by file
+    private final Set<String> batched;
+
+    // Where a file being stored is read from, if not the working directory ('/store -r'), by file name
+    private final Map<String, File> sources;
+
+    // '/match' commands waiting for their names, in the order sent
+    private final Queue<Match> matches;
+
+    // Transfers a batch keeps in flight at once, so round trips overlap instead of adding up
+    public static final int BATCH_WINDOW = 64;
+
+    // Runs uploads and their hashing in the background; threads are reused from one small file to the next
+    private final ExecutorService workers;
+
+    /**
+     * Class for Batch
+     *      - The outcome of a batch of transfers: how many files and bytes went through, and why the others failed.
+     */
+    public static final class Batch {
+        private final int files;
+        private final long bytes;
+        private final Map<String, String> failures;
+        private final long nanos;
+
+        Batch(int files, long bytes, Map<String, String> failures, long nanos) {
+            this.files = files;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.nanos = nanos;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public Map<String, String> getFailures() {
+            return failures;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Class for Match
+     *      - The names arriving for one '/match', until its MATCH_END line.
+     */
+    private static final class Match {
+        private final List<String> names = new ArrayList<>();
+        private final CompletableFuture<List<String>> done = new CompletableFuture<>();
+    }
+
+    /**
+     * Constructor for FileExchangeClient
+     *
+     * @param notices: Where messages for the user go, e.g. System.out::println.
+     */
+    public FileExchangeClient(Consumer<String> notices) {
+        this.notices = notices;
+        this.connected = new CompletableFuture<>();
+        this.closed = new CompletableFuture<>();
+        this.isRegistered = false;
+        this.sendLock = new ReentrantLock(true);
+        this.nextUploadStream = new AtomicInteger(1);
+        this.downloads = new HashMap<>();
+        this.signatures = new HashMap<>();
+        this.parallelGets = new ConcurrentHashMap<>();
+        this.expectedChecksums = new HashMap<>();
+        this.chunkChecksums = new HashMap<>();
+        this.repairs = ConcurrentHashMap.newKeySet();
+        this.uploadRetries = new ConcurrentHashMap<>();
+        this.registrations = new ConcurrentLinkedQueue<>();
+        this.pendingGets = new ConcurrentLinkedQueue<>();
+        this.fileWaiters = new ConcurrentHashMap<>();
+        this.storeWaiters = new ConcurrentHashMap<>();
+        this.batched = ConcurrentHashMap.newKeySet();
+        this.sources = new ConcurrentHashMap<>();
+        this.matches = new ConcurrentLinkedQueue<>();
+        this.replyLines = new ArrayList<>(2);
+        this.workers = Executors.newCachedThreadPool(task -> {
+            Thread worker = new Thread(task, "client-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    /**
+     * Method: connect(String host, int port)
+     *      - Starts the reader thread, which joins the server, asks for frames, compression and checksums, and then
+     *        handles everything the server sends until the connection is gone.
+     *
+     * @return: A future that completes once the connection is set up, or fails if the server cannot be reached.
+     */
+    public CompletableFuture<Void> connect(String host, int port) {
+        Thread reader = new Thread(() -> run(host, port), "client-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return connected;
+    }
+
+    /**
+     * Method: register(String alias)
+     *
+     * @return: A future that completes once the server accepted the alias, or fails if it refused it (the reason
+     *          arrives as a notice).
+     */
+    public CompletableFuture<Void> register(String alias) {
+        CompletableFuture<Void> registered = new CompletableFuture<>();
+        sendLock.lock();
+        try {
+            registrations.add(registered);
+            sendCommand("/register " + alias);
+        } catch (IOException e) {
+            registrations.remove(registered);
+            registered.completeExceptionally(e);
+        } finally {
+            sendLock.unlock();
+        }
+        return registered;
+    }
+
+    /**
+     * Method: get(String filename)
+     *      - Downloads a file, resuming an earlier interrupted download of it if there is one.
+     *
+     * @return: A future for the file once it is in place (checksum verified, if the server sent one).
+     */
+    public CompletableFuture<File> get(String filename) {
+        long offset = DownloadFile.resumeOffset(filename);
+        if (offset > 0) notices.accept("Resuming " + filename + " from byte " + offset);
+        return request(filename, offset > 0 ? "/get " + filename + " " + offset : "/get " + filename);
+    }
+
+    /**
+     * Method: getRange(String filename, long offset, long length)
+     *      - Downloads a range of a file into its partial file, e.g. to resume it by hand.
+     *
+     * @param length: Bytes to fetch, or -1 for the rest of the file.
+     * @return: A future for the file once it is complete, or for the partial file if the range ends before that.
+     */
+    public CompletableFuture<File> getRange(String filename, long offset, long length) {
+        return request(filename, "/get " + filename + " " + offset + (length >= 0 ? " " + length : ""));
+    }
+
+    /**
+     * Method: pget(String filename, int connections)
+     *      - Downloads a file over several connections at once (see ParallelDownload).
+     *
+     * @return: A future for the file once it is in place, every chunk verified.
+     */
+    public CompletableFuture<File> pget(String filename, int connections) {
+        CompletableFuture<File> waiter = new CompletableFuture<>();
+        CompletableFuture<File> pending = fileWaiters.putIfAbsent(filename, waiter);
+        if (pending != null) return pending;
+        if (!isRegistered) return fail(filename, waiter, new IllegalStateException("Register first"));
+        try {
+            parallelGets.put(filename, connections);
+            if (sessionToken == null) sendCommand("/session");
+            sendCommand("/checksums " + filename);
+        } catch (IOException e) {
+            parallelGets.remove(filename);
+            fail(filename, waiter, e);
+        }
+        return waiter;
+    }
+
+    /**
+     * Method: store(String filename)
+     *      - Uploads a file from the working directory: as a delta against the server's copy if it has one, else
+     *        only the chunks the server does not store yet.
+     *
+     * @return: A future that completes once the server has the whole file, or fails with the reason.
+     */
+    public CompletableFuture<Void> store(String filename) {
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        CompletableFuture<Void> pending = storeWaiters.putIfAbsent(filename, waiter);
+        if (pending != null) return pending;
+        try {
+            if (!source(filename).isFile()) throw new FileNotFoundException(filename);
+            if (!isRegistered) throw new IllegalStateException("Register first");
+            uploadRetries.remove(filename);
+            // Ask for the server's copy first: an edited file then goes up as a delta against it
+            sendCommand("/signatures " + filename);
+        } catch (IOException | IllegalStateException e) {
+            storeWaiters.remove(filename, waiter);
+            waiter.completeExceptionally(e);
+        }
+        return waiter;
+    }
+
+    /**
+     * Method: match(String pattern)
+     *
+     * @param pattern: Names to match, '*' standing for any run of characters and '?' for any one character.
+     * @return: A future for the names of the server's files that match, in name order.
+     */
+    public CompletableFuture<List<String>> match(String pattern) {
+        Match match = new Match();
+        sendLock.lock();
+        try {
+            matches.add(match);
+            sendCommand("/match " + pattern);
+        } catch (IOException e) {
+            matches.remove(match);
+            match.done.completeExceptionally(e);
+        } finally {
+            sendLock.unlock();
+        }
+        return match.done;
+    }
+
+    /**
+     * Method: getAll(String pattern)
+     *      - Downloads every file matching the pattern into the working directory ('/get -r'). The downloads are
+     *        pipelined: up to BATCH_WINDOW are asked for at once, and each one finished makes room for the next.
+     *
+     * @return: A future for the outcome once every file has arrived or failed.
+     */
+    public CompletableFuture<Batch> getAll(String pattern) {
+        return match(pattern).thenCompose(names -> pipeline(names, this::get, filename -> new File(filename).length()));
+    }
+
+    /**
+     * Method: storeAll(File directory)
+     *      - Uploads every file in a directory and its subdirectories ('/store -r'), pipelined like getAll.
+     *      - The server keeps one flat list of files, so each is stored under its own name; a name found twice in the
+     *        tree is stored once, and files the server cannot name (hidden, or with spaces) are skipped.
+     *
+     * @return: A future for the outcome once every file is stored or failed.
+     */
+    public CompletableFuture<Batch> storeAll(File directory) {
+        Map<String, File> files = new LinkedHashMap<>();
+        Map<String, String> skipped = new LinkedHashMap<>();
+        try (Stream<Path> tree = Files.walk(directory.toPath())) {
+            tree.filter(Files::isRegularFile).sorted().forEach(path -> {
+                String filename = path.getFileName().toString();
+                if (filename.startsWith(".") || filename.contains(" ")) skipped.put(path.toString(), "name cannot be stored");
+                else if (files.putIfAbsent(filename, path.toFile()) != null) skipped.put(path.toString(), "same name as " + files.get(filename));
+            });
+        } catch (IOException | UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        sources.putAll(files);
+        return pipeline(new ArrayList<>(files.keySet()), this::store, filename -> files.get(filename).length())
+                .thenApply(batch -> {
+                    batch.failures.putAll(skipped);
+                    return batch;
+                });
+    }
+
+    /**
+     * Method: pipeline(List<String> filenames, Function<String, CompletableFuture<?>> transfer, ToLongFunction<String> size)
+     *      - Runs one transfer per file with at most BATCH_WINDOW in flight (see Pipeline).
+     *
+     * @param size: The bytes a transfer moved, asked once it succeeded.
+     * @return: A future for the outcome once every transfer has ended.
+     */
+    private CompletableFuture<Batch> pipeline(List<String> filenames, Function<String, CompletableFuture<?>> transfer,
+                                              ToLongFunction<String> size) {
+        batched.addAll(filenames);
+        Pipeline pipeline = new Pipeline(filenames, transfer, size);
+        pipeline.pump();
+        return pipeline.done.whenComplete((batch, failure) -> batched.removeAll(filenames));
+    }
+
+    /**
+     *  Class for Pipeline
+     *      - Keeps up to BATCH_WINDOW transfers of a batch in flight. A transfer that ends starts the next one, on
+     *        whichever thread ended it; transfers that end at once (e.g. failing right away) are started by the
+     *        loop in pump, never by recursion.
+     */
+    private static final class Pipeline {
+        private final List<String> filenames;
+        private final Function<String, CompletableFuture<?>> transfer;
+        private final ToLongFunction<String> size;
+        private final CompletableFuture<Batch> done = new CompletableFuture<>();
+        private final Map<String, String> failures = new ConcurrentHashMap<>();
+        private final long started = System.nanoTime();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicInteger succeeded = new AtomicInteger();
+
+        // Guarded by this: the next file to start, transfers in flight, and whether a thread is starting them
+        private int next;
+        private int inFlight;
+        private boolean pumping;
+
+        Pipeline(List<String> filenames, Function<String, CompletableFuture<?>> transfer, ToLongFunction<String> size) {
+            this.filenames = filenames;
+            this.transfer = transfer;
+            this.size = size;
+        }
+
+        /**
+         * Method: pump()
+         *      - Starts transfers until the window is full or none are left; completes the batch after the last.
+         */
+        void pump() {
+            synchronized (this) {
+                if (pumping) return;
+                pumping = true;
+            }
+            while (true) {
+                String filename;
+                synchronized (this) {
+                    if (inFlight >= BATCH_WINDOW || next >= filenames.size()) {
+                        pumping = false;
+                        if (inFlight == 0 && next >= filenames.size()) {
+                            done.complete(new Batch(succeeded.get(), bytes.get(), new TreeMap<>(failures), System.nanoTime() - started));
+                        }
+                        return;
+                    }
+                    filename = filenames.get(next++);
+                    inFlight++;
+                }
+                transfer.apply(filename).whenComplete((result, failure) -> ended(filename, failure));
+            }
+        }
+
+        private void ended(String filename, Throwable failure) {
+            if (failure == null) {
+                succeeded.incrementAndGet();
+                bytes.addAndGet(size.applyAsLong(filename));
+            } else {
+                Throwable cause = (failure instanceof CompletionException && failure.getCause() != null) ? failure.getCause() : failure;
+                failures.put(filename, String.valueOf(cause.getMessage()));
+            }
+            synchronized (this) {
+                inFlight--;
+            }
+            pump();
+        }
+    }
+
+    /**
+     * Method: chat(String message)
+     *      - The server does not acknowledge chat; a message that could not be delivered is answered by a notice.
+     *
+     * @return: A future that completes once the message is written to the connection.
+     */
+    public CompletableFuture<Void> chat(String message) {
+        return send("/chat " + message);
+    }
+
+    /**
+     * Method: chat(String alias, String message)
+     *      - Sends a message to that user only; an unknown alias is answered by a notice, not by the future.
+     *
+     * @return: A future that completes once the message is written to the connection.
+     */
+    public CompletableFuture<Void> chat(String alias, String message) {
+        return send("/chatuni " + alias + " " + message);
+    }
+
+    /**
+     * Method: send(String command)
+     *      - Sends any other command as it is; the server's answer arrives as notices.
+     *
+     * @return: A future that completes once the command is written to the connection, not when it is answered.
+     */
+    public CompletableFuture<Void> send(String command) {
+        try {
+            sendCommand(command);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Method: leave()
+     *      - Says goodbye ('/leave'); the server then closes the connection.
+     *
+     * @return: A future that completes once the connection is gone.
+     */
+    public CompletableFuture<Void> leave() {
+        try {
+            sendCommand("/leave");
+        } catch (IOException e) {
+            close();
+        }
+        return closed;
+    }
+
+    /**
+     * Method: close()
+     *      - Drops the connection without saying goodbye; downloads in progress are kept for a resume.
+     */
+    public void close() {
+        closing = true;
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+
+        // Wake the reader and a writer waiting for room, so they find the channel closed
+        Selector reading = selector;
+        if (reading != null) reading.wakeup();
+        ChannelOutput writing = channelOutput;
+        if (writing != null) writing.wakeup();
+    }
+
+    public boolean isRegistered() {
+        return isRegistered;
+    }
+
+    /**
+     * Method: isConnected()
+     *
+     * @return: True from the moment the connection is set up until it is gone.
+     */
+    public boolean isConnected() {
+        return connected.isDone() && !connected.isCompletedExceptionally() && !closed.isDone();
+    }
+
+    /**
+     * Method: run(String host, int port)
+     *      - The reader thread: sets up the connection, then waits on the selector and handles whatever the server
+     *        has sent, until the connection is gone.
+     */
+    private void run(String host, int port) {
+        try {
+            //Establish a connection to the server
+            this.server = new InetSocketAddress(host, port);
+            this.channel = SocketChannel.open(server);
+
+            // Commands are gathered into few writes already (see flushUnlessQueued), so Nagle would only delay them
+            this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            // Reads never block: the selector tells when there is something to read
+            this.channel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.channel.register(selector, SelectionKey.OP_READ);
+            this.channelOutput = new ChannelOutput(channel);
+            this.serverOutput = new DataOutputStream(new BufferedOutputStream(channelOutput, 64 * 1024));
+
+            // Room for the largest frame; only a longer line makes it grow
+            this.inbound = ByteBuffer.allocate(Wire.HEADER_SIZE + Wire.MAX_PAYLOAD);
+
+            // Ask the server for binary frames before any other command is sent; its answer completes connected
+            this.negotiating = true;
+            sendCommand(Wire.NEGOTIATE_COMMAND + " " + Wire.VERSION);
+        } catch (IOException | IllegalArgumentException e) {
+            connected.completeExceptionally(e);
+            close();
+            closeSelectors();
+            closed.complete(null);
+            return;
+        }
+
+        try {
+            // Blocks in select only; everything that arrived is handled before waiting again
+            while (receive()) {
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+            abortDownloads();
+        } catch (IOException e) {
+            abortDownloads();
+            if (!closing) notices.accept("Client side error: " + e.getMessage());
+        } finally {
+            close();
+            closeSelectors();
+            connected.completeExceptionally(new IOException("Connection closed"));
+            failWaiters(new IOException("Connection closed"));
+            closed.complete(null);
+        }
+    }
+
+    /**
+     * Method: receive()
+     *      - Reads what the server has sent, without waiting for more, and handles everything that arrived whole.
+     *
+     * @return: False once the server has closed the connection.
+     */
+    private boolean receive() throws IOException {
+        int read;
+        do {
+            // A line longer than the buffer is still arriving (a frame always fits)
+            if (!inbound.hasRemaining()) inbound = ByteBuffer.allocate(inbound.capacity() * 2).put(inbound.flip());
+
+            read = channel.read(inbound);
+            if (read > 0) drain();
+        } while (read > 0);
+
+        // Connection closed before the whole body arrived: abortDownloads keeps what we have for a resume
+        if (read < 0 && body != null) throw new EOFException("Connection closed with " + body.remaining() + " bytes left");
+        return read >= 0;
+    }
+
+    /**
+     * Method: drain()
+     *      - Handles every line and frame in the inbound buffer that has arrived whole, and writes the bytes of a
+     *        download body (line protocol) to its file; an incomplete line or frame waits for the next read.
+     */
+    private void drain() throws IOException {
+        inbound.flip();
+        try {
+            while (inbound.hasRemaining()) {
+                if (body != null) {
+                    writeBody();
+                } else if (usesFrames ? !receiveFrame() : !receiveLine()) {
+                    break;
+                }
+            }
+        } finally {
+            inbound.compact();
+        }
+    }
+
+    /**
+     * Method: receiveLine()
+     *      - Takes one line off the inbound buffer, if all of it has arrived, and handles it.
+     *
+     * @return: False if the line is not complete yet.
+     */
+    private boolean receiveLine() throws IOException {
+        int start = inbound.position();
+        int end = start;
+        while (end < inbound.limit() && inbound.get(end) != '\n') end++;
+        if (end == inbound.limit()) return false;
+
+        // Drop the carriage return PrintWriter.println adds on some platforms
+        int length = end - start;
+        if (length > 0 && inbound.get(end - 1) == '\r') length--;
+        String line = new String(inbound.array(), inbound.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        inbound.position(end + 1);
+        lineArrived(line);
+        return true;
+    }
+
+    /**
+     * Method: receiveFrame()
+     *      - Takes one frame off the inbound buffer, if all of it has arrived: a MESSAGE is handled like a line, a
+     *        DATA frame is written to its download.
+     *
+     * @return: False if the frame is not complete yet.
+     */
+    private boolean receiveFrame() throws IOException {
+        if (inbound.remaining() < Wire.HEADER_SIZE) return false;
+        int start = inbound.position();
+        byte version = inbound.get(start);
+        byte type = inbound.get(start + 1);
+        int streamId = inbound.getInt(start + 2);
+        int length = inbound.getInt(start + 6);
+        if (version != Wire.VERSION || length < 0 || length > Wire.MAX_PAYLOAD) throw new IOException("Invalid frame from the server");
+        if (inbound.remaining() < Wire.HEADER_SIZE + length) return false;
+
+        int payload = inbound.arrayOffset() + start + Wire.HEADER_SIZE;
+        inbound.position(start + Wire.HEADER_SIZE + length);
+        if (type == Wire.TYPE_MESSAGE) {
+            lineArrived(new String(inbound.array(), payload, length, StandardCharsets.UTF_8));
+        } else if (type == Wire.TYPE_DATA) {
+            receiveData(streamId, inbound.array(), payload, length);
+        } else {
+            throw new IOException("Unexpected frame type " + type);
+        }
+        return true;
+    }
+
+    /**
+     * Method: writeBody()
+     *      - Writes the bytes of the download body that have arrived (line protocol), and finishes the download
+     *        with its last byte; what follows it is the next line.
+     */
+    private void writeBody() {
+        int length = (int) Math.min(inbound.remaining(), body.remaining());
+        body.write(inbound.array(), inbound.arrayOffset() + inbound.position(), length);
+        inbound.position(inbound.position() + length);
+        if (body.remaining() == 0) {
+            DownloadFile done = body;
+            body = null;
+            done.finish();
+        }
+    }
+
+    /**
+     * Method: lineArrived(String line)
+     *      - Passes one line from the server on: to the frame negotiation while it is under way, to the reply
+     *        whose lines it completes, or else to handle.
+     */
+    private void lineArrived(String line) throws IOException {
+        if (negotiating) {
+            negotiated(line);
+        } else if (openReply != null) {
+            replyLines.add(line);
+            if (replyLines.size() < 2) return;
+            String reply = openReply;
+            String filename = replyLines.get(0);
+            String sizes = replyLines.get(1);
+            openReply = null;
+            replyLines.clear();
+            fileAnnounced(reply, filename, sizes);
+        } else {
+            handle(line);
+        }
+    }
+
+    /**
+     * Method: closeSelectors()
+     *      - Releases the selectors once the reader is done; a writer still waiting then fails like on a closed channel.
+     */
+    private void closeSelectors() {
+        try {
+            if (selector != null) selector.close();
+            if (channelOutput != null) channelOutput.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+    }
+
+    /**
+     * Method: handle(String serverResponse)
+     *      - Acts on one line from the server; lines that are not part of the protocol are notices.
+     */
+    private void handle(String serverResponse) throws IOException {
+        String first = serverResponse.split(" ", 2)[0];
+
+        // If client successfully registered
+        if (serverResponse.equals("REGISTER_TRUE")) {
+            this.isRegistered = true;
+            CompletableFuture<Void> registered = registrations.poll();
+            if (registered != null) registered.complete(null);
+        }
+        // If client wasn't able to successfully registered (the reason follows as a notice)
+        else if (serverResponse.equals("REGISTER_FALSE")) {
+            CompletableFuture<Void> registered = registrations.poll();
+            if (registered != null) registered.completeExceptionally(new IOException("Alias refused"));
+        }
+        // A file (or a range of it) follows: its name and sizes arrive on the next two lines (see fileAnnounced)
+        else if (serverResponse.equals("FILE_EXISTS") || serverResponse.equals("FILE_COMPRESSED") || serverResponse.equals("FILE_RANGE")) {
+            openReply = serverResponse;
+        }
+        // The codec the server agreed to ('none' if it knows none of ours)
+        else if (first.equals("COMPRESS")) {
+            this.codec = BlockFormat.codec(serverResponse.split(" ")[1]);
+        }
+        // With frames: a download starts on its own stream and arrives alongside everything else
+        else if (first.equals("FILE_STREAM")) {
+            startDownload(serverResponse);
+        }
+        // The server's copy of a file being stored: send a delta against it, or the whole file if there is none
+        else if (first.startsWith("SIGNATURES") || first.equals("SIGS")) {
+            receiveSignatures(serverResponse);
+        }
+        // The server's answer to '/chunks': upload whatever it is missing
+        else if (first.equals("CHUNKS")) {
+            startUpload(serverResponse);
+        }
+        // The token extra download connections attach with
+        else if (first.equals("SESSION")) {
+            sessionToken = serverResponse.split(" ")[1];
+        }
+        // Whether the server sends checksums ahead of downloads ('VERIFY crc32c' or 'VERIFY none')
+        else if (first.equals("VERIFY")) {
+        }
+        // The checksum of the download that follows: 'CHECKSUM <file name> crc32c <checksum>'
+        else if (first.equals("CHECKSUM")) {
+            String[] words = serverResponse.split(" ");
+            expectedChecksums.put(words[1], ChunkChecksums.parse(words[3]));
+        }
+        // The checksums of a file's chunks: start a parallel download or a repair, or show them
+        else if (first.startsWith("CHECKSUMS") || first.equals("CRCS")) {
+            receiveChecksums(serverResponse);
+        }
+        // Chunks of an upload that arrived damaged: send them again
+        else if (first.equals("CORRUPT")) {
+            resendChunks(serverResponse);
+        }
+        // The size of a file
+        else if (first.equals("STAT")) {
+            String[] words = serverResponse.split(" ");
+            notices.accept(words[1] + ": " + words[2] + " bytes");
+        }
+        else if (first.equals("STAT_FALSE")) {
+            notices.accept("Server: Sorry, file not found!");
+        }
+        // If file does not exists: the oldest '/get' not answered yet failed (the reason follows as a notice)
+        else if (serverResponse.equals("FILE_FALSE")) {
+            String filename = pendingGets.poll();
+            if (filename != null) downloadDone(filename, null, "file not found on the server");
+        }
+        // Names matching a '/match' pattern, and the end of them; shown as they are if '/match' was typed in
+        else if (first.equals("MATCH")) {
+            Match match = matches.peek();
+            String[] names = serverResponse.split(" ");
+            if (match != null) match.names.addAll(Arrays.asList(names).subList(1, names.length));
+            else notices.accept(String.join("\n", Arrays.asList(names).subList(1, names.length)));
+        }
+        else if (first.equals("MATCH_END")) {
+            Match match = matches.poll();
+            String[] words = serverResponse.split(" ");
+            if (match != null) match.done.complete(match.names);
+            else notices.accept(words[words.length - 1] + " file(s) match " + serverResponse.substring(
+                    "MATCH_END ".length(), serverResponse.length() - words[words.length - 1].length() - 1));
+        }
+        // An upload is in place ('STORED <file name>'), or the server gave up on it ('STORE_FALSE <file name> <reason>')
+        else if (first.equals("STORED")) {
+            storeDone(serverResponse.substring("STORED ".length()), null);
+        }
+        else if (first.equals("STORE_FALSE")) {
+            String[] words = serverResponse.split(" ", 3);
+            storeDone(words[1], words.length > 2 ? words[2] : "refused by the server");
+        }
+        else if (!isBatchUpload(serverResponse)) {
+            notices.accept(serverResponse);
+        }
+    }
+
+    /**
+     * Method: fileAnnounced(String reply, String filename, String sizes)
+     *      - Starts a download announced on the line protocol, whose body follows right away:
+     *        'FILE_EXISTS' (name, then size), 'FILE_COMPRESSED' (name, then '<compressed length> <size> <codec>')
+     *        or 'FILE_RANGE' (name, then '<offset> <length> <size>').
+     */
+    private void fileAnnounced(String reply, String filename, String sizes) throws IOException {
+        pendingGets.remove(filename);
+        String[] words = sizes.split(" ");
+        if (reply.equals("FILE_EXISTS")) {
+            noticesFor(filename).accept("File exists!");
+            noticesFor(filename).accept("The file name is: " + filename);
+            long sizeOfFile = Long.parseLong(words[0]);
+            getFile(filename, 0, sizeOfFile, sizeOfFile);
+        } else if (reply.equals("FILE_COMPRESSED")) {
+            noticesFor(filename).accept("File exists!");
+            noticesFor(filename).accept("The file name is: " + filename);
+            noticesFor(filename).accept("Size of file is: " + words[1]);
+            receiveBody(openCompressed(filename, Long.parseLong(words[0]), Long.parseLong(words[1]), words[2]));
+        } else {
+            getFile(filename, Long.parseLong(words[0]), Long.parseLong(words[1]), Long.parseLong(words[2]));
+        }
+    }
+
+    /**
+     * Method: noticesFor(String filename)
+     *
+     * @return: Where the progress of a transfer goes: nowhere for a file in a batch, else the notices.
+     */
+    private Consumer<String> noticesFor(String filename) {
+        return batched.contains(filename) ? line -> { } : notices;
+    }
+
+    /**
+     * Method: source(String filename)
+     *
+     * @return: The local file a file being stored is read from.
+     */
+    private File source(String filename) {
+        File file = sources.get(filename);
+        return file != null ? file : new File("./" + filename);
+    }
+
+    /**
+     * Method: request(String filename, String command)
+     *      - Sends a '/get' and returns the future its file completes, or the one of a download of it in progress.
+     */
+    private CompletableFuture<File> request(String filename, String command) {
+        CompletableFuture<File> waiter = new CompletableFuture<>();
+        CompletableFuture<File> pending = fileWaiters.putIfAbsent(filename, waiter);
+        if (pending != null) return pending;
+        if (!isRegistered) return fail(filename, waiter, new IllegalStateException("Register first"));
+        try {
+            sendGet(command, filename);
+        } catch (IOException e) {
+            fail(filename, waiter, e);
+        }
+        return waiter;
+    }
+
+    private CompletableFuture<File> fail(String filename, CompletableFuture<File> waiter, Exception failure) {
+        fileWaiters.remove(filename, waiter);
+        waiter.completeExceptionally(failure);
+        return waiter;
+    }
+
+    /**
+     * Method: sendGet(String command, String filename)
+     *      - Sends a '/get' and notes its file, under the send lock so the notes are in the order the server answers.
+     */
+    private void sendGet(String command, String filename) throws IOException {
+        sendLock.lock();
+        try {
+            pendingGets.add(filename);
+            sendCommand(command);
+        } catch (IOException e) {
+            pendingGets.remove(filename);
+            throw e;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Method: downloadDone(String filename, File file, String failure)
+     *      - A download has ended: completes the future of whoever waits for it.
+     */
+    private void downloadDone(String filename, File file, String failure) {
+        CompletableFuture<File> waiter = fileWaiters.remove(filename);
+        if (waiter == null) return;
+        if (failure == null) waiter.complete(file);
+        else waiter.completeExceptionally(new IOException(filename + ": " + failure));
+    }
+
+    /**
+     * Method: storeDone(String filename, String failure)
+     *      - An upload has ended: completes the future of whoever waits for it.
+     */
+    private void storeDone(String filename, String failure) {
+        CompletableFuture<Void> waiter = storeWaiters.remove(filename);
+        if (waiter == null) return;
+        sources.remove(filename);
+        if (failure == null) waiter.complete(null);
+        else waiter.completeExceptionally(new IOException(filename + ": " + failure));
+    }
+
+    /**
+     * Method: isBatchUpload(String notice)
+     *      - The server confirms an upload with '<alias> <time>: Uploaded <file name>' before its 'STORED' line; a
+     *        batch sums its files up instead of showing each one. This only hides the message: uploads complete on
+     *        'STORED', which a chat line cannot pass for.
+     *
+     * @return: True if the notice confirms the upload of a file in a batch still waited for.
+     */
+    private boolean isBatchUpload(String notice) {
+        if (batched.isEmpty()) return false;
+        int uploaded = notice.indexOf(">: Uploaded ");
+        if (uploaded < 0) return false;
+        String filename = notice.substring(uploaded + 12).split(" ")[0];
+        return batched.contains(filename) && storeWaiters.containsKey(filename);
+    }
+
+    /**
+     * Method: failWaiters(IOException failure)
+     *      - The connection is gone: nothing still waited for will be answered.
+     */
+    private void failWaiters(IOException failure) {
+        CompletableFuture<Void> registered;
+        while ((registered = registrations.poll()) != null) registered.completeExceptionally(failure);
+        for (String filename : fileWaiters.keySet()) downloadDone(filename, null, failure.getMessage());
+        for (String filename : storeWaiters.keySet()) storeDone(filename, failure.getMessage());
+        Match match;
+        while ((match = matches.poll()) != null) match.done.completeExceptionally(failure);
+        pendingGets.clear();
+    }
+
+    /**
+     * Method: receiveChecksums(String reply)
+     *      - Collects 'CHECKSUMS <file name> <size> <chunk size> <chunk count> <checksum>' and the 'CRCS <file name>
+     *        <first chunk> <checksums>' lines after it ('CHECKSUMS_FALSE <file name>' if there is no such file).
+     *      - Then starts the parallel download '/pget' asked for, or the repair of a download that failed its
+     *        checksum, in the background; otherwise just shows them. The '/session' reply always arrives first.
+     *
+     * @param reply: One line of the server's answer to '/checksums'.
+     */
+    private void receiveChecksums(String reply) {
+        String[] words = reply.split(" ");
+        String filename = words[1];
+        ChunkChecksums checksums;
+        if (words[0].equals("CHECKSUMS_FALSE")) {
+            parallelGets.remove(filename);
+            repairs.remove(filename);
+            notices.accept("Server: Sorry, file not found!");
+            downloadDone(filename, null, "file not found on the server");
+            return;
+        } else if (words[0].equals("CHECKSUMS")) {
+            checksums = new ChunkChecksums(filename, Long.parseLong(words[2]), Integer.parseInt(words[3]), Integer.parseInt(words[4]),
+                    ChunkChecksums.parse(words[5]));
+            chunkChecksums.put(filename, checksums);
+        } else {
+            checksums = chunkChecksums.get(filename);
+            if (checksums == null) return;
+            checksums.addChecksums(Integer.parseInt(words[2]), words[3]);
+        }
+        if (!checksums.isComplete()) return;
+        chunkChecksums.remove(filename);
+
+        Integer connections = parallelGets.remove(filename);
+        if (repairs.remove(filename)) {
+            Thread repair = new Thread(() -> repairDownload(checksums));
+            repair.start();
+        } else if (connections != null) {
+            Thread download = new Thread(new ParallelDownload(server.getAddress(), server.getPort(), sessionToken,
+                    checksums, null, connections, () -> requestFile(filename)).reportingTo(notices)
+                    .whenDone((file, failure) -> downloadDone(filename, file, failure)));
+            download.start();
+        } else {
+            notices.accept(filename + ": " + checksums.getSize() + " bytes, crc32c " + String.format("%08x", checksums.getWhole()) + " (chunks of " + checksums.getChunkSize() + " bytes)");
+        }
+    }
+
+    /**
+     * Method: requestRepair(String filename)
+     *      - A download failed its checksum: asks for the file's chunk checksums to find the damaged chunks.
+     */
+    private void requestRepair(String filename) {
+        repairs.add(filename);
+        try {
+            if (sessionToken == null) sendCommand("/session");
+            sendCommand("/checksums " + filename);
+        } catch (IOException e) {
+            repairs.remove(filename);
+            notices.accept("Error receiving file from the server :(");
+            downloadDone(filename, null, e.getMessage());
+        }
+    }
+
+    /**
+     * Method: repairDownload(ChunkChecksums checksums)
+     *      - Checks the failed download chunk by chunk and fetches only the damaged chunks again, over extra
+     *        connections like '/pget'.
+     */
+    private void repairDownload(ChunkChecksums checksums) {
+        String filename = checksums.getFilename();
+        try {
+            BitSet damaged = checksums.damaged(ParallelDownload.partFile(filename));
+            notices.accept(damaged.cardinality() + " damaged chunks in " + filename);
+            new ParallelDownload(server.getAddress(), server.getPort(), sessionToken, checksums, damaged,
+                    PARALLEL_CONNECTIONS, () -> requestFile(filename)).reportingTo(notices)
+                    .whenDone((file, failure) -> downloadDone(filename, file, failure)).run();
+        } catch (IOException e) {
+            notices.accept("Error receiving file from the server :( " + e.getMessage());
+            downloadDone(filename, null, e.getMessage());
+        }
+    }
+
+    /**
+     * Method: requestFile(String filename)
+     *      - Downloads a whole file the usual way, e.g. when no extra connection could attach.
+     */
+    private void requestFile(String filename) {
+        try {
+            sendGet("/get " + filename, filename);
+        } catch (IOException e) {
+            notices.accept("Error receiving file from the server :(");
+            downloadDone(filename, null, e.getMessage());
+        }
+    }
+
+    /**
+     * Method: receiveSignatures(String reply)
+     *      - Collects 'SIGNATURES <file name> <size> <block size> <block count> <version>' and the 'SIGS <file name>
+     *        <first block> <signatures>' lines after it, then sends the delta in the background.
+     *      - 'SIGNATURES_FALSE <file name>' means the server has no copy: the file is uploaded in full.
+     *
+     * @param reply: One line of the server's answer to '/signatures'
+     */
+    private void receiveSignatures(String reply) {
+        String[] words = reply.split(" ");
+        String filename = words[1];
+        DeltaEncoder encoder;
+        if (words[0].equals("SIGNATURES_FALSE")) {
+            workers.execute(() -> offerChunks(filename, source(filename).length()));
+            return;
+        } else if (words[0].equals("SIGNATURES")) {
+            encoder = new DeltaEncoder(filename, Long.parseLong(words[2]), Integer.parseInt(words[3]), Integer.parseInt(words[4]), words[5]);
+            signatures.put(filename, encoder);
+        } else {
+            encoder = signatures.get(filename);
+            if (encoder == null) return;
+            encoder.addSignatures(Integer.parseInt(words[2]), words[3]);
+        }
+
+        // All signatures are in: compute and send the delta (hashing runs in the background)
+        if (encoder.isComplete()) {
+            signatures.remove(filename);
+            workers.execute(() -> StoreDelta(encoder));
+        }
+    }
+
+    /**
+     * Method: StoreDelta(DeltaEncoder encoder)
+     *      - Sends a file the server already has a copy of as '/delta', carrying only the bytes the server lacks.
+     *      - Mostly new content goes up as a normal upload instead, where the server's chunk store may still help.
+     *
+     * @param encoder: The signatures of the server's copy
+     */
+    private void StoreDelta(DeltaEncoder encoder) {
+        String filename = encoder.getFilename();
+        File delta = null;
+        try {
+            delta = File.createTempFile(filename + ".", ".delta");
+            long literalBytes = encoder.encode(source(filename), delta);
+            long sizeOfFile = encoder.getSourceSize();
+            if (literalBytes > sizeOfFile / 2) {
+                offerChunks(filename, sizeOfFile);
+                return;
+            }
+            noticesFor(filename).accept("Sending " + filename + " as a delta: " + literalBytes + " of " + sizeOfFile + " bytes are new");
+
+            // Without frames nothing else may be sent until the whole delta is out
+            if (!usesFrames) sendLock.lock();
+            try (RandomAccessFile deltaReader = new RandomAccessFile(delta, "r")) {
+                int streamId = nextUploadStream.getAndAdd(2);
+                sendCommand("/delta " + filename + " " + sizeOfFile + " " + encoder.getVersion() + " " + encoder.getBlockSize()
+                        + " " + delta.length() + (usesFrames ? " " + streamId : ""));
+                sendRange(deltaReader, streamId, 0, delta.length());
+            } finally {
+                if (!usesFrames) sendLock.unlock();
+            }
+        } catch (IOException e) {
+            // Handle exceptions related to file transfer errors
+            notices.accept("Error in sending file.");
+            storeDone(filename, e.getMessage());
+        } finally {
+            if (delta != null) delta.delete();
+        }
+    }
+
+    /**
+     * Method: offerChunks(String filename, long sizeOfFile)
+     *      - Sends the SHA-256 hashes of the file's chunks in '/offer' batches. The server counts chunks it already
+     *        stores (from any file) as received and answers the last batch like '/chunks', so identical content is
+     *        never uploaded twice.
+     *      - Falls back to a plain '/chunks' if the file cannot be hashed.
+     *
+     * @param filename: name of the file in the client directory
+     * @param sizeOfFile: size of the whole file
+     */
+    private void offerChunks(String filename, long sizeOfFile) {
+        try {
+            if (sizeOfFile == 0) {
+                sendCommand("/chunks " + filename + " " + sizeOfFile);
+                return;
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[Wire.CHUNK_SIZE];
+            StringBuilder batch = new StringBuilder();
+            int firstChunk = 0;
+            int chunk = 0;
+            try (FileInputStream fileReader = new FileInputStream(source(filename))) {
+                int bytesRead;
+                while ((long) chunk * Wire.CHUNK_SIZE < sizeOfFile
+                        && (bytesRead = fileReader.readNBytes(buffer, 0, (int) Math.min(buffer.length, sizeOfFile - (long) chunk * Wire.CHUNK_SIZE))) > 0) {
+                    // Hash one chunk
+                    digest.update(buffer, 0, bytesRead);
+                    if (batch.length() > 0) batch.append(',');
+                    for (byte b : digest.digest()) {
+                        batch.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                    }
+                    chunk++;
+
+                    // Send a full batch, or the last one
+                    if (chunk - firstChunk == Wire.OFFER_BATCH || (long) chunk * Wire.CHUNK_SIZE >= sizeOfFile) {
+                        sendCommand("/offer " + filename + " " + sizeOfFile + " " + Wire.CHUNK_SIZE + " " + firstChunk + " " + batch);
+                        batch.setLength(0);
+                        firstChunk = chunk;
+                    }
+                }
+            }
+
+            // The file shrank while it was hashed: nothing was answered yet
+            if ((long) chunk * Wire.CHUNK_SIZE < sizeOfFile) {
+                sendCommand("/chunks " + filename + " " + sizeOfFile);
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            try {
+                sendCommand("/chunks " + filename + " " + sizeOfFile);
+            } catch (IOException e2) {
+                notices.accept("Error in sending file.");
+                storeDone(filename, e2.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Method: resendChunks(String reply)
+     *      - Reads 'CORRUPT <file name> <size> <chunk size> <damaged chunks>' and uploads those chunks again in the
+     *        background, up to MAX_UPLOAD_RETRIES times per file.
+     *
+     * @param reply: The server's report of chunks that did not match the hashes offered for them
+     */
+    private void resendChunks(String reply) {
+        String[] words = reply.split(" ");
+        String filename = words[1];
+        long sizeOfFile = Long.parseLong(words[2]);
+        long chunkSize = Long.parseLong(words[3]);
+        if (uploadRetries.merge(filename, 1, Integer::sum) > MAX_UPLOAD_RETRIES) {
+            uploadRetries.remove(filename);
+            notices.accept("Upload of " + filename + " kept arriving damaged; giving up. \"/store " + filename + "\" tries again");
+            storeDone(filename, "chunks kept arriving damaged");
+            return;
+        }
+        notices.accept("Chunks " + words[4] + " of " + filename + " arrived damaged; sending them again");
+
+        BitSet damaged = parseRanges(words[4]);
+        workers.execute(() -> {
+            for (int chunk = damaged.nextSetBit(0); chunk >= 0; ) {
+                int end = damaged.nextClearBit(chunk);
+                long offset = chunk * chunkSize;
+                if (!StoreFile(filename, sizeOfFile, offset, Math.min(end * chunkSize, sizeOfFile) - offset)) return;
+                chunk = damaged.nextSetBit(end);
+            }
+        });
+    }
+
+    /**
+     * Method: parseRanges(String ranges)
+     *
+     * @return: The chunks listed as comma-separated ranges ('0-15,20'), none for '-'.
+     */
+    private static BitSet parseRanges(String ranges) {
+        BitSet chunks = new BitSet();
+        if (!ranges.equals("-")) {
+            for (String range : ranges.split(",")) {
+                String[] bounds = range.split("-");
+                chunks.set(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[bounds.length - 1]) + 1);
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Method: startUpload(String reply)
+     *      - Reads 'CHUNKS <file name> <size> <chunk size> <chunks received>' and uploads the missing chunks in the
+     *        background, so an interrupted upload only resends what the server does not have yet.
+     *
+     * @param reply: The server's answer to '/chunks'
+     */
+    private void startUpload(String reply) {
+        String[] words = reply.split(" ");
+        String filename = words[1];
+        long sizeOfFile = Long.parseLong(words[2]);
+        long chunkSize = Long.parseLong(words[3]);
+        int chunkCount = (int) ((sizeOfFile + chunkSize - 1) / chunkSize);
+
+        // Chunks the server already has
+        BitSet received = parseRanges(words[4]);
+
+        // Runs of missing chunks become one '/store' range each; an empty file is one empty range
+        List<long[]> ranges = new ArrayList<>();
+        int chunk = received.nextClearBit(0);
+        while (chunk < chunkCount) {
+            int end = received.nextSetBit(chunk);
+            if (end < 0 || end > chunkCount) end = chunkCount;
+            long offset = chunk * chunkSize;
+            ranges.add(new long[] {offset, Math.min(end * chunkSize, sizeOfFile) - offset});
+            chunk = received.nextClearBit(end);
+        }
+        if (chunkCount == 0) ranges.add(new long[] {0, 0});
+        if (ranges.isEmpty()) {
+            // A file the server could put together from chunks it had is answered by its 'STORED' line first
+            if (storeWaiters.containsKey(filename)) noticesFor(filename).accept("The server already has every chunk of " + filename);
+            storeDone(filename, null);
+            return;
+        }
+        if (received.cardinality() > 0) {
+            noticesFor(filename).accept("Resuming upload of " + filename + ": " + received.cardinality() + " of " + chunkCount + " chunks already stored");
+        }
+
+        // Upload in the background, so chat and other transfers carry on
+        workers.execute(() -> {
+            for (long[] range : ranges) {
+                if (!StoreFile(filename, sizeOfFile, range[0], range[1])) return;
+            }
+        });
+    }
+
+    /**
+     * Method: StoreFile ()
+     *         - If the user chose '/store' command
+     *         - Allow the client to store a file (or a range of it) from client to server
+     *         - With frames, the range goes on its own stream and each buffer is sent as one DATA frame, taking the
+     *           send lock per frame so other uploads and commands can go out in between.
+     *         - With a codec agreed, a range that compresses well goes as compressed blocks (see BlockFormat),
+     *           prepared in a temporary file before it is announced.
+     *
+     * @param filename: name of the file in the client directory
+     * @param sizeOfFile: size of the whole file
+     * @param offset: offset of the first byte to send
+     * @param length: number of bytes to send
+     * @return: False if the file could not be read or sent
+     */
+    private boolean StoreFile(String filename, long sizeOfFile, long offset, long length) {
+        File packed = null;
+        try (RandomAccessFile fileReader = new RandomAccessFile(source(filename), "r")) {
+            // Compress the range first if the server agreed to a codec and a sample shows it is worth it
+            CompressionCodec bodyCodec = this.codec;
+            String compression = "";
+            if (bodyCodec != null && BlockFormat.isWorthCompressing(fileReader, offset, length, bodyCodec)) {
+                packed = File.createTempFile(filename + ".", "." + bodyCodec.name());
+                long packedLength = BlockFormat.encode(fileReader, offset, length, bodyCodec, packed);
+                compression = " " + bodyCodec.name() + " " + packedLength;
+            }
+
+            // Without frames nothing else may be sent until the whole body is out
+            if (!usesFrames) sendLock.lock();
+            try (RandomAccessFile bodyReader = (packed != null) ? new RandomAccessFile(packed, "r") : null) {
+                // Announce the range: on its own stream with frames, or as the '/store' command and its size line
+                int streamId = nextUploadStream.getAndAdd(2);
+                if (usesFrames) {
+                    sendCommand("/store " + filename + " " + sizeOfFile + " " + streamId + " " + offset + " " + length + compression);
+                } else {
+                    sendCommand("/store " + filename);
+                    sendCommand(sizeOfFile + " " + offset + " " + length + compression);
+                }
+
+                if (bodyReader != null) sendRange(bodyReader, streamId, 0, bodyReader.length());
+                else sendRange(fileReader, streamId, offset, length);
+            } finally {
+                if (!usesFrames) sendLock.unlock();
+            }
+            return true;
+        } catch (Exception e) {
+            // Handle exceptions related to file transfer errors
+            notices.accept("Error in sending file.");
+            storeDone(filename, String.valueOf(e.getMessage()));
+            return false;
+        } finally {
+            if (packed != null) packed.delete();
+        }
+    }
+
+    /**
+     * Method: sendRange(RandomAccessFile fileReader, int streamId, long offset, long length)
+     *      - Sends the body of an announced upload: in DATA frames of its stream with frames, else straight onto the
+     *        connection (the caller then holds the send lock).
+     *
+     * @param fileReader: the file to send from
+     * @param streamId: the stream of the upload (frames only)
+     * @param offset: offset of the first byte to send
+     * @param length: number of bytes to send
+     */
+    private void sendRange(RandomAccessFile fileReader, int streamId, long offset, long length) throws IOException {
+        // With frames, each buffer becomes one DATA frame
+        byte[] buffer = new byte[usesFrames ? Wire.DATA_FRAME_SIZE : 64 * 1024];
+        long remaining = length;
+        int bytesRead;
+
+        // Loop through the range, sending exactly the size announced to the server
+        fileReader.seek(offset);
+        while (remaining > 0 && (bytesRead = fileReader.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+            // Write the buffer to the server's output stream
+            if (usesFrames) {
+                sendFrame(Wire.TYPE_DATA, streamId, buffer, bytesRead);
+            } else {
+                serverOutput.write(buffer, 0, bytesRead);
+            }
+
+            // Update the remaining size of the range
+            remaining -= bytesRead;
+        }
+
+        // Flush the output stream to ensure all data is sent
+        if (!usesFrames) serverOutput.flush();
+    }
+
+    /**
+     * Method: getFile ()
+     *      - If the user chose '/getFile' command
+     *      - This method allows the client to get a file (or a range of it) from the server
+     *      - If the connection drops, what has arrived stays in '<name>.part' and the next '/get' resumes from there
+     *
+     * @param filename: filename from server directory
+     * @param offset: offset of the first byte that follows
+     * @param length: number of bytes that follow
+     * @param total: size of the whole file on the server
+     */
+    private void getFile(String filename, long offset, long length, long total) throws IOException {
+        noticesFor(filename).accept("Size of file is: " + total);
+
+        // Write to the partial file, or drop the bytes if they belong to an outdated resume
+        receiveBody(checked(openDownload(filename, offset, length, total)));
+    }
+
+    /**
+     * Method: receiveBody(DownloadFile fileOutput)
+     *      - A download's body follows its announcement directly on the line protocol: the bytes that arrive next
+     *        go to it (see writeBody), exactly as many as announced.
+     *
+     * @param fileOutput: the download, knowing how many bytes follow
+     */
+    private void receiveBody(DownloadFile fileOutput) {
+        if (fileOutput.remaining() == 0) fileOutput.finish();
+        else body = fileOutput;
+    }
+
+    /**
+     * Method: openDownload(String filename, long offset, long length, long total)
+     *      - Opens the partial file a range is written into.
+     *      - A resumed range for a file whose size changed on the server is useless: the partial file is dropped and
+     *        the whole file requested again.
+     *
+     * @return: The download; for an outdated resume, one that drops the incoming bytes.
+     */
+    private DownloadFile openDownload(String filename, long offset, long length, long total) throws IOException {
+        if (offset > 0 && DownloadFile.resumeTotal(filename) >= 0 && DownloadFile.resumeTotal(filename) != total) {
+            notices.accept(filename + " changed on the server; downloading it again");
+            DownloadFile.discard(filename);
+            sendGet("/get " + filename, filename);
+            return DownloadFile.discarding(filename, length);
+        }
+        return new DownloadFile(filename, offset, length, total);
+    }
+
+    /**
+     * Method: openCompressed(String filename, long wireLength, long total, String codecName)
+     *      - Opens the download of a whole file that arrives as compressed blocks.
+     *
+     * @return: The download, decompressing on the way.
+     */
+    private DownloadFile openCompressed(String filename, long wireLength, long total, String codecName) throws IOException {
+        CompressionCodec bodyCodec = BlockFormat.codec(codecName);
+        if (bodyCodec == null) throw new IOException("Unknown codec " + codecName);
+        return checked(new DownloadFile(filename, 0, total, total).decompressing(bodyCodec, wireLength));
+    }
+
+    /**
+     * Method: checked(DownloadFile download)
+     *      - Makes the download check the checksum the server sent ahead of it, if it sent one.
+     *
+     * @return: The download.
+     */
+    private DownloadFile checked(DownloadFile download) {
+        String filename = download.getFilename();
+        Long expected = expectedChecksums.remove(filename);
+        download.reportingTo(noticesFor(filename)).whenDone((file, failure) -> downloadDone(filename, file, failure));
+        return expected == null ? download : download.verifying(expected, () -> requestRepair(filename));
+    }
+
+    /**
+     * Method: abortDownloads()
+     *      - The connection is gone: records how far each download got so it can be resumed later.
+     */
+    private void abortDownloads() {
+        if (body != null) {
+            body.abort();
+            body = null;
+        }
+        for (DownloadFile download : downloads.values()) {
+            download.abort();
+        }
+        downloads.clear();
+    }
+
+    /**
+     * Method: negotiated(String reply)
+     *      - Takes the lines that arrive after asking the server for binary frames on joining: the greeting lines
+     *        are shown, until it accepts; an older server refuses and the line protocol is kept.
+     *      - Then offers compression and asks for checksums, and the connection is set up.
+     */
+    private void negotiated(String reply) throws IOException {
+        if (reply.equals(Wire.ACCEPTED)) {
+            this.usesFrames = true;
+        }
+        // Neither accepted nor refused (nor a server that does not know the command at all): a greeting line
+        else if (!reply.equals(Wire.REFUSED) && !reply.startsWith("Improper input") && !reply.startsWith("Cannot process")) {
+            notices.accept(reply);
+            return;
+        }
+        this.negotiating = false;
+
+        // Offer compression for file transfers; the COMPRESS reply arrives with the other messages
+        sendCommand("/compress " + BlockFormat.offer());
+
+        // Ask for the checksum of every download, to check it end to end
+        sendCommand("/verify crc32c");
+        connected.complete(null);
+    }
+
+    /**
+     * Method: sendCommand(String command)
+     *      - Sends one command to the server: a text line, or a COMMAND frame once frames are in use.
+     *
+     * @param command: The command without a line terminator.
+     */
+    private void sendCommand(String command) throws IOException {
+        if (usesFrames) {
+            byte[] payload = command.getBytes(StandardCharsets.UTF_8);
+            sendFrame(Wire.TYPE_COMMAND, Wire.CONTROL_STREAM, payload, payload.length);
+            return;
+        }
+        sendLock.lock();
+        try {
+            serverOutput.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+            flushUnlessQueued();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Method: sendFrame(byte type, int streamId, byte[] payload, int length)
+     *      - Writes one whole frame (10-byte header and payload) under the send lock and flushes it, unless another
+     *        frame is waiting for the lock (see flushUnlessQueued).
+     */
+    private void sendFrame(byte type, int streamId, byte[] payload, int length) throws IOException {
+        sendLock.lock();
+        try {
+            serverOutput.writeByte(Wire.VERSION);
+            serverOutput.writeByte(type);
+            serverOutput.writeInt(streamId);
+            serverOutput.writeInt(length);
+            serverOutput.write(payload, 0, length);
+            flushUnlessQueued();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Method: flushUnlessQueued()
+     *      - Flushes what was written, unless another thread is waiting for the send lock: it flushes after its own
+     *        write, so the small commands and frames of many pipelined transfers leave in a few large writes.
+     *        Called with the send lock held.
+     */
+    private void flushUnlessQueued() throws IOException {
+        if (!sendLock.hasQueuedThreads()) serverOutput.flush();
+    }
+
+    /**
+     * Method: startDownload(String announcement)
+     *      - Opens the target of a download announced as
+     *        'FILE_STREAM <stream id> <length> <file name> [<offset> <total size> [<codec>]]'.
+     *      - With a codec, the whole file arrives as length bytes of compressed blocks.
+     *      - Its DATA frames are written by receiveFrame as they arrive, between any other messages.
+     */
+    private void startDownload(String announcement) throws IOException {
+        String[] words = announcement.split(" ");
+        int streamId = Integer.parseInt(words[1]);
+        long length = Long.parseLong(words[2]);
+        String filename = words[3];
+        pendingGets.remove(filename);
+        long offset = words.length > 5 ? Long.parseLong(words[4]) : 0;
+        long total = words.length > 5 ? Long.parseLong(words[5]) : length;
+        noticesFor(filename).accept("File exists!");
+        noticesFor(filename).accept("The file name is: " + filename);
+        noticesFor(filename).accept("Size of file is: " + total);
+
+        DownloadFile download = words.length > 6 ? openCompressed(filename, length, total, words[6])
+                : checked(openDownload(filename, offset, length, total));
+        if (length == 0) download.finish();
+        else downloads.put(streamId, download);
+    }
+
+    /**
+     * Method: receiveData(int streamId, byte[] payload, int offset, int length)
+     *      - Writes one DATA frame into its download, and finishes the download with its last frame.
+     */
+    private void receiveData(int streamId, byte[] payload, int offset, int length) throws IOException {
+        DownloadFile download = downloads.get(streamId);
+        if (download == null || length > download.remaining()) throw new IOException("Unexpected DATA frame for stream " + streamId);
+
+        download.write(payload, offset, length);
+        if (download.remaining() == 0) {
+            downloads.remove(streamId);
+            download.finish();
+        }
+    }
+
+    /**
+     *  Class for ChannelOutput
+     *      - The stream commands and uploads are written to. Writes go straight to the non-blocking channel; while
+     *        the socket's send buffer is full, only the thread writing (which holds the send lock) waits, on a
+     *        selector of its own. The reader thread never waits for room to write, unless it sends a command itself.
+     */
+    private static final class ChannelOutput extends OutputStream {
+        private final SocketChannel channel;
+        private final Selector writable;
+
+        ChannelOutput(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.writable = Selector.open();
+            channel.register(writable, SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) > 0) continue;
+                    writable.select();
+                    writable.selectedKeys().clear();
+                }
+            } catch (ClosedSelectorException e) {
+                // The reader is done with the connection
+                throw new ClosedChannelException();
+            }
+        }
+
+        /**
+         * Method: wakeup()
+         *      - Lets a writer waiting for room find the channel closed.
+         */
+        void wakeup() {
+            writable.wakeup();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writable.close();
+        }
+    }
+
+    /**
+     *  Class for Wire
+     *      - Constants of the server's binary frame format (kept in step with the server's Frame class).
+     *      - Header: version (1 byte) | type (1 byte) | stream id (4 bytes) | payload length (4 bytes)
+     */
+    private static final class Wire {
+        static final byte VERSION = 1;
+        static final int HEADER_SIZE = 10;
+        static final int MAX_PAYLOAD = 1024 * 1024;
+        static final int DATA_FRAME_SIZE = 256 * 1024;
+        // Chunk size the server deduplicates by (UploadStaging.CHUNK_SIZE), and hashes per '/offer' line
+        static final int CHUNK_SIZE = 1024 * 1024;
+        static final int OFFER_BATCH = 512;
+        static final byte TYPE_COMMAND = 1;
+        static final byte TYPE_MESSAGE = 2;
+        static final byte TYPE_DATA = 3;
+        static final int CONTROL_STREAM = 0;
+        static final String NEGOTIATE_COMMAND = "/protocol";
+        static final String ACCEPTED = "PROTOCOL " + VERSION;
+        static final String REFUSED = "PROTOCOL_FALSE";
+    }
+}
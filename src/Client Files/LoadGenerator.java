@@ -0,0 +1,602 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Class for LoadGenerator
+ *      - A headless client that runs many scripted sessions against a server and reports how long each step took
+ *        (count, rate, and the 50th/90th/99th/99.9th percentile and maximum), so a change to the server can be
+ *        measured before and after.
+ *      - Sessions speak the plain line protocol (no '/protocol', '/compress' or '/verify'), like the oldest clients,
+ *        so every server version can be measured the same way.
+ *      - Usage: java LoadGenerator <scenario> [key=value ...]
+ *          - session: each session registers, lists '/dir', chats, gets a small file and leaves (default)
+ *          - chat: each session sends 'messages' chats and times each one until the server echoes it back
+ *          - fanout: 'listeners' sessions stay connected while one more sends 'messages' chats; times how long
+ *            each chat takes to reach every listener
+ *          - get: stores one file per size in 'sizes', then each session gets one of them; also reports MiB/s
+ *          - store: each session stores a file per size in 'sizes'; also reports MiB/s
+ *          - idle: 'sessions' clients connect and then sit idle for 'hold' seconds while one more times a '/stat'
+ *            every 100 ms; then each idle client asks for an unknown frame version, to show it is still served.
+ *            Idle clients never register or join (that is announced to everyone, so n of them would cost n * n
+ *            messages). Each is only a socket here, so 50000 of them fit in one generator; the server in virtual
+ *            or nio mode should hold them all as well.
+ *      - Options: host (127.0.0.1), port (12345), sessions (1000), concurrency (100), messages (10),
+ *        listeners (100), sizes (64K,1M,16M), timeout in seconds (60), hold in seconds (10), sources (1): how
+ *        many loopback addresses (127.0.0.1, 127.0.0.2, ...) connections come from. Each address has about 28000
+ *        ephemeral ports to one server, so more idle clients than that need more sources.
+ *      - Files the generator stores are named 'lg-*.bin'; at most one per size and per worker is kept.
+ */
+public class LoadGenerator {
+    // Run id in aliases and messages, so several generators can run against one server at once
+    private final String run = Integer.toString(new Random().nextInt(1 << 20), 36);
+
+    private final String host;
+    private final int port;
+    private final int sessions;
+    private final int concurrency;
+    private final int messages;
+    private final int listeners;
+    private final long[] sizes;
+    private final long timeoutMillis;
+    private final long holdMillis;
+    private final int sources;
+
+    // Source address the next connection comes from, counted round the sources
+    private final AtomicInteger nextSource = new AtomicInteger();
+
+    // Latencies by step name, in the order steps were first seen
+    private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile String lastFailure;
+
+    /**
+     * Class for Recorder
+     *      - Every latency of one step, kept exactly (a load run records at most a few million), plus bytes moved.
+     */
+    private static final class Recorder {
+        private long[] nanos = new long[1024];
+        private int count;
+        private long bytes;
+
+        synchronized void record(long elapsed, long moved) {
+            if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = elapsed;
+            bytes += moved;
+        }
+
+        synchronized String report(String name, double seconds) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            StringBuilder line = new StringBuilder(String.format("%-14s %8d %10.1f/s", name, count, count / seconds));
+            for (double fraction : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                line.append(String.format(" %9.3f", percentile(sorted, fraction) / 1e6));
+            }
+            line.append(String.format(" %9.3f", count == 0 ? 0 : sorted[count - 1] / 1e6));
+            if (bytes > 0) line.append(String.format(" %9.1f MiB/s", bytes / seconds / (1 << 20)));
+            return line.toString();
+        }
+
+        private static long percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(fraction * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+        }
+    }
+
+    /**
+     * Class for Session
+     *      - One connection to the server, with line reads that can switch to reading a file body.
+     */
+    private final class Session implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final String alias;
+        private final byte[] line;
+
+        Session(String alias) throws IOException {
+            this(alias, 64 * 1024, 8192);
+        }
+
+        /**
+         * Constructor for Session
+         *
+         * @param bufferSize: Bytes buffered each way; an idle session needs little, and there are many of them.
+         * @param lineSize: Longest line kept whole; longer ones are cut short.
+         */
+        Session(String alias, int bufferSize, int lineSize) throws IOException {
+            this.alias = alias;
+            this.line = new byte[lineSize];
+            this.socket = new Socket();
+            if (sources > 1) this.socket.bind(new InetSocketAddress("127.0.0." + (1 + nextSource.getAndIncrement() % sources), 0));
+            this.socket.connect(new InetSocketAddress(host, port), (int) timeoutMillis);
+            this.socket.setSoTimeout((int) timeoutMillis);
+            this.socket.setTcpNoDelay(true);
+            this.in = new BufferedInputStream(socket.getInputStream(), bufferSize);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+        }
+
+        void send(String text) throws IOException {
+            out.write((text + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        /**
+         * Method: readLine()
+         *
+         * @return: The next line from the server, without its terminator.
+         */
+        String readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                int b = in.read();
+                if (b < 0) throw new IOException("Server closed the connection");
+                if (b == '\n') break;
+                if (length < line.length) line[length++] = (byte) b;
+            }
+            if (length > 0 && line[length - 1] == '\r') length--;
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Method: await(String prefix)
+         *      - Skips lines (other users' chats, announcements) until one starts with prefix.
+         *
+         * @return: That line.
+         */
+        String await(String prefix) throws IOException {
+            while (true) {
+                String reply = readLine();
+                if (reply.startsWith(prefix)) return reply;
+                if (reply.equals("REGISTER_FALSE") || reply.equals("FILE_FALSE")) throw new IOException("Server refused: " + reply);
+            }
+        }
+
+        /**
+         * Method: awaitContaining(String text)
+         *
+         * @return: The first line that contains text.
+         */
+        String awaitContaining(String text) throws IOException {
+            while (true) {
+                String reply = readLine();
+                if (reply.contains(text)) return reply;
+            }
+        }
+
+        void register() throws IOException {
+            send("/register " + alias);
+            await("REGISTER_TRUE");
+        }
+
+        /**
+         * Method: get(String filename)
+         *      - Asks for a whole file and reads its body, throwing it away.
+         *
+         * @return: The size of the file.
+         */
+        long get(String filename) throws IOException {
+            send("/get " + filename);
+            await("FILE_EXISTS");
+            readLine();
+            long size = Long.parseLong(readLine().trim());
+            byte[] buffer = new byte[64 * 1024];
+            long left = size;
+            while (left > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (read < 0) throw new IOException("Server closed the connection during " + filename);
+                left -= read;
+            }
+            return size;
+        }
+
+        /**
+         * Method: store(String filename, byte[] content, long size)
+         *      - Uploads size bytes (content repeated) under filename and waits until the server has stored them.
+         */
+        void store(String filename, byte[] content, long size) throws IOException {
+            send("/store " + filename);
+            send(Long.toString(size));
+            long left = size;
+            while (left > 0) {
+                int length = (int) Math.min(content.length, left);
+                out.write(content, 0, length);
+                left -= length;
+            }
+            out.flush();
+            awaitContaining("Uploaded " + filename);
+        }
+
+        void leave() throws IOException {
+            send("/leave");
+            await("Connection closed");
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Interface for Script
+     *      - What one session does, given its number.
+     */
+    private interface Script {
+        void run(int number) throws Exception;
+    }
+
+    /**
+     * Constructor for LoadGenerator
+     *
+     * @param options: The key=value options (see the class comment).
+     */
+    public LoadGenerator(Map<String, String> options) {
+        this.host = options.getOrDefault("host", "127.0.0.1");
+        this.port = Integer.parseInt(options.getOrDefault("port", "12345"));
+        this.sessions = Integer.parseInt(options.getOrDefault("sessions", "1000"));
+        this.concurrency = Math.max(1, Integer.parseInt(options.getOrDefault("concurrency", "100")));
+        this.messages = Integer.parseInt(options.getOrDefault("messages", "10"));
+        this.listeners = Integer.parseInt(options.getOrDefault("listeners", "100"));
+        String[] sizeList = options.getOrDefault("sizes", "64K,1M,16M").split(",");
+        this.sizes = new long[sizeList.length];
+        for (int i = 0; i < sizeList.length; i++) this.sizes[i] = parseSize(sizeList[i]);
+        this.timeoutMillis = Long.parseLong(options.getOrDefault("timeout", "60")) * 1000;
+        this.holdMillis = Long.parseLong(options.getOrDefault("hold", "10")) * 1000;
+        this.sources = Math.max(1, Math.min(254, Integer.parseInt(options.getOrDefault("sources", "1"))));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 && !args[0].contains("=") ? args[0] : "session";
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run(scenario);
+    }
+
+    /**
+     * Method: run(String scenario)
+     *      - Runs a scenario and prints its report.
+     */
+    public void run(String scenario) throws Exception {
+        long started = System.nanoTime();
+        switch (scenario) {
+            case "session":
+                prepareFiles(new long[] {4 * 1024});
+                runSessions(this::scriptedSession);
+                break;
+            case "chat":
+                runSessions(this::chatSession);
+                break;
+            case "fanout":
+                fanout();
+                break;
+            case "get":
+                prepareFiles(sizes);
+                runSessions(this::getSession);
+                break;
+            case "store":
+                runSessions(this::storeSession);
+                break;
+            case "idle":
+                idle();
+                break;
+            default:
+                System.out.println("Scenarios: session, chat, fanout, get, store, idle");
+                return;
+        }
+        report(scenario, (System.nanoTime() - started) / 1e9);
+    }
+
+    /**
+     * Method: scriptedSession(int number)
+     *      - What a typical user does: register, list the files, chat, get a small file, leave.
+     */
+    private void scriptedSession(int number) throws IOException {
+        long start = System.nanoTime();
+        try (Session session = new Session(alias(number))) {
+            timed("connect+register", 0, session::register);
+            timed("/dir", 0, () -> {
+                session.send("/dir");
+                session.await("Server Directory:");
+            });
+            String token = "lg-" + run + "-" + number;
+            timed("/chat", 0, () -> {
+                session.send("/chat " + token);
+                session.awaitContaining(token);
+            });
+            long[] size = new long[1];
+            timed("/get 4K", 4 * 1024, () -> size[0] = session.get(fileName(4 * 1024)));
+            timed("/leave", 0, session::leave);
+        }
+        record("session", System.nanoTime() - start, 0);
+    }
+
+    /**
+     * Method: chatSession(int number)
+     *      - Sends chats one after another, each timed until the server's broadcast comes back to the sender.
+     */
+    private void chatSession(int number) throws IOException {
+        try (Session session = new Session(alias(number))) {
+            session.register();
+            for (int i = 0; i < messages; i++) {
+                String token = "lg-" + run + "-" + number + "-" + i;
+                timed("/chat", 0, () -> {
+                    session.send("/chat " + token);
+                    session.awaitContaining(token);
+                });
+            }
+            session.leave();
+        }
+    }
+
+    /**
+     * Method: getSession(int number)
+     *      - Gets one of the prepared files, taking the sizes in turn.
+     */
+    private void getSession(int number) throws IOException {
+        long size = sizes[number % sizes.length];
+        try (Session session = new Session(alias(number))) {
+            session.register();
+            timed("/get " + formatSize(size), size, () -> session.get(fileName(size)));
+            session.leave();
+        }
+    }
+
+    /**
+     * Method: storeSession(int number)
+     *      - Stores a file of every size, named after the worker so concurrent sessions never share a name.
+     */
+    private void storeSession(int number) throws IOException {
+        byte[] content = randomBytes(1024 * 1024, number);
+        String worker = Thread.currentThread().getName();
+        try (Session session = new Session(alias(number))) {
+            session.register();
+            for (long size : sizes) {
+                String filename = "lg-store-" + worker + "-" + formatSize(size) + ".bin";
+                timed("/store " + formatSize(size), size, () -> session.store(filename, content, size));
+            }
+            session.leave();
+        }
+    }
+
+    /**
+     * Method: fanout()
+     *      - Connects the listeners, then one sender chats; each delivery is timed from the moment its chat was sent.
+     */
+    private void fanout() throws Exception {
+        AtomicLongArray sentAt = new AtomicLongArray(messages);
+        CountDownLatch registered = new CountDownLatch(listeners);
+        CountDownLatch done = new CountDownLatch(listeners);
+        String prefix = "fan-" + run + "-";
+
+        List<Thread> threads = new ArrayList<>();
+        for (int l = 0; l < listeners; l++) {
+            int number = l;
+            Thread listener = new Thread(null, () -> {
+                try (Session session = new Session(alias(number))) {
+                    session.register();
+                    registered.countDown();
+                    for (int received = 0; received < messages; received++) {
+                        String line = session.awaitContaining(prefix);
+                        long now = System.nanoTime();
+                        int index = Integer.parseInt(line.substring(line.indexOf(prefix) + prefix.length()).trim());
+                        record("delivery", now - sentAt.get(index), 0);
+                    }
+                    session.leave();
+                } catch (Exception e) {
+                    fail(e);
+                    registered.countDown();
+                } finally {
+                    done.countDown();
+                }
+            }, "listener-" + l, 256 * 1024);
+            listener.setDaemon(true);
+            listener.start();
+            threads.add(listener);
+        }
+
+        if (!registered.await(timeoutMillis, TimeUnit.MILLISECONDS)) fail(new IOException("Listeners did not all register"));
+        try (Session sender = new Session(alias(listeners))) {
+            sender.register();
+            for (int i = 0; i < messages; i++) {
+                sentAt.set(i, System.nanoTime());
+                sender.send("/chat " + prefix + i);
+                // The sender gets its own chat too; waiting for it keeps one chat in flight at a time
+                sender.awaitContaining(prefix + i);
+            }
+            sender.leave();
+        }
+        if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) fail(new IOException("Not every listener got every chat"));
+    }
+
+    /**
+     * Method: idle()
+     *      - Connects the idle clients, times a '/stat' on one more connection while they wait, then wakes each idle
+     *        client once.
+     */
+    private void idle() throws Exception {
+        List<Session> idle = Collections.synchronizedList(new ArrayList<>());
+        try {
+            runSessions(number -> {
+                Session session = new Session(alias(number), 512, 128);
+                idle.add(session);
+                timed("connect", 0, () -> session.await("Connection to the File Exchange Server"));
+            });
+            System.out.printf("%d of %d idle clients connected%n", idle.size(), sessions);
+            if (idle.size() < sessions) fail(new IOException((sessions - idle.size()) + " idle clients could not connect"));
+
+            try (Session probe = new Session(alias(sessions))) {
+                probe.register();
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(holdMillis);
+                while (System.nanoTime() < end) {
+                    timed("probe /stat", 0, () -> {
+                        probe.send("/stat lg-idle-" + run);
+                        probe.await("STAT");
+                    });
+                    Thread.sleep(100);
+                }
+                probe.leave();
+            }
+
+            // A command answered before joining, so waking them announces no one ('PROTOCOL_FALSE')
+            runSessions(number -> {
+                if (number >= idle.size()) return;
+                Session session = idle.get(number);
+                timed("wake", 0, () -> {
+                    session.send("/protocol 0");
+                    session.await("PROTOCOL");
+                });
+            });
+        } finally {
+            for (Session session : idle) session.close();
+        }
+    }
+
+    /**
+     * Method: prepareFiles(long[] sizes)
+     *      - Stores one file of each size for the get scenarios.
+     */
+    private void prepareFiles(long[] sizes) throws IOException {
+        byte[] content = randomBytes(1024 * 1024, 0);
+        try (Session session = new Session("lg" + run + "-setup")) {
+            session.register();
+            for (long size : sizes) {
+                session.store(fileName(size), content, size);
+            }
+            session.leave();
+        }
+    }
+
+    /**
+     * Method: runSessions(Script script)
+     *      - Runs the script for every session, on 'concurrency' workers that each take the next session number.
+     */
+    private void runSessions(Script script) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[Math.min(concurrency, Math.max(1, sessions))];
+        for (int w = 0; w < workers.length; w++) {
+            workers[w] = new Thread(null, () -> {
+                int number;
+                while ((number = next.getAndIncrement()) < sessions) {
+                    try {
+                        script.run(number);
+                    } catch (Exception e) {
+                        fail(e);
+                    }
+                }
+            }, "w" + w, 256 * 1024);
+            workers[w].start();
+        }
+        for (Thread worker : workers) worker.join();
+    }
+
+    /**
+     * Interface for Step
+     *      - One timed step of a session.
+     */
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    private void timed(String name, long bytes, Step step) throws IOException {
+        long start = System.nanoTime();
+        step.run();
+        record(name, System.nanoTime() - start, bytes);
+    }
+
+    private void record(String name, long nanos, long bytes) {
+        Recorder recorder;
+        synchronized (recorders) {
+            recorder = recorders.computeIfAbsent(name, key -> new Recorder());
+        }
+        recorder.record(nanos, bytes);
+    }
+
+    public int getFailures() {
+        return failures.get();
+    }
+
+    private void fail(Exception e) {
+        failures.incrementAndGet();
+        lastFailure = e.toString();
+    }
+
+    /**
+     * Method: report(String scenario, double seconds)
+     *      - Prints one line per step: count, rate, latency percentiles in milliseconds, and throughput.
+     */
+    private void report(String scenario, double seconds) {
+        String load = scenario.equals("fanout") ? listeners + " listeners, " + messages + " chats"
+                : scenario.equals("idle") ? sessions + " idle clients held " + holdMillis / 1000 + " s, " + concurrency + " workers"
+                : sessions + " sessions on " + concurrency + " workers";
+        System.out.printf("Scenario %s against %s:%d, %s, %.1f s%n", scenario, host, port, load, seconds);
+        System.out.printf("%-14s %8s %12s %9s %9s %9s %9s %9s%n", "step", "count", "rate", "p50 ms", "p90 ms", "p99 ms",
+                "p99.9 ms", "max ms");
+        synchronized (recorders) {
+            for (Map.Entry<String, Recorder> recorder : recorders.entrySet()) {
+                System.out.println(recorder.getValue().report(recorder.getKey(), seconds));
+            }
+        }
+        System.out.println("Failures: " + failures.get() + (lastFailure != null ? " (last: " + lastFailure + ")" : ""));
+    }
+
+    private String alias(int number) {
+        return "lg" + run + "-" + number;
+    }
+
+    private static String fileName(long size) {
+        return "lg-" + formatSize(size) + ".bin";
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Method: parseSize(String text)
+     *
+     * @return: A size such as "64K", "1M" or "1G" (powers of 1024) in bytes.
+     */
+    private static long parseSize(String text) {
+        String value = text.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) unit = 1024;
+        else if (value.endsWith("M")) unit = 1024 * 1024;
+        else if (value.endsWith("G")) unit = 1024L * 1024 * 1024;
+        if (unit > 1) value = value.substring(0, value.length() - 1);
+        return Long.parseLong(value) * unit;
+    }
+
+    private static String formatSize(long size) {
+        if (size % (1 << 30) == 0) return size / (1 << 30) + "G";
+        if (size % (1 << 20) == 0) return size / (1 << 20) + "M";
+        if (size % 1024 == 0) return size / 1024 + "K";
+        return Long.toString(size);
+    }
+}
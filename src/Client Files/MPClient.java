@@ -1,23 +1,19 @@
-
-import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Map;
 import java.util.Scanner;
-import java.io.*;
+import java.util.concurrent.CompletionException;
 
 /**
  *  Class for MPClient
+ *      - The console: reads commands from stdin and drives a FileExchangeClient with them, which does all the
+ *        talking to the server. Everything the server sends is printed as it arrives.
  */
 public class MPClient implements Runnable {
 
     private Boolean ClientisConnectedtoAServer;
     private Boolean exit;
-    private Socket Clientsocket;
-    private PrintWriter out;
-    private BufferedReader serverReader;
-    private boolean isRegistered;
-    private volatile boolean ReadFromHandler;
-    private ClientInputHandler CIHandler;
+    private FileExchangeClient client;
 
     /**
      * Constructor for MPClient Class
@@ -26,8 +22,6 @@ public class MPClient implements Runnable {
     public MPClient () {
         this.ClientisConnectedtoAServer = false;
         this.exit = false;
-        this.isRegistered = false;
-        this.ReadFromHandler = false;
     }
 
     /**
@@ -35,287 +29,168 @@ public class MPClient implements Runnable {
      *       - Implementing the behavior when the Client is running
      */
     public void run() {
-        try {
-            // Set-up scanner to read input
-            Scanner s = new Scanner(System.in);
-            String input;
-
-            // Continue running until the Client is connected and the program terminated
-            while (!ClientisConnectedtoAServer && !exit) {
-                try {
-                    System.out.print("Input: ");
-                    input = s.nextLine();
-
-                    // Handle '/join' command which allow the user to join the server
-                    if (ExtractNthWord(input, 1).equals("/join")) {
-                        //Establish a connection to the server
-                        this.Clientsocket = new Socket(ExtractNthWord(input, 2), Integer.parseInt(ExtractNthWord(input, 3)));
-                        this.out = new PrintWriter(this.Clientsocket.getOutputStream(), true);
-                        this.serverReader = new BufferedReader(new InputStreamReader(this.Clientsocket.getInputStream()));
-
-                        // Set up a handler for incoming server messages
-                        this.CIHandler = new ClientInputHandler(this.Clientsocket);
-                        Thread CIHandlerThread = new Thread(this.CIHandler);
-                        CIHandlerThread.start();
-                        this.ClientisConnectedtoAServer = true;
-                    }
-
-                    //Handle '/exit' command which terminates the program (Client Side)
-                    else if (ExtractNthWord(input, 1).equals("/exit")) {
-                        this.exit = true;
-                        System.out.println("Exiting...");
-                    }
-
-                    // Allows to show the different commands
-                    else if (ExtractNthWord(input, 1).equals("/?")) {
-                        //put logic here for /?
-                        System.out.println("The current commands you can put are: ");
-                        System.out.println("To join a server: \"/join <server_ip_add> <port>\"");
-                        System.out.println("To exit the client: \"/exit\"");
-                        System.out.println("To see this again: \"/?\"");
-                    }
-                    // Invalid Input
-                    else {
-                        System.out.println("Input failed. Please type \'/?\' to see the possible commands");
-                    }
-                } catch (Exception e) { //if inputted socket or ip doesn't work :(
-                    System.out.println("Error: Connection to the Server has failed! Please check IP Address and Port Number..");
-                }
+        // Set-up scanner to read input
+        Scanner s = new Scanner(System.in);
+        String input;
+
+        // Continue running until the program is terminated
+        while (!exit) {
+            System.out.print("Input: ");
+            if (!s.hasNextLine()) {
+                // Input ended: drop the connection, keeping downloads in progress for a resume
+                if (ClientisConnectedtoAServer) client.close();
+                break;
             }
+            input = s.nextLine();
 
-            // Continue running until the Client is not existing
-            while (!this.exit) {
-                if (!ReadFromHandler) {
-                    // Check if reading from the handler is enabled
-                    String serverResponse = serverReader.readLine();
-                    // If client successfully registered
-                    if (serverResponse.equals("REGISTER_TRUE")) {
-                        this.isRegistered = true;
-                        System.out.println("User is now currently registered. " + this.isRegistered);
-                    }
-                    // If client wasn't able to successfully registered
-                    else if (serverResponse.equals("REGISTER_FALSE")) {
-                    }
-                    // If file exists within the Client Directory
-                    else if (serverResponse.equals("FILE_EXISTS")) {
-                        System.out.println("File exists!");
-
-                        // Reads File
-                        String filename = serverReader.readLine();
-                        System.out.println("The file name is: " + filename);
-                        getFile(filename);
-                    }
-                    // If file does not exists
-                    else if (serverResponse.equals("FILE_FALSE")) {
-                    }
-                    else if (serverResponse != null) System.out.println(serverResponse);
-                    else break;
-                }
-                else {
-                    continue;
-                }
+            // The server closed the connection while waiting for input
+            if (ClientisConnectedtoAServer && !client.isConnected()) {
+                System.out.println("Client side error. Exiting the program...");
+                break;
             }
-            // If there's an error with the Client Side
-        } catch (IOException e) {
-            System.out.println(e);
-            disconnect();
-            System.out.println("Client side error. Exiting the program...");
+            if (ClientisConnectedtoAServer) handleCommand(input);
+            else handleJoining(input);
         }
     }
 
     /**
-     * Method: disconnect ()
-     *      - If the user chose '/leave' command
-     *      - This method allows the user to disconnect from the server
+     * Method: handleJoining(String input)
+     *      - The commands before joining a server: '/join', '/exit' and '/?'.
      */
-    public void disconnect() {
-        this.ClientisConnectedtoAServer = false;
-        this.exit = true;
+    private void handleJoining(String input) {
         try {
-            this.out.close();
-            this.serverReader.close();
-            if(!this.Clientsocket.isClosed()) {
-                this.Clientsocket.close();
+            // Handle '/join' command which allow the user to join the server
+            if (ExtractNthWord(input, 1).equals("/join")) {
+                //Establish a connection to the server; the reader prints the greeting
+                FileExchangeClient joining = new FileExchangeClient(System.out::println);
+                joining.connect(ExtractNthWord(input, 2), Integer.parseInt(ExtractNthWord(input, 3))).join();
+                this.client = joining;
+                this.ClientisConnectedtoAServer = true;
             }
-        } catch (Exception e) {
-            System.out.println("Error: Disconnection failed. Please Connect to the Server first");
-        }
-    }
 
-    /**
-     * This Class handle the input commands of the client
-     */
-    public class ClientInputHandler implements Runnable {
-
-        private Socket CSocket;
-
-        /**
-         * Constructor for ClientInputHandler
-         *
-         * @param ClientSocket : BufferReader for Server input
-         */
-        public ClientInputHandler (Socket ClientSocket) {
-            this.CSocket = ClientSocket;
-        }
-
-        /**
-         * Method: Run()
-         *       - Implementing the behavior when the Client is running once the user registered
-         */
-        public void run() {
-            try {
-                System.out.println("CIH is now running: ");
-                // Scanner for inputting commands
-                Scanner sCIH = new Scanner(System.in);
-                String inputmsg;
-
-                // Continue receiving input until the clients exits
-                while (!exit) {
-                    System.out.print("Input: ");
-                    inputmsg = sCIH.nextLine();
-                    // Handle '/leave' command which disconnects the user from the server
-                    if (inputmsg.equals("/leave")) {
-                        out.println(inputmsg);
-                        disconnect();
-                    }
-                    // Handle '/?' command which allow the client to view the commands
-                    else if (inputmsg.equals("/?")) {
-                        out.println(inputmsg);
-                    }
-                    //Handle '/register' command which allow the user to register within the server
-                    // This also allows the user to have their Alias
-                    else if(ExtractNthWord(inputmsg,1).equals("/register")) {
-                        ReadFromHandler = true;
-                        out.println(inputmsg);
-                        out.flush();
-                        ReadFromHandler = false;
-                    }
-                    // If the clients haven't registered yet
-                    else if (isRegistered == false) {
-                        System.out.println("Please register first so that you can access the commands.");
-                    }
-                    // Handle '/store' command which allow the client to store the file to server
-                    else if (ExtractNthWord(inputmsg,1).equals("/store")) {
-                        String filename = ExtractNthWord(inputmsg, 2);
-                        File file = new File("./"+ filename);
+            //Handle '/exit' command which terminates the program (Client Side)
+            else if (ExtractNthWord(input, 1).equals("/exit")) {
+                this.exit = true;
+                System.out.println("Exiting...");
+            }
 
-                        // Check if file exists within the Client's Directory
-                        if(file.exists()) {
-                            // Send '/store' command to the server
-                            out.println(inputmsg);
-                            out.flush();
-                            // Client is registered
-                            if (isRegistered) {
-                                out.println(file.length());
-                                // Store the file
-                                StoreFile(inputmsg);
-                            }
-                            out.flush();
-                        }
-                        // File does not found in the directory
-                        else {
-                            System.out.println("Error: File not found!");
-                        }
-                    }
-                    else {
-                        out.println(inputmsg);
-                    }
-                }
-                // Otherwise, disconnects
-            } catch (Exception e) {
-                disconnect();
+            // Allows to show the different commands
+            else if (ExtractNthWord(input, 1).equals("/?")) {
+                System.out.println("The current commands you can put are: ");
+                System.out.println("To join a server: \"/join <server_ip_add> <port>\"");
+                System.out.println("To exit the client: \"/exit\"");
+                System.out.println("To see this again: \"/?\"");
             }
+            // Invalid Input
+            else {
+                System.out.println("Input failed. Please type \'/?\' to see the possible commands");
+            }
+        } catch (Exception e) { //if inputted socket or ip doesn't work :(
+            System.out.println("Error: Connection to the Server has failed! Please check IP Address and Port Number..");
         }
     }
 
     /**
-     * Method: StoreFile ()
-     *         - If the user chose '/store' command
-     *         - Allow the client to store a file from client to server
-     *
-     * @param command: read the command from input handler
+     * Method: handleCommand(String inputmsg)
+     *      - The commands once joined. Transfers run in the background; their outcome is printed when they end.
      */
-    private void StoreFile(String command) throws IOException {
+    private void handleCommand(String inputmsg) {
         try {
-            // Extract the filename from the command
-            String filename = ExtractNthWord(command, 2);
-
-            // Create a File object representing the file to be stored (located in the client directory)
-            File file = new File("./" + filename);
-
-            // Create a DataOutputStream to write data to the server's output stream
-            DataOutputStream fileWriter = new DataOutputStream(Clientsocket.getOutputStream());
-
-            // Create a FileInputStream to read data from the client's file
-            FileInputStream fileReader = new FileInputStream("./" + filename);
-
-            byte[] buffer = new byte[1];
-            long sizeOfFile = file.length();
-            int bytesRead;
-
-            // Loop through the file, reading and writing in chunks
-            while ((bytesRead = fileReader.read(buffer)) != -1 && sizeOfFile > 0) {
-                // Write the buffer to the server's output stream
-                fileWriter.write(buffer); // used to be fileWriter.write(buffer, 0, bytesRead);
-
-                // Update the remaining size of the file
-                sizeOfFile -= bytesRead;
+            // Handle '/leave' command which disconnects the user from the server
+            if (inputmsg.equals("/leave")) {
+                client.leave().join();
+                this.exit = true;
             }
-
-            // Flush the output stream to ensure all data is sent
-            fileWriter.flush();
-            // Close the fileReader
-            fileReader.close();
-
-        } catch (Exception e) {
-            // Handle exceptions related to file transfer errors
-            System.out.println("Error in sending file.");
+            // Handle '/?' command which allow the client to view the commands
+            else if (inputmsg.equals("/?")) {
+                client.send(inputmsg).join();
+            }
+            //Handle '/register' command which allow the user to register within the server
+            // This also allows the user to have their Alias
+            else if (ExtractNthWord(inputmsg, 1).equals("/register")) {
+                client.register(inputmsg.substring("/register".length()).trim()).whenComplete((registered, failure) -> {
+                    if (failure == null) System.out.println("User is now currently registered. " + client.isRegistered());
+                });
+            }
+            // If the clients haven't registered yet
+            else if (!client.isRegistered()) {
+                System.out.println("Please register first so that you can access the commands.");
+            }
+            // Handle '/get -r <pattern>' and '/store -r <directory>', which move many files at once
+            else if (inputmsg.split(" ").length == 3 && ExtractNthWord(inputmsg, 2).equals("-r")
+                    && (ExtractNthWord(inputmsg, 1).equals("/get") || ExtractNthWord(inputmsg, 1).equals("/store"))) {
+                boolean storing = ExtractNthWord(inputmsg, 1).equals("/store");
+                String target = ExtractNthWord(inputmsg, 3);
+                if (storing && !new File(target).isDirectory()) {
+                    System.out.println("Error: Directory not found!");
+                } else {
+                    System.out.println((storing ? "Storing the files in " : "Getting the files matching ") + target + "...");
+                    (storing ? client.storeAll(new File(target)) : client.getAll(target)).whenComplete((batch, failure) -> {
+                        if (failure != null) System.out.println("Error: " + failure.getMessage());
+                        else printBatch(storing ? "Stored" : "Received", batch);
+                    });
+                }
+            }
+            // Handle '/get' command, resuming an earlier interrupted download of the file if there is one
+            else if (ExtractNthWord(inputmsg, 1).equals("/get")) {
+                String[] words = inputmsg.split(" ");
+                if (words.length == 2) {
+                    client.get(words[1]);
+                } else if (words.length > 2 && words.length < 5 && words[2].matches("\\d{1,18}")
+                        && (words.length == 3 || words[3].matches("\\d{1,18}"))) {
+                    client.getRange(words[1], Long.parseLong(words[2]), words.length == 4 ? Long.parseLong(words[3]) : -1);
+                } else {
+                    System.out.println("Usage: /get <file name> [<offset> [<length>]]");
+                }
+            }
+            // Handle '/pget' command which downloads a file over several connections at once
+            else if (ExtractNthWord(inputmsg, 1).equals("/pget")) {
+                String[] words = inputmsg.split(" ");
+                int connections = words.length > 2 && words[2].matches("\\d{1,3}") ? Integer.parseInt(words[2])
+                        : (words.length > 2 ? 0 : FileExchangeClient.PARALLEL_CONNECTIONS);
+                if (words.length < 2 || connections < 1) {
+                    System.out.println("Usage: /pget <file name> [connections]");
+                } else {
+                    client.pget(words[1], connections);
+                }
+            }
+            // Handle '/store' command which allow the client to store the file to server
+            else if (ExtractNthWord(inputmsg, 1).equals("/store")) {
+                client.store(ExtractNthWord(inputmsg, 2)).whenComplete((stored, failure) -> {
+                    // File does not found in the directory (other failures are printed as they happen)
+                    if (failure instanceof FileNotFoundException) System.out.println("Error: File not found!");
+                });
+            }
+            else {
+                client.send(inputmsg).join();
+            }
+        } catch (CompletionException e) {
+            // The command could not be sent: the connection is gone
+            client.close();
+            this.exit = true;
+            System.out.println("Client side error. Exiting the program...");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("Input failed. Please type \'/?\' to see the possible commands");
         }
     }
 
     /**
-     * Method: getFile ()
-     *      - If the user chose '/getFile' command
-     *      - This method allows the client to get a file from the server
-     *
-     * @param filename: filename from server directory
+     * Method: printBatch(String verb, FileExchangeClient.Batch batch)
+     *      - Sums up a batch: files, bytes and rate, then the files that failed (the first few of them).
      */
-    private void getFile(String filename) {
-        try {
-            // Get the size of the file from the server
-            long sizeOfFile = Long.parseLong(this.serverReader.readLine());
-            System.out.println("Size of file is: " + sizeOfFile);
-
-            // Create a DataInputStream to read data from the server's input stream
-            DataInputStream fileInput = new DataInputStream(this.Clientsocket.getInputStream());
-
-            // Create a FileOutputStream to write the received data to a file
-            FileOutputStream fileOutput = new FileOutputStream(filename);
-
-            // Buffer to hold data read from the input stream
-            byte[] buffer = new byte[1];
-
-            int bytesRead;
-
-            // Loop through the file data, reading and writing in chunks
-            while ((bytesRead = fileInput.read(buffer)) != -1 && sizeOfFile > 0) {
-                // Write the buffer to the file
-                fileOutput.write(buffer); // used to be fileOutput.write(buffer, 0, bytesRead);
-
-                // Update the remaining size of the file
-                sizeOfFile -= bytesRead;
-                if (sizeOfFile <= 0) break;
+    private void printBatch(String verb, FileExchangeClient.Batch batch) {
+        double seconds = Math.max(1e-3, batch.getNanos() / 1e9);
+        System.out.println(verb + " " + batch.getFiles() + " files (" + batch.getBytes() + " bytes) in "
+                + String.format("%.2f", seconds) + " s: " + String.format("%.0f", batch.getFiles() / seconds) + " files/s, "
+                + String.format("%.1f", batch.getBytes() / seconds / (1024 * 1024)) + " MiB/s"
+                + (batch.getFailures().isEmpty() ? "" : "; " + batch.getFailures().size() + " failed"));
+        int shown = 0;
+        for (Map.Entry<String, String> failure : batch.getFailures().entrySet()) {
+            if (++shown > 10) {
+                System.out.println("  ...");
+                break;
             }
-
-            // Close the FileOutputStream
-            fileOutput.close();
-
-            // Output a success message
-            System.out.println("Successfully received " + filename);
-
-        } catch (IOException e) {
-            // Handle exceptions related to file reception errors
-            System.out.println("Error receiving file from the server :(");
+            System.out.println("  " + failure.getKey() + ": " + failure.getValue());
         }
     }
 
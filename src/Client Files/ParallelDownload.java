@@ -0,0 +1,368 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ *  Class for ParallelDownload
+ *      - Downloads one large file over several connections at once ('/pget <file name> [connections]'), so a link
+ *        with a long round trip is filled by several TCP windows instead of one.
+ *      - Each extra connection attaches to this client's session on the server ('/attach <token>') and then asks
+ *        for pieces of the file with ranged gets ('/get <file name> <offset> <length>') until none are left, so a
+ *        fast connection simply takes more pieces.
+ *      - Every piece is written into '<name>.pget' with positional writes; the file gets its real name once all
+ *        pieces are in. A piece whose connection breaks is handed to another connection.
+ *      - The server limits how many connections a client may attach; refused connections just take no pieces.
+ *        If none is accepted, the fallback (a plain '/get' on the main connection) is used instead.
+ *      - Pieces start on chunk boundaries, so every chunk is checked against the server's CRC32C as it is written;
+ *        a damaged chunk is asked for again on its own. The same machinery repairs a finished download that failed
+ *        its whole-file check: only the damaged chunks are fetched, into the file that is already there.
+ */
+public class ParallelDownload implements Runnable {
+    // Bytes asked for by one ranged get
+    private static final long PIECE_SIZE = 16L * 1024 * 1024;
+
+    // Tries per piece before the whole download is given up
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final InetAddress host;
+    private final int port;
+    private final String token;
+    private final String filename;
+    private final long total;
+    private final ChunkChecksums checksums;
+    private final BitSet wanted;
+    private final long pieceSize;
+    private final int connections;
+    private final Runnable fallback;
+
+    private final ConcurrentLinkedQueue<long[]> pieces;
+    private final AtomicInteger attached;
+    private FileChannel output;
+    private volatile String failure;
+
+    // Where messages for the user go, and who is told once the download has ended (see whenDone)
+    private Consumer<String> notices = System.out::println;
+    private BiConsumer<File, String> done = (file, failure) -> { };
+
+    /**
+     * Constructor for ParallelDownload
+     *
+     * @param host: The server's address.
+     * @param port: The server's port.
+     * @param token: This client's session token (the server's reply to '/session').
+     * @param checksums: The file's size and chunk checksums (the server's reply to '/checksums').
+     * @param wanted: The chunks to fetch into the existing '<name>.pget', or null to download the whole file.
+     * @param connections: The most connections to open.
+     * @param fallback: Downloads the file the usual way if no connection could attach.
+     */
+    public ParallelDownload(InetAddress host, int port, String token, ChunkChecksums checksums, BitSet wanted, int connections,
+                            Runnable fallback) {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+        this.filename = checksums.getFilename();
+        this.total = checksums.getSize();
+        this.checksums = checksums;
+        this.wanted = wanted;
+        this.pieceSize = Math.max(1, PIECE_SIZE / checksums.getChunkSize()) * checksums.getChunkSize();
+        this.connections = connections;
+        this.fallback = fallback;
+        this.pieces = new ConcurrentLinkedQueue<>();
+        this.attached = new AtomicInteger();
+    }
+
+    /**
+     * Method: reportingTo(Consumer<String> notices)
+     *      - Sends this download's messages for the user to notices instead of the console.
+     *
+     * @return: This download.
+     */
+    public ParallelDownload reportingTo(Consumer<String> notices) {
+        this.notices = notices;
+        return this;
+    }
+
+    /**
+     * Method: whenDone(BiConsumer<File, String> done)
+     *      - done is told once the file is in place, or with the reason the download failed. A download handed to
+     *        the fallback is not done yet; the fallback reports it.
+     *
+     * @return: This download.
+     */
+    public ParallelDownload whenDone(BiConsumer<File, String> done) {
+        this.done = done;
+        return this;
+    }
+
+    /**
+     * Method: run()
+     *      - Splits the file into pieces, downloads them over the connections and puts the file in place.
+     */
+    public void run() {
+        // Each piece is { offset, length, attempts }: runs of wanted chunks, at most pieceSize long
+        long chunkSize = checksums.getChunkSize();
+        int chunkCount = (int) ((total + chunkSize - 1) / chunkSize);
+        int chunk = wanted != null ? wanted.nextSetBit(0) : 0;
+        while (chunk >= 0 && chunk < chunkCount) {
+            int end = wanted != null ? wanted.nextClearBit(chunk) : chunkCount;
+            end = (int) Math.min(Math.min(end, chunkCount), chunk + pieceSize / chunkSize);
+            long offset = chunk * chunkSize;
+            pieces.add(new long[] {offset, Math.min(end * chunkSize, total) - offset, 0});
+            chunk = wanted != null ? wanted.nextSetBit(end) : end;
+        }
+        int workers = Math.max(1, Math.min(connections, pieces.size()));
+
+        File part = partFile(filename);
+        long started = System.nanoTime();
+        try {
+            // A repair writes into the file that is there; its chunks that are not wanted are already right
+            if (wanted != null) {
+                this.output = FileChannel.open(part.toPath(), StandardOpenOption.WRITE);
+                if (output.size() > total) output.truncate(total);
+            } else {
+                this.output = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            Thread[] threads = new Thread[workers];
+            for (int i = 0; i < workers; i++) {
+                threads[i] = new Thread(this::fetchPieces, "pget-" + filename + "-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            if (attached.get() == 0 && failure == null) {
+                notices.accept("No extra connection was accepted; downloading " + filename + " over one connection");
+                output.close();
+                part.delete();
+                fallback.run();
+                return;
+            }
+            if (failure == null && !pieces.isEmpty()) failure = "pieces were left over";
+            if (failure != null) throw new IOException(failure);
+
+            output.force(false);
+            output.close();
+            moveIntoPlace(part);
+
+            double seconds = Math.max(1e-3, (System.nanoTime() - started) / 1e9);
+            if (wanted != null) {
+                notices.accept("Successfully repaired " + filename + ": fetched " + wanted.cardinality() + " damaged chunks again");
+            } else {
+                notices.accept("Successfully received " + filename + " over " + attached.get() + " connections ("
+                        + String.format("%.1f", total / seconds / (1024 * 1024)) + " MiB/s), every chunk verified");
+            }
+            done.accept(new File(filename), null);
+        } catch (IOException | InterruptedException e) {
+            notices.accept("Error receiving file from the server :( " + e.getMessage());
+            try {
+                if (output != null) output.close();
+            } catch (IOException closeFailure) {
+                // Deleted below anyway
+            }
+            part.delete();
+            done.accept(null, e.getMessage());
+        }
+    }
+
+    /**
+     * Method: fetchPieces()
+     *      - Runs on one worker thread: opens a connection, attaches it, and downloads pieces until none are left.
+     */
+    private void fetchPieces() {
+        long[] piece = null;
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            LineReader reader = new LineReader(channel);
+
+            send(channel, "/attach " + token);
+            String reply = reader.await("ATTACHED", "ATTACH_FALSE", "Cannot process", "Improper input");
+            if (!reply.equals("ATTACHED")) {
+                notices.accept("Extra connection refused: " + reply);
+                return;
+            }
+            attached.incrementAndGet();
+
+            while (failure == null && (piece = pieces.poll()) != null) {
+                BitSet damaged = fetch(channel, reader, piece[0], piece[1]);
+
+                // Only the damaged chunks go back in the queue (this connection is still polling, so they get fetched)
+                long chunkSize = checksums.getChunkSize();
+                for (int chunk = damaged.nextSetBit(0); chunk >= 0; chunk = damaged.nextSetBit(chunk + 1)) {
+                    notices.accept("Chunk " + chunk + " of " + filename + " arrived damaged; fetching it again");
+                    retry(new long[] {chunk * chunkSize, Math.min(chunkSize, total - chunk * chunkSize), piece[2]}, "checksum mismatch");
+                }
+                piece = null;
+            }
+            send(channel, "/leave");
+        } catch (IOException e) {
+            // Give the piece to another connection
+            if (piece != null) retry(piece, e.getMessage());
+            notices.accept("Extra connection lost: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Method: retry(long[] piece, String reason)
+     *      - Queues a piece again, unless it has failed too often already; then the whole download fails.
+     */
+    private void retry(long[] piece, String reason) {
+        if (++piece[2] >= MAX_ATTEMPTS) {
+            failure = "bytes " + piece[0] + " to " + (piece[0] + piece[1]) + " failed " + MAX_ATTEMPTS + " times: " + reason;
+        } else {
+            pieces.add(piece);
+        }
+    }
+
+    /**
+     * Method: fetch(SocketChannel channel, LineReader reader, long offset, long length)
+     *      - Asks for one piece and writes it into place as it arrives. The reply is FILE_RANGE, the file name and
+     *        '<offset> <length> <total size>', then the bytes.
+     *      - Each chunk's CRC32C is computed from the bytes as they are written.
+     *
+     * @return The chunks of the piece that do not match the server's checksums.
+     */
+    private BitSet fetch(SocketChannel channel, LineReader reader, long offset, long length) throws IOException {
+        BitSet damaged = new BitSet();
+        send(channel, "/get " + filename + " " + offset + " " + length);
+        if (!reader.await("FILE_RANGE", "FILE_FALSE").equals("FILE_RANGE")) {
+            failure = filename + " is no longer on the server";
+            return damaged;
+        }
+        reader.readLine();
+        String[] range = reader.readLine().split(" ");
+        if (Long.parseLong(range[0]) != offset || Long.parseLong(range[1]) != length || Long.parseLong(range[2]) != total) {
+            // The file changed size since '/stat': the pieces would not fit together
+            failure = filename + " changed on the server during the download";
+            throw new IOException(failure);
+        }
+
+        long position = offset;
+        long end = offset + length;
+        int chunk = (int) (offset / checksums.getChunkSize());
+        long chunkEnd = Math.min((chunk + 1L) * checksums.getChunkSize(), end);
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = reader.buffer;
+        while (position < end) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                if (channel.read(buffer) < 0) throw new IOException("Connection closed with " + (end - position) + " bytes left");
+                buffer.flip();
+            }
+
+            // Bytes read past the piece's end belong to the next reply; a write never crosses into the next chunk
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + (int) Math.min(slice.remaining(), chunkEnd - position));
+            int written = output.write(slice, position);
+            ByteBuffer checked = buffer.duplicate();
+            checked.limit(checked.position() + written);
+            crc.update(checked);
+            buffer.position(buffer.position() + written);
+            position += written;
+
+            // A chunk is complete: check it
+            if (position == chunkEnd) {
+                if (!checksums.matches(chunk, crc.getValue())) damaged.set(chunk);
+                crc.reset();
+                chunk++;
+                chunkEnd = Math.min(chunkEnd + checksums.getChunkSize(), end);
+            }
+        }
+        return damaged;
+    }
+
+    /**
+     * Method: partFile(String filename)
+     *
+     * @return The file a parallel download (or a repair) writes into before it gets the real name.
+     */
+    public static File partFile(String filename) {
+        return new File(filename + ".pget");
+    }
+
+    private static void send(SocketChannel channel, String command) throws IOException {
+        ByteBuffer line = ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) channel.write(line);
+    }
+
+    /**
+     * Method: moveIntoPlace(File part)
+     *      - Renames the complete file to its real name, atomically where the file system allows.
+     */
+    private void moveIntoPlace(File part) throws IOException {
+        try {
+            Files.move(part.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     *  Class for LineReader
+     *      - Reads the server's text lines off a connection; bytes after a line stay in the buffer for the body.
+     */
+    private static final class LineReader {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer;
+
+        LineReader(SocketChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(256 * 1024);
+            this.buffer.flip();
+        }
+
+        /**
+         * Method: readLine()
+         *
+         * @return: The next line, without its terminator.
+         */
+        String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    if (channel.read(buffer) < 0) throw new IOException("Connection closed by the server");
+                    buffer.flip();
+                }
+                char c = (char) (buffer.get() & 0xff);
+                if (c == '\n') break;
+                line.append(c);
+            }
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+            return line.toString();
+        }
+
+        /**
+         * Method: await(String... starts)
+         *      - Skips lines (greetings, notices) until one starts with one of the given words.
+         *
+         * @return: That line.
+         */
+        String await(String... starts) throws IOException {
+            while (true) {
+                String line = readLine();
+                for (String start : starts) {
+                    if (line.startsWith(start)) return line;
+                }
+            }
+        }
+    }
+}
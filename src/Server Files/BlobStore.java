@@ -0,0 +1,196 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ *  Interface for BlobStore
+ *      - Where uploaded files are kept: content-addressed storage in which each chunk is stored once under its SHA-256
+ *        hash, and a file name maps to a manifest listing the hashes of its chunks.
+ *      - Uploading the same content again (under any name) adds only a manifest.
+ *      - Uploads (UploadStaging), downloads (ChunkedBody) and '/dir' (FileCatalog) only go through this interface, so
+ *        the store can live anywhere: DiskBlobStore, the default, keeps a sharded directory tree under a configurable
+ *        root; MemoryBlobStore keeps everything in memory (see ServerConfig, fes.store.*).
+ *      - Used by every client handler at once, so implementations must be thread-safe.
+ */
+public interface BlobStore {
+
+    /**
+     * Enum for Backend
+     *      - The implementations the server can be started with.
+     */
+    enum Backend { DISK, MEMORY }
+
+    /**
+     * Class for Manifest
+     *      - The size, chunk size, chunk hashes and chunk checksums (CRC32C, -1 if unknown) of one stored file.
+     */
+    final class Manifest {
+        private final long size;
+        private final int chunkSize;
+        private final String[] hashes;
+        private final long[] crcs;
+
+        public Manifest(long size, int chunkSize, String[] hashes, long[] crcs) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.hashes = hashes;
+            this.crcs = crcs;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public String[] getHashes() {
+            return hashes;
+        }
+
+        public long[] getCrcs() {
+            return crcs;
+        }
+
+        /**
+         * Method: version()
+         *
+         * @return A hash of the size and chunk hashes: it changes whenever the file is replaced by other content.
+         */
+        public String version() {
+            String chunks = size + "," + String.join(",", hashes);
+            return BlobStore.hash(ByteBuffer.wrap(chunks.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Method: hasAllCrcs()
+         *
+         * @return True if the checksum of every chunk is known, so the file's checksum can be combined from them.
+         */
+        public boolean hasAllCrcs() {
+            for (long crc : crcs) {
+                if (crc < 0) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Method: hash(ByteBuffer data)
+     *
+     * @return The SHA-256 of the remaining bytes, as lower-case hex. The buffer's position is not moved.
+     */
+    static String hash(ByteBuffer data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(data.duplicate());
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Method: isHash(String text)
+     *
+     * @return True if the text looks like a hash this store produces, so it is safe to use as a file name.
+     */
+    static boolean isHash(String text) {
+        if (text.length() != 64) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.digit(text.charAt(i), 16) < 0 || Character.isUpperCase(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Method: open()
+     *      - Prepares the store before the server takes its first client (creating or upgrading what it needs).
+     */
+    void open() throws IOException;
+
+    /**
+     * Method: workDirectory()
+     *      - Where the server keeps what goes with the store but is not part of it: uploads being staged, compressed
+     *        copies and computed checksums, each in a directory of its own under it. Nothing is kept in the working
+     *        directory.
+     *
+     * @return The directory; it exists once open() has returned.
+     */
+    File workDirectory();
+
+    /**
+     * Method: close()
+     *      - Called when the server stops, after its last upload has finished.
+     */
+    void close() throws IOException;
+
+    /**
+     * Method: has(String hash)
+     *
+     * @return True if a chunk with this hash is stored.
+     */
+    boolean has(String hash);
+
+    /**
+     * Method: put(String hash, ByteBuffer data)
+     *      - Stores a chunk unless one with the same hash is already there; a chunk is either complete or absent.
+     *      - The buffer's position is not moved.
+     */
+    void put(String hash, ByteBuffer data) throws IOException;
+
+    /**
+     * Method: openBlob(String hash)
+     *
+     * @return The stored chunk, open for reading; the caller closes it.
+     */
+    FileBody openBlob(String hash) throws IOException;
+
+    /**
+     * Method: writeManifest(String filename, Manifest manifest)
+     *      - Points the file name at the given chunks, replacing whatever it named before in one step.
+     */
+    void writeManifest(String filename, Manifest manifest) throws IOException;
+
+    /**
+     * Method: readManifest(String filename)
+     *
+     * @return The manifest of the file, or null if the store has no file by that name.
+     */
+    Manifest readManifest(String filename) throws IOException;
+
+    /**
+     * Method: lastModified(String filename)
+     *
+     * @return When the file's manifest was last written, in milliseconds since the epoch, or 0 if there is none.
+     */
+    long lastModified(String filename);
+
+    /**
+     * Method: names()
+     *
+     * @return The names of all files in the store, in no particular order.
+     */
+    List<String> names();
+
+    /**
+     * Method: open(String filename)
+     *
+     * @return The stored file as a body that reads its chunks in turn, or null if there is no such file.
+     */
+    default FileBody open(String filename) throws IOException {
+        Manifest manifest = readManifest(filename);
+        return manifest == null ? null : new ChunkedBody(this, manifest);
+    }
+}
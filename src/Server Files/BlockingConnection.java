@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  Class for BlockingConnection
+ *      - A client connection whose handler thread blocks on the socket while reading.
+ *      - Writes go through an OutboundQueue drained by a writer task on the server's executor, so a client that
+ *        reads slowly only delays itself, never the thread that broadcast a message to it.
+ *      - No monitor is held around socket I/O, so handlers also run well on virtual threads.
+ */
+public class BlockingConnection implements ClientConnection {
+    private final Socket socket;
+    private final ClientInput in;
+    private final WritableByteChannel out;
+    private final OutboundQueue outbound;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final Executor writerExecutor;
+    private final AtomicBoolean flushScheduled;
+
+    // Set by the scheduler's wakeup, so a wakeup racing with the end of a held-back flush is not lost
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private volatile boolean closed;
+
+    // Whether the client has switched to binary frames (handler thread only)
+    private boolean frames;
+
+    /**
+     * Constructor for BlockingConnection
+     *
+     * @param socket: The accepted client socket.
+     * @param writerExecutor: Runs the task that drains the outbound queue whenever it has entries.
+     * @param config: The server settings (outbound limit and overflow policy).
+     */
+    public BlockingConnection(Socket socket, Executor writerExecutor, ServerConfig config) throws IOException {
+        this.socket = socket;
+        this.in = new ClientInput(socket.getChannel() != null
+                ? socket.getChannel()
+                : Channels.newChannel(socket.getInputStream()));
+        this.out = socket.getChannel() != null
+                ? socket.getChannel()
+                : Channels.newChannel(socket.getOutputStream());
+        this.outbound = new OutboundQueue(config.getOutboundLimit());
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.writerExecutor = writerExecutor;
+        this.flushScheduled = new AtomicBoolean();
+    }
+
+    /**
+     * Method: serve(MPServer.ServerClientHandler handler)
+     *      - Greets the client, then hands each command line to the handler on the calling thread until the client
+     *        leaves or the connection fails.
+     *
+     * @param handler: The handler that receives this connection's command lines.
+     */
+    public void serve(MPServer.ServerClientHandler handler) {
+        try {
+            String inputLine;
+            handler.onConnect();
+            // Read input until the termination message is received
+            while ((inputLine = in.readLine()) != null) {
+                if (!handler.handleLine(inputLine)) break;
+            }
+        } catch (IOException e) {
+            ServerLog.shared().warn("connection_failed", "client", getRemoteAddress(), "error", e);
+        } catch (RuntimeException e) {
+            // The client cannot tell what the failed command already sent, so the session ends here
+            ServerLog.shared().error("command_failed", "client", getRemoteAddress(), "error", e);
+        }
+        // Disconnects once the client has left, closed the connection or hit an error
+        handler.disconnect();
+    }
+
+    @Override
+    public void sendLine(String line) {
+        outbound.addLine(line);
+        scheduleFlush();
+    }
+
+    @Override
+    public void offerLine(String line) {
+        if (outbound.offerLine(line)) {
+            scheduleFlush();
+        } else if (overflowPolicy == OutboundQueue.OverflowPolicy.DISCONNECT) {
+            ServerLog.shared().warn("disconnect_slow", "client", getRemoteAddress());
+            close();
+        }
+    }
+
+    @Override
+    public void sendFile(FileBody file, long position, long count, int streamId) {
+        outbound.addFile(file, position, count, streamId);
+        scheduleFlush();
+    }
+
+    @Override
+    public void setTransferAccount(TransferScheduler.Account account) {
+        outbound.throttleWith(account, this::wakeUp);
+    }
+
+    @Override
+    public void runBlocking(Runnable work) {
+        // The handler thread serves only this client, so it may just as well wait
+        work.run();
+    }
+
+    @Override
+    public void startFrames() {
+        // Called on the handler thread between two readLine calls, so no frame byte has been read as text yet
+        outbound.addLine(Frame.ACCEPTED);
+        outbound.addSwitchToFrames();
+        scheduleFlush();
+        in.useFrames();
+        frames = true;
+    }
+
+    @Override
+    public void receiveBody(InboundStream body, int streamId) {
+        // Frames: the body is written by readLine as its DATA frames arrive
+        if (frames) {
+            if (!in.expectBody(streamId, body)) body.finish(new IOException("Stream " + streamId + " is already in use"));
+            return;
+        }
+        try {
+            in.readBody(body);
+            body.finish(null);
+        } catch (IOException e) {
+            body.finish(e);
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            // Closing the socket also wakes a writer blocked on it
+            if (!this.socket.isClosed()) this.socket.close();
+        } catch (IOException e) {
+            ServerLog.shared().warn("close_failed", "client", getRemoteAddress(), "error", e.getMessage());
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void closeAfterFlush() {
+        outbound.addClose();
+        scheduleFlush();
+    }
+
+    /**
+     * Method: scheduleFlush()
+     *      - Starts a writer task unless one is already running for this connection.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) writerExecutor.execute(this::flush);
+    }
+
+    /**
+     * Method: wakeUp()
+     *      - Run by the transfer scheduler once a held-back download may go on.
+     */
+    private void wakeUp() {
+        woken.set(true);
+        scheduleFlush();
+    }
+
+    /**
+     * Method: flush()
+     *      - Writer task: writes the queue until it is empty, coalescing queued lines into gathering writes.
+     */
+    private void flush() {
+        try {
+            while (true) {
+                if (closed) {
+                    // Nothing more can be written; release queued files
+                    outbound.clear();
+                    flushScheduled.set(false);
+                    return;
+                }
+
+                OutboundQueue.FlushResult result = outbound.flushTo(out, Long.MAX_VALUE);
+                if (result == OutboundQueue.FlushResult.CLOSE) {
+                    close();
+                    continue;
+                }
+                if (result == OutboundQueue.FlushResult.THROTTLED) {
+                    // Held back by the scheduler: give the thread up until its wakeup
+                    flushScheduled.set(false);
+                    if (!woken.getAndSet(false) || !flushScheduled.compareAndSet(false, true)) return;
+                    continue;
+                }
+                if (result == OutboundQueue.FlushResult.EMPTY) {
+                    flushScheduled.set(false);
+
+                    // Keep going if something was queued after the queue ran empty and nobody else picked it up
+                    if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) return;
+                }
+            }
+        } catch (IOException e) {
+            // The reading side notices the broken connection and ends the session
+            ServerLog.shared().warn("write_failed", "client", getRemoteAddress(), "error", e.getMessage());
+            closed = true;
+            outbound.clear();
+            flushScheduled.set(false);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Class for BufferPool
+ *      - Hands out reusable direct ByteBuffers for moving file bodies.
+ *      - Direct buffers are expensive to allocate, so released buffers are kept for the next transfer.
+ */
+public final class BufferPool {
+    // Size of every pooled buffer; large enough to keep a 10 GbE link busy with few syscalls
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    // Shared pool used by the server's transfer paths
+    private static final BufferPool SHARED = new BufferPool(64);
+
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers;
+    private final AtomicInteger freeCount;
+    private final int maxRetained;
+
+    /**
+     * Constructor for BufferPool
+     *
+     * @param maxRetained: The number of idle buffers kept for reuse; extra released buffers are left to the GC.
+     */
+    public BufferPool(int maxRetained) {
+        this.freeBuffers = new ConcurrentLinkedQueue<>();
+        this.freeCount = new AtomicInteger();
+        this.maxRetained = maxRetained;
+    }
+
+    /**
+     * Method: shared()
+     *
+     * @return The pool shared by all client handlers.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Method: acquire()
+     *      - Takes an idle buffer from the pool, or allocates a new one if none is free.
+     *
+     * @return A cleared direct buffer of BUFFER_SIZE bytes.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Method: release(ByteBuffer buffer)
+     *      - Returns a buffer obtained from acquire() so that another transfer can reuse it.
+     *
+     * @param buffer: The buffer to give back; it must not be used by the caller afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        if (freeCount.incrementAndGet() <= maxRetained) {
+            freeBuffers.offer(buffer);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+}
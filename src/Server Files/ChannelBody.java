@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *  Class for ChannelBody
+ *      - A file body that is a single open file, sent with TransferEngine (zero-copy to sockets).
+ *      - Only files the server never changes once written (stored chunks) are immutable and can be mapped.
+ */
+public class ChannelBody implements FileBody {
+    // Length of each mapped piece; a single mapping cannot exceed 2 GiB
+    private static final long MAP_PIECE = 64L * 1024 * 1024;
+
+    private final FileChannel file;
+    private final long size;
+    private final boolean immutable;
+
+    /**
+     * Constructor for ChannelBody
+     *
+     * @param file: The open file, which may change on disk; the body closes it.
+     */
+    public ChannelBody(FileChannel file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Constructor for ChannelBody
+     *
+     * @param file: The open file; the body closes it.
+     * @param immutable: Whether the file is never changed once written.
+     */
+    public ChannelBody(FileChannel file, boolean immutable) throws IOException {
+        this.file = file;
+        this.size = file.size();
+        this.immutable = immutable;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return TransferEngine.sendSlice(file, position, count, target);
+    }
+
+    @Override
+    public int read(ByteBuffer target, long position) throws IOException {
+        return file.read(target, position);
+    }
+
+    @Override
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    @Override
+    public ByteBuffer[] map() throws IOException {
+        if (!immutable) throw new IOException("A file that may change on disk is not mapped");
+        ByteBuffer[] pieces = new ByteBuffer[(int) ((size + MAP_PIECE - 1) / MAP_PIECE)];
+        for (int i = 0; i < pieces.length; i++) {
+            long start = i * MAP_PIECE;
+            pieces[i] = file.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_PIECE, size - start));
+        }
+        return pieces;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ *  Class for ChecksumIndex
+ *      - The CRC32C of every chunk of a file, and of the whole file, so the client can check what it downloaded and
+ *        fetch again only the chunks that arrived damaged.
+ *      - Files uploaded since checksums are kept have them in their manifest, so nothing is read to answer.
+ *      - For plain files (and chunks of older manifests) the checksums are computed on first demand, in one pass, and
+ *        kept under the file's name and version, so a replaced file never gets stale checksums.
+ */
+public class ChecksumIndex {
+    private final File directory;
+
+    /**
+     * Class for Checksums
+     *      - The chunk size, chunk checksums and whole-file checksum of one version of a file.
+     */
+    public static final class Checksums {
+        private final long size;
+        private final int chunkSize;
+        private final long[] crcs;
+        private final long whole;
+
+        Checksums(long size, int chunkSize, long[] crcs) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.crcs = crcs;
+            this.whole = Crc32c.ofChunks(crcs, size, chunkSize);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public long[] getCrcs() {
+            return crcs;
+        }
+
+        public long getWhole() {
+            return whole;
+        }
+    }
+
+    /**
+     * Constructor for ChecksumIndex
+     *
+     * @param directory: Where computed checksums are kept; created when first needed.
+     */
+    public ChecksumIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Method: known(String filename, String version, BlobStore.Manifest manifest)
+     *      - Answers without reading the file: from the manifest, or from checksums computed before.
+     *
+     * @param manifest: The file's manifest, or null for a plain file.
+     * @return The checksums, or null if they would have to be computed.
+     */
+    public Checksums known(String filename, String version, BlobStore.Manifest manifest) {
+        if (manifest != null && manifest.hasAllCrcs()) {
+            return new Checksums(manifest.getSize(), manifest.getChunkSize(), manifest.getCrcs());
+        }
+        return version != null ? read(entryFile(filename, version)) : null;
+    }
+
+    /**
+     * Method: get(String filename, String version, BlobStore.Manifest manifest, FileBody body)
+     *      - Like known, but computes whatever is missing from the file itself and keeps the result.
+     *
+     * @param manifest: The file's manifest, or null for a plain file.
+     * @param body: The file, read only for chunks whose checksum is not known.
+     * @return The checksums.
+     */
+    public Checksums get(String filename, String version, BlobStore.Manifest manifest, FileBody body) throws IOException {
+        Checksums checksums = known(filename, version, manifest);
+        if (checksums != null) return checksums;
+
+        // One pass over the chunks nobody has checksummed yet
+        long size = body.size();
+        int chunkSize = manifest != null ? manifest.getChunkSize() : UploadStaging.CHUNK_SIZE;
+        long[] crcs = new long[(int) ((size + chunkSize - 1) / chunkSize)];
+        ByteBuffer buffer = null;
+        for (int i = 0; i < crcs.length; i++) {
+            if (manifest != null && manifest.getCrcs()[i] >= 0) {
+                crcs[i] = manifest.getCrcs()[i];
+                continue;
+            }
+            long start = (long) i * chunkSize;
+            if (buffer == null) buffer = ByteBuffer.allocateDirect(chunkSize);
+            buffer.clear().limit((int) Math.min(chunkSize, size - start));
+            while (buffer.hasRemaining()) {
+                if (body.read(buffer, start + buffer.position()) < 0) throw new IOException("File ended before its size");
+            }
+            buffer.flip();
+            crcs[i] = Crc32c.of(buffer);
+        }
+
+        checksums = new Checksums(size, chunkSize, crcs);
+        if (version != null) write(entryFile(filename, version), checksums);
+        return checksums;
+    }
+
+    /**
+     * Method: read(File entry)
+     *
+     * @return The checksums kept in the entry ('<size> <chunk size>', then one CRC32C per line), or null if there is
+     *         no usable entry.
+     */
+    private Checksums read(File entry) {
+        if (!entry.isFile()) return null;
+        try {
+            List<String> lines = Files.readAllLines(entry.toPath(), StandardCharsets.UTF_8);
+            String[] header = lines.get(0).split(" ");
+            long[] crcs = new long[lines.size() - 1];
+            for (int i = 0; i < crcs.length; i++) crcs[i] = Long.parseLong(lines.get(i + 1), 16);
+            return new Checksums(Long.parseLong(header[0]), Integer.parseInt(header[1]), crcs);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Method: write(File entry, Checksums checksums)
+     *      - Keeps the checksums, written aside and renamed into place.
+     */
+    private void write(File entry, Checksums checksums) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(checksums.size).append(' ').append(checksums.chunkSize).append('\n');
+        for (long crc : checksums.crcs) {
+            text.append(Crc32c.toHex(crc)).append('\n');
+        }
+
+        Files.createDirectories(directory.toPath());
+        File temporary = File.createTempFile(entry.getName(), ".tmp", directory);
+        try {
+            try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer source = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                while (source.hasRemaining()) out.write(source);
+            }
+            try {
+                Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private File entryFile(String filename, String version) {
+        return new File(directory, BlobStore.hash(ByteBuffer.wrap((filename + "\n" + version).getBytes(StandardCharsets.UTF_8))));
+    }
+}
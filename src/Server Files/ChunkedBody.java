@@ -0,0 +1,103 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *  Class for ChunkedBody
+ *      - A file body assembled from the chunks listed in a BlobStore manifest.
+ *      - Each slice is sent from the one chunk it falls in, so chunks on disk still go to sockets zero-copy.
+ *      - Only the chunk being sent is kept open.
+ */
+public class ChunkedBody implements FileBody {
+    private final BlobStore store;
+    private final BlobStore.Manifest manifest;
+
+    // The chunk currently open, and its index
+    private FileBody chunk;
+    private int chunkIndex = -1;
+
+    /**
+     * Constructor for ChunkedBody
+     *
+     * @param store: The store holding the chunks.
+     * @param manifest: The chunks of the file, in order.
+     */
+    public ChunkedBody(BlobStore store, BlobStore.Manifest manifest) {
+        this.store = store;
+        this.manifest = manifest;
+    }
+
+    @Override
+    public long size() {
+        return manifest.getSize();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= manifest.getSize()) throw new EOFException("Read past the end of the stored file");
+
+        // Never cross a chunk boundary in one call
+        int index = (int) (position / manifest.getChunkSize());
+        long offsetInChunk = position - (long) index * manifest.getChunkSize();
+        long inChunk = Math.min(count, manifest.getChunkSize() - offsetInChunk);
+        return chunkAt(index).transferTo(offsetInChunk, inChunk, target);
+    }
+
+    @Override
+    public int read(ByteBuffer target, long position) throws IOException {
+        if (position >= manifest.getSize()) return -1;
+
+        // Like transferTo, one call reads from one chunk only
+        int index = (int) (position / manifest.getChunkSize());
+        long offsetInChunk = position - (long) index * manifest.getChunkSize();
+        ByteBuffer slice = target.duplicate();
+        slice.limit(slice.position() + (int) Math.min(target.remaining(), manifest.getChunkSize() - offsetInChunk));
+        int bytesRead = chunkAt(index).read(slice, offsetInChunk);
+        if (bytesRead > 0) target.position(target.position() + bytesRead);
+        return bytesRead;
+    }
+
+    @Override
+    public boolean isImmutable() {
+        // A chunk is named after its content and never rewritten
+        return true;
+    }
+
+    @Override
+    public ByteBuffer[] map() throws IOException {
+        // One mapping per chunk, so files sharing chunks also share their pages
+        String[] hashes = manifest.getHashes();
+        ByteBuffer[] pieces = new ByteBuffer[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            long length = Math.min(manifest.getChunkSize(), manifest.getSize() - (long) i * manifest.getChunkSize());
+            try (FileBody blob = store.openBlob(hashes[i])) {
+                if (blob.size() < length) throw new EOFException("Stored chunk " + hashes[i] + " is shorter than expected");
+                // A chunk is never larger than one piece
+                ByteBuffer piece = blob.map()[0];
+                pieces[i] = piece.capacity() == length ? piece : piece.slice(0, (int) length);
+            }
+        }
+        return pieces;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (chunk != null) chunk.close();
+        chunk = null;
+    }
+
+    /**
+     * Method: chunkAt(int index)
+     *
+     * @return The open chunk with this index, switching from the previous one if needed.
+     */
+    private FileBody chunkAt(int index) throws IOException {
+        if (index != chunkIndex) {
+            close();
+            chunk = store.openBlob(manifest.getHashes()[index]);
+            chunkIndex = index;
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ *  Interface for ClientConnection
+ *      - The transport between one client and its ServerClientHandler.
+ *      - The handler only deals in command lines and file bodies; the connection decides how they travel.
+ *      - Lines reach the handler from the connection (see BlockingConnection.serve and NioConnection.start); the
+ *        handler never reads them itself.
+ */
+public interface ClientConnection {
+
+    /**
+     * Method: sendLine(String line)
+     *      - Sends one line of text to the client.
+     *
+     * @param line: The text to send, without a line terminator.
+     */
+    void sendLine(String line);
+
+    /**
+     * Method: offerLine(String line)
+     *      - Sends a chat message from another client, without ever waiting for this client to read.
+     *      - If this client is too far behind, the server's overflow policy drops the message or disconnects the client.
+     *
+     * @param line: The text to send, without a line terminator.
+     */
+    void offerLine(String line);
+
+    /**
+     * Method: sendFile(FileBody file, long position, long count, int streamId)
+     *      - Sends count bytes of the file, after anything already sent with sendLine.
+     *      - Line protocol: the body goes out raw and nothing else is sent until it is done.
+     *        Frames: it goes out as DATA frames of the stream, taking turns with other downloads, and lines sent later
+     *        are written between its frames.
+     *      - The connection takes ownership of the file and closes it when the body has been sent or has failed.
+     *
+     * @param file: The stored file to send.
+     * @param position: The offset of the first byte to send.
+     * @param count: The number of bytes the client has been told to expect.
+     * @param streamId: The stream announced to the client for this body (ignored by the line protocol).
+     */
+    void sendFile(FileBody file, long position, long count, int streamId);
+
+    /**
+     * Method: setTransferAccount(TransferScheduler.Account account)
+     *      - File bodies sent from now on are paid for from the account, so they keep to the scheduler's limits and
+     *        share; lines are never held back.
+     *
+     * @param account: The account of the user this connection sends for.
+     */
+    void setTransferAccount(TransferScheduler.Account account);
+
+    /**
+     * Method: receiveBody(InboundStream body, int streamId)
+     *      - Receives a file body from the client into the stream's target (see InboundStream).
+     *      - Line protocol: the body is the next bytes on the connection. Frames: it arrives in DATA frames of the
+     *        stream, and commands keep being handled in the meantime.
+     *      - The body's listener is told how many bytes were written and whether it failed; the caller still owns and
+     *        closes the target.
+     *
+     * @param body: Where the body goes, and how many bytes the client announced.
+     * @param streamId: The stream the client sends the body on (ignored by the line protocol).
+     */
+    void receiveBody(InboundStream body, int streamId);
+
+    /**
+     * Method: runBlocking(Runnable work)
+     *      - Runs work that reads, hashes or syncs files on the handler's behalf, where it holds up no other client.
+     *      - No further command of this client is handled until the work is done, so its replies keep their order.
+     *      - Called from the handler (in handleLine or a body's listener); the work may send lines.
+     *
+     * @param work: What to run; it must not read from the connection.
+     */
+    void runBlocking(Runnable work);
+
+    /**
+     * Method: startFrames()
+     *      - Accepts the client's request for binary frames: sends Frame.ACCEPTED as the last text line,
+     *        then reads and writes everything after it as frames.
+     *      - Must be called from handleLine, before the client's next command is read.
+     */
+    void startFrames();
+
+    /**
+     * Method: getRemoteAddress()
+     *
+     * @return The client's IP address, for logging.
+     */
+    String getRemoteAddress();
+
+    /**
+     * Method: close()
+     *      - Closes the connection at once, dropping anything not yet written. Safe to call more than once and from any thread.
+     */
+    void close();
+
+    /**
+     * Method: closeAfterFlush()
+     *      - Closes the connection once everything already queued for the client has been written.
+     */
+    void closeAfterFlush();
+}
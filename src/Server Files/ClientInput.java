@@ -0,0 +1,267 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Class for ClientInput
+ *      - Reads everything a client sends: command lines and the file bodies that follow /store.
+ *      - Lines and bodies come out of the same buffer, so bytes read ahead of a line are never lost.
+ *      - Understands both the line protocol and binary frames (see Frame), once the client has switched.
+ *      - With frames, uploads arrive as DATA frames between commands and are written while commands are read.
+ */
+public class ClientInput {
+    // Size of the buffer that holds command lines and any body bytes read together with them
+    private static final int LINE_BUFFER_SIZE = 8 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer lineBuffer;
+    private byte[] lineBytes;
+    private boolean endOfStream;
+    private boolean frames;
+
+    // Uploads in progress on this connection by stream id (frames only)
+    private final Map<Integer, InboundStream> streams;
+
+    // Header fields of the last frame read
+    private byte frameType;
+    private int frameStreamId;
+    private int frameLength;
+
+    /**
+     * Constructor for ClientInput
+     *
+     * @param channel: The channel the client's bytes arrive on.
+     */
+    public ClientInput(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.lineBuffer = ByteBuffer.allocateDirect(LINE_BUFFER_SIZE);
+        this.lineBuffer.flip(); // Start empty, in read mode
+        this.lineBytes = new byte[256];
+        this.endOfStream = false;
+        this.streams = new HashMap<>();
+    }
+
+    /**
+     * Method: useFrames()
+     *      - From the next byte on, the client sends binary frames instead of lines.
+     */
+    public void useFrames() {
+        this.frames = true;
+    }
+
+    /**
+     * Method: readLine()
+     *      - Reads one command: a line terminated by '\n' (a preceding '\r' is dropped), or a COMMAND frame.
+     *      - With frames, DATA frames read on the way are written to their uploads.
+     *
+     * @return The command, or null once the client has closed the connection.
+     */
+    public String readLine() throws IOException {
+        if (frames) return readCommandFrame();
+
+        int length = 0;
+
+        while (true) {
+            // Scan what is already buffered for the end of the line
+            while (lineBuffer.hasRemaining()) {
+                byte b = lineBuffer.get();
+                if (b == '\n') {
+                    if (length > 0 && lineBytes[length - 1] == '\r') length--;
+                    return new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+                }
+                if (length == lineBytes.length) lineBytes = Arrays.copyOf(lineBytes, length * 2);
+                lineBytes[length++] = b;
+            }
+
+            // Need more bytes from the client
+            if (!fill()) {
+                return length > 0 ? new String(lineBytes, 0, length, StandardCharsets.UTF_8) : null;
+            }
+        }
+    }
+
+    /**
+     * Method: readBody(InboundStream body)
+     *      - Line protocol: the next bytes from the client are the body; copies all of it before returning.
+     *      - Bytes already buffered are written first, the rest goes through a pooled direct buffer.
+     */
+    public void readBody(InboundStream body) throws IOException {
+        copyToStream(body, body.remaining());
+    }
+
+    /**
+     * Method: expectBody(int streamId, InboundStream body)
+     *      - Frames: the body will arrive in DATA frames with this stream id while commands keep being read.
+     *
+     * @return False if an upload with this stream id is already in progress.
+     */
+    public boolean expectBody(int streamId, InboundStream body) {
+        if (streams.containsKey(streamId)) return false;
+        if (body.remaining() == 0) {
+            body.finish(null);
+            return true;
+        }
+        streams.put(streamId, body);
+        return true;
+    }
+
+    /**
+     * Method: isEndOfStream()
+     *
+     * @return True once the client has closed its side of the connection.
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    /**
+     * Method: readCommandFrame()
+     *      - Reads frames until the next COMMAND frame, writing DATA frames into their uploads.
+     *      - If the connection ends or breaks, uploads still in progress are finished with the error.
+     *
+     * @return The text of the next COMMAND frame, or null once the client has closed the connection.
+     */
+    private String readCommandFrame() throws IOException {
+        try {
+            while (readFrameHeader()) {
+                if (frameType == Frame.TYPE_COMMAND) return readFramePayload();
+                if (frameType != Frame.TYPE_DATA) throw new IOException("Unexpected frame type " + frameType);
+
+                InboundStream body = streams.get(frameStreamId);
+                if (body == null || frameLength > body.remaining()) {
+                    throw new IOException("Unexpected DATA frame for stream " + frameStreamId);
+                }
+                copyToStream(body, frameLength);
+                if (body.remaining() == 0) {
+                    streams.remove(frameStreamId);
+                    body.finish(null);
+                }
+            }
+        } catch (IOException e) {
+            failStreams(e);
+            throw e;
+        }
+        failStreams(new EOFException("Client closed the connection during a file upload"));
+        return null;
+    }
+
+    /**
+     * Method: failStreams(IOException failure)
+     *      - Finishes every upload still in progress with the failure.
+     */
+    private void failStreams(IOException failure) {
+        for (InboundStream body : streams.values()) {
+            body.finish(failure);
+        }
+        streams.clear();
+    }
+
+    /**
+     * Method: readFrameHeader()
+     *
+     * @return False if the client closed the connection before another frame started.
+     */
+    private boolean readFrameHeader() throws IOException {
+        if (!readExact(Frame.HEADER_SIZE)) return false;
+        ByteBuffer header = ByteBuffer.wrap(lineBytes, 0, Frame.HEADER_SIZE);
+        byte version = header.get();
+        frameType = header.get();
+        frameStreamId = header.getInt();
+        frameLength = header.getInt();
+        Frame.checkHeader(version, frameLength);
+        return true;
+    }
+
+    /**
+     * Method: readFramePayload()
+     *
+     * @return The payload of the current frame as text.
+     */
+    private String readFramePayload() throws IOException {
+        if (!readExact(frameLength)) throw new EOFException("Client closed the connection in the middle of a frame");
+        return new String(lineBytes, 0, frameLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Method: readExact(int count)
+     *      - Reads exactly count bytes into lineBytes.
+     *
+     * @return False if the client closed the connection before the first byte.
+     */
+    private boolean readExact(int count) throws IOException {
+        if (lineBytes.length < count) lineBytes = new byte[Math.max(count, lineBytes.length * 2)];
+
+        int length = 0;
+        while (length < count) {
+            if (!lineBuffer.hasRemaining() && !fill()) {
+                if (length == 0) return false;
+                throw new EOFException("Client closed the connection in the middle of a frame");
+            }
+            int chunk = Math.min(lineBuffer.remaining(), count - length);
+            lineBuffer.get(lineBytes, length, chunk);
+            length += chunk;
+        }
+        return true;
+    }
+
+    /**
+     * Method: copyToStream(InboundStream body, long count)
+     *      - Copies the next count bytes from the client into the body.
+     */
+    private void copyToStream(InboundStream body, long count) throws IOException {
+        // Hand over whatever was read ahead together with the last line or header
+        if (lineBuffer.hasRemaining() && count > 0) {
+            int aheadCount = (int) Math.min(lineBuffer.remaining(), count);
+            ByteBuffer ahead = lineBuffer.duplicate();
+            ahead.limit(ahead.position() + aheadCount);
+            lineBuffer.position(ahead.limit());
+            body.write(ahead);
+            count -= aheadCount;
+        }
+        if (count == 0) return;
+
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buffer = pool.acquire();
+        try {
+            while (count > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count));
+                int bytesRead = channel.read(buffer);
+                if (bytesRead < 0) {
+                    endOfStream = true;
+                    throw new EOFException("Client closed the connection " + count + " bytes before the end of the file");
+                }
+                Metrics.shared().bytesIn(bytesRead);
+                buffer.flip();
+                body.write(buffer);
+                count -= bytesRead;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Method: fill()
+     *      - Reads more bytes from the channel into the (empty) line buffer.
+     *
+     * @return False if the client closed the connection.
+     */
+    private boolean fill() throws IOException {
+        if (endOfStream) return false;
+
+        lineBuffer.clear();
+        int bytesRead = channel.read(lineBuffer);
+        lineBuffer.flip();
+        if (bytesRead < 0) {
+            endOfStream = true;
+            return false;
+        }
+        Metrics.shared().bytesIn(bytesRead);
+        return true;
+    }
+}
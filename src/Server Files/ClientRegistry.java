@@ -0,0 +1,133 @@
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Class for ClientRegistry
+ *      - Keeps track of every connected client and the alias each one currently holds.
+ *      - Alias lookups and registrations are O(1) and atomic; broadcasts iterate without taking a lock.
+ *      - Also hands out session tokens, with which a client's extra download connections find it (see '/attach').
+ */
+public class ClientRegistry {
+    // Prefix of the alias a client holds until it registers its own
+    private static final String DEFAULT_ALIAS_PREFIX = "User";
+
+    private final ConcurrentHashMap<String, MPServer.ServerClientHandler> byAlias;
+    private final Set<MPServer.ServerClientHandler> sessions;
+    private final AtomicInteger guestCounter;
+    private final ConcurrentHashMap<MPServer.ServerClientHandler, String> tokens;
+    private final ConcurrentHashMap<String, MPServer.ServerClientHandler> byToken;
+    private final SecureRandom random;
+
+    /**
+     * Constructor for ClientRegistry
+     */
+    public ClientRegistry() {
+        this.byAlias = new ConcurrentHashMap<>();
+        this.sessions = ConcurrentHashMap.newKeySet();
+        this.guestCounter = new AtomicInteger();
+        this.tokens = new ConcurrentHashMap<>();
+        this.byToken = new ConcurrentHashMap<>();
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * Method: add(MPServer.ServerClientHandler handler)
+     *      - Adds a newly connected client and reserves a default alias ("User1", "User2", ...) for it.
+     *
+     * @param handler: The handler of the new client.
+     * @return The default alias reserved for the client.
+     */
+    public String add(MPServer.ServerClientHandler handler) {
+        String alias;
+        // Skip numbers whose default alias someone has registered explicitly
+        do {
+            alias = DEFAULT_ALIAS_PREFIX + guestCounter.incrementAndGet();
+        } while (byAlias.putIfAbsent(alias, handler) != null);
+
+        sessions.add(handler);
+        return alias;
+    }
+
+    /**
+     * Method: rename(MPServer.ServerClientHandler handler, String oldAlias, String newAlias)
+     *      - Moves a client to a new alias if nobody holds it; the check and the claim are one atomic step.
+     *
+     * @return True if the client now holds newAlias.
+     */
+    public boolean rename(MPServer.ServerClientHandler handler, String oldAlias, String newAlias) {
+        if (byAlias.putIfAbsent(newAlias, handler) != null) return false;
+        byAlias.remove(oldAlias, handler);
+        return true;
+    }
+
+    /**
+     * Method: remove(MPServer.ServerClientHandler handler)
+     *      - Forgets a disconnected client and frees its alias. Calling it twice is harmless.
+     */
+    public void remove(MPServer.ServerClientHandler handler) {
+        if (sessions.remove(handler)) {
+            byAlias.remove(handler.getNickname(), handler);
+        }
+        String token = tokens.remove(handler);
+        if (token != null) byToken.remove(token, handler);
+    }
+
+    /**
+     * Method: tokenFor(MPServer.ServerClientHandler handler)
+     *      - The client's session token, made the first time it is asked for; it dies with the client.
+     *
+     * @return The token, 32 random hex digits.
+     */
+    public String tokenFor(MPServer.ServerClientHandler handler) {
+        return tokens.computeIfAbsent(handler, key -> {
+            byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            StringBuilder token = new StringBuilder(32);
+            for (byte b : bytes) {
+                token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            byToken.put(token.toString(), key);
+            return token.toString();
+        });
+    }
+
+    /**
+     * Method: findByToken(String token)
+     *
+     * @return The connected client holding the session token, or null if nobody does.
+     */
+    public MPServer.ServerClientHandler findByToken(String token) {
+        return byToken.get(token);
+    }
+
+    /**
+     * Method: find(String alias)
+     *
+     * @return The client holding the alias, or null if nobody does.
+     */
+    public MPServer.ServerClientHandler find(String alias) {
+        return byAlias.get(alias);
+    }
+
+    /**
+     * Method: all()
+     *      - A live, lock-free view of the connected clients for broadcasting.
+     *      - Clients joining or leaving during the iteration may or may not be included.
+     */
+    public Collection<MPServer.ServerClientHandler> all() {
+        return Collections.unmodifiableSet(sessions);
+    }
+
+    /**
+     * Method: size()
+     *
+     * @return The number of connected clients.
+     */
+    public int size() {
+        return sessions.size();
+    }
+}
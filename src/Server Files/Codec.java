@@ -0,0 +1,30 @@
+import java.io.IOException;
+
+/**
+ *  Interface for Codec
+ *      - A compression method that file transfers can be negotiated to use (see CodecRegistry).
+ *      - Works on one block at a time (see CompressedBlocks), so neither side ever holds more than a block in memory.
+ */
+public interface Codec {
+
+    /**
+     * Method: name()
+     *
+     * @return The name the codec is negotiated and announced by, e.g. "deflate".
+     */
+    String name();
+
+    /**
+     * Method: compress(byte[] source, int length, byte[] target)
+     *      - Compresses the first length bytes of source into target.
+     *
+     * @return The compressed length, or -1 if it would not fit into target.
+     */
+    int compress(byte[] source, int length, byte[] target);
+
+    /**
+     * Method: decompress(byte[] source, int length, byte[] target, int rawLength)
+     *      - Restores exactly rawLength bytes into target from the first length bytes of source.
+     */
+    void decompress(byte[] source, int length, byte[] target, int rawLength) throws IOException;
+}
@@ -0,0 +1,50 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Class for CodecRegistry
+ *      - The compression codecs this server can use, by name. Deflate is always there; others can be registered at
+ *        startup (CodecRegistry.register(new MyCodec())) and are offered to clients from then on.
+ *      - Negotiation: the client sends '/compress <codec,codec,...>' in order of preference and the server answers
+ *        'COMPRESS <codec>' with the first one it knows, or 'COMPRESS none'.
+ */
+public final class CodecRegistry {
+    private static final Map<String, Codec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec(6));
+    }
+
+    private CodecRegistry() {
+    }
+
+    /**
+     * Method: register(Codec codec)
+     *      - Makes a codec available under its name, replacing any codec of the same name.
+     */
+    public static void register(Codec codec) {
+        CODECS.put(codec.name(), codec);
+    }
+
+    /**
+     * Method: get(String name)
+     *
+     * @return The codec with this name, or null if there is none.
+     */
+    public static Codec get(String name) {
+        return CODECS.get(name);
+    }
+
+    /**
+     * Method: choose(String[] offered)
+     *
+     * @return The first offered codec this server knows, or null if none.
+     */
+    public static Codec choose(String[] offered) {
+        for (String name : offered) {
+            Codec codec = CODECS.get(name);
+            if (codec != null) return codec;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *  Class for CommandLine
+ *      - One command line from a client, split into words once. Only the offsets of the words are kept, so splitting
+ *        allocates nothing; a word becomes a String only when a command asks for it.
+ *      - Words are separated by single spaces, as with line.split(" "): two spaces in a row give an empty word, and
+ *        spaces at the end give none.
+ *      - Each client handler reuses one CommandLine for all its lines.
+ */
+public final class CommandLine {
+    // Words whose offsets are kept; words after these are found by scanning on demand
+    private static final int MAX_WORDS = 16;
+
+    private final int[] starts = new int[MAX_WORDS];
+    private final int[] ends = new int[MAX_WORDS];
+    private String line = "";
+    private int size;
+
+    /**
+     * Method: parse(String line)
+     *      - Splits a new line into words, forgetting the previous one.
+     *
+     * @param line: The line, without its terminator.
+     * @return This command line.
+     */
+    public CommandLine parse(String line) {
+        this.line = line;
+        this.size = 0;
+        int length = line.length();
+
+        // Drop the spaces at the end, as split(" ") drops the empty words they would give
+        while (length > 0 && line.charAt(length - 1) == ' ') length--;
+        int start = 0;
+        while (start < length) {
+            int end = line.indexOf(' ', start);
+            if (end < 0 || end > length) end = length;
+            if (size < MAX_WORDS) {
+                starts[size] = start;
+                ends[size] = end;
+            }
+            size++;
+            start = end + 1;
+        }
+        return this;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    /**
+     * Method: size()
+     *
+     * @return The number of words.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Method: word(int nth)
+     *
+     * @param nth: The position of the word, counting from 1.
+     * @return The word.
+     * @throws ArrayIndexOutOfBoundsException if the line has fewer words; check size() first.
+     */
+    public String word(int nth) {
+        return line.substring(start(nth), end(nth));
+    }
+
+    /**
+     * Method: wordEquals(int nth, String expected)
+     *
+     * @return True if the line has an nth word and it is expected, compared in place.
+     */
+    public boolean wordEquals(int nth, String expected) {
+        if (nth > size) return false;
+        int start = start(nth);
+        int length = end(nth) - start;
+        return length == expected.length() && line.regionMatches(start, expected, 0, length);
+    }
+
+    /**
+     * Method: rest(int nth)
+     *
+     * @return The line from the nth word to its end, spaces kept, or "" if the line has fewer words.
+     */
+    public String rest(int nth) {
+        return nth > size ? "" : line.substring(start(nth));
+    }
+
+    /**
+     * Method: start(int nth)
+     *
+     * @return The index in the line where the nth word starts.
+     */
+    public int start(int nth) {
+        if (nth < 1 || nth > size) throw new ArrayIndexOutOfBoundsException("No word " + nth + " in: " + line);
+        return nth <= MAX_WORDS ? starts[nth - 1] : scan(nth, true);
+    }
+
+    /**
+     * Method: end(int nth)
+     *
+     * @return The index in the line just after the nth word.
+     */
+    public int end(int nth) {
+        if (nth < 1 || nth > size) throw new ArrayIndexOutOfBoundsException("No word " + nth + " in: " + line);
+        return nth <= MAX_WORDS ? ends[nth - 1] : scan(nth, false);
+    }
+
+    /**
+     * Method: scan(int nth, boolean start)
+     *      - Finds a word beyond the ones whose offsets are kept, walking on from the last kept one.
+     */
+    private int scan(int nth, boolean start) {
+        int wordStart = starts[MAX_WORDS - 1];
+        int wordEnd = ends[MAX_WORDS - 1];
+        for (int word = MAX_WORDS + 1; word <= nth; word++) {
+            wordStart = wordEnd + 1;
+            wordEnd = line.indexOf(' ', wordStart);
+            if (wordEnd < 0) wordEnd = line.length();
+        }
+        return start ? wordStart : wordEnd;
+    }
+}
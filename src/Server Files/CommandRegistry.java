@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Class for CommandRegistry
+ *      - The commands this server understands, by their first word. The built-in ones are registered by MPServer;
+ *        others can be registered at startup (CommandRegistry.register("/who", "...", new WhoCommand())) and are
+ *        dispatched, listed by '/?' and timed like the built-in ones from then on.
+ *      - Finding a command compares the first word of a CommandLine against an open-addressing table in place, so
+ *        dispatch allocates nothing. Registering copies the table, so lookups never lock.
+ */
+public final class CommandRegistry {
+    /**
+     * Enum for Option
+     *      - When a command may run.
+     *          - REGISTERED_ONLY: only after the client has registered an alias
+     *          - TRANSFER_CONNECTION: also on an extra download connection (see '/attach')
+     *          - BEFORE_JOINING: without announcing the client to everyone first (set-up commands of a connection)
+     */
+    public enum Option { REGISTERED_ONLY, TRANSFER_CONNECTION, BEFORE_JOINING }
+
+    /**
+     * Class for Command
+     *      - A registered command: its name, when it may run, and what it does.
+     */
+    public static final class Command {
+        private final String name;
+        private final String help;
+        private final ServerCommand action;
+        private final boolean registeredOnly;
+        private final boolean transferConnection;
+        private final boolean beforeJoining;
+
+        private Command(String name, String help, ServerCommand action, Option[] options) {
+            this.name = name;
+            this.help = help;
+            this.action = action;
+            boolean registeredOnly = false, transferConnection = false, beforeJoining = false;
+            for (Option option : options) {
+                if (option == Option.REGISTERED_ONLY) registeredOnly = true;
+                else if (option == Option.TRANSFER_CONNECTION) transferConnection = true;
+                else if (option == Option.BEFORE_JOINING) beforeJoining = true;
+            }
+            this.registeredOnly = registeredOnly;
+            this.transferConnection = transferConnection;
+            this.beforeJoining = beforeJoining;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ServerCommand getAction() {
+            return action;
+        }
+
+        public boolean isRegisteredOnly() {
+            return registeredOnly;
+        }
+
+        public boolean isTransferConnection() {
+            return transferConnection;
+        }
+
+        public boolean isBeforeJoining() {
+            return beforeJoining;
+        }
+    }
+
+    // Every command in the order registered, for rebuilding the table and for '/?'
+    private static final Map<String, Command> COMMANDS = new LinkedHashMap<>();
+
+    // Open addressing with linear probing, at most half full; replaced as a whole on every registration
+    private static volatile Command[] table = new Command[16];
+
+    private CommandRegistry() {
+    }
+
+    /**
+     * Method: register(String name, String help, ServerCommand action, Option... options)
+     *      - Makes a command available under its first word, replacing any command of the same name.
+     *
+     * @param name: The first word of the command, e.g. "/who".
+     * @param help: The line '/?' shows for it, or null to show none (the built-in commands have their own).
+     * @param action: What the command does.
+     * @param options: When it may run; without REGISTERED_ONLY anyone connected may use it.
+     */
+    public static synchronized void register(String name, String help, ServerCommand action, Option... options) {
+        if (name.isEmpty() || name.indexOf(' ') >= 0) throw new IllegalArgumentException("Not a command name: " + name);
+        COMMANDS.put(name, new Command(name, help, action, options));
+
+        Command[] rebuilt = new Command[Math.max(16, Integer.highestOneBit(COMMANDS.size() * 4 - 1))];
+        for (Command command : COMMANDS.values()) {
+            int slot = hash(command.name, 0, command.name.length()) & (rebuilt.length - 1);
+            while (rebuilt[slot] != null) slot = (slot + 1) & (rebuilt.length - 1);
+            rebuilt[slot] = command;
+        }
+        table = rebuilt;
+    }
+
+    /**
+     * Method: find(CommandLine line)
+     *
+     * @return The command named by the line's first word, or null if there is none.
+     */
+    public static Command find(CommandLine line) {
+        if (line.size() == 0) return null;
+        String text = line.getLine();
+        int start = line.start(1);
+        int length = line.end(1) - start;
+
+        Command[] commands = table;
+        int mask = commands.length - 1;
+        for (int slot = hash(text, start, start + length) & mask; ; slot = (slot + 1) & mask) {
+            Command command = commands[slot];
+            if (command == null) return null;
+            if (command.name.length() == length && text.regionMatches(start, command.name, 0, length)) return command;
+        }
+    }
+
+    /**
+     * Method: helpLines()
+     *
+     * @return The '/?' lines of the registered commands that have one.
+     */
+    public static synchronized List<String> helpLines() {
+        List<String> lines = new ArrayList<>();
+        for (Command command : COMMANDS.values()) {
+            if (command.help != null) lines.add(command.help);
+        }
+        return lines;
+    }
+
+    private static int hash(String text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *  Class for CompressedBlocks
+ *      - The body format of a compressed transfer: the file is cut into blocks of up to BLOCK_SIZE bytes and each
+ *        block is compressed on its own, so both sides stream it with one block in memory.
+ *      - Each block is: method (1 byte: 0 = stored as is, 1 = compressed) | raw length (int) | payload length (int)
+ *        | payload. A block that does not shrink is stored as is.
+ *      - Whether a file is worth compressing at all is judged from its first block (see isWorthCompressing).
+ */
+public final class CompressedBlocks {
+    // Raw bytes per block
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    public static final byte METHOD_STORED = 0;
+    public static final byte METHOD_COMPRESSED = 1;
+    public static final int HEADER_SIZE = 9;
+
+    // A sample that does not shrink below this fraction means the data is already compressed
+    private static final double SKIP_RATIO = 0.9;
+
+    // Bodies this small are sent as they are; the block headers would eat the gain
+    private static final long MIN_LENGTH = 4 * 1024;
+
+    private CompressedBlocks() {
+    }
+
+    /**
+     * Method: isWorthCompressing(FileBody source, long offset, long length, Codec codec)
+     *      - Compresses a sample (the first block of the range) and checks that it shrank noticeably.
+     *
+     * @return False for small ranges and for data that is already compressed (archives, images, video).
+     */
+    public static boolean isWorthCompressing(FileBody source, long offset, long length, Codec codec) throws IOException {
+        if (length < MIN_LENGTH) return false;
+
+        int sampleLength = (int) Math.min(BLOCK_SIZE, length);
+        byte[] sample = new byte[sampleLength];
+        readFully(source, ByteBuffer.wrap(sample), offset);
+        int compressed = codec.compress(sample, sampleLength, new byte[sampleLength]);
+        return compressed >= 0 && compressed <= sampleLength * SKIP_RATIO;
+    }
+
+    /**
+     * Method: encode(FileBody source, long offset, long length, Codec codec, WritableByteChannel target)
+     *      - Writes the range as compressed blocks.
+     *
+     * @return The number of bytes written, i.e. the length of the compressed body.
+     */
+    public static long encode(FileBody source, long offset, long length, Codec codec, WritableByteChannel target) throws IOException {
+        byte[] raw = new byte[BLOCK_SIZE];
+        byte[] packed = new byte[BLOCK_SIZE];
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long encoded = 0;
+        long done = 0;
+
+        while (done < length) {
+            int rawLength = (int) Math.min(BLOCK_SIZE, length - done);
+            readFully(source, ByteBuffer.wrap(raw, 0, rawLength), offset + done);
+
+            // Keep the block as it is unless compressing it saves something
+            int packedLength = codec.compress(raw, rawLength, packed);
+            boolean compressed = packedLength >= 0 && packedLength < rawLength;
+            header.clear();
+            header.put(compressed ? METHOD_COMPRESSED : METHOD_STORED).putInt(rawLength).putInt(compressed ? packedLength : rawLength);
+            header.flip();
+
+            encoded += writeFully(target, header);
+            encoded += writeFully(target, ByteBuffer.wrap(compressed ? packed : raw, 0, compressed ? packedLength : rawLength));
+            done += rawLength;
+        }
+        return encoded;
+    }
+
+    private static void readFully(FileBody source, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, start + buffer.position()) < 0) throw new EOFException("File ended before the range to compress");
+        }
+    }
+
+    private static int writeFully(WritableByteChannel target, ByteBuffer source) throws IOException {
+        int written = source.remaining();
+        while (source.hasRemaining()) target.write(source);
+        return written;
+    }
+
+    /**
+     *  Class for Decoder
+     *      - Turns compressed blocks back into raw bytes as they arrive, in pieces of any size.
+     */
+    public static final class Decoder {
+
+        /**
+         * Interface for Sink
+         *      - Takes the raw bytes of each block, in order.
+         */
+        public interface Sink {
+            void write(ByteBuffer raw) throws IOException;
+        }
+
+        private final Codec codec;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private byte[] payload;
+        private byte[] raw;
+        private byte method;
+        private int rawLength;
+        private int payloadLength;
+        private int payloadFilled;
+        private boolean inPayload;
+
+        /**
+         * Constructor for Decoder
+         *
+         * @param codec: The codec the compressed blocks were made with.
+         */
+        public Decoder(Codec codec) {
+            this.codec = codec;
+        }
+
+        /**
+         * Method: feed(ByteBuffer source, Sink sink)
+         *      - Consumes all remaining bytes of source, handing each block to the sink once it is complete.
+         */
+        public void feed(ByteBuffer source, Sink sink) throws IOException {
+            while (source.hasRemaining()) {
+                if (!inPayload) {
+                    // Block header, possibly split across pieces
+                    while (header.hasRemaining() && source.hasRemaining()) header.put(source.get());
+                    if (header.hasRemaining()) return;
+
+                    header.flip();
+                    method = header.get();
+                    rawLength = header.getInt();
+                    payloadLength = header.getInt();
+                    header.clear();
+                    if (rawLength <= 0 || rawLength > BLOCK_SIZE || payloadLength < 0 || payloadLength > BLOCK_SIZE
+                            || (method == METHOD_STORED && payloadLength != rawLength)
+                            || (method != METHOD_STORED && method != METHOD_COMPRESSED)) {
+                        throw new IOException("Invalid compressed block header");
+                    }
+                    if (payload == null) payload = new byte[BLOCK_SIZE];
+                    payloadFilled = 0;
+                    inPayload = true;
+                    continue;
+                }
+
+                int count = Math.min(payloadLength - payloadFilled, source.remaining());
+                source.get(payload, payloadFilled, count);
+                payloadFilled += count;
+                if (payloadFilled < payloadLength) return;
+
+                // Whole block: hand over its raw bytes
+                inPayload = false;
+                if (method == METHOD_STORED) {
+                    sink.write(ByteBuffer.wrap(payload, 0, rawLength));
+                } else {
+                    if (raw == null) raw = new byte[BLOCK_SIZE];
+                    codec.decompress(payload, payloadLength, raw, rawLength);
+                    sink.write(ByteBuffer.wrap(raw, 0, rawLength));
+                }
+            }
+        }
+
+        /**
+         * Method: isBetweenBlocks()
+         *
+         * @return True if the bytes fed so far end exactly at the end of a block.
+         */
+        public boolean isBetweenBlocks() {
+            return !inPayload && header.position() == 0;
+        }
+    }
+}
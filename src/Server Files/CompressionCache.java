@@ -0,0 +1,250 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ *  Class for CompressionCache
+ *      - Compressed copies of downloaded files, so a file asked for again is sent without compressing it again.
+ *      - Entries are keyed by file name, file version and codec, so a replaced file never serves a stale copy.
+ *      - Copies are made in the background: a request that finds none starts one and is sent raw meanwhile, so no
+ *        download ever waits for a file to be compressed.
+ *      - Files judged not worth compressing are remembered in memory, so they are not sampled on every request; at
+ *        most MAX_SKIPPED of them, the least recently asked for forgotten first.
+ *      - The cache is bounded in bytes; the least recently used entries are removed first. What is on disk is kept
+ *        track of in memory, so the directory is only listed once, when the first copy is asked for.
+ *      - A file the server replaces loses its entries right away (see invalidate); entries of files replaced by hand
+ *        are never asked for again and age out.
+ */
+public class CompressionCache {
+    // Files remembered as not worth compressing
+    private static final int MAX_SKIPPED = 10000;
+
+    private final File directory;
+    private final long limit;
+    private final Executor builder;
+
+    // Copies on disk by key, least recently used first, and their total length
+    private final LinkedHashMap<String, Entry> entries;
+    private long bytes;
+
+    // File names by the key of a version not worth compressing, least recently asked for first
+    private final LinkedHashMap<String, String> skipped;
+
+    // Keys whose copy is being made
+    private final Set<String> building;
+
+    // Whether the copies left on disk by an earlier run have been taken in
+    private boolean loaded;
+
+    /**
+     * Class for Entry
+     *      - One compressed copy on disk.
+     */
+    private static final class Entry {
+        private final String filename;
+        private final File file;
+        private final long length;
+
+        Entry(String filename, File file, long length) {
+            this.filename = filename;
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Constructor for CompressionCache
+     *
+     * @param directory: Where the compressed copies are kept; created when first needed.
+     * @param limit: Total bytes the cache may hold (0 disables it: every download is sent raw).
+     * @param builder: Runs the compression of new copies.
+     */
+    public CompressionCache(File directory, long limit, Executor builder) {
+        this.directory = directory;
+        this.limit = limit;
+        this.builder = builder;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.skipped = new LinkedHashMap<>(16, 0.75f, true);
+        this.building = new HashSet<>();
+    }
+
+    /**
+     * Method: open(String filename, String version, Codec codec, HotFileCache.Source source, Supplier<String> currentVersion)
+     *      - Returns the cached compressed copy of the file, or starts making one if there is none yet.
+     *
+     * @param filename: The name of the file.
+     * @param version: The file's version (changes whenever the file is replaced).
+     * @param codec: The codec the copy is made with.
+     * @param source: Opens the file, read in the background if a copy has to be made.
+     * @param currentVersion: Reads the file's version again, so a copy made while the file was replaced is dropped.
+     * @return The compressed copy, or null to send the file raw (not worth compressing, or no copy yet).
+     */
+    public FileBody open(String filename, String version, Codec codec, HotFileCache.Source source, Supplier<String> currentVersion) {
+        if (limit <= 0) return null;
+        String key = BlobStore.hash(ByteBuffer.wrap((filename + "\n" + version + "\n" + codec.name()).getBytes(StandardCharsets.UTF_8)));
+
+        Entry entry;
+        synchronized (this) {
+            load();
+            if (skipped.get(key) != null) return null;
+
+            // Hit: the lookup marks it as recently used
+            entry = entries.get(key);
+            if (entry == null) {
+                if (building.add(key)) builder.execute(() -> build(key, filename, version, codec, source, currentVersion));
+                return null;
+            }
+        }
+        try {
+            return new ChannelBody(FileChannel.open(entry.file.toPath(), StandardOpenOption.READ));
+        } catch (IOException e) {
+            // Deleted behind the cache's back: forget it, the next request makes it again
+            synchronized (this) {
+                if (entries.get(key) == entry) remove(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Method: invalidate(String filename)
+     *      - Drops every copy of a file that was just replaced; downloads already under way finish from them.
+     */
+    public void invalidate(String filename) {
+        List<File> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> all = entries.entrySet().iterator();
+            while (all.hasNext()) {
+                Entry entry = all.next().getValue();
+                if (!entry.filename.equals(filename)) continue;
+                all.remove();
+                bytes -= entry.length;
+                removed.add(entry.file);
+            }
+            skipped.values().removeIf(filename::equals);
+        }
+        for (File file : removed) file.delete();
+    }
+
+    /**
+     * Method: build(String key, String filename, String version, Codec codec, HotFileCache.Source source, Supplier<String> currentVersion)
+     *      - Makes the compressed copy of one file version on the builder, or remembers that it is not worth it.
+     */
+    private void build(String key, String filename, String version, Codec codec, HotFileCache.Source source, Supplier<String> currentVersion) {
+        File temporary = null;
+        try (FileBody file = source.open()) {
+            if (file == null || !version.equals(currentVersion.get())) return;
+
+            if (!CompressedBlocks.isWorthCompressing(file, 0, file.size(), codec)) {
+                synchronized (this) {
+                    skipped.put(key, filename);
+                    Iterator<String> eldest = skipped.keySet().iterator();
+                    while (skipped.size() > MAX_SKIPPED) {
+                        eldest.next();
+                        eldest.remove();
+                    }
+                }
+                return;
+            }
+
+            // Compress into a temporary file, then rename it into place so readers only ever see whole entries
+            Files.createDirectories(directory.toPath());
+            temporary = File.createTempFile(key, ".tmp", directory);
+            try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE)) {
+                CompressedBlocks.encode(file, 0, file.size(), codec, out);
+            }
+
+            // Replaced while it was read: the copy may hold some of either version
+            if (!version.equals(currentVersion.get())) return;
+
+            File target = new File(directory, key);
+            try {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            List<File> evicted;
+            synchronized (this) {
+                remove(key);
+                entries.put(key, new Entry(filename, target, target.length()));
+                bytes += target.length();
+                evicted = evict();
+            }
+            for (File old : evicted) old.delete();
+        } catch (IOException | RuntimeException e) {
+            ServerLog.shared().warn("compress_failed", "file", filename, "error", e.getMessage());
+        } finally {
+            if (temporary != null) temporary.delete();
+            synchronized (this) {
+                building.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Method: load()
+     *      - Takes in the copies an earlier run left on disk, oldest first, and clears away what it left unfinished.
+     *        Their file names are not known any more, so only eviction removes them.
+     */
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            if (BlobStore.isHash(name)) {
+                entries.put(name, new Entry("", file, file.length()));
+                bytes += file.length();
+            } else {
+                // Half-written copies, and the skip markers earlier versions kept on disk
+                file.delete();
+            }
+        }
+        for (File old : evict()) old.delete();
+    }
+
+    /**
+     * Method: evict()
+     *      - Drops the least recently used entries until the cache fits its limit again.
+     *      - Copies still being sent stay readable: they were opened before they are deleted.
+     *
+     * @return The files of the dropped entries, for the caller to delete outside the lock.
+     */
+    private List<File> evict() {
+        List<File> evicted = new ArrayList<>();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > limit && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            bytes -= entry.length;
+            evicted.add(entry.file);
+        }
+        return evicted;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) bytes -= entry.length;
+    }
+}
@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ *  Class for Crc32c
+ *      - CRC32C helpers for the integrity checks of stored files (see ChecksumIndex).
+ *      - Chunk checksums are computed where the chunk's bytes already pass through memory; the checksum of a whole
+ *        file is then combined from them (as in zlib's crc32_combine) instead of reading the file again.
+ */
+public final class Crc32c {
+    // CRC32C (Castagnoli) polynomial, reversed
+    private static final long POLYNOMIAL = 0x82F63B78L;
+
+    // Operator that appends UploadStaging.CHUNK_SIZE zero bytes, made once since nearly every chunk has that length
+    private static final long[] CHUNK_SHIFT = shiftOperator(UploadStaging.CHUNK_SIZE);
+
+    private Crc32c() {
+    }
+
+    /**
+     * Method: of(ByteBuffer data)
+     *
+     * @return The CRC32C of the remaining bytes. The buffer's position is not moved.
+     */
+    public static long of(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    /**
+     * Method: combine(long first, long second, long secondLength)
+     *
+     * @return The CRC32C of two pieces back to back, from the CRC32C of each and the length of the second.
+     */
+    public static long combine(long first, long second, long secondLength) {
+        if (secondLength <= 0) return first;
+        long[] shift = secondLength == UploadStaging.CHUNK_SIZE ? CHUNK_SHIFT : shiftOperator(secondLength);
+        return times(shift, first) ^ second;
+    }
+
+    /**
+     * Method: ofChunks(long[] crcs, long size, int chunkSize)
+     *
+     * @return The CRC32C of a whole file, from the CRC32C of each of its chunks.
+     */
+    public static long ofChunks(long[] crcs, long size, int chunkSize) {
+        long whole = 0; // CRC32C of no bytes
+        for (int i = 0; i < crcs.length; i++) {
+            whole = combine(whole, crcs[i], Math.min(chunkSize, size - (long) i * chunkSize));
+        }
+        return whole;
+    }
+
+    /**
+     * Method: toHex(long crc)
+     *
+     * @return The checksum as 8 lower-case hex digits.
+     */
+    public static String toHex(long crc) {
+        String hex = Long.toHexString(crc & 0xffffffffL);
+        return "00000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Method: shiftOperator(long length)
+     *
+     * @return The GF(2) matrix, as 32 columns, that turns a CRC into the CRC after length more zero bytes.
+     */
+    private static long[] shiftOperator(long length) {
+        // Operator for one zero bit, squared up to one zero byte (8 bits)
+        long[] odd = new long[32];
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        long[] even = square(odd);   // 2 zero bits
+        odd = square(even);          // 4 zero bits
+
+        // Apply the operators for the set bits of length (in bytes) to every unit vector at once
+        long[] result = new long[32];
+        for (int n = 0; n < 32; n++) result[n] = 1L << n;
+        long remaining = length;
+        while (remaining != 0) {
+            even = square(odd);
+            if ((remaining & 1) != 0) result = compose(even, result);
+            remaining >>>= 1;
+            if (remaining == 0) break;
+            odd = square(even);
+            if ((remaining & 1) != 0) result = compose(odd, result);
+            remaining >>>= 1;
+        }
+        return result;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static long[] square(long[] matrix) {
+        return compose(matrix, matrix);
+    }
+
+    private static long[] compose(long[] outer, long[] inner) {
+        long[] result = new long[32];
+        for (int n = 0; n < 32; n++) result[n] = times(outer, inner[n]);
+        return result;
+    }
+}
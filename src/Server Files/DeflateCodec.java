@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Class for DeflateCodec
+ *      - Deflate (java.util.zip), registered by default. Text logs and CSVs typically shrink 5-10x.
+ */
+public class DeflateCodec implements Codec {
+    private final int level;
+
+    /**
+     * Constructor for DeflateCodec
+     *
+     * @param level: Deflate level, 1 (fastest) to 9 (smallest).
+     */
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public int compress(byte[] source, int length, byte[] target) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(source, 0, length);
+            deflater.finish();
+            int compressed = deflater.deflate(target);
+            return deflater.finished() ? compressed : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void decompress(byte[] source, int length, byte[] target, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(source, 0, length);
+            int restored = inflater.inflate(target, 0, rawLength);
+            if (restored != rawLength || !inflater.finished()) throw new IOException("Corrupt deflate block");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ *  Class for DeltaPatch
+ *      - Server side of delta uploads (rsync-style): describes a stored file as block signatures, and rebuilds a new
+ *        version of it from the old one plus the delta the client computed against those signatures.
+ *      - A signature is a weak checksum, which the client can roll over its file one byte at a time, and a strong
+ *        hash that confirms a weak match: '<weak (8 hex digits)>:<first 16 bytes of the block's SHA-256 in hex>'.
+ *      - Delta format (big-endian), a series of operations that build the new file front to back:
+ *        'C' <first block (int)> <block count (int)> copies blocks of the old file (the last block may be short),
+ *        'D' <length (int)> <bytes> inserts bytes that are not in the old file.
+ */
+public final class DeltaPatch {
+    public static final byte OP_COPY = 'C';
+    public static final byte OP_DATA = 'D';
+
+    // Bounds of the block size, which follows the square root of the file size as in rsync
+    public static final int MIN_BLOCK_SIZE = 4 * 1024;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    // Longest literal accepted in one operation
+    private static final int MAX_LITERAL = 1024 * 1024;
+
+    private DeltaPatch() {
+    }
+
+    /**
+     * Method: blockSize(long size)
+     *
+     * @return The block size used to sign a file of this size: about its square root, in whole KiB.
+     */
+    public static int blockSize(long size) {
+        long root = ((long) Math.sqrt((double) size) + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+    }
+
+    /**
+     * Method: signatures(FileBody basis, int blockSize)
+     *      - Reads the whole file once and signs each of its blocks.
+     *
+     * @return One signature per block, in order.
+     */
+    public static String[] signatures(FileBody basis, int blockSize) throws IOException {
+        int count = (int) ((basis.size() + blockSize - 1) / blockSize);
+        String[] signatures = new String[count];
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        MessageDigest digest = sha256();
+
+        for (int block = 0; block < count; block++) {
+            long start = (long) block * blockSize;
+            int length = (int) Math.min(blockSize, basis.size() - start);
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (basis.read(buffer, start + buffer.position()) < 0) throw new EOFException("Stored file is shorter than its size");
+            }
+
+            StringBuilder signature = new StringBuilder(41);
+            String weak = Integer.toHexString(weakChecksum(buffer.array(), length));
+            for (int i = weak.length(); i < 8; i++) signature.append('0');
+            signature.append(weak).append(':');
+
+            digest.update(buffer.array(), 0, length);
+            byte[] strong = digest.digest();
+            for (int i = 0; i < 16; i++) {
+                signature.append(Character.forDigit((strong[i] >> 4) & 0xf, 16)).append(Character.forDigit(strong[i] & 0xf, 16));
+            }
+            signatures[block] = signature.toString();
+        }
+        return signatures;
+    }
+
+    /**
+     * Method: weakChecksum(byte[] data, int length)
+     *
+     * @return The rsync checksum of the first length bytes: their sum in the low 16 bits, and the sum weighted by
+     *         distance from the end in the high 16 bits.
+     */
+    static int weakChecksum(byte[] data, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Method: apply(FileBody basis, int blockSize, FileChannel delta, long deltaLength, FileChannel target, long size)
+     *      - Runs the delta's operations, copying blocks of the old file and literal bytes into the target.
+     *      - Refuses a delta that reaches outside the old file or does not build exactly size bytes.
+     *
+     * @param basis: The old version of the file, as signed for the client.
+     * @param blockSize: The block size of those signatures.
+     * @param delta: The delta as received, read from the start.
+     * @param deltaLength: The length of the delta.
+     * @param target: Where the new version is written, from position 0.
+     * @param size: The size of the new version.
+     */
+    public static void apply(FileBody basis, int blockSize, FileChannel delta, long deltaLength, FileChannel target, long size) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(delta.position(0)), 64 * 1024));
+        byte[] literal = null;
+        long consumed = 0;
+        long written = 0;
+
+        while (consumed < deltaLength) {
+            byte op = in.readByte();
+            if (op == OP_COPY) {
+                int first = in.readInt();
+                int blocks = in.readInt();
+                consumed += 9;
+
+                // Whole blocks, except that a run ending with the old file's last block ends where it does
+                long start = (long) first * blockSize;
+                long lastStart = (first + (long) blocks - 1) * blockSize;
+                if (first < 0 || blocks <= 0 || lastStart >= basis.size()) throw new IOException("Delta copies blocks outside the stored file");
+                long length = Math.min((long) blocks * blockSize, basis.size() - start);
+                if (written + length > size) throw new IOException("Delta builds more than " + size + " bytes");
+
+                target.position(written);
+                long copied = 0;
+                while (copied < length) {
+                    copied += basis.transferTo(start + copied, length - copied, target);
+                }
+                written += length;
+            } else if (op == OP_DATA) {
+                int length = in.readInt();
+                consumed += 5 + (long) length;
+                if (length <= 0 || length > MAX_LITERAL) throw new IOException("Invalid literal of " + length + " bytes in delta");
+                if (written + length > size) throw new IOException("Delta builds more than " + size + " bytes");
+
+                if (literal == null) literal = new byte[MAX_LITERAL];
+                in.readFully(literal, 0, length);
+                InboundStream.writeFully(target, ByteBuffer.wrap(literal, 0, length), written);
+                written += length;
+            } else {
+                throw new IOException("Unknown delta operation " + op);
+            }
+        }
+        if (written != size) throw new IOException("Delta builds " + written + " bytes instead of " + size);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Class for DiskBlobStore
+ *      - The default BlobStore: chunks and manifests as files in a directory tree under one root, which can be put on
+ *        any volume (fes.store.root).
+ *      - Layout: blobs/<first two hex digits of the hash>/<hash> and manifests/<shard>/<file name>, where the shard
+ *        is two hex digits of a hash of the name. No directory holds more than 1/256 of the files, so lookups stay
+ *        fast with hundreds of thousands of them.
+ *      - Writers take the lock of the one shard they write to: two uploads of the same chunk store it once, and two
+ *        publishes of the same name never share a temporary file, while writes to other shards go on in parallel.
+ *        Readers take no lock, as every file is written aside and renamed into place.
+ *      - A manifest is '<size> <chunk size>', then one line per chunk: '<hash> <crc32c>' (just the hash in manifests
+ *        written before checksums were kept, or for chunks whose checksum is not known).
+ */
+public class DiskBlobStore implements BlobStore {
+    // Shards of each directory, named by two hex digits
+    private static final int SHARDS = 256;
+
+    private final File root;
+    private final File blobDir;
+    private final File manifestDir;
+    private final Object[] blobLocks;
+    private final Object[] manifestLocks;
+
+    /**
+     * Constructor for DiskBlobStore
+     *
+     * @param root: Directory holding the blobs and manifests; created when the store is opened.
+     */
+    public DiskBlobStore(File root) {
+        this.root = root;
+        this.blobDir = new File(root, "blobs");
+        this.manifestDir = new File(root, "manifests");
+        this.blobLocks = new Object[SHARDS];
+        this.manifestLocks = new Object[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            blobLocks[i] = new Object();
+            manifestLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Method: open()
+     *      - Creates the store's directories, and moves manifests written before names were sharded (directly in
+     *        manifests/) into their shards.
+     *      - They are first set aside in manifests/.flat, so a shard directory never collides with a file of the same
+     *        name; a move cut short is finished on the next start.
+     */
+    @Override
+    public void open() throws IOException {
+        Files.createDirectories(manifestDir.toPath());
+        File flat = new File(manifestDir, ".flat");
+        File[] unsharded = manifestDir.listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+        if (unsharded != null && unsharded.length > 0) {
+            Files.createDirectories(flat.toPath());
+            for (File file : unsharded) move(file, new File(flat, file.getName()));
+        }
+
+        File[] pending = flat.listFiles();
+        if (pending == null) return;
+        for (File file : pending) {
+            File target = manifestFile(file.getName());
+            if (target.isFile()) {
+                // Written since the move began, so newer than the one set aside
+                Files.delete(file.toPath());
+            } else {
+                Files.createDirectories(target.getParentFile().toPath());
+                move(file, target);
+            }
+        }
+        Files.delete(flat.toPath());
+        ServerLog.shared().info("store_sharded", "root", root.getPath(), "manifests", pending.length);
+    }
+
+    /**
+     * Method: workDirectory()
+     *      - The root itself: the staging, cache and checksum directories sit next to blobs/ and manifests/, on the
+     *        same volume, so a staged chunk is put into the store without crossing volumes.
+     */
+    @Override
+    public File workDirectory() {
+        return root;
+    }
+
+    @Override
+    public void close() {
+        // Everything is on disk already
+    }
+
+    @Override
+    public boolean has(String hash) {
+        return BlobStore.isHash(hash) && blobFile(hash).isFile();
+    }
+
+    @Override
+    public void put(String hash, ByteBuffer data) throws IOException {
+        File blob = blobFile(hash);
+        if (blob.isFile()) return;
+
+        synchronized (blobLocks[Integer.parseInt(hash.substring(0, 2), 16)]) {
+            // Someone else may have stored it while we waited
+            if (blob.isFile()) return;
+
+            Files.createDirectories(blob.getParentFile().toPath());
+            File temporary = File.createTempFile(hash, ".tmp", blob.getParentFile());
+            try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer source = data.duplicate();
+                while (source.hasRemaining()) out.write(source);
+                out.force(false);
+            }
+            move(temporary, blob);
+        }
+    }
+
+    @Override
+    public FileBody openBlob(String hash) throws IOException {
+        return new ChannelBody(FileChannel.open(blobFile(hash).toPath(), StandardOpenOption.READ), true);
+    }
+
+    @Override
+    public void writeManifest(String filename, Manifest manifest) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(manifest.getSize()).append(' ').append(manifest.getChunkSize()).append('\n');
+        String[] hashes = manifest.getHashes();
+        long[] crcs = manifest.getCrcs();
+        for (int i = 0; i < hashes.length; i++) {
+            text.append(hashes[i]);
+            if (crcs[i] >= 0) text.append(' ').append(Crc32c.toHex(crcs[i]));
+            text.append('\n');
+        }
+
+        int shard = shard(filename);
+        File target = manifestFile(filename);
+        synchronized (manifestLocks[shard]) {
+            Files.createDirectories(target.getParentFile().toPath());
+            File temporary = new File(target.getParentFile(), "." + filename + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer source = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                while (source.hasRemaining()) out.write(source);
+                out.force(false);
+            }
+            move(temporary, target);
+        }
+    }
+
+    @Override
+    public Manifest readManifest(String filename) throws IOException {
+        File file = manifestFile(filename);
+        if (!file.isFile()) return null;
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        String[] header = lines.get(0).split(" ");
+        String[] hashes = new String[lines.size() - 1];
+        long[] crcs = new long[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            String[] words = lines.get(i + 1).split(" ");
+            hashes[i] = words[0];
+            crcs[i] = words.length > 1 ? Long.parseLong(words[1], 16) : -1;
+        }
+        return new Manifest(Long.parseLong(header[0]), Integer.parseInt(header[1]), hashes, crcs);
+    }
+
+    @Override
+    public long lastModified(String filename) {
+        return manifestFile(filename).lastModified();
+    }
+
+    @Override
+    public List<String> names() {
+        List<String> names = new ArrayList<>();
+        File[] shards = manifestDir.listFiles(File::isDirectory);
+        if (shards == null) return names;
+        for (File shard : shards) {
+            if (shard.getName().startsWith(".")) continue;
+            String[] files = shard.list();
+            if (files == null) continue;
+            for (String name : files) {
+                if (!name.startsWith(".")) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private File blobFile(String hash) {
+        return new File(new File(blobDir, hash.substring(0, 2)), hash);
+    }
+
+    private File manifestFile(String filename) {
+        int shard = shard(filename);
+        String directory = "" + Character.forDigit(shard >> 4, 16) + Character.forDigit(shard & 0xf, 16);
+        return new File(new File(manifestDir, directory), filename);
+    }
+
+    /**
+     * Method: shard(String filename)
+     *
+     * @return The shard of a file name, 0 to 255. String.hashCode is fixed by the language, so names keep their
+     *         shard across restarts and Java versions.
+     */
+    private static int shard(String filename) {
+        int hash = filename.hashCode();
+        hash ^= hash >>> 16;
+        return (hash ^ (hash >>> 8)) & (SHARDS - 1);
+    }
+
+    /**
+     * Method: move(File source, File target)
+     *      - Renames source over target, atomically where the file system allows.
+     */
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *  Class for EventLoop
+ *      - One thread and one Selector that serve many NioConnections without blocking on any of them.
+ *      - Work for a connection coming from other threads (new registrations, queued writes, close requests)
+ *        is handed over with execute() and runs on the loop thread.
+ */
+public class EventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Constructor for EventLoop
+     *
+     * @param name: The name given to the loop's thread.
+     */
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.running = true;
+    }
+
+    /**
+     * Method: start()
+     *      - Starts the loop on its own thread.
+     */
+    public void start() {
+        this.thread = new Thread(this, name);
+        this.thread.start();
+    }
+
+    /**
+     * Method: execute(Runnable task)
+     *      - Runs the task on the loop thread, waking the selector if called from elsewhere.
+     *
+     * @param task: The work to run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    /**
+     * Method: inLoop()
+     *
+     * @return True when called from this loop's thread.
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Method: getSelector()
+     *
+     * @return The selector connections register with; only to be used on the loop thread.
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Method: shutdown()
+     *      - Stops the loop after its current iteration and closes the selector.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // Do not sleep in select while tasks are waiting
+                if (tasks.isEmpty()) selector.select();
+                else selector.selectNow();
+
+                // Dispatch ready connections
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    if (key.isValid() && key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                }
+
+                // Run work handed over by other threads (and by the connections above)
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+            } catch (Exception e) {
+                // A failing connection closes itself; anything reaching here must not stop the loop
+                ServerLog.shared().error("event_loop_failed", "loop", name, "error", e);
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            ServerLog.shared().warn("close_failed", "loop", name, "error", e.getMessage());
+        }
+    }
+}
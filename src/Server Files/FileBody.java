@@ -0,0 +1,57 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *  Interface for FileBody
+ *      - The bytes of a stored file, as handed to a connection for sending.
+ *      - A body may be one file on disk or be assembled from several pieces; the connection only asks for slices.
+ *      - The connection owns the body once it is queued and closes it when the transfer ends.
+ */
+public interface FileBody extends Closeable {
+
+    /**
+     * Method: size()
+     *
+     * @return The length of the whole file.
+     */
+    long size();
+
+    /**
+     * Method: transferTo(long position, long count, WritableByteChannel target)
+     *      - Sends up to count bytes, starting at position, to the target.
+     *      - On a blocking target some bytes are always sent; on a non-blocking one 0 means the socket is full.
+     *
+     * @return The number of bytes sent.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * Method: read(ByteBuffer target, long position)
+     *      - Reads bytes starting at position into the target's remaining space, like FileChannel.read.
+     *
+     * @return The number of bytes read (possibly fewer than asked for), or -1 at the end of the file.
+     */
+    int read(ByteBuffer target, long position) throws IOException;
+
+    /**
+     * Method: isImmutable()
+     *
+     * @return True if these bytes never change while the server runs (stored chunks, memory), so the body may be
+     *         mapped. A plain file may be cut short by hand at any time, and reading a mapped page past its new end
+     *         kills the whole server (SIGBUS).
+     */
+    boolean isImmutable();
+
+    /**
+     * Method: map()
+     *      - Maps the whole file into memory, read-only, for the hot-file cache (see HotFileCache); a file already in
+     *        memory is returned as it is.
+     *      - The mappings stay valid after the body is closed.
+     *      - Only immutable bodies can be mapped (see isImmutable).
+     *
+     * @return The file in pieces, in order; all pieces but the last have the same length.
+     */
+    ByteBuffer[] map() throws IOException;
+}
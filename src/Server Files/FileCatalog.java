@@ -0,0 +1,373 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Class for FileCatalog
+ *      - An in-memory, sorted index of the files the server offers: the plain files of its directory and the files
+ *        in the BlobStore, each with its size and last modification time.
+ *      - Kept current by a WatchService on the directory, and by the server itself right after it publishes a file
+ *        (the only way files enter the store), so a listing never has to touch the disk or the store.
+ *      - Listings are served from a sorted snapshot that is rebuilt only after the catalog changed, so a page is
+ *        found by binary search and costs the same however many files there are.
+ *      - Entries also carry the file's CRC32C when it is known without reading the file (see ChecksumIndex).
+ *      - Names starting with "." (the store, unfinished uploads, the cache) are never listed.
+ */
+public class FileCatalog {
+    private final File directory;
+    private final BlobStore store;
+    private final ChecksumIndex checksums;
+    private final ConcurrentSkipListMap<String, Entry> entries;
+    private final AtomicLong changes;
+    private volatile Snapshot snapshot;
+    private WatchService watcher;
+
+    /**
+     * Class for Entry
+     *      - The size, last modification time and CRC32C (-1 if not known yet) of one listed file.
+     */
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final long modified;
+        private final long checksum;
+
+        Entry(String name, long size, long modified, long checksum) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * Class for Page
+     *      - One page of a listing, with the numbers needed to ask for the others.
+     */
+    public static final class Page {
+        private final Entry[] entries;
+        private final int number;
+        private final int pageCount;
+        private final int total;
+
+        Page(Entry[] entries, int number, int pageCount, int total) {
+            this.entries = entries;
+            this.number = number;
+            this.pageCount = pageCount;
+            this.total = total;
+        }
+
+        public Entry[] getEntries() {
+            return entries;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Class for Snapshot
+     *      - The catalog as a sorted array, shared by all listings until the next change.
+     */
+    private static final class Snapshot {
+        private final long version;
+        private final String[] names;
+        private final Entry[] entries;
+
+        Snapshot(long version, Entry[] entries) {
+            this.version = version;
+            this.entries = entries;
+            this.names = new String[entries.length];
+            for (int i = 0; i < entries.length; i++) names[i] = entries[i].name;
+        }
+    }
+
+    /**
+     * Constructor for FileCatalog
+     *
+     * @param directory: The server's directory of plain files.
+     * @param store: The store whose files are listed alongside them.
+     * @param checksums: Where the files' checksums are looked up.
+     */
+    public FileCatalog(File directory, BlobStore store, ChecksumIndex checksums) {
+        this.directory = directory;
+        this.store = store;
+        this.checksums = checksums;
+        this.entries = new ConcurrentSkipListMap<>();
+        this.changes = new AtomicLong();
+    }
+
+    /**
+     * Method: start()
+     *      - Fills the catalog from the directory and the store, and starts the daemon thread that follows changes to
+     *        the directory.
+     *      - Without a WatchService the catalog still follows the server's own uploads; files copied in by hand
+     *        then show up on the next start.
+     */
+    public void start() {
+        try {
+            this.watcher = FileSystems.getDefault().newWatchService();
+            register(directory.toPath());
+
+            Thread thread = new Thread(this::watch, "file-catalog");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            ServerLog.shared().warn("watch_unavailable", "error", e.getMessage());
+        }
+
+        // Scan after registering, so a change made in between is not missed
+        rescan();
+    }
+
+    /**
+     * Method: stop()
+     *      - Stops following changes.
+     */
+    public void stop() {
+        try {
+            if (watcher != null) watcher.close();
+        } catch (IOException e) {
+            // Nothing left to stop
+        }
+    }
+
+    /**
+     * Method: refresh(String name)
+     *      - Looks the file up again: a stored copy wins over a plain file of the same name, as it does for /get.
+     *      - Called by the watcher and by the server once it has published or replaced a file.
+     */
+    public void refresh(String name) {
+        if (name.isEmpty() || name.startsWith(".")) return;
+
+        Entry entry = null;
+        try {
+            BlobStore.Manifest manifest = store.readManifest(name);
+            if (manifest != null) {
+                ChecksumIndex.Checksums known = checksums.known(name, manifest.version(), manifest);
+                entry = new Entry(name, manifest.getSize(), store.lastModified(name),
+                        known != null ? known.getWhole() : -1);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unreadable right now; listed again when it is next published or on a rescan
+        }
+        if (entry == null) {
+            File file = new File(directory, name);
+            if (file.isFile()) {
+                ChecksumIndex.Checksums known = checksums.known(name, plainVersion(file), null);
+                entry = new Entry(name, file.length(), file.lastModified(), known != null ? known.getWhole() : -1);
+            }
+        }
+
+        if (entry != null) {
+            entries.put(name, entry);
+        } else {
+            entries.remove(name);
+        }
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Method: plainVersion(File file)
+     *
+     * @return A token that changes whenever a plain (not stored) file is replaced: its size and modification time.
+     */
+    public static String plainVersion(File file) {
+        return file.length() + "-" + file.lastModified();
+    }
+
+    /**
+     * Method: get(String name)
+     *
+     * @return The listed size and modification time of the file, or null if the catalog does not list it.
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Method: rescan()
+     *      - Rebuilds the catalog from the directory and the store (at start, and when the watcher lost track of events).
+     */
+    public void rescan() {
+        String[] plain = directory.list();
+        if (plain != null) {
+            for (String name : plain) refresh(name);
+        }
+        Set<String> stored = new HashSet<>(store.names());
+        for (String name : stored) refresh(name);
+
+        // Drop what is gone from both
+        for (String name : entries.keySet()) {
+            if (!new File(directory, name).isFile() && !stored.contains(name)) entries.remove(name);
+        }
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Method: list(String prefix, int page, int pageSize)
+     *
+     * @param prefix: Only names starting with this are listed ("" for all).
+     * @param page: The page to return, counted from 1; a page past the end returns the last one.
+     * @param pageSize: Entries per page.
+     * @return The page of matching files in name order.
+     */
+    public Page list(String prefix, int page, int pageSize) {
+        Snapshot current = snapshot();
+
+        // The matching names are one contiguous run of the sorted array
+        int from = insertionPoint(current.names, prefix);
+        int to = prefix.isEmpty() ? current.names.length : insertionPoint(current.names, prefix + Character.MAX_VALUE);
+        int total = to - from;
+
+        int pageCount = Math.max(1, (total + pageSize - 1) / pageSize);
+        int number = Math.min(Math.max(page, 1), pageCount);
+        int start = from + (number - 1) * pageSize;
+        int end = Math.min(start + pageSize, to);
+        return new Page(Arrays.copyOfRange(current.entries, start, Math.max(start, end)), number, pageCount, total);
+    }
+
+    /**
+     * Method: match(String pattern)
+     *      - Finds the files for a batch download ('/match'): '*' stands for any run of characters and '?' for any
+     *        one character. Only the run of names starting with the pattern's literal prefix is looked at.
+     *
+     * @param pattern: e.g. "photos-*.jpg", or a plain name.
+     * @return The matching names in name order.
+     */
+    public List<String> match(String pattern) {
+        Snapshot current = snapshot();
+        int wildcard = 0;
+        while (wildcard < pattern.length() && pattern.charAt(wildcard) != '*' && pattern.charAt(wildcard) != '?') wildcard++;
+        String prefix = pattern.substring(0, wildcard);
+
+        int from = insertionPoint(current.names, prefix);
+        int to = prefix.isEmpty() ? current.names.length : insertionPoint(current.names, prefix + Character.MAX_VALUE);
+        List<String> names = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (globMatches(pattern, current.names[i])) names.add(current.names[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Method: globMatches(String pattern, String name)
+     *      - Matches left to right, going back only to the last '*' on a mismatch, so no pattern takes more than
+     *        pattern length times name length steps.
+     */
+    static boolean globMatches(String pattern, String name) {
+        int p = 0, n = 0, star = -1, resume = 0;
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+                p++;
+                n++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                resume = n;
+            } else if (star >= 0) {
+                p = star + 1;
+                n = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') p++;
+        return p == pattern.length();
+    }
+
+    /**
+     * Method: snapshot()
+     *
+     * @return The sorted array of all entries, rebuilt if the catalog changed since it was last made.
+     */
+    private Snapshot snapshot() {
+        // Read the change count first: a change made while copying makes the next listing rebuild again
+        long version = changes.get();
+        Snapshot current = snapshot;
+        if (current == null || current.version != version) {
+            current = new Snapshot(version, entries.values().toArray(new Entry[0]));
+            snapshot = current;
+        }
+        return current;
+    }
+
+    private static int insertionPoint(String[] names, String key) {
+        int index = Arrays.binarySearch(names, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private void register(Path path) throws IOException {
+        path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Method: watch()
+     *      - Runs on the watcher thread: refreshes every name the file system reports as changed.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Too many changes at once: events were lost, so look at everything again
+                        rescan();
+                    } else {
+                        refresh(event.context().toString());
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Method: size()
+     *
+     * @return The number of files listed.
+     */
+    public int size() {
+        return entries.size();
+    }
+}
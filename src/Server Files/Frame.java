@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  Class for Frame
+ *      - The binary framing protocol a client may switch to right after connecting.
+ *      - Every frame is a 10-byte header followed by its payload:
+ *            version (1 byte) | type (1 byte) | stream id (4 bytes) | payload length (4 bytes)
+ *      - Commands, replies and file data each have their own frame type, so control lines and file bytes can share
+ *        the socket without either side guessing where one ends and the other begins.
+ *      - Stream ids tell concurrent transfers apart: 0 is the control stream, uploads use odd ids chosen by the client
+ *        and downloads even ids chosen by the server. DATA frames of different streams may interleave freely.
+ *      - Negotiation: the client sends the text line "/protocol 1"; the server answers "PROTOCOL 1" as a text line and
+ *        both sides use frames from the next byte on. Clients that never ask keep the line protocol.
+ */
+public final class Frame {
+    // Version of the frame format spoken by this server
+    public static final byte VERSION = 1;
+
+    // Size of the fixed frame header
+    public static final int HEADER_SIZE = 10;
+
+    // Largest payload accepted in one frame
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+
+    // Payload size used for the DATA frames of outgoing file bodies
+    public static final int DATA_FRAME_SIZE = 256 * 1024;
+
+    // Client to server: one command line, as UTF-8
+    public static final byte TYPE_COMMAND = 1;
+
+    // Server to client: one reply or chat line, as UTF-8
+    public static final byte TYPE_MESSAGE = 2;
+
+    // Either direction: a slice of a file body belonging to the frame's stream
+    public static final byte TYPE_DATA = 3;
+
+    // Stream id used by command and message frames
+    public static final int CONTROL_STREAM = 0;
+
+    // Command a client sends (as a text line) to ask for frames, and the server's text reply accepting it
+    public static final String NEGOTIATE_COMMAND = "/protocol";
+    public static final String ACCEPTED = "PROTOCOL " + VERSION;
+    public static final String REFUSED = "PROTOCOL_FALSE";
+
+    private Frame() {
+    }
+
+    /**
+     * Method: header(byte type, int streamId, int length)
+     *
+     * @return A frame header ready to be written.
+     */
+    public static ByteBuffer header(byte type, int streamId, int length) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(VERSION).put(type).putInt(streamId).putInt(length);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Method: text(byte type, String text)
+     *
+     * @return A complete frame (header and payload) carrying the text.
+     */
+    public static ByteBuffer text(byte type, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.put(VERSION).put(type).putInt(CONTROL_STREAM).putInt(payload.length).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Method: checkHeader(byte version, int length)
+     *      - Rejects headers that cannot belong to a valid frame, so a confused peer is disconnected instead of misread.
+     */
+    public static void checkHeader(byte version, int length) throws IOException {
+        if (version != VERSION) throw new IOException("Unsupported frame version " + version);
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Invalid frame length " + length);
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Class for HotFileCache
+ *      - Keeps the most requested files memory-mapped, so repeated downloads of a popular file skip opening it and
+ *        reading its manifest, and are sent straight from the mapped pages.
+ *      - Every download of a cached file shares the same mapping (see MappedBody).
+ *      - Only files held in the store are mapped: their chunks are never changed once written. Plain files are always
+ *        read from disk, as one cut short by hand while mapped would crash the server (see FileBody.isImmutable).
+ *      - A file is only admitted once it has been asked for ADMIT_AFTER times, so one-off downloads do not push
+ *        popular files out; within the byte limit, the least recently used file is evicted first.
+ *      - Entries remember the catalog's size and modification time of the file they map: a file replaced on disk
+ *        is never served from a stale mapping, and the server also drops the entry as soon as it publishes a new
+ *        version (see invalidate).
+ *      - Hits, misses, evictions and invalidations are counted for '/stats'.
+ */
+public class HotFileCache {
+    // Requests a file needs before it is mapped
+    private static final int ADMIT_AFTER = 2;
+
+    // Names whose request counts are remembered before the counts start over
+    private static final int MAX_TRACKED = 10000;
+
+    private final long limit;
+    private final LinkedHashMap<String, Entry> entries;
+    private final ConcurrentHashMap<String, AtomicInteger> requests;
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Interface for Source
+     *      - Opens the file from disk on a miss.
+     */
+    public interface Source {
+        FileBody open() throws IOException;
+    }
+
+    /**
+     * Class for Entry
+     *      - One mapped file and the catalog state it was mapped from.
+     */
+    private static final class Entry {
+        private final ByteBuffer[] pieces;
+        private final long size;
+        private final long modified;
+
+        Entry(ByteBuffer[] pieces, long size, long modified) {
+            this.pieces = pieces;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        boolean matches(FileCatalog.Entry current) {
+            return current.getSize() == size && current.getModified() == modified;
+        }
+    }
+
+    /**
+     * Constructor for HotFileCache
+     *
+     * @param limit: Total bytes of files kept mapped (0 disables the cache).
+     */
+    public HotFileCache(long limit) {
+        this.limit = limit;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.requests = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Method: open(String filename, FileCatalog.Entry current, Source source)
+     *      - Returns the file from its mapping, or from disk if it is not cached, mapping it if it has become popular.
+     *
+     * @param filename: The name of the file.
+     * @param current: The catalog's entry for the file, or null if the catalog does not list it.
+     * @param source: Opens the file from disk.
+     * @return The file, or null if it does not exist.
+     */
+    public FileBody open(String filename, FileCatalog.Entry current, Source source) throws IOException {
+        if (limit <= 0 || current == null) return source.open();
+
+        synchronized (this) {
+            Entry entry = entries.get(filename);
+            if (entry != null && entry.matches(current)) {
+                hits.incrementAndGet();
+                return new MappedBody(entry.pieces, entry.size);
+            }
+            if (entry != null) {
+                // Replaced on disk since it was mapped
+                remove(filename);
+                invalidations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+
+        FileBody body = source.open();
+        if (body == null || !body.isImmutable() || body.size() != current.getSize() || body.size() == 0 || body.size() > limit / 4) return body;
+        if (requestCount(filename) < ADMIT_AFTER) return body;
+
+        // Popular enough: map it (no bytes are read yet) and serve this download from the mapping too
+        ByteBuffer[] pieces;
+        try {
+            pieces = body.map();
+        } catch (IOException | RuntimeException e) {
+            ServerLog.shared().warn("map_failed", "file", filename, "error", e.getMessage());
+            return body;
+        }
+        body.close();
+
+        synchronized (this) {
+            Entry raced = entries.get(filename);
+            if (raced != null && raced.matches(current)) return new MappedBody(raced.pieces, raced.size);
+            if (raced != null) remove(filename);
+
+            entries.put(filename, new Entry(pieces, current.getSize(), current.getModified()));
+            bytes += current.getSize();
+            evict();
+        }
+        requests.remove(filename);
+        return new MappedBody(pieces, current.getSize());
+    }
+
+    /**
+     * Method: invalidate(String filename)
+     *      - Drops the mapping of a file that was just replaced; downloads already under way finish from it.
+     */
+    public synchronized void invalidate(String filename) {
+        if (entries.containsKey(filename)) {
+            remove(filename);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Method: describe()
+     *
+     * @return The cache's counters and fill level, as one line.
+     */
+    public String describe() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        int files;
+        long cached;
+        synchronized (this) {
+            files = entries.size();
+            cached = bytes;
+        }
+        return "Hot-file cache: " + hitCount + " hits, " + misses.get() + " misses ("
+                + (total > 0 ? Math.round(hitCount * 100.0 / total) : 0) + "% hit rate), " + files + " files, "
+                + cached + " of " + limit + " bytes mapped, " + evictions.get() + " evicted, "
+                + invalidations.get() + " invalidated";
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Method: requestCount(String filename)
+     *
+     * @return How often the file was asked for since the counts last started over, including this time.
+     */
+    private int requestCount(String filename) {
+        // Forget old counts rather than track every name ever requested
+        if (requests.size() >= MAX_TRACKED) requests.clear();
+        return requests.computeIfAbsent(filename, name -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Method: evict()
+     *      - Unmaps the least recently used files until the cache fits its limit again.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > limit && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().size;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String filename) {
+        Entry entry = entries.remove(filename);
+        if (entry != null) bytes -= entry.size;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *  Class for InboundStream
+ *      - One file body being received from a client, written into its target with positional writes.
+ *      - On the line protocol the body follows its /store command directly; with frames it arrives in DATA frames
+ *        carrying its stream id, possibly interleaved with commands and other uploads.
+ *      - A compressed body (see CompressedBlocks) is decompressed block by block on the way to the target.
+ *      - If the disk write fails, the rest of the body is still consumed so the connection stays in step.
+ */
+public class InboundStream {
+
+    /**
+     * Interface for Listener
+     *      - Told once how a body ended.
+     */
+    public interface Listener {
+
+        /**
+         * Method: finished(long written, IOException failure)
+         *
+         * @param written: The leading bytes of the body that reached the target (all of them on success).
+         * @param failure: Null on success, else the first disk or connection failure.
+         */
+        void finished(long written, IOException failure);
+    }
+
+    private final FileChannel target;
+    private final long start;
+    private final long count;
+    private final Listener done;
+    private final long rawLength;
+    private final CompressedBlocks.Decoder decoder;
+    private long position;
+    private long written;
+    private IOException failure;
+
+    /**
+     * Constructor for InboundStream
+     *
+     * @param target: The file to write into, or null to read and discard the body.
+     * @param start: The file position of the body's first byte.
+     * @param count: The number of bytes the client announced.
+     * @param done: Told once how the body ended.
+     */
+    public InboundStream(FileChannel target, long start, long count, Listener done) {
+        this(target, start, count, count, null, done);
+    }
+
+    /**
+     * Constructor for a compressed InboundStream
+     *
+     * @param target: The file to write into, or null to read and discard the body.
+     * @param start: The file position of the first decompressed byte.
+     * @param rawLength: The number of bytes the body decompresses to.
+     * @param count: The number of (compressed) bytes the client announced.
+     * @param codec: The codec of the body's compressed blocks, or null if the body is not compressed.
+     * @param done: Told once how the body ended.
+     */
+    public InboundStream(FileChannel target, long start, long rawLength, long count, Codec codec, Listener done) {
+        this.target = target;
+        this.start = start;
+        this.rawLength = rawLength;
+        this.count = count;
+        this.decoder = (codec != null) ? new CompressedBlocks.Decoder(codec) : null;
+        this.done = done;
+    }
+
+    /**
+     * Method: remaining()
+     *
+     * @return The body bytes still to come.
+     */
+    public long remaining() {
+        return count - position;
+    }
+
+    /**
+     * Method: write(ByteBuffer source)
+     *      - Writes all remaining bytes of source as the next part of the body, or after a disk failure just consumes them.
+     */
+    public void write(ByteBuffer source) {
+        int length = source.remaining();
+        if (failure == null) {
+            try {
+                if (decoder != null) {
+                    decoder.feed(source, raw -> {
+                        if (written + raw.remaining() > rawLength) throw new IOException("Compressed body is longer than announced");
+                        written += writeFully(target, raw, start + written);
+                    });
+                } else {
+                    writeFully(target, source, start + position);
+                    written += length;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        source.position(source.limit());
+        position += length;
+    }
+
+    /**
+     * Method: finish(IOException error)
+     *      - Reports the outcome: the first disk failure, else the given error (null once the body is complete).
+     */
+    public void finish(IOException error) {
+        if (decoder != null && failure == null && error == null && (written != rawLength || !decoder.isBetweenBlocks())) {
+            failure = new IOException("Compressed body ended " + (rawLength - written) + " bytes early");
+        }
+        done.finished(written, failure != null ? failure : error);
+    }
+
+    /**
+     * Method: writeFully(FileChannel target, ByteBuffer source, long position)
+     *      - Writes all remaining bytes of source at the given file position.
+     *
+     * @return The number of bytes written.
+     */
+    static int writeFully(FileChannel target, ByteBuffer source, long position) throws IOException {
+        int written = 0;
+        if (target == null) {
+            // Discarding: consume the bytes without writing them anywhere
+            written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+        while (source.hasRemaining()) {
+            written += target.write(source, position + written);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Class for LatencyHistogram
+ *      - Records durations in nanoseconds into log-linear buckets, like HdrHistogram: every power of two is split
+ *        into SUB_BUCKETS equal buckets, so any recorded value is known to within 1/SUB_BUCKETS (6.25%).
+ *      - Recording is one array increment and never allocates or locks, so it can sit on every command.
+ *      - Durations from 1 ns up to about 18 minutes are kept apart; longer ones count in the last bucket.
+ */
+public final class LatencyHistogram {
+    // Buckets per power of two, as a power of two itself
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // Largest power of two given its own buckets (2^40 ns is about 18 minutes)
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray counts;
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Constructor for LatencyHistogram
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+    }
+
+    /**
+     * Method: record(long nanos)
+     *      - Adds one duration.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Method: percentile(double fraction)
+     *
+     * @param fraction: e.g. 0.99 for the 99th percentile.
+     * @return The upper bound of the bucket holding that percentile, in nanoseconds (never above the maximum), or 0
+     *         if nothing was recorded.
+     */
+    public long percentile(double fraction) {
+        long count = getCount();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Method: index(long value)
+     *
+     * @return The bucket of a value: values below SUB_BUCKETS get one each, then SUB_BUCKETS per power of two.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) return (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS - 1;
+        int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Method: upperBound(int index)
+     *
+     * @return The largest value that falls into the bucket.
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -1,20 +1,135 @@
 import java.net.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 /**
  *  Class for MPServer
  */
 public class MPServer implements Runnable {
-    private ArrayList<ServerClientHandler> clients;
+    private ClientRegistry clients;
     private ServerSocket serverSocket;
     private Boolean serverExit;
     private ExecutorService Threadpool;
+    private EventLoop[] eventLoops;
+
+    // Runs the uploads' hashing and syncing for the event loops, so no loop waits for the disk (see runBlocking),
+    // and makes the compression cache's copies
+    private final ExecutorService storageWorkers;
+    private final int portNumber;
+    private final ServerMode mode;
+    private final ServerConfig config;
+
+    // Block signatures per 'SIGS' line in the reply to '/signatures'
+    private static final int SIGNATURE_BATCH = 512;
+
+    // Uploaded files, stored once per distinct chunk
+    private final BlobStore blobs;
+
+    // Unfinished uploads live here until all of their chunks have arrived
+    private final UploadStaging uploads;
+
+    // Compressed copies of downloaded files
+    private final CompressionCache compressed;
+
+    // Sorted index of the files offered, answering '/dir' without touching the disk
+    private final FileCatalog catalog;
+
+    // Popular files, kept memory-mapped for repeated downloads
+    private final HotFileCache hotFiles;
+
+    // CRC32C of every chunk of every file, for checking transfers end to end
+    private final ChecksumIndex checksums;
+
+    // Chunk checksums per 'CRCS' line in the reply to '/checksums'
+    private static final int CHECKSUM_BATCH = 1024;
+
+    // File names per 'MATCH' line in the reply to '/match'
+    private static final int MATCH_BATCH = 1024;
+
+    // Format of the time shown with chat messages and uploads
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Format of the modification times listed by '/dir'
+    private static final DateTimeFormatter LISTING_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    // Extra download connections attached with '/attach', over all clients
+    private final AtomicInteger transferConnections = new AtomicInteger();
+
+    // Rate limits and fair sharing of file transfers between users
+    private final TransferScheduler scheduler;
+
+    // Counters and latencies of the hot paths (see Metrics)
+    private final Metrics metrics = Metrics.shared();
+
+    // Where handlers report what happens, without waiting for the console or the disk (see ServerLog)
+    private final ServerLog log = ServerLog.shared();
+
+    // Whether every command received is logged; busy servers turn it off or sample it
+    private volatile boolean logCommands;
+
+    // The built-in commands, dispatched by their first word (see CommandRegistry)
+    static {
+        CommandRegistry.Option registered = CommandRegistry.Option.REGISTERED_ONLY;
+        CommandRegistry.Option transfer = CommandRegistry.Option.TRANSFER_CONNECTION;
+        CommandRegistry.Option setUp = CommandRegistry.Option.BEFORE_JOINING;
+
+        // Commands anyone connected may use
+        CommandRegistry.register("/leave", null, (client, line) -> client.leave(), transfer);
+        CommandRegistry.register("/?", null, (client, line) -> { client.questionmark(); return true; });
+        CommandRegistry.register("/register", null, (client, line) -> { client.register(line); return true; });
+        CommandRegistry.register(Frame.NEGOTIATE_COMMAND, null,
+                (client, line) -> { client.negotiateProtocol(line); return true; }, setUp);
+        CommandRegistry.register("/compress", null, (client, line) -> { client.negotiateCompression(line); return true; });
+        CommandRegistry.register("/verify", null, (client, line) -> { client.negotiateVerification(line); return true; });
+        CommandRegistry.register("/attach", null, (client, line) -> { client.attach(line); return true; }, setUp);
+
+        // Commands for registered users
+        CommandRegistry.register("/store", null, (client, line) -> { client.store(line); return true; }, registered);
+        CommandRegistry.register("/offer", null, (client, line) -> { client.offerChunks(line); return true; }, registered);
+        CommandRegistry.register("/signatures", null, (client, line) -> { client.sendSignatures(line); return true; }, registered);
+        CommandRegistry.register("/delta", null, (client, line) -> { client.storeDelta(line); return true; }, registered);
+        CommandRegistry.register("/chunks", null, (client, line) -> { client.sendChunks(line); return true; }, registered);
+        CommandRegistry.register("/dir", null, (client, line) -> { client.displayDirectory(line); return true; }, registered);
+        CommandRegistry.register("/match", null, (client, line) -> { client.sendMatches(line); return true; }, registered);
+        CommandRegistry.register("/session", null,
+                (client, line) -> { client.sendMessage("SESSION " + client.server().clients.tokenFor(client)); return true; }, registered);
+        CommandRegistry.register("/checksums", null, (client, line) -> { client.sendChecksums(line); return true; }, registered);
+        CommandRegistry.register("/stat", null, (client, line) -> { client.sendFileSize(line); return true; }, registered, transfer);
+        CommandRegistry.register("/stats", null, (client, line) -> { client.sendStats(); return true; }, registered);
+        CommandRegistry.register("/get", null, (client, line) -> { client.getFile(line); return true; }, registered, transfer);
+        CommandRegistry.register("/chat", null,
+                (client, line) -> { client.broadcastToEveryone(client.getNickname() + ": " + line.rest(2)); return true; }, registered);
+        CommandRegistry.register("/chatuni", null, (client, line) -> { client.chatUnicast(line); return true; }, registered);
+    }
+
+    /**
+     * How connections are served
+     *  - THREADED: one pooled thread per client, blocking on its socket (default).
+     *  - VIRTUAL: one virtual thread per client running the same blocking handler (Java 21+).
+     *  - NIO: a few event-loop threads, sized to the cores, multiplexing all clients with a Selector.
+     */
+    public enum ServerMode {
+        THREADED,
+        VIRTUAL,
+        NIO
+    }
 
     /**
      * Method: ServerShutdown()
@@ -31,53 +146,114 @@ public class MPServer implements Runnable {
             }
 
             // Iterate through all connected client handlers and initiate their disconnection
-            for (ServerClientHandler SCH : this.clients) {
+            for (ServerClientHandler SCH : this.clients.all()) {
                 SCH.disconnect();
             }
+
+            // Stop following directory changes
+            this.catalog.stop();
+            this.scheduler.shutdown();
+            this.metrics.stopHttp();
+
+            // Stop the event loops once their clients have been told to close
+            if (this.eventLoops != null) {
+                for (EventLoop loop : this.eventLoops) {
+                    loop.shutdown();
+                }
+            }
+
+            // Work already handed over still finishes, so uploads keep what they received
+            this.storageWorkers.shutdown();
+
+            // A memory store drops its staging and caches now; uploads still finishing are lost with it anyway
+            this.blobs.close();
         } catch (Exception e) {
             // Handle exceptions related to the server shutdown process
-            System.out.println("Error in shutting down the server :(");
+            log.error("shutdown_failed", "error", e);
         }
+
+        // Write out what is still queued for the log
+        this.log.shutdown();
     }
 
     /**
      * Constructor for MPServer
      */
     public MPServer () {
-        this.clients = new ArrayList<>();
+        this(12345, ServerMode.THREADED, ServerConfig.fromSystemProperties());
+    }
+
+    /**
+     * Constructor for MPServer
+     *
+     * @param portNumber: The port to listen on.
+     * @param mode: How connections are served.
+     * @param config: Tunable settings such as the per-client outbound queue limit.
+     */
+    public MPServer (int portNumber, ServerMode mode, ServerConfig config) {
+        this.clients = new ClientRegistry();
         this.serverExit = false;
+        this.portNumber = portNumber;
+        this.mode = mode;
+        this.config = config;
+        this.blobs = config.getStoreBackend() == BlobStore.Backend.MEMORY ? new MemoryBlobStore()
+                : new DiskBlobStore(new File(config.getStoreRoot()));
+        this.uploads = new UploadStaging(new File(this.blobs.workDirectory(), "uploads"), new File(config.getFilesDir()), this.blobs);
+        AtomicInteger workerCount = new AtomicInteger();
+        this.storageWorkers = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), work -> {
+            Thread worker = new Thread(work, "storage-worker-" + workerCount.getAndIncrement());
+            worker.setDaemon(true);
+            return worker;
+        });
+        this.compressed = new CompressionCache(new File(this.blobs.workDirectory(), "cache"), config.getCompressionCacheLimit(), this.storageWorkers);
+        this.checksums = new ChecksumIndex(new File(this.blobs.workDirectory(), "checksums"));
+        this.catalog = new FileCatalog(new File(config.getFilesDir()), this.blobs, this.checksums);
+        this.hotFiles = new HotFileCache(config.getHotCacheLimit());
+        this.scheduler = new TransferScheduler(config.getGlobalRate(), config.getUserRate());
+        this.logCommands = config.isLogCommands();
+        this.log.configure(config.getLogFile(), config.getLogLevel(), true, config.getLogSampling());
+
+        // Values the metrics read when asked
+        this.metrics.gauge("fes_clients", () -> this.clients.all().size());
+        this.metrics.gauge("fes_transfer_connections", this.transferConnections::get);
+        this.metrics.gauge("fes_transfers_held_back", this.scheduler::heldBack);
+        this.metrics.gauge("fes_log_dropped_total", this.log::getDropped);
     }
 
     /**
      * Method: run()
      *        - Initiates the server and listens for incoming client connections.
-     *        - Creates a thread pool to handle multiple clients concurrently.
+     *        - Creates a thread pool (or event loops in NIO mode) to handle multiple clients concurrently.
      */
     public void run() {
-        int PortNumber = 12345; // Desired port number
-
-        Socket serverEndpointForClient;
-        this.Threadpool = Executors.newCachedThreadPool();
-
         try {
-            // Create a server socket to listen for incoming client connections on the specified port
-            this.serverSocket = new ServerSocket(PortNumber);
+            // Open the listening socket through a channel so accepted sockets can use zero-copy transfers
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(this.portNumber));
+            this.serverSocket = serverChannel.socket();
 
-            // Continue listening for incoming connections until a shutdown signal is received
-            while (!this.serverExit) {
-                System.out.println("Listening on port " + PortNumber + "...");
+            // Index the files on offer before the first client can ask for them
+            this.blobs.open();
+            Files.createDirectories(new File(config.getFilesDir()).toPath());
+            log.info("store", "backend", config.getStoreBackend(), "root", config.getStoreRoot(), "work", this.blobs.workDirectory());
+            this.catalog.start();
 
-                // Accept a client connection and obtain the server endpoint for the client
-                serverEndpointForClient = serverSocket.accept();
+            // Let the operator change transfer limits while the server runs
+            startConsole();
 
-                // Create a new instance of ServerClientHandler for the connected client
-                ServerClientHandler clientHandler = new ServerClientHandler(serverEndpointForClient);
-
-                // Add the client handler to the list of connected clients
-                clients.add(clientHandler);
+            // Publish the metrics
+            this.metrics.registerJmx();
+            if (this.config.getMetricsPort() > 0) {
+                this.metrics.startHttp(this.config.getMetricsPort());
+                log.info("metrics_http", "url", "http://localhost:" + this.config.getMetricsPort() + "/metrics");
+            }
 
-                // Execute the client handler in a separate thread using the thread pool
-                this.Threadpool.execute(clientHandler);
+            if (this.mode == ServerMode.NIO) {
+                runEventLoops(serverChannel);
+            } else if (this.mode == ServerMode.VIRTUAL) {
+                runThreaded(serverChannel, newVirtualThreadExecutor());
+            } else {
+                runThreaded(serverChannel, Executors.newCachedThreadPool());
             }
 
         } catch (Exception e) {
@@ -86,38 +262,219 @@ public class MPServer implements Runnable {
         }
     }
 
+    /**
+     * Method: startConsole()
+     *        - Reads operator commands from the server's standard input on a daemon thread (see runConsoleCommand).
+     *        - Ends quietly when there is no console.
+     */
+    private void startConsole() {
+        Thread console = new Thread(() -> {
+            try {
+                BufferedReader operator = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = operator.readLine()) != null) {
+                    if (!line.isBlank()) System.out.println(runConsoleCommand(line.trim()));
+                }
+            } catch (IOException e) {
+                // No console to read from
+            }
+        }, "server-console");
+        console.setDaemon(true);
+        console.start();
+    }
+
+    /**
+     * Method: runConsoleCommand(String command)
+     *        - "rate global <rate>": bytes per second for all file transfers together ("0" for unlimited, "10M", ...)
+     *        - "rate user <rate>": bytes per second for each user without a rate of their own
+     *        - "rate <alias> <rate|default>": a rate for one user
+     *        - "weight <alias> <n>": one user's share of the global rate relative to others (default 1)
+     *        - "status": the current limits and counters
+     *        - "metrics": every metric, as in the plain-text scrape
+     *        - "log on" / "log off": log every command received, or stop doing so
+     *        - "log level <debug|info|warn|error>": the least important log entries written
+     *        - "log sample <event> <n>": log only every n-th entry of an event ("1" for all of them)
+     *
+     * @param command: The operator's command.
+     * @return The answer to print.
+     */
+    private String runConsoleCommand(String command) {
+        String[] words = command.split("\\s+");
+        try {
+            if (words[0].equals("status")) {
+                return scheduler.describe();
+            }
+            if (words[0].equals("metrics")) {
+                return metrics.scrape().trim();
+            }
+            if (words[0].equals("log") && words.length == 2 && (words[1].equals("on") || words[1].equals("off"))) {
+                this.logCommands = words[1].equals("on");
+                return "Logging commands " + words[1];
+            }
+            if (words[0].equals("log") && words.length == 3 && words[1].equals("level")) {
+                log.setLevel(ServerLog.Level.valueOf(words[2].toUpperCase()));
+                return "Log level " + log.getLevel();
+            }
+            if (words[0].equals("log") && words.length == 4 && words[1].equals("sample")) {
+                log.sample(words[2], Integer.parseInt(words[3]));
+                return "Logging " + (Integer.parseInt(words[3]) > 1 ? "one in " + words[3] : "every") + " " + words[2];
+            }
+            if (words[0].equals("rate") && words.length == 3) {
+                if (words[1].equals("global")) {
+                    scheduler.setGlobalRate(TransferScheduler.parseRate(words[2]));
+                } else if (words[1].equals("user")) {
+                    scheduler.setUserRate(TransferScheduler.parseRate(words[2]));
+                } else {
+                    ServerClientHandler user = clients.find(words[1]);
+                    if (user == null) return "No user " + words[1];
+                    user.account.setRate(words[2].equals("default") ? -1 : TransferScheduler.parseRate(words[2]));
+                }
+                return scheduler.describe();
+            }
+            if (words[0].equals("weight") && words.length == 3) {
+                ServerClientHandler user = clients.find(words[1]);
+                if (user == null) return "No user " + words[1];
+                user.account.setWeight(Integer.parseInt(words[2]));
+                return words[1] + " now has weight " + Math.max(1, Integer.parseInt(words[2]));
+            }
+        } catch (NumberFormatException e) {
+            return "Not a number: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            return "No such log level: " + words[words.length - 1];
+        }
+        return "Commands: \"rate global <rate>\", \"rate user <rate>\", \"rate <alias> <rate|default>\", "
+                + "\"weight <alias> <n>\", \"status\", \"metrics\", \"log on|off\", "
+                + "\"log level <level>\", \"log sample <event> <n>\" (rates in bytes per second, e.g. 500K, 10M, "
+                + "0 for unlimited)";
+    }
+
+    /**
+     * Method: runThreaded(ServerSocketChannel serverChannel, ExecutorService executor)
+     *        - Accepts clients and runs each one's handler on its own thread from the executor.
+     */
+    private void runThreaded(ServerSocketChannel serverChannel, ExecutorService executor) throws IOException {
+        this.Threadpool = executor;
+
+        // Continue listening for incoming connections until a shutdown signal is received
+        while (!this.serverExit) {
+            log.info("listening", "port", this.portNumber, "mode", this.mode);
+
+            // Accept a client connection and obtain the server endpoint for the client
+            SocketChannel clientChannel = serverChannel.accept();
+            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Socket serverEndpointForClient = clientChannel.socket();
+
+            // Create a new instance of ServerClientHandler for the connected client (it registers itself with the clients)
+            // Its writes are drained by short tasks on the same executor
+            BlockingConnection connection = new BlockingConnection(serverEndpointForClient, executor, this.config);
+            ServerClientHandler clientHandler = new ServerClientHandler(connection);
+
+            // Serve the client in a separate thread using the thread pool
+            this.Threadpool.execute(() -> connection.serve(clientHandler));
+        }
+    }
+
+    /**
+     * Method: newVirtualThreadExecutor()
+     *        - Creates an executor that starts a new virtual thread for every client.
+     *        - Looked up reflectively so the server still builds on older JDKs, where it falls back to the cached pool.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ServerLog.shared().warn("virtual_threads_unavailable", "using", "platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Method: runEventLoops(ServerSocketChannel serverChannel)
+     *        - Accepts clients and spreads them over a fixed set of event loops, one per core.
+     *        - Handlers never get a thread of their own; their loop calls them as lines arrive.
+     */
+    private void runEventLoops(ServerSocketChannel serverChannel) throws IOException {
+        this.eventLoops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < this.eventLoops.length; i++) {
+            this.eventLoops[i] = new EventLoop("event-loop-" + i);
+            this.eventLoops[i].start();
+        }
+
+        int nextLoop = 0;
+        log.info("listening", "port", this.portNumber, "mode", this.mode, "event_loops", this.eventLoops.length);
+
+        // Continue listening for incoming connections until a shutdown signal is received
+        while (!this.serverExit) {
+            SocketChannel clientChannel = serverChannel.accept();
+
+            // Replies are gathered into few writes already (see OutboundQueue); Nagle would only hold back the last
+            // one of each burst until the client's delayed ACK, up to 40 ms per pipelined request
+            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            // Assign connections to loops round-robin
+            EventLoop loop = this.eventLoops[nextLoop];
+            nextLoop = (nextLoop + 1) % this.eventLoops.length;
+
+            NioConnection connection = new NioConnection(clientChannel, loop, this.storageWorkers, this.config);
+            ServerClientHandler clientHandler = new ServerClientHandler(connection);
+            connection.start(clientHandler);
+        }
+    }
+
 
     /**
      * ServerClientHandler is a class to handles Client inputs/commands
      */
-    public class ServerClientHandler implements Runnable {
-        private Socket Client_Socket;
-        private String nickname = "User";   //Default username
-        private BufferedReader in;
-        private PrintWriter out;
+    public class ServerClientHandler {
+        private ClientConnection connection;
+        private volatile String nickname;   // Alias, "User<n>" until the client registers
         private boolean isRegistered;
 
-        //HERE: consider variables for file sending (File Input and Output reader)
+        // Name given by '/store' while its size line has not arrived yet
+        private String pendingStoreName;
+
+        // Reused for every line this client sends, so splitting commands allocates nothing
+        private final CommandLine commandLine = new CommandLine();
+
+        // Chunks of this client's uploads are read into it to be hashed; its file work runs one piece at a time
+        private ByteBuffer chunkBuffer;
+
+        // Whether the client has switched this connection to binary frames
+        private boolean usesFrames;
+
+        // Stream id for the next download; the server uses even ids, the client's uploads odd ones
+        private int nextStreamId = 2;
+
+        // Codec negotiated with '/compress' for this connection's transfers, or null to send raw bytes
+        private Codec codec;
+
+        // Whether the client asked with '/verify' for the checksum of each file ahead of its download
+        private boolean verifies;
+
+        // Whether everyone has been told this client joined (see announce)
+        private boolean announced;
+
+        // The client this connection downloads for, once '/attach' made it one of its extra download connections
+        private ServerClientHandler owner;
+
+        // Extra download connections currently attached to this client
+        private final AtomicInteger transfers = new AtomicInteger();
+
+        // This user's share of the transfer scheduler; extra download connections pay from their owner's
+        private final TransferScheduler.Account account;
 
         /**
          * Constructor for Server Client Handler
          *
-         * @param clientSocket: The Socket representing the client's connection to the server.
+         * @param connection: The client's connection to the server.
          */
-        public ServerClientHandler(Socket clientSocket) {
-            // Set the client socket and initialize the nickname based on the number of connected clients
-            this.Client_Socket = clientSocket;
-            this.nickname = this.nickname + (clients.size() + 1);
+        public ServerClientHandler(ClientConnection connection) {
+            // Set the connection and reserve a default nickname in the client registry
+            this.connection = connection;
             this.isRegistered = false;
-
-            try {
-                // Initialize input and output streams for communication with the client
-                this.in = new BufferedReader(new InputStreamReader(Client_Socket.getInputStream()));
-                this.out = new PrintWriter(Client_Socket.getOutputStream(), true);
-            } catch (Exception e) {
-                // Handle exceptions related to stream initialization
-                System.out.println("Error in initializing streams for client " + this.nickname);
-            }
+            this.nickname = clients.add(this);
+            this.account = scheduler.open();
+            connection.setTransferAccount(this.account);
         }
 
         /**
@@ -127,7 +484,18 @@ public class MPServer implements Runnable {
          * @param message: The message to be sent to the client.
          */
         public void sendMessage(String message) {
-            this.out.println(message);
+            this.connection.sendLine(message);
+        }
+
+        /**
+         * Method: deliverMessage(String message)
+         * - Queues a chat message from another client for this client without waiting for it to be written.
+         * - A client that has fallen too far behind gets the message dropped or is disconnected, per the server config.
+         *
+         * @param message: The message to be sent to the client.
+         */
+        public void deliverMessage(String message) {
+            this.connection.offerLine(message);
         }
 
         /**
@@ -137,9 +505,9 @@ public class MPServer implements Runnable {
          * @param msg: The message to be broadcasted.
          */
         public void broadcastToEveryone(String msg) {
-            // Iterate through all connected client handlers and check if not null
-            for (ServerClientHandler SCH : clients) {
-                if (SCH != null) SCH.sendMessage(msg);
+            // Iterate through a lock-free view of the connected client handlers; each message only gets queued
+            for (ServerClientHandler SCH : clients.all()) {
+                SCH.deliverMessage(msg);
             }
         }
 
@@ -151,12 +519,11 @@ public class MPServer implements Runnable {
          * @param msg:   The message to be sent in the unicast.
          */
         public void SendUnicastToSomeone(String alias, String msg) {
-            // Iterate through all connected client handlers and check if exists
-            for (ServerClientHandler SCH : clients) {
-                if (SCH.nickname.equals(alias)) {
-                    // Send the unicast message to the target client
-                    SCH.sendMessage("From " + this.nickname + ": " + msg);
-                }
+            // Look the target client up by alias
+            ServerClientHandler SCH = clients.find(alias);
+            if (SCH != null) {
+                // Send the unicast message to the target client
+                SCH.deliverMessage("From " + this.nickname + ": " + msg);
             }
         }
 
@@ -167,127 +534,241 @@ public class MPServer implements Runnable {
          * @param alias: The alias of the target client to receive the unicast message.
          */
         public boolean AliasExists(String alias) {
-            //Iterates through the list of Clients and check if exists
-            for (ServerClientHandler SCH : clients) {
-                if (SCH.nickname.equals(alias)) return true;
+            // Look the alias up in the client registry
+            return clients.find(alias) != null;
+        }
+
+        /**
+         * Method: getNickname()
+         *
+         * @return The client's current alias.
+         */
+        public String getNickname() {
+            return this.nickname;
+        }
+
+        /**
+         * Method: onConnect()
+         * - Greets the newly connected client; everyone else hears of them with their first command (see announce).
+         */
+        public void onConnect() {
+            sendMessage("Connection to the File Exchange Server is successful!");
+        }
+
+        /**
+         * Method: announce()
+         * - Announces the client to everyone. Held back until its first command other than '/protocol', so an extra
+         *   download connection that attaches right away (see attach) never shows up as a new user.
+         */
+        private void announce() {
+            this.announced = true;
+            log.info("joined", "user", this.nickname, "client", connection.getRemoteAddress());
+            this.broadcastToEveryone("Welcome "+this.nickname);
+        }
+
+        /**
+         * Method: handleLine(String inputLine)
+         * - Processes one line received from the client.
+         *
+         * @param inputLine: The line, without its terminator.
+         * @return False once the client has left and the connection should be closed.
+         */
+        public boolean handleLine(String inputLine) {
+            long started = System.nanoTime();
+
+            // The line after '/store <name>' carries the file size, and the file body follows it
+            if (this.pendingStoreName != null) {
+                String filename = this.pendingStoreName;
+                this.pendingStoreName = null;
+                storeFile(filename, this.commandLine.parse(inputLine), 1, 2, Frame.CONTROL_STREAM);
+                metrics.command("/store", System.nanoTime() - started);
+                return true;
+            }
+
+            if (logCommands) log.info("command", "client", connection.getRemoteAddress(), "line", inputLine);
+
+            CommandLine line = this.commandLine.parse(inputLine);
+            CommandRegistry.Command command = CommandRegistry.find(line);
+            try {
+                return handleCommand(line, command);
+            } finally {
+                metrics.command(command != null ? command.getName() : "other", System.nanoTime() - started);
             }
+        }
+
+        /**
+         * Method: handleCommand(CommandLine line, CommandRegistry.Command command)
+         * - Carries out one command line through the command registry.
+         *
+         * @param line: The line, split into words.
+         * @param command: The command its first word names, or null if there is none.
+         * @return False once the client has left and the connection should be closed.
+         */
+        private boolean handleCommand(CommandLine line, CommandRegistry.Command command) {
+            // Extra download connections only fetch files
+            if (this.owner != null && (command == null || !command.isTransferConnection())) {
+                sendMessage("Server: Sorry, this connection only serves /get and /stat.");
+                return true;
+            }
+            if (!this.announced && this.owner == null && (command == null || !command.isBeforeJoining())) {
+                announce();
+            }
+
+            // Invalid Input (unregistered clients are first asked to register)
+            if (command == null) {
+                if (this.isRegistered == false) sendMessage("Cannot process the command. Please register first.");
+                else sendMessage("Improper input. Please type \"/?\" For a format of how to request from the server.");
+                return true;
+            }
+            // User did not regitser
+            if (command.isRegisteredOnly() && this.isRegistered == false) {
+                sendMessage("Cannot process the command. Please register first.");
+                return true;
+            }
+            return command.getAction().run(this, line);
+        }
+
+        /**
+         * Method: server()
+         *
+         * @return The server this client is connected to.
+         */
+        public MPServer server() {
+            return MPServer.this;
+        }
+
+        /**
+         * Method: sendStats()
+         * - Handles '/stats', which reports how well the download caches and the transfer scheduler are doing.
+         */
+        private void sendStats() {
+            sendMessage(hotFiles.describe());
+            sendMessage(scheduler.describe());
+        }
+
+        /**
+         * Method: leave()
+         * - Says goodbye to a client that sent '/leave', and tells everyone else it left.
+         *
+         * @return False, as the connection is to be closed.
+         */
+        private boolean leave() {
+            sendMessage("Connection closed. Thank you!");
+            // Extra download connections leave as quietly as they came
+            if (this.owner != null) return false;
+            //Send message to everyone
+            broadcastToEveryone(this.nickname + " left the file exchange server.");
+            log.info("left", "user", this.nickname);
+            // Disconnets from the server
             return false;
         }
 
-        @Override
-        public void run() {
+        /**
+         * Method: register(CommandLine line)
+         * - Handles '/register <alias>', which registers the user with the server or changes their alias.
+         *
+         * @param line: The command line.
+         */
+        private void register(CommandLine line) {
+            // If no nickname inputted
+            if (line.size() < 2 || line.word(2).isEmpty()) {
+                sendMessage("REGISTER_FALSE");
+                sendMessage("No inputted nickname. Please provide one.");
+                return;
+            }
+            String alias = line.word(2);
+            // If alias exists (checking and claiming the alias is one atomic step)
+            if (!clients.rename(this, this.nickname, alias)) {
+                sendMessage("REGISTER_FALSE");
+                sendMessage("Nickname already exists. Please use a different one.");
+            }
+            // When nickname did not exist and is now ours
+            else {
+                this.isRegistered = true;
+                sendMessage("REGISTER_TRUE");
+                //Broadcast to every client about changing nickname of one user
+                broadcastToEveryone(this.nickname + " changed their alias to: " + alias);
+
+                //Server log entry about change nickname
+                log.info("alias", "user", this.nickname, "alias", alias);
+                sendMessage("Successfully changed your nickname to: " + alias);
+                this.nickname = alias;
+            }
+        }
+
+        /**
+         * Method: store(CommandLine line)
+         * - Handles '/store <file name>', which stores a file from the client on the server.
+         *
+         * @param line: The command line.
+         */
+        private void store(CommandLine line) {
+            // With frames the command carries the size and stream id, so several uploads can run at once
+            if (this.usesFrames) {
+                storeStream(line);
+            }
+            // Without a name there is no size line to wait for
+            else if (line.size() < 2) {
+                sendMessage("Improper input. Use \"/store <file name>\", then the size of the file and its bytes");
+            }
+            // Store file in the server once its size line arrives
+            else {
+                this.pendingStoreName = line.word(2);
+            }
+        }
+
+        /**
+         * Method: chatUnicast(CommandLine line)
+         * - Handles '/chatuni <alias> <message>', which sends a message to one client.
+         *
+         * @param line: The command line.
+         */
+        private void chatUnicast(CommandLine line) {
+            String alias = line.size() >= 2 ? line.word(2) : "";
+            // Check if Client exists within the list of Clients
+            if (AliasExists(alias)) {
+                SendUnicastToSomeone(alias, line.rest(3));
+            }
+            // When Alias does not exist
+            else sendMessage("Sorry, inputted user alias does not exist. Try again.");
+        }
+
+        /**
+         * Method: negotiateProtocol(String command)
+         * - Switches the connection to binary frames if the client speaks our frame version.
+         * - Old clients never send this command and keep using plain lines.
+         *
+         * @param line: The '/protocol <version>' command from the client.
+         */
+        public void negotiateProtocol(CommandLine line) {
+            int version;
             try {
-                String inputLine;
-                System.out.println(this.nickname + " joined.");
-                out.println("Connection to the File Exchange Server is successful!");
-                this.broadcastToEveryone("Welcome "+this.nickname);
-                // Read input until the termination message is received
-                while ((inputLine = in.readLine()) != null) {
-                    System.out.println("Received from client " + Client_Socket.getInetAddress().getHostAddress() + ": " + inputLine);
-
-                    // Check for termination message
-
-                    //Handle '/leave' command from client
-                    if (inputLine.equals("/leave")) {
-                        out.println("Connection closed. Thank you!");
-                        //Send message to everyone
-                        broadcastToEveryone(this.nickname + " left the file exchange server.");
-                        System.out.println(this.nickname + " left the file exchange server.");
-                        // Disconnets from the server
-                        this.disconnect();
-                        break;
-                    }
-                    // Handle '/?' command which displays the commands
-                    else if (inputLine.equals("/?")) {
-                        questionmark();
-                    }
-                    // Handle '/register' command  which allow the user to register to server and change alias
-                    else if (ExtractNthWord(inputLine, 1).equals("/register")) {
-                        // If no nickname inputted
-                        if (inputLine.equals("/register") || inputLine.equals("/register ")) {
-                            sendMessage("REGISTER_FALSE");
-                            out.println("No inputted nickname. Please provide one.");
-                        } else {
-                            // If alias exists
-                            if (AliasExists(ExtractNthWord(inputLine, 2))) {
-                                sendMessage("REGISTER_FALSE");
-                                out.println("Nickname already exists. Please use a different one.");
-                            }
-                            // When nickname does not exist
-                            else {
-                                this.isRegistered = true;
-                                sendMessage("REGISTER_TRUE");
-                                //Broadcast to every client about changing nickname of one user
-                                broadcastToEveryone(this.nickname + " changed their alias to: " + ExtractNthWord(inputLine, 2));
-
-                                //Server console print about change nickname
-                                System.out.println(this.nickname + " changed their alias to: " + ExtractNthWord(inputLine, 2));
-                                out.println("Successfully changed your nickname to: " + ExtractNthWord(inputLine, 2));
-                                this.nickname = ExtractNthWord(inputLine, 2);
-                            }
-                        }
-                    }
-                    // User did not regitser
-                    else if (this.isRegistered == false) {
-                        out.println("Cannot process the command. Please register first.");
-                    }
-                    //Handle '/store' command from Client which allow the client to store file in the server
-                    else if (ExtractNthWord(inputLine, 1).equals("/store")) {
-                        String filename = ExtractNthWord(inputLine, 2);
-                        // Store file in the server
-                        storeFile(filename);
-                    }
-                    // Handle '/dir' command from client and allow to display the files from server directory
-                    else if (ExtractNthWord(inputLine, 1).equals("/dir")) {
-                        // Display the files under server directory
-                        displayDirectory();
-                    }
-                    // Handle '/get' command from client, and this allow to get a file from the server directory
-                    else if (ExtractNthWord(inputLine, 1).equals("/get")) {
-                        String filename = ExtractNthWord(inputLine, 2);
-                        // Open directory
-                        File file = new File("./" + filename);
-                        // Check if file exists
-                        if (file.exists()) {
-                            sendMessage("FILE_EXISTS");
-                            out.flush();
-                            out.println(filename);
-                            out.println(file.length());
-                            // Get File from the Server
-                            getFile(inputLine);
-                            out.flush();
-                        } else {
-                            // When file does not exist
-                            sendMessage("FILE_FALSE");
-                            out.println("Server: Sorry, file not found!");
-                        }
+                version = line.size() > 1 ? Integer.parseInt(line.word(2)) : 0;
+            } catch (NumberFormatException e) {
+                version = 0;
+            }
 
-                    }
-                    // Handle '/chat' feature which allow client to message everyone (Additional Feature)
-                    else if (ExtractNthWord(inputLine, 1).equals("/chat")) {
-                        broadcastToEveryone(this.nickname + ": " + inputLine.substring(6));
-                    }
-                    // Handle '/chatuni' which allow client to message a specific client (Additional Feature)
-                    else if (ExtractNthWord(inputLine, 1).equals("/chatuni")) {
-                        // Check if Client exists within the list of Clients
-                        if (AliasExists(ExtractNthWord(inputLine, 2))) {
-                            String MessageToSend = Arrays.stream(inputLine.split("\\s+"))
-                                    .skip(2).reduce((word1, word2) -> word1 + " " + word2).orElse("");
-                            SendUnicastToSomeone(ExtractNthWord(inputLine, 2), MessageToSend);
-                        }
-                        // When Alias does not exist
-                        else sendMessage("Sorry, inputted user alias does not exist. Try again.");
-                    }
-                    // Invalid Input
-                    else {
-                        out.println("Improper input. Please type \"/?\" For a format of how to request from the server.");
-                    }
-                }
-            } catch (IOException e) {
-                System.out.println(e);
-                // Disconnects when error exists
-                this.disconnect();
+            // Frames can only be switched on once, and only for a version we understand
+            if (this.usesFrames || version < Frame.VERSION) {
+                sendMessage(Frame.REFUSED);
+                return;
             }
+            this.usesFrames = true;
+            connection.startFrames();
+        }
+
+        /**
+         * Method: negotiateCompression(String command)
+         * - Answers '/compress <codec,codec,...>' with 'COMPRESS <codec>', the first offered codec the server knows
+         *   (see CodecRegistry), or 'COMPRESS none'.
+         * - From then on whole-file downloads are sent compressed when the file is worth it, and the client may send
+         *   uploads compressed. Old clients never ask and keep getting raw bytes.
+         *
+         * @param line: The '/compress' command from the client.
+         */
+        public void negotiateCompression(CommandLine line) {
+            this.codec = line.size() > 1 ? CodecRegistry.choose(line.word(2).split(",")) : null;
+            sendMessage("COMPRESS " + (this.codec != null ? this.codec.name() : "none"));
         }
 
         /**
@@ -295,15 +776,32 @@ public class MPServer implements Runnable {
          * - Displays all the commands
          */
         public void questionmark() {
-            out.println("Here are the list of commands you can request to the server:");
-            out.println("To leave the server: \"/leave\"");
-            out.println("To change your alias: \"/register <Insert your new alias here>\"");
-            out.println("To send your file: \"/store <Insert your file's name here>\"");
-            out.println("To request the files in store: \"/dir\"");
-            out.println("To request a file: \"/get <Insert your targeted file name here (given proper file extension)>\"");
-            out.println("To give a message to everyone: \"/chat <Insert your message here>\"");
-            out.println("To give a message to one person: \"/chat <username> <Insert your message here>\"");
-            out.println("To see this again: \"/?\"");
+            sendMessage("Here are the list of commands you can request to the server:");
+            sendMessage("To leave the server: \"/leave\"");
+            sendMessage("To change your alias: \"/register <Insert your new alias here>\"");
+            sendMessage("To send your file: \"/store <Insert your file's name here>\"");
+            sendMessage("To see which chunks of an upload the server has: \"/chunks <file name> <size>\"");
+            sendMessage("To offer chunk hashes before an upload: \"/offer <file name> <size> <chunk size> <first chunk> <hash,hash,...>\"");
+            sendMessage("To get block signatures of a stored file: \"/signatures <file name>\"");
+            sendMessage("To send a file as a delta: \"/delta <file name> <size> <version> <block size> <delta length> [<stream id>]\"");
+            sendMessage("To compress file transfers: \"/compress <codec,codec,...>\" (e.g. deflate)");
+            sendMessage("To request the files in store: \"/dir\" (or \"/dir <name prefix> <page>\", \"/dir <page>\")");
+            sendMessage("To request a file: \"/get <Insert your targeted file name here (given proper file extension)>\"");
+            sendMessage("To request part of a file: \"/get <file name> <offset> <length (optional)>\"");
+            sendMessage("To get the size of a file: \"/stat <file name>\"");
+            sendMessage("To list the names of the files matching a pattern: \"/match <pattern>\" (e.g. photos-*.jpg)");
+            sendMessage("To get a token for extra download connections: \"/session\"");
+            sendMessage("To make this an extra download connection: \"/attach <token>\" (as the first command)");
+            sendMessage("To see the download cache and transfer statistics: \"/stats\"");
+            sendMessage("To get the checksum of each downloaded file first: \"/verify crc32c\"");
+            sendMessage("To get the chunk checksums of a file: \"/checksums <file name>\"");
+            sendMessage("To give a message to everyone: \"/chat <Insert your message here>\"");
+            sendMessage("To give a message to one person: \"/chat <username> <Insert your message here>\"");
+            // Commands registered by plugins
+            for (String help : CommandRegistry.helpLines()) {
+                sendMessage(help);
+            }
+            sendMessage("To see this again: \"/?\"");
         }
 
         /**
@@ -311,144 +809,884 @@ public class MPServer implements Runnable {
          * - Disconnect Client to the server upon reading command '/leave' from client
          */
         public void disconnect() {
+            // Free the alias and close the connection to the client once its last replies are out
+            clients.remove(this);
+            detach();
+            this.account.close();
+            this.connection.closeAfterFlush();
+        }
+
+        /**
+         * Method: attach(String command)
+         * - Handles '/attach <token>': makes this connection one of the extra download connections of the client that
+         *   got the token from '/session', so it can fetch ranges of a file in parallel with the others.
+         * - Each client may attach config.getTransfersPerClient() connections, and the server
+         *   config.getTransferConnectionLimit() over all clients, so no one user can take every connection.
+         * - Replies ATTACHED, or ATTACH_FALSE and the reason; the connection then works as before.
+         */
+        private void attach(CommandLine line) {
+            ServerClientHandler target = line.size() == 2 ? clients.findByToken(line.word(2)) : null;
+            if (target == null || target == this || this.announced || this.owner != null) {
+                sendMessage("ATTACH_FALSE unknown session");
+                return;
+            }
+
+            // Claim a place under both limits, or give back whatever was claimed
+            if (target.transfers.incrementAndGet() > config.getTransfersPerClient()) {
+                target.transfers.decrementAndGet();
+                sendMessage("ATTACH_FALSE " + config.getTransfersPerClient() + " connections per client already in use");
+                return;
+            }
+            if (transferConnections.incrementAndGet() > config.getTransferConnectionLimit()) {
+                transferConnections.decrementAndGet();
+                target.transfers.decrementAndGet();
+                sendMessage("ATTACH_FALSE server is busy");
+                return;
+            }
+
+            synchronized (this) {
+                this.owner = target;
+            }
+
+            // Not a user of its own: free the default alias, act with the owner's rights and share the owner's rate
+            clients.remove(this);
+            this.account.close();
+            connection.setTransferAccount(target.account);
+            this.nickname = target.getNickname();
+            this.isRegistered = true;
+            sendMessage("ATTACHED");
+        }
+
+        /**
+         * Method: detach()
+         * - Gives back the places an extra download connection held under the limits. Calling it twice is harmless.
+         */
+        private void detach() {
+            ServerClientHandler attachedTo;
+            synchronized (this) {
+                attachedTo = this.owner;
+                this.owner = null;
+            }
+            if (attachedTo != null) {
+                attachedTo.transfers.decrementAndGet();
+                transferConnections.decrementAndGet();
+            }
+        }
+
+        /**
+         * Method: storeStream(CommandLine line)
+         * - Starts an upload on a framed connection:
+         *   '/store <filename> <size> <stream id> [<offset> <length> [<codec> <compressed length>]]'.
+         * - The body arrives in DATA frames of that stream while other commands keep being handled.
+         *
+         * @param line: The '/store' command from the client.
+         */
+        private void storeStream(CommandLine line) {
+            int streamId;
             try {
-                // Close the Socket from a client
-                this.in.close();
-                this.out.close();
-                if (!this.Client_Socket.isClosed()) this.Client_Socket.close();
-            } catch (Exception e) {
-                System.out.println("Error in disconnecting the client " + this.nickname);
+                streamId = line.size() >= 4 ? Integer.parseInt(line.word(4)) : -1;
+            } catch (NumberFormatException e) {
+                streamId = -1;
             }
+            if (streamId < 0) {
+                sendMessage("Improper input. With frames, use \"/store <file name> <size> <stream id> [<offset> <length> [<codec> <compressed length>]]\"");
+                return;
+            }
+            storeFile(line.word(2), line, 3, 5, streamId);
         }
 
         /**
-         * Method: storeFile(String filename)
-         * - Receives a file from the client and stores it on the server.
+         * Method: offerChunks(String command)
+         * - Handles '/offer <filename> <size> <chunk size> <first chunk> <hash,hash,...>': the SHA-256 hashes of some
+         *   chunks of a file the client is about to upload.
+         * - Chunks the server already stores count as received, so they need not be uploaded.
+         * - The batch holding the last chunk is answered like '/chunks' (see sendChunks), so the client can go on to
+         *   upload what is still missing; if nothing is, the file is published and confirmed without any upload.
          *
-         * @param filename: The name of the file to be stored on the server.
+         * @param line: The '/offer' command from the client.
          */
-        private void storeFile(String filename) throws IOException {
+        private void offerChunks(CommandLine line) {
+            String usage = "Improper input. Use \"/offer <file name> <size> <chunk size> <first chunk> <hash,hash,...>\"";
+            if (line.size() < 5) {
+                sendMessage(usage);
+                return;
+            }
+            long sizeOfFile;
+            int chunkSize;
+            int firstChunk;
             try {
-                // Read the size of the file from the client
-                long sizeOfFile = Long.parseLong(in.readLine());
+                sizeOfFile = Long.parseLong(line.word(3));
+                chunkSize = Integer.parseInt(line.word(4));
+                firstChunk = Integer.parseInt(line.word(5));
+            } catch (NumberFormatException e) {
+                sendMessage(usage);
+                return;
+            }
 
-                // Create a DataInputStream to read data from the client's input stream
-                DataInputStream fileInput = new DataInputStream(Client_Socket.getInputStream());
+            String filename = line.word(2);
+            String[] hashes = line.size() > 5 ? line.word(6).split(",") : new String[0];
+            boolean published = false;
 
-                // Create a FileOutputStream to write the received data to a file
-                FileOutputStream fileOutput = new FileOutputStream(filename);
+            // Hashes of other chunk sizes describe other chunks; there is nothing to match them against
+            if (isValidFilename(filename) && chunkSize == UploadStaging.CHUNK_SIZE && sizeOfFile >= 0 && firstChunk >= 0) {
+                try {
+                    published = uploads.adopt(filename, sizeOfFile, firstChunk, hashes);
+                } catch (IOException e) {
+                    log.warn("store_failed", "user", this.nickname, "error", e.getMessage());
+                }
+            }
 
-                // Buffer to hold data read from the input stream
-                byte[] buffer = new byte[1];
+            // Earlier batches are not answered
+            long chunkCount = chunkSize > 0 ? (sizeOfFile + chunkSize - 1) / chunkSize : 0;
+            if (firstChunk + hashes.length < chunkCount) return;
 
-                int bytesRead;
+            if (published) {
+                filePublished(filename);
+                log.info("stored", "user", this.nickname, "file", filename, "chunks", "already stored");
+                storeSucceeded(filename, "");
+                String all = chunkCount > 1 ? "0-" + (chunkCount - 1) : (chunkCount == 1 ? "0" : "-");
+                sendMessage("CHUNKS " + filename + " " + sizeOfFile + " " + UploadStaging.CHUNK_SIZE + " " + all);
+            } else {
+                String received = isValidFilename(filename) ? uploads.describe(filename, sizeOfFile) : "-";
+                sendMessage("CHUNKS " + filename + " " + sizeOfFile + " " + UploadStaging.CHUNK_SIZE + " " + received);
+            }
+        }
 
-                // Loop through the file data, reading and writing in chunks
-                while ((bytesRead = fileInput.read(buffer)) != -1 && sizeOfFile > 0) {
-                    // Write the buffer to the file
-                    fileOutput.write(buffer);
+        /**
+         * Method: sendSignatures(String command)
+         * - Answers '/signatures <filename>' for a client that wants to send a new version of a file as a delta.
+         * - The reply is 'SIGNATURES <filename> <size> <block size> <block count> <version>' followed by
+         *   'SIGS <filename> <first block> <signature,signature,...>' lines (see DeltaPatch), or
+         *   'SIGNATURES_FALSE <filename>' if there is no such file.
+         *
+         * @param line: The '/signatures' command from the client.
+         */
+        private void sendSignatures(CommandLine line) {
+            if (line.size() < 2) {
+                sendMessage("Improper input. Use \"/signatures <file name>\"");
+                return;
+            }
+            String filename = line.word(2);
+
+            // Reading the whole file to sign it takes a while
+            connection.runBlocking(() -> signFile(filename));
+        }
 
-                    // Update the remaining size of the file
-                    sizeOfFile -= bytesRead;
+        /**
+         * Method: signFile(String filename)
+         * - The part of sendSignatures that reads the file, run with connection.runBlocking.
+         */
+        private void signFile(String filename) {
+            // Take the version first: if the file changes while it is signed, the delta is refused later
+            String version = fileVersion(filename);
+            FileBody basis = null;
+            try {
+                basis = (version != null) ? openStored(filename) : null;
+                if (basis == null) {
+                    sendMessage("SIGNATURES_FALSE " + filename);
+                    return;
+                }
 
-                    // Break out of the loop if the entire file has been received
-                    if (sizeOfFile <= 0) break;
+                int blockSize = DeltaPatch.blockSize(basis.size());
+                String[] signatures = DeltaPatch.signatures(basis, blockSize);
+                sendMessage("SIGNATURES " + filename + " " + basis.size() + " " + blockSize + " " + signatures.length + " " + version);
+                for (int first = 0; first < signatures.length; first += SIGNATURE_BATCH) {
+                    String[] batch = Arrays.copyOfRange(signatures, first, Math.min(first + SIGNATURE_BATCH, signatures.length));
+                    sendMessage("SIGS " + filename + " " + first + " " + String.join(",", batch));
                 }
+            } catch (IOException e) {
+                log.warn("sign_failed", "user", this.nickname, "file", filename, "error", e.getMessage());
+                sendMessage("SIGNATURES_FALSE " + filename);
+            } finally {
+                closeQuietly(basis);
+            }
+        }
+
+        /**
+         * Method: storeDelta(String command)
+         * - Receives '/delta <filename> <size> <version> <block size> <delta length> [<stream id>]' and the delta that
+         *   follows it (in DATA frames of that stream with frames, right after the line otherwise).
+         * - The delta is kept in the staging directory until it is complete, then applied to the server's copy.
+         *
+         * @param line: The '/delta' command from the client.
+         */
+        private void storeDelta(CommandLine line) {
+            // Without a length the delta cannot be told apart from the next command
+            if (line.size() < (this.usesFrames ? 7 : 6)) {
+                log.warn("store_failed", "user", this.nickname, "error", "invalid delta", "line", line.getLine());
+                if (line.size() >= 2) storeFailed(line.word(2), "cannot store " + line.word(2) + " as a delta without its sizes");
+                return;
+            }
+            long sizeOfFile;
+            int blockSize;
+            long deltaLength;
+            int streamId = Frame.CONTROL_STREAM;
+            try {
+                sizeOfFile = Long.parseLong(line.word(3));
+                blockSize = Integer.parseInt(line.word(5));
+                deltaLength = Long.parseLong(line.word(6));
+                if (this.usesFrames) streamId = Integer.parseInt(line.word(7));
+            } catch (NumberFormatException e) {
+                log.warn("store_failed", "user", this.nickname, "error", "invalid delta", "line", line.getLine());
+                storeFailed(line.word(2), "cannot store " + line.word(2) + " as a delta with sizes " + line.rest(3));
+                return;
+            }
+            if (deltaLength < 0) {
+                log.warn("store_failed", "user", this.nickname, "error", "invalid delta", "line", line.getLine());
+                storeFailed(line.word(2), "cannot store " + line.word(2) + " as a delta with sizes " + line.rest(3));
+                return;
+            }
+            String filename = line.word(2);
+            String version = line.word(4);
+
+            // The delta is on its way regardless; a bad request only means it is not kept
+            if (!isValidFilename(filename) || sizeOfFile < 0 || blockSize < DeltaPatch.MIN_BLOCK_SIZE || blockSize > DeltaPatch.MAX_BLOCK_SIZE) {
+                storeFailed(filename, "cannot store " + filename + " as a delta");
+                connection.receiveBody(new InboundStream(null, 0, deltaLength, (written, failure) -> { }), streamId);
+                return;
+            }
 
-                // Close the FileOutputStream
-                fileOutput.close();
+            File deltaFile = null;
+            FileChannel deltaOutput = null;
+            try {
+                deltaFile = uploads.createDeltaFile(filename);
+                deltaOutput = FileChannel.open(deltaFile.toPath(), StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                // The delta still has to be read off the connection, it is just not kept
+                log.warn("store_failed", "user", this.nickname, "error", e.getMessage());
+                if (deltaFile != null) deltaFile.delete();
+                storeFailed(filename, "could not stage " + filename + ". Please store it again.");
+            }
+
+            File delta = deltaFile;
+            FileChannel target = deltaOutput;
+            connection.receiveBody(new InboundStream(target, 0, deltaLength, (written, failure) -> {
+                closeQuietly(target);
+                if (target != null) finishDelta(filename, sizeOfFile, version, blockSize, delta, deltaLength, failure);
+            }), streamId);
+        }
+
+        /**
+         * Method: finishDelta(String filename, long size, String version, int blockSize, File delta, long deltaLength, IOException failure)
+         * - Rebuilds the file from the server's copy and the received delta, and tells the client how it went.
+         * - Refused if the server's copy is no longer the version the client's delta was computed against.
+         */
+        private void finishDelta(String filename, long size, String version, int blockSize, File delta, long deltaLength, IOException failure) {
+            if (failure != null) {
+                delta.delete();
+                log.warn("store_failed", "user", this.nickname, "error", failure.getMessage());
+                storeFailed(filename, "the delta of " + filename + " did not arrive. Please store it again.");
+                return;
+            }
 
-                // Output a success message indicating the received file and sender
-                System.out.println("File received from " + this.nickname + ": " + filename);
+            // Rebuilding the file reads the old copy and hashes and syncs the new one
+            connection.runBlocking(() -> applyDelta(filename, size, version, blockSize, delta, deltaLength));
+        }
 
-                // Send a confirmation message back to the client indicating the successful upload
-                sendMessage(this.nickname + " <" + getCurrentTimestamp() + ">: Uploaded " + filename);
+        /**
+         * Method: applyDelta(String filename, long size, String version, int blockSize, File delta, long deltaLength)
+         * - The part of finishDelta that reads and writes files, run with connection.runBlocking.
+         */
+        private void applyDelta(String filename, long size, String version, int blockSize, File delta, long deltaLength) {
+            if (!version.equals(fileVersion(filename))) {
+                delta.delete();
+                storeFailed(filename, filename + " changed on the server while the delta was sent. Please store it again.");
+                return;
+            }
 
+            boolean published;
+            FileBody basis = null;
+            try {
+                basis = openStored(filename);
+                published = basis != null && uploads.applyDelta(filename, size, basis, blockSize, delta, deltaLength, chunkBuffer());
             } catch (IOException e) {
-                // Handle exceptions related to file reception errors and print an error message
-                System.out.println("Error receiving file from " + this.nickname + ": " + e.getMessage());
+                log.warn("store_failed", "user", this.nickname, "error", e.getMessage());
+                published = false;
+            } finally {
+                closeQuietly(basis);
+                delta.delete();
             }
+            if (!published) {
+                storeFailed(filename, "could not build " + filename + " from the delta. Please store it again.");
+                return;
+            }
+
+            // List the new version right away, without waiting for the watcher
+            filePublished(filename);
+
+            // Output a success message indicating the received file and sender
+            log.info("stored", "user", this.nickname, "file", filename, "delta_bytes", deltaLength);
+
+            // Send a confirmation message back to the client indicating the successful upload
+            storeSucceeded(filename, " (delta of " + deltaLength + " bytes)");
         }
 
         /**
-         * Method: getFile(String command)
-         * - Retrieves a file from the server and sends it to the client.
+         * Method: fileVersion(String filename)
          *
-         * @param command: The command containing information about the requested file.
+         * @return A token that changes whenever the file is replaced, or null if there is no such file: the hash of
+         *         its chunk list for stored files, size and modification time for plain ones.
          */
-        private void getFile(String command) {
+        private String fileVersion(String filename) {
+            if (!isValidFilename(filename)) return null;
             try {
-                // Extract the filename from the command
-                String filename = ExtractNthWord(command, 2);
+                BlobStore.Manifest manifest = blobs.readManifest(filename);
+                if (manifest != null) return manifest.version();
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+            File file = plainFile(filename);
+            return file.isFile() ? FileCatalog.plainVersion(file) : null;
+        }
 
-                // Create a File object representing the requested file
-                File file = new File("./" + filename);
+        /**
+         * Method: checksumsKnown(String filename)
+         *
+         * @return True if the file's checksums can be had without reading it (see ChecksumIndex.known).
+         */
+        private boolean checksumsKnown(String filename) {
+            try {
+                BlobStore.Manifest manifest = blobs.readManifest(filename);
+                String version = manifest != null ? manifest.version() : FileCatalog.plainVersion(plainFile(filename));
+                return checksums.known(filename, version, manifest) != null;
+            } catch (IOException | RuntimeException e) {
+                // Let the reader find out what is wrong
+                return false;
+            }
+        }
 
-                // Create a DataOutputStream to send data to the client's output stream
-                DataOutputStream fileWriter = new DataOutputStream(Client_Socket.getOutputStream());
+        /**
+         * Method: checksumsFor(String filename, FileBody body)
+         * - Gets the checksums of a file, computing them from the opened file if they are not known yet.
+         *
+         * @return The checksums, for the version of the file that was opened.
+         */
+        private ChecksumIndex.Checksums checksumsFor(String filename, FileBody body) throws IOException {
+            BlobStore.Manifest manifest = blobs.readManifest(filename);
+            String version = manifest != null ? manifest.version() : FileCatalog.plainVersion(plainFile(filename));
+            ChecksumIndex.Checksums result = checksums.get(filename, version, manifest, body);
 
-                // Create a FileInputStream to read data from the file
-                FileInputStream fileReader = new FileInputStream("./" + filename);
+            // From now on '/dir' shows it too
+            FileCatalog.Entry entry = catalog.get(filename);
+            if (entry != null && entry.getChecksum() < 0) catalog.refresh(filename);
+            return result;
+        }
 
-                // Buffer to hold data read from the file
-                byte[] buffer = new byte[1];
+        /**
+         * Method: negotiateVerification(CommandLine line)
+         * - Handles '/verify <algorithm,...>': replies 'VERIFY crc32c' if the client listed it, 'VERIFY none' otherwise.
+         * - Once agreed, every download is preceded by 'CHECKSUM <file name> crc32c <checksum of the whole file>'.
+         */
+        private void negotiateVerification(CommandLine line) {
+            this.verifies = line.size() > 1 && Arrays.asList(line.word(2).split(",")).contains("crc32c");
+            sendMessage("VERIFY " + (this.verifies ? "crc32c" : "none"));
+        }
 
-                // Initialize the size of the file to be sent
-                long sizeOfFile = file.length();
+        /**
+         * Method: sendChecksums(CommandLine line)
+         * - Handles '/checksums <file name>': replies 'CHECKSUMS <file name> <size> <chunk size> <chunk count>
+         *   <checksum of the whole file>', then the chunk checksums in 'CRCS <file name> <first chunk> <crc,crc,...>'
+         *   lines, or 'CHECKSUMS_FALSE <file name>' if there is no such file. All checksums are CRC32C in hex.
+         */
+        private void sendChecksums(CommandLine line) {
+            String filename = line.size() > 1 ? line.word(2) : "";
+            if (isValidFilename(filename) && !checksumsKnown(filename)) {
+                // Computing them reads the whole file
+                connection.runBlocking(() -> replyChecksums(filename));
+            } else {
+                replyChecksums(filename);
+            }
+        }
 
-                int bytesRead;
+        /**
+         * Method: replyChecksums(String filename)
+         * - The reply to '/checksums', computing the checksums first if they are not known yet.
+         */
+        private void replyChecksums(String filename) {
+            FileBody body = null;
+            try {
+                body = openStored(filename);
+                if (body == null) {
+                    sendMessage("CHECKSUMS_FALSE " + filename);
+                    return;
+                }
 
-                // Loop through the file data, reading and writing in chunks
-                while ((bytesRead = fileReader.read(buffer)) != -1 && sizeOfFile > 0) {
-                    // Write the buffer to the client's output stream
-                    fileWriter.write(buffer);
-                    // Update the remaining size of the file
-                    sizeOfFile -= bytesRead;
+                ChecksumIndex.Checksums sums = checksumsFor(filename, body);
+                long[] crcs = sums.getCrcs();
+                sendMessage("CHECKSUMS " + filename + " " + sums.getSize() + " " + sums.getChunkSize() + " " + crcs.length
+                        + " " + Crc32c.toHex(sums.getWhole()));
+                for (int first = 0; first < crcs.length; first += CHECKSUM_BATCH) {
+                    StringBuilder batch = new StringBuilder();
+                    for (int i = first; i < Math.min(first + CHECKSUM_BATCH, crcs.length); i++) {
+                        if (i > first) batch.append(',');
+                        batch.append(Crc32c.toHex(crcs[i]));
+                    }
+                    sendMessage("CRCS " + filename + " " + first + " " + batch);
                 }
+            } catch (IOException e) {
+                log.warn("checksum_failed", "user", this.nickname, "error", e.getMessage());
+                sendMessage("CHECKSUMS_FALSE " + filename);
+            } finally {
+                closeQuietly(body);
+            }
+        }
 
-                // Flush the DataOutputStream to ensure all data is sent and close FileInputStream
-                fileWriter.flush();
-                fileReader.close();
+        /**
+         * Method: openStored(String filename)
+         *
+         * @return The file's content for reading, or null if there is no such file. Files uploaded since the
+         *         BlobStore was introduced are assembled from their chunks; plain files in the files directory
+         *         (fes.files.dir) are read as they are. Unfinished uploads are never returned.
+         */
+        private FileBody openStored(String filename) throws IOException {
+            if (!isValidFilename(filename)) return null;
+            FileBody body = blobs.open(filename);
+            if (body != null) return body;
 
-            } catch (Exception e) {
-                // Handle exceptions related to file sending errors and print an error message
-                System.out.println("Error in sending file.");
+            File file = plainFile(filename);
+            return file.isFile() ? new ChannelBody(FileChannel.open(file.toPath(), StandardOpenOption.READ)) : null;
+        }
+
+        /**
+         * Method: plainFile(String filename)
+         *
+         * @return Where a plain file of that name would be: in the files directory, never anywhere else.
+         */
+        private File plainFile(String filename) {
+            return new File(config.getFilesDir(), filename);
+        }
+
+        /**
+         * Method: chunkBuffer()
+         *
+         * @return The buffer this client's chunks are hashed in, allocated with its first upload.
+         */
+        private ByteBuffer chunkBuffer() {
+            if (this.chunkBuffer == null) this.chunkBuffer = ByteBuffer.allocate(UploadStaging.CHUNK_SIZE);
+            return this.chunkBuffer;
+        }
+
+        /**
+         * Method: sendChunks(CommandLine line)
+         * - Answers '/chunks <filename> <size>' with 'CHUNKS <filename> <size> <chunk size> <chunks received>', so a
+         *   client can resume an upload by sending only the missing chunks.
+         *
+         * @param line: The '/chunks' command from the client.
+         */
+        private void sendChunks(CommandLine line) {
+            long sizeOfFile;
+            try {
+                sizeOfFile = line.size() >= 3 ? Long.parseLong(line.word(3)) : -1;
+            } catch (NumberFormatException e) {
+                sizeOfFile = -1;
+            }
+            if (sizeOfFile < 0) {
+                sendMessage("Improper input. Use \"/chunks <file name> <size>\"");
+                return;
             }
+            String filename = line.word(2);
+            String received = isValidFilename(filename) ? uploads.describe(filename, sizeOfFile) : "-";
+            sendMessage("CHUNKS " + filename + " " + sizeOfFile + " " + UploadStaging.CHUNK_SIZE + " " + received);
         }
 
         /**
-         * Method: sendDirectoryToClient()
-         * - Retrieves the list of files in the server's current directory and sends it to the client.
+         * Method: storeFile(String filename, CommandLine line, int sizeWord, int rangeWord, int streamId)
+         * - Receives a file (or a chunk-aligned range of it) from the client into the file's staging area.
+         * - The sizes are '<size>' for the whole file or '<size> ... <offset> <length>' for a range: the line the client
+         *   sends after '/store', or the '/store' command itself with frames. A range sent compressed (see
+         *   CompressedBlocks) adds '<codec> <compressed length>'.
+         * - The file only appears under its name once every chunk has arrived.
+         *
+         * @param filename: The name of the file to be stored on the server.
+         * @param line: The line holding the sizes.
+         * @param sizeWord: The position of the size of the file in the line.
+         * @param rangeWord: The position of the offset in the line, if a range is sent.
+         * @param streamId: The stream the body arrives on (frames only).
          */
-        public void sendDirectoryToClient() {
-            // Get the current directory path
-            String currentDirectory = System.getProperty("user.dir");
+        private void storeFile(String filename, CommandLine line, int sizeWord, int rangeWord, int streamId) {
+            if (line.size() < sizeWord) {
+                log.warn("store_failed", "user", this.nickname, "error", "no size", "line", line.getLine());
+                storeFailed(filename, "cannot store " + filename + " without its size");
+                return;
+            }
+            boolean ranged = line.size() > rangeWord;
+            boolean packed = line.size() > rangeWord + 2;
+            long sizeOfFile;
+            long offset;
+            long length;
+            long bodyLength;
+            Codec bodyCodec = null;
+            try {
+                // Read the size of the file (and the range being sent) from the client
+                sizeOfFile = Long.parseLong(line.word(sizeWord));
+                offset = ranged ? Long.parseLong(line.word(rangeWord)) : 0;
+                length = ranged ? Long.parseLong(line.word(rangeWord + 1)) : sizeOfFile;
 
-            // Create a File object representing the current directory
-            File directory = new File(currentDirectory);
+                // Bytes on the wire: fewer than the range if it comes compressed
+                bodyLength = packed ? Long.parseLong(line.word(rangeWord + 3)) : length;
+                if (packed) bodyCodec = CodecRegistry.get(line.word(rangeWord + 2));
+            } catch (NumberFormatException e) {
+                log.warn("store_failed", "user", this.nickname, "error", "invalid size", "line", line.getLine());
+                storeFailed(filename, "cannot store " + filename + " with size " + line.rest(sizeWord));
+                return;
+            }
 
-            // StringBuilder to store information about the server directory
-            StringBuilder directoryInfo = new StringBuilder();
+            // The body is on its way regardless; a bad request only means it is not kept
+            if (length < 0 || bodyLength < 0) {
+                log.warn("store_failed", "user", this.nickname, "error", "invalid size", "line", line.getLine());
+                storeFailed(filename, "cannot store " + filename + " with size " + line.rest(sizeWord));
+                return;
+            }
+            if (!isValidFilename(filename) || !UploadStaging.isAligned(sizeOfFile, offset, length) || (packed && bodyCodec == null)) {
+                storeFailed(filename, "cannot store " + filename + " with range " + line.rest(sizeWord));
+                connection.receiveBody(new InboundStream(null, 0, bodyLength, (written, failure) -> { }), streamId);
+                return;
+            }
+
+            FileChannel fileOutput = null;
+            try {
+                // Staging file at its final size; the range is written straight into place as it arrives
+                fileOutput = uploads.open(filename, sizeOfFile);
+            } catch (IOException e) {
+                // The body still has to be read off the connection, it is just not kept
+                log.warn("store_failed", "user", this.nickname, "error", e.getMessage());
+                storeFailed(filename, "could not stage " + filename + ". Please store it again.");
+            }
+
+            FileChannel target = fileOutput;
+            long size = sizeOfFile;
+            long start = offset;
+            connection.receiveBody(new InboundStream(target, offset, length, bodyLength, bodyCodec,
+                    (written, failure) -> finishStore(filename, target, size, start, written, failure)), streamId);
+        }
+
+        /**
+         * Method: finishStore(String filename, FileChannel fileOutput, long size, long offset, long written, IOException failure)
+         * - Records the chunks that arrived, publishes the file if it is now complete and tells the client how it went.
+         * - Chunks received before a failure are kept, so the client can resume from there.
+         */
+        private void finishStore(String filename, FileChannel fileOutput, long size, long offset, long written, IOException failure) {
+            if (fileOutput == null) return;
+
+            // Hashing, storing and syncing the chunks takes a while; the reply goes out once it is done
+            connection.runBlocking(() -> completeStore(filename, fileOutput, size, offset, written, failure));
+        }
+
+        /**
+         * Method: completeStore(String filename, FileChannel fileOutput, long size, long offset, long written, IOException failure)
+         * - The part of finishStore that reads and writes files, run with connection.runBlocking.
+         */
+        private void completeStore(String filename, FileChannel fileOutput, long size, long offset, long written, IOException failure) {
+            boolean published = false;
+            List<Integer> rejected = new ArrayList<>();
+            try {
+                published = uploads.complete(filename, size, offset, written, fileOutput, rejected, chunkBuffer());
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+            // Close the file
+            closeQuietly(fileOutput);
+
+            // Chunks that do not match the hashes the client offered were damaged on the way: ask for them again
+            if (!rejected.isEmpty()) {
+                BitSet damaged = new BitSet();
+                for (int chunk : rejected) damaged.set(chunk);
+                log.warn("store_damaged", "user", this.nickname, "file", filename, "chunks", UploadStaging.toRanges(damaged));
+                sendMessage("CORRUPT " + filename + " " + size + " " + UploadStaging.CHUNK_SIZE + " " + UploadStaging.toRanges(damaged));
+            }
+
+            if (failure != null) {
+                // Handle exceptions related to file reception errors and print an error message
+                log.warn("store_failed", "user", this.nickname, "error", failure.getMessage());
+                storeFailed(filename, filename + " did not arrive whole. Please store it again.");
+                return;
+            }
+            if (!published) {
+                // Other chunks are still missing (or still arriving on other streams)
+                sendMessage(this.nickname + " <" + getCurrentTimestamp() + ">: Stored part of " + filename
+                        + ", chunks received: " + uploads.describe(filename, size));
+                return;
+            }
+
+            // List the new file right away, without waiting for the watcher
+            filePublished(filename);
+
+            // Output a success message indicating the received file and sender
+            log.info("stored", "user", this.nickname, "file", filename);
+
+            // Send a confirmation message back to the client indicating the successful upload
+            storeSucceeded(filename, "");
+        }
 
-            // Check if the server directory exists
-            if (!directory.exists()) {
-                sendMessage("Server directory does not exist.");
+        /**
+         * Method: storeSucceeded(String filename, String detail)
+         * - Confirms a published upload: the usual message for the user, then 'STORED <file name>' for the client to
+         *   match it by (the message reads like a chat line, which any user could type).
+         *
+         * @param detail: Added to the message, e.g. how the file was sent.
+         */
+        private void storeSucceeded(String filename, String detail) {
+            sendMessage(this.nickname + " <" + getCurrentTimestamp() + ">: Uploaded " + filename + detail);
+            sendMessage("STORED " + filename);
+        }
+
+        /**
+         * Method: storeFailed(String filename, String reason)
+         * - Refuses an upload: the reason for the user, then 'STORE_FALSE <file name> <reason>' for the client.
+         */
+        private void storeFailed(String filename, String reason) {
+            sendMessage("Server: Sorry, " + reason);
+            sendMessage("STORE_FALSE " + filename + " " + reason);
+        }
+
+        /**
+         * Method: filePublished(String filename)
+         * - Brings the catalog and the caches up to date with a file this server has just published.
+         */
+        private void filePublished(String filename) {
+            catalog.refresh(filename);
+            hotFiles.invalidate(filename);
+            compressed.invalidate(filename);
+        }
+
+        /**
+         * Method: isValidFilename(String filename)
+         * - Files are stored flat in the server directory; names with paths or a leading dot (like the staging
+         *   directory) are refused.
+         */
+        private boolean isValidFilename(String filename) {
+            return !filename.isEmpty() && !filename.startsWith(".") && !filename.contains("/") && !filename.contains("\\");
+        }
+
+        /**
+         * Method: getFile(CommandLine line)
+         * - Retrieves a file from the server (see openStored) and sends it to the client.
+         * - The length announced after FILE_EXISTS is taken from the open channel, and exactly that many bytes follow it.
+         * - '/get <file> <offset> [length]' asks for a range only, e.g. to resume an interrupted download. The reply is
+         *   FILE_RANGE, the file name and '<offset> <length> <total size>' (with frames, FILE_STREAM carries offset and
+         *   total size after the name), and the range is read with positional reads.
+         * - With a codec negotiated, a whole file is announced with its compressed length: FILE_COMPRESSED, the file
+         *   name and '<compressed length> <size> <codec>' (with frames, FILE_STREAM adds '0 <size> <codec>').
+         *
+         * @param line: The '/get' command from the client.
+         */
+        private void getFile(CommandLine line) {
+            if (line.size() < 2) {
+                sendMessage("FILE_FALSE");
+                sendMessage("Improper input. Use \"/get <file name> [<offset> [<length>]]\"");
                 return;
             }
+            String filename = line.word(2);
 
-            // Retrieve the list of files in the server directory
-            File[] files = directory.listFiles();
+            FileBody fileReader = null;
+            long sizeOfFile;
+            try {
+                // Popular files come from their shared mapping
+                fileReader = hotFiles.open(filename, catalog.get(filename), () -> openStored(filename));
 
-            // Build a string with information about the server directory
-            if (files != null && files.length > 0) {
-                directoryInfo.append("Server Directory:\n");
+                // When file does not exist
+                if (fileReader == null) {
+                    sendMessage("FILE_FALSE");
+                    sendMessage("Server: Sorry, file not found!");
+                    return;
+                }
+                sizeOfFile = fileReader.size();
+            } catch (IOException e) {
+                // Handle exceptions related to opening the file and print an error message
+                log.warn("send_failed", "user", this.nickname, "error", e.getMessage());
+                closeQuietly(fileReader);
+                sendMessage("FILE_FALSE");
+                sendMessage("Server: Sorry, file could not be read!");
+                return;
+            }
 
-                // Append the names of each file in the directory to the StringBuilder
-                for (File file : files) {
-                    directoryInfo.append(file.getName()).append("\n");
+            // Range requested: offset, and a length that defaults to the rest of the file
+            boolean ranged = line.size() > 2;
+            long offset = 0;
+            long length = sizeOfFile;
+            if (ranged) {
+                try {
+                    offset = Long.parseLong(line.word(3));
+                    length = line.size() > 3 ? Long.parseLong(line.word(4)) : sizeOfFile - offset;
+                } catch (NumberFormatException e) {
+                    offset = -1;
                 }
+                if (offset < 0 || offset > sizeOfFile || length < 0) {
+                    closeQuietly(fileReader);
+                    sendMessage("FILE_FALSE");
+                    sendMessage("Server: Sorry, invalid range for " + filename + " (size " + sizeOfFile + ")");
+                    return;
+                }
+                // A range running past the end is cut at the end of the file
+                length = Math.min(length, sizeOfFile - offset);
+            }
+
+            FileBody body = fileReader;
+            long start = offset;
+            long count = length;
+            if (this.verifies && !checksumsKnown(filename)) {
+                // The checksum of the whole file has to be computed before it can be announced
+                connection.runBlocking(() -> sendBody(filename, body, sizeOfFile, ranged, start, count));
             } else {
-                directoryInfo.append("Server directory is empty.\n");
+                sendBody(filename, body, sizeOfFile, ranged, start, count);
+            }
+        }
+
+        /**
+         * Method: sendBody(String filename, FileBody fileReader, long sizeOfFile, boolean ranged, long offset, long length)
+         * - The rest of getFile once the request is known to be good: the checksum, the announcement and the body.
+         *
+         * @param fileReader: The opened file; the connection closes it.
+         * @param ranged: Whether the client asked for a range (offset and length) rather than the whole file.
+         */
+        private void sendBody(String filename, FileBody fileReader, long sizeOfFile, boolean ranged, long offset, long length) {
+            // With '/verify', the checksum of the whole file goes ahead of it
+            if (this.verifies) {
+                try {
+                    ChecksumIndex.Checksums sums = checksumsFor(filename, fileReader);
+                    if (sums.getSize() == sizeOfFile) sendMessage("CHECKSUM " + filename + " crc32c " + Crc32c.toHex(sums.getWhole()));
+                } catch (IOException e) {
+                    log.warn("checksum_failed", "user", this.nickname, "error", e.getMessage());
+                }
+            }
+
+            // Whole files go compressed if the client asked for it and the file is worth it (ranges are sent raw)
+            FileBody packed = null;
+            if (this.codec != null && !ranged) {
+                packed = openCompressed(filename);
+                if (packed != null) {
+                    closeQuietly(fileReader);
+                    fileReader = packed;
+                    length = packed.size();
+                }
+            }
+
+            // Announce the file and its length before the body
+            int streamId = Frame.CONTROL_STREAM;
+            if (this.usesFrames) {
+                // One line, so the client can tell concurrent downloads apart by stream id
+                streamId = this.nextStreamId;
+                this.nextStreamId += 2;
+                sendMessage("FILE_STREAM " + streamId + " " + length + " " + filename
+                        + (ranged || packed != null ? " " + offset + " " + sizeOfFile : "")
+                        + (packed != null ? " " + this.codec.name() : ""));
+            } else if (packed != null) {
+                sendMessage("FILE_COMPRESSED");
+                sendMessage(filename);
+                sendMessage(length + " " + sizeOfFile + " " + this.codec.name());
+            } else if (ranged) {
+                sendMessage("FILE_RANGE");
+                sendMessage(filename);
+                sendMessage(offset + " " + length + " " + sizeOfFile);
+            } else {
+                sendMessage("FILE_EXISTS");
+                sendMessage(filename);
+                sendMessage(String.valueOf(sizeOfFile));
+            }
+
+            // Send the body straight from the page cache into the socket; the connection closes the file
+            connection.sendFile(fileReader, offset, length, streamId);
+        }
+
+        /**
+         * Method: sendFileSize(CommandLine line)
+         * - Handles '/stat <file name>': replies 'STAT <file name> <size>', or 'STAT_FALSE <file name>'.
+         */
+        private void sendFileSize(CommandLine line) {
+            String filename = line.size() > 1 ? line.word(2) : "";
+            FileCatalog.Entry entry = isValidFilename(filename) ? catalog.get(filename) : null;
+            if (entry == null) {
+                sendMessage("STAT_FALSE " + filename);
+            } else {
+                sendMessage("STAT " + filename + " " + entry.getSize());
+            }
+        }
+
+        /**
+         * Method: sendMatches(CommandLine line)
+         * - Handles '/match <pattern>', which a client sends before fetching many files back-to-back: replies
+         *   'MATCH <name> <name> ...' lines of up to MATCH_BATCH names, then 'MATCH_END <pattern> <count>'.
+         * - Names never contain spaces (the commands are split on them), so a line carries them as they are.
+         */
+        private void sendMatches(CommandLine line) {
+            if (line.size() != 2) {
+                sendMessage("Improper input. Use \"/match <pattern>\"");
+                return;
+            }
+            String pattern = line.word(2);
+            List<String> names = catalog.match(pattern);
+            StringBuilder batch = new StringBuilder("MATCH");
+            int inBatch = 0;
+            for (String name : names) {
+                batch.append(' ').append(name);
+                if (++inBatch == MATCH_BATCH) {
+                    sendMessage(batch.toString());
+                    batch.setLength(5);
+                    inBatch = 0;
+                }
+            }
+            if (inBatch > 0) sendMessage(batch.toString());
+            sendMessage("MATCH_END " + pattern + " " + names.size());
+        }
+
+        /**
+         * Method: openCompressed(String filename)
+         * - Gets the compressed copy of a file from the cache; the first requests for it start making one and get
+         *   null until it is ready.
+         *
+         * @return The compressed copy, or null to send the file raw (not worth compressing, no copy yet, replaced in
+         *         the meantime, or compression failed).
+         */
+        private FileBody openCompressed(String filename) {
+            // The version is read around the copy, so a copy of another version is never sent
+            String version = fileVersion(filename);
+            if (version == null) return null;
+            try {
+                FileBody packed = compressed.open(filename, version, this.codec, () -> openStored(filename), () -> fileVersion(filename));
+                if (packed != null && !version.equals(fileVersion(filename))) {
+                    closeQuietly(packed);
+                    return null;
+                }
+                return packed;
+            } catch (RuntimeException e) {
+                log.warn("compress_failed", "user", this.nickname, "error", e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Method: sendDirectoryToClient(String prefix, int page)
+         * - Sends one page of the server's files, with their sizes and modification times, from the catalog.
+         *
+         * @param prefix: Only files whose names start with this are listed ("" for all).
+         * @param page: The page to send, counted from 1.
+         */
+        public void sendDirectoryToClient(String prefix, int page) {
+            FileCatalog.Page listing = catalog.list(prefix, page, config.getDirectoryPageSize());
+
+            if (listing.getTotal() == 0) {
+                sendMessage(prefix.isEmpty() ? "Server directory is empty.\n" : "No files starting with \"" + prefix + "\".\n");
+                return;
+            }
+
+            // StringBuilder to store information about the server directory (one page, so its size is bounded)
+            StringBuilder directoryInfo = new StringBuilder();
+            directoryInfo.append("Server Directory:\n");
+            for (FileCatalog.Entry entry : listing.getEntries()) {
+                directoryInfo.append(entry.getName()).append("  ").append(entry.getSize()).append(" bytes  ")
+                        .append(LISTING_TIME.format(Instant.ofEpochMilli(entry.getModified())));
+                if (entry.getChecksum() >= 0) directoryInfo.append("  crc32c ").append(Crc32c.toHex(entry.getChecksum()));
+                directoryInfo.append("\n");
+            }
+
+            // Tell the client how to get the rest
+            if (listing.getPageCount() > 1) {
+                directoryInfo.append("Page ").append(listing.getNumber()).append(" of ").append(listing.getPageCount())
+                        .append(" (").append(listing.getTotal()).append(" files)");
+                if (listing.getNumber() < listing.getPageCount()) {
+                    directoryInfo.append(", next: /dir ").append(prefix.isEmpty() ? "" : prefix + " ").append(listing.getNumber() + 1);
+                }
+                directoryInfo.append("\n");
             }
 
             // Send the directory information to the client
@@ -456,34 +1694,57 @@ public class MPServer implements Runnable {
         }
 
         /**
-         * Method: displayDirectory()
-         * - Initiates the process of sending the server directory information to the client.
+         * Method: displayDirectory(CommandLine line)
+         * - Reads the optional prefix and page of '/dir [prefix] [page]' and sends that page of the server directory.
+         * - A lone number is taken as the page; to filter by a numeric prefix, give the page as well ("/dir 2024 1").
          */
-        private void displayDirectory() {
+        private void displayDirectory(CommandLine line) {
+            // The first two words after the command, however many spaces apart
+            String first = "";
+            String second = "";
+            for (int nth = 2; nth <= line.size() && second.isEmpty(); nth++) {
+                if (line.start(nth) == line.end(nth)) continue;
+                if (first.isEmpty()) first = line.word(nth);
+                else second = line.word(nth);
+            }
+            String prefix = "";
+            int page = 1;
+            try {
+                if (!second.isEmpty()) {
+                    prefix = first;
+                    page = Integer.parseInt(second);
+                } else if (!first.isEmpty()) {
+                    if (first.chars().allMatch(Character::isDigit)) {
+                        page = Integer.parseInt(first);
+                    } else {
+                        prefix = first;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                sendMessage("Server: Sorry, usage is /dir [name prefix] [page]");
+                return;
+            }
+
             try {
                 // Call sendDirectoryToClient to retrieve and send the server directory information
-                sendDirectoryToClient();
-                // Flush the PrintWriter to ensure the information is sent to the client
-                out.flush();
+                sendDirectoryToClient(prefix, page);
             } catch (Exception e) {
                 // Handle exceptions related to sending server directory information
-                out.println("Error reading server directory: " + e.getMessage());
-                out.flush();
+                sendMessage("Error reading server directory: " + e.getMessage());
             }
         }
 
         /**
-         * Public static method: ExtractNthWord(String input, int nth)
-         * - Extracts the nth word from a given input string based on space separation.
-         *
-         * @param input: The input string from which to extract the word.
-         * @param nth:   The position of the word to be extracted.
-         * @return The nth word from the input string.
+         * Private method: closeQuietly(Closeable closeable)
+         * - Closes a file, printing rather than throwing if that fails.
          */
-        public static String ExtractNthWord(String input, int nth) {
-            // Split the input string into an array of words based on space separation
-            String[] words = input.split(" ");
-            return words[nth - 1];
+        private void closeQuietly(Closeable closeable) {
+            if (closeable == null) return;
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                log.warn("close_failed", "error", e.getMessage());
+            }
         }
 
         /**
@@ -493,18 +1754,19 @@ public class MPServer implements Runnable {
          * @return The current timestamp as a formatted string.
          */
         private String getCurrentTimestamp() {
-            // Create a SimpleDateFormat object with the desired date-time format
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            return sdf.format(new Date());
+            // One shared formatter: it is immutable, so every handler can use it at once
+            return LocalDateTime.now().format(TIMESTAMP);
         }
     }
 
     /**
      * Main Driver of the class
-     * @param args
+     * @param args: Optional server mode ("threaded", "virtual" or "nio") followed by an optional port number.
      */
     public static void main(String[] args) {
-        MPServer Server = new MPServer();
+        ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0].toUpperCase()) : ServerMode.THREADED;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        MPServer Server = new MPServer(port, mode, ServerConfig.fromSystemProperties());
         Server.run();
     }
 }
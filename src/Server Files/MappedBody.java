@@ -0,0 +1,78 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *  Class for MappedBody
+ *      - A file body served from memory-mapped pieces held by the HotFileCache, or from a chunk held by the
+ *        MemoryBlobStore.
+ *      - The pieces are shared by every download of the file; each body only keeps its own views of them, so
+ *        concurrent downloads never move each other's positions.
+ */
+public class MappedBody implements FileBody {
+    private final ByteBuffer[] pieces;
+    private final long pieceSize;
+    private final long size;
+
+    /**
+     * Constructor for MappedBody
+     *
+     * @param pieces: The mapped file, in order; all pieces but the last have the same length.
+     * @param size: The length of the whole file.
+     */
+    public MappedBody(ByteBuffer[] pieces, long size) {
+        this.pieces = pieces;
+        this.pieceSize = pieces.length > 0 ? pieces[0].capacity() : 1;
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= size) throw new EOFException("Read past the end of the cached file");
+        return target.write(slice(position, count));
+    }
+
+    @Override
+    public int read(ByteBuffer target, long position) throws IOException {
+        if (position >= size) return -1;
+        ByteBuffer slice = slice(position, target.remaining());
+        int bytesRead = slice.remaining();
+        target.put(slice);
+        return bytesRead;
+    }
+
+    @Override
+    public boolean isImmutable() {
+        return true;
+    }
+
+    @Override
+    public ByteBuffer[] map() {
+        return pieces;
+    }
+
+    @Override
+    public void close() {
+        // The mapping belongs to the cache and is released once it is evicted and no download uses it
+    }
+
+    /**
+     * Method: slice(long position, long count)
+     *
+     * @return A view of up to count bytes from position, within the one piece the position falls in.
+     */
+    private ByteBuffer slice(long position, long count) {
+        int index = (int) (position / pieceSize);
+        int offset = (int) (position - index * pieceSize);
+        ByteBuffer slice = pieces[index].duplicate();
+        slice.position(offset);
+        slice.limit((int) Math.min(slice.capacity(), offset + count));
+        return slice;
+    }
+}
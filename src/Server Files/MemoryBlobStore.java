@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ *  Class for MemoryBlobStore
+ *      - A BlobStore that keeps chunks and manifests in memory only (fes.store.backend=memory): they are never
+ *        written to disk and are gone when the server stops. Meant for trying the server out and for measuring it
+ *        without the disk in the way.
+ *      - Uploads still arrive into staging files (they are written in place as their ranges come in); those, and
+ *        the caches, live in a temporary directory of this store's own, deleted when the server stops.
+ *      - Chunks are kept as read-only buffers and downloaded from them directly (see MappedBody).
+ *      - As on disk, chunks no file refers to any more are kept.
+ */
+public class MemoryBlobStore implements BlobStore {
+    private final ConcurrentHashMap<String, ByteBuffer> blobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Stored> manifests = new ConcurrentHashMap<>();
+
+    // Temporary directory for staging and caches, made by open(); a fresh name, so two servers never share one
+    private final File workDirectory = new File(System.getProperty("java.io.tmpdir"), "fes-memory-store-" + UUID.randomUUID());
+
+    /**
+     * Class for Stored
+     *      - A manifest and when it was written.
+     */
+    private static final class Stored {
+        private final Manifest manifest;
+        private final long modified;
+
+        Stored(Manifest manifest, long modified) {
+            this.manifest = manifest;
+            this.modified = modified;
+        }
+    }
+
+    @Override
+    public void open() throws IOException {
+        Files.createDirectories(workDirectory.toPath());
+
+        // A server stopped with Ctrl+C never gets to close the store
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                // Left for the system to clear away with the rest of its temporary files
+            }
+        }, "memory-store-cleanup"));
+    }
+
+    @Override
+    public File workDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * Method: close()
+     *      - Deletes the temporary directory and everything staged or cached in it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!workDirectory.isDirectory()) return;
+        try (Stream<Path> files = Files.walk(workDirectory.toPath())) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Override
+    public boolean has(String hash) {
+        return blobs.containsKey(hash);
+    }
+
+    @Override
+    public void put(String hash, ByteBuffer data) {
+        blobs.computeIfAbsent(hash, key -> {
+            // A copy, as the caller reuses its buffer
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data.duplicate()).flip();
+            return copy.asReadOnlyBuffer();
+        });
+    }
+
+    @Override
+    public FileBody openBlob(String hash) throws FileNotFoundException {
+        ByteBuffer blob = blobs.get(hash);
+        if (blob == null) throw new FileNotFoundException("No stored chunk " + hash);
+        return new MappedBody(new ByteBuffer[] {blob}, blob.capacity());
+    }
+
+    @Override
+    public void writeManifest(String filename, Manifest manifest) {
+        // Copies of the lists, as the caller may reuse its arrays
+        Manifest copy = new Manifest(manifest.getSize(), manifest.getChunkSize(), manifest.getHashes().clone(),
+                manifest.getCrcs().clone());
+        manifests.put(filename, new Stored(copy, System.currentTimeMillis()));
+    }
+
+    @Override
+    public Manifest readManifest(String filename) {
+        Stored stored = manifests.get(filename);
+        return stored == null ? null : stored.manifest;
+    }
+
+    @Override
+    public long lastModified(String filename) {
+        Stored stored = manifests.get(filename);
+        return stored == null ? 0 : stored.modified;
+    }
+
+    @Override
+    public List<String> names() {
+        return new ArrayList<>(manifests.keySet());
+    }
+}
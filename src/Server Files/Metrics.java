@@ -0,0 +1,287 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ *  Class for Metrics
+ *      - Counters, gauges and latency histograms of the server's hot paths, cheap enough to update on every command
+ *        and every write: counters are LongAdders, histograms are LatencyHistograms, gauges are only read on demand.
+ *      - Commands are timed per name (COMMANDS); everything else counts under "other".
+ *      - Read out as Prometheus-style plain text (scrape, or HTTP GET /metrics when a port is configured) and
+ *        through JMX as the MBean "FileExchange:type=Metrics", one attribute per value.
+ */
+public final class Metrics {
+    // Commands that get their own counter and histogram
+    private static final String[] COMMANDS = {"/store", "/get", "/dir", "/chat", "/chatuni"};
+
+    // Seconds the transfer rate is averaged over
+    private static final int RATE_WINDOW = 10;
+
+    // Shared by the server's connections and handlers
+    private static final Metrics SHARED = new Metrics();
+
+    private final Map<String, LongAdder> commandCounts;
+    private final Map<String, LatencyHistogram> commandLatencies;
+    private final Map<String, LongSupplier> gauges;
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder fileBytesOut = new LongAdder();
+    private final LongAdder queuedLineBytes = new LongAdder();
+
+    // File bytes sent per second, for the last RATE_WINDOW seconds: slot (second % RATE_WINDOW), and its second
+    private final AtomicLongArray rateBytes = new AtomicLongArray(RATE_WINDOW);
+    private final AtomicLongArray rateSeconds = new AtomicLongArray(RATE_WINDOW);
+
+    private HttpServer http;
+
+    /**
+     * Constructor for Metrics
+     */
+    private Metrics() {
+        this.commandCounts = new ConcurrentHashMap<>();
+        this.commandLatencies = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+        for (String command : COMMANDS) {
+            commandCounts.put(command, new LongAdder());
+            commandLatencies.put(command, new LatencyHistogram());
+        }
+        commandCounts.put("other", new LongAdder());
+        commandLatencies.put("other", new LatencyHistogram());
+    }
+
+    /**
+     * Method: shared()
+     *
+     * @return The metrics shared by the whole server.
+     */
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * Method: command(String command, long nanos)
+     *      - Counts one handled command and how long handling it took.
+     */
+    public void command(String command, long nanos) {
+        LongAdder count = commandCounts.get(command);
+        String name = count != null ? command : "other";
+        if (count == null) count = commandCounts.get(name);
+        count.increment();
+        commandLatencies.get(name).record(nanos);
+    }
+
+    /**
+     * Method: bytesIn(long bytes)
+     *      - Counts bytes read from clients (commands and uploads).
+     */
+    public void bytesIn(long bytes) {
+        if (bytes > 0) bytesIn.add(bytes);
+    }
+
+    /**
+     * Method: bytesOut(long bytes)
+     *      - Counts bytes written to clients (replies, messages and downloads).
+     */
+    public void bytesOut(long bytes) {
+        if (bytes > 0) bytesOut.add(bytes);
+    }
+
+    /**
+     * Method: fileBytesOut(long bytes)
+     *      - Counts bytes of file bodies written to clients (also counted by bytesOut), for the transfer rate.
+     */
+    public void fileBytesOut(long bytes) {
+        if (bytes <= 0) return;
+        fileBytesOut.add(bytes);
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % RATE_WINDOW);
+        if (rateSeconds.get(slot) != second) {
+            // First bytes of a new second in this slot: the old count is RATE_WINDOW seconds stale
+            long old = rateSeconds.get(slot);
+            if (rateSeconds.compareAndSet(slot, old, second)) rateBytes.set(slot, 0);
+        }
+        rateBytes.addAndGet(slot, bytes);
+    }
+
+    /**
+     * Method: queuedLines(long bytes)
+     *      - Tracks bytes of lines waiting in outbound queues: positive when queued, negative when written or dropped.
+     */
+    public void queuedLines(long bytes) {
+        queuedLineBytes.add(bytes);
+    }
+
+    /**
+     * Method: gauge(String name, LongSupplier value)
+     *      - Adds a value that is read whenever the metrics are, e.g. the number of connected clients.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Method: transferRate()
+     *
+     * @return File bytes sent per second, averaged over the last RATE_WINDOW full seconds.
+     */
+    public long transferRate() {
+        long now = System.currentTimeMillis() / 1000;
+        long bytes = 0;
+        for (int slot = 0; slot < RATE_WINDOW; slot++) {
+            long second = rateSeconds.get(slot);
+            if (second < now && second >= now - RATE_WINDOW) bytes += rateBytes.get(slot);
+        }
+        return bytes / RATE_WINDOW;
+    }
+
+    /**
+     * Method: snapshot()
+     *
+     * @return Every value by name, in Prometheus form ('name{label="value"}'); latencies in microseconds.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> count : commandCounts.entrySet()) {
+            String label = "{command=\"" + count.getKey() + "\"}";
+            LatencyHistogram latency = commandLatencies.get(count.getKey());
+            values.put("fes_commands_total" + label, count.getValue().sum());
+            values.put("fes_command_latency_us_sum" + label, latency.getSum() / 1000);
+            values.put("fes_command_latency_us_max" + label, latency.getMax() / 1000);
+            for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+                values.put("fes_command_latency_us{command=\"" + count.getKey() + "\",quantile=\"" + quantile + "\"}",
+                        latency.percentile(Double.parseDouble(quantile)) / 1000);
+            }
+        }
+        values.put("fes_bytes_in_total", bytesIn.sum());
+        values.put("fes_bytes_out_total", bytesOut.sum());
+        values.put("fes_file_bytes_out_total", fileBytesOut.sum());
+        values.put("fes_transfer_bytes_per_second", transferRate());
+        values.put("fes_outbound_queued_bytes", queuedLineBytes.sum());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * Method: scrape()
+     *
+     * @return The metrics as plain text, one 'name value' line each (the Prometheus text format).
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+            text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Method: registerJmx()
+     *      - Publishes the metrics as the MBean "FileExchange:type=Metrics" (see JmxView).
+     */
+    public void registerJmx() {
+        try {
+            ObjectName name = new ObjectName("FileExchange:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxView(), name);
+            }
+        } catch (JMException e) {
+            ServerLog.shared().warn("jmx_failed", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Method: startHttp(int port)
+     *      - Serves the plain-text metrics at http://<host>:<port>/metrics on a daemon thread.
+     */
+    public synchronized void startHttp(int port) throws IOException {
+        if (http != null) return;
+        http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+    }
+
+    /**
+     * Method: stopHttp()
+     *      - Stops serving the metrics over HTTP.
+     */
+    public synchronized void stopHttp() {
+        if (http != null) http.stop(0);
+        http = null;
+    }
+
+    /**
+     *  Class for JmxView
+     *      - The metrics as read-only JMX attributes, named like the scrape lines, read fresh on every access.
+     */
+    private final class JmxView implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) list.add(new Attribute(attribute, values.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "File exchange server metrics", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,568 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  Class for NioConnection
+ *      - A non-blocking client connection served by an EventLoop.
+ *      - Splits incoming bytes into command lines for the handler, or into a file body after /store,
+ *        and writes its OutboundQueue whenever the socket can take more.
+ *      - After a client switches to binary frames, the same split is driven by frame headers instead, and any number
+ *        of uploads can be in progress at once, each fed by the DATA frames of its stream.
+ *      - File work the handler hands over (see runBlocking) runs on a worker; the connection stops reading meanwhile
+ *        and picks up where it left off once the work is done.
+ */
+public class NioConnection implements ClientConnection {
+    // Size of the per-connection buffer used while reading command lines
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+    // Longest command line accepted before the client is considered broken
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Bytes written to one connection per turn, so a large download does not starve the loop's other clients
+    private static final long WRITE_QUOTA = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Executor workers;
+    private final String remoteAddress;
+    private final ByteBuffer readBuffer;
+    private final OutboundQueue outbound;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final AtomicBoolean flushScheduled;
+
+    // Set by the scheduler's wakeup, so a wakeup racing with the end of a held-back flush is not lost
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private volatile boolean closed;
+    private SelectionKey key;
+    private MPServer.ServerClientHandler handler;
+
+    // Line framing state
+    private byte[] lineBytes;
+    private int lineLength;
+
+    // Binary framing state: the header being assembled, then the type and unread payload of the current frame
+    private boolean frames;
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private byte frameType;
+    private int frameRemaining;
+    private InboundStream frameBody;
+
+    // Set once the handler has ended the session; later input is ignored
+    private boolean ending;
+
+    // Line protocol: the /store body that the next bytes belong to
+    private InboundStream body;
+
+    // Frames: uploads in progress by stream id
+    private final Map<Integer, InboundStream> streams = new HashMap<>();
+
+    // Pooled direct buffer held only while uploads are being received
+    private ByteBuffer bodyBuffer;
+
+    // Work handed to the workers and not yet done, oldest first; nothing is read while there is any (loop thread only)
+    private final ArrayDeque<Runnable> blocking = new ArrayDeque<>();
+
+    // Bytes read before the work began and not yet processed
+    private ByteBuffer pending;
+
+    // Whether a flush waits for the socket to take more
+    private boolean awaitingWritable;
+
+    /**
+     * Constructor for NioConnection
+     *
+     * @param channel: The accepted client channel; it is switched to non-blocking mode.
+     * @param loop: The event loop that will serve this connection.
+     * @param workers: Runs the file work the handler hands over with runBlocking.
+     * @param config: The server settings (outbound limit and overflow policy).
+     */
+    public NioConnection(SocketChannel channel, EventLoop loop, Executor workers, ServerConfig config) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        this.channel.configureBlocking(false);
+        this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.outbound = new OutboundQueue(config.getOutboundLimit());
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.flushScheduled = new AtomicBoolean();
+        this.lineBytes = new byte[256];
+    }
+
+    /**
+     * Method: start(MPServer.ServerClientHandler handler)
+     *      - Registers the connection with its loop and greets the client from the loop thread.
+     *
+     * @param handler: The handler that receives this connection's command lines.
+     */
+    public void start(MPServer.ServerClientHandler handler) {
+        this.handler = handler;
+        loop.execute(() -> {
+            try {
+                this.key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+                handler.onConnect();
+                // Lines queued before the key existed still need a flush
+                scheduleFlush();
+            } catch (IOException e) {
+                closeNow();
+            }
+        });
+    }
+
+    @Override
+    public void sendLine(String line) {
+        outbound.addLine(line);
+        scheduleFlush();
+    }
+
+    @Override
+    public void offerLine(String line) {
+        if (outbound.offerLine(line)) {
+            scheduleFlush();
+        } else if (overflowPolicy == OutboundQueue.OverflowPolicy.DISCONNECT) {
+            ServerLog.shared().warn("disconnect_slow", "client", remoteAddress);
+            close();
+        }
+    }
+
+    @Override
+    public void sendFile(FileBody file, long position, long count, int streamId) {
+        outbound.addFile(file, position, count, streamId);
+        scheduleFlush();
+    }
+
+    @Override
+    public void setTransferAccount(TransferScheduler.Account account) {
+        outbound.throttleWith(account, this::wakeUp);
+    }
+
+    @Override
+    public void runBlocking(Runnable work) {
+        // Called on the loop thread; the work of one client runs in order, one piece at a time
+        blocking.add(work);
+        if (blocking.size() == 1) {
+            updateInterest();
+            startWork(work);
+        }
+    }
+
+    @Override
+    public void startFrames() {
+        // Called from handler.handleLine on the loop thread; the client's next byte starts a frame header
+        outbound.addLine(Frame.ACCEPTED);
+        outbound.addSwitchToFrames();
+        scheduleFlush();
+        frames = true;
+        frameHeader.clear();
+    }
+
+    @Override
+    public void receiveBody(InboundStream upload, int streamId) {
+        // Called from handler.handleLine on the loop thread
+        if (upload.remaining() == 0) {
+            upload.finish(null);
+        } else if (frames) {
+            // Fed by the stream's DATA frames from now on
+            if (streams.putIfAbsent(streamId, upload) != null) upload.finish(new IOException("Stream " + streamId + " is already in use"));
+        } else {
+            // The rest of the current read buffer is body
+            this.body = upload;
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void close() {
+        if (loop.inLoop()) closeNow();
+        else loop.execute(this::closeNow);
+    }
+
+    @Override
+    public void closeAfterFlush() {
+        outbound.addClose();
+        scheduleFlush();
+    }
+
+    /**
+     * Method: onReadable()
+     *      - Called by the loop when the socket has bytes; reads once and processes what arrived.
+     */
+    void onReadable() {
+        // Reads stay off while work is running; a readiness reported before that waits for it
+        if (!blocking.isEmpty()) return;
+
+        ByteBuffer buffer = receivingBody() ? bodyBuffer() : readBuffer;
+        try {
+            buffer.clear();
+            int bytesRead = channel.read(buffer);
+            if (bytesRead < 0) {
+                closeNow();
+                return;
+            }
+            Metrics.shared().bytesIn(bytesRead);
+        } catch (IOException e) {
+            ServerLog.shared().warn("read_failed", "client", remoteAddress, "error", e.getMessage());
+            closeNow();
+            return;
+        }
+        buffer.flip();
+        parse(buffer);
+    }
+
+    /**
+     * Method: parse(ByteBuffer buffer)
+     *      - Processes the bytes read, keeping the rest for later if the handler handed over work meanwhile.
+     */
+    private void parse(ByteBuffer buffer) {
+        try {
+            process(buffer);
+            if (closed) return;
+
+            if (!blocking.isEmpty() && buffer.hasRemaining()) {
+                // The next commands wait for the work; this buffer is not read into until then
+                pending = buffer;
+                return;
+            }
+
+            // Only give the body buffer back once nothing in it is left to parse
+            if (!receivingBody() && bodyBuffer != null) {
+                BufferPool.shared().release(bodyBuffer);
+                bodyBuffer = null;
+            }
+        } catch (IOException e) {
+            ServerLog.shared().warn("read_failed", "client", remoteAddress, "error", e.getMessage());
+            closeNow();
+        } catch (RuntimeException e) {
+            // A command that failed halfway leaves the rest of this read unparsed and its replies unknown to the client,
+            // so the connection cannot go on; the loop's other clients are not affected
+            ServerLog.shared().error("command_failed", "client", remoteAddress, "error", e);
+            closeNow();
+        }
+    }
+
+    /**
+     * Method: onWritable()
+     *      - Called by the loop when the socket can take more bytes.
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Method: process(ByteBuffer buffer)
+     *      - Feeds the bytes to the body being received, or splits them into lines for the handler.
+     */
+    private void process(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && !closed && !ending && blocking.isEmpty()) {
+            if (frames) {
+                processFrames(buffer);
+                continue;
+            }
+            if (body != null) {
+                consumeBody(body, buffer, buffer.remaining());
+                if (body.remaining() == 0) finishBody(null);
+                continue;
+            }
+
+            byte b = buffer.get();
+            if (b != '\n') {
+                if (lineLength == MAX_LINE_LENGTH) throw new IOException("Command line too long");
+                if (lineLength == lineBytes.length) lineBytes = Arrays.copyOf(lineBytes, lineLength * 2);
+                lineBytes[lineLength++] = b;
+                continue;
+            }
+
+            // A complete line: hand it to the handler, which may switch us into body mode
+            int length = lineLength;
+            if (length > 0 && lineBytes[length - 1] == '\r') length--;
+            lineLength = 0;
+            dispatch(new String(lineBytes, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Method: processFrames(ByteBuffer buffer)
+     *      - Consumes frame bytes: assembles the header, then routes the payload by frame type.
+     *      - COMMAND frames go to the handler even while uploads are in progress; DATA frames feed their stream's upload.
+     */
+    private void processFrames(ByteBuffer buffer) throws IOException {
+        // Assemble the header of the next frame
+        if (frameHeader.hasRemaining()) {
+            while (frameHeader.hasRemaining() && buffer.hasRemaining()) {
+                frameHeader.put(buffer.get());
+            }
+            if (frameHeader.hasRemaining()) return;
+
+            frameHeader.flip();
+            byte version = frameHeader.get();
+            frameType = frameHeader.get();
+            int streamId = frameHeader.getInt();
+            frameRemaining = frameHeader.getInt();
+            Frame.checkHeader(version, frameRemaining);
+
+            if (frameType == Frame.TYPE_DATA) {
+                frameBody = streams.get(streamId);
+                if (frameBody == null || frameRemaining > frameBody.remaining()) {
+                    throw new IOException("Unexpected DATA frame for stream " + streamId);
+                }
+                if (frameBody.remaining() == frameRemaining) {
+                    // Last frame of the upload: it leaves the table now, and is finished once its bytes are written
+                    streams.remove(streamId);
+                }
+            } else if (frameType != Frame.TYPE_COMMAND) {
+                throw new IOException("Unexpected frame type " + frameType);
+            }
+            lineLength = 0;
+        }
+
+        if (frameType == Frame.TYPE_DATA) {
+            frameRemaining -= consumeBody(frameBody, buffer, frameRemaining);
+        } else {
+            int count = Math.min(buffer.remaining(), frameRemaining);
+            if (lineBytes.length < lineLength + count) lineBytes = Arrays.copyOf(lineBytes, Math.max(lineLength + count, lineBytes.length * 2));
+            buffer.get(lineBytes, lineLength, count);
+            lineLength += count;
+            frameRemaining -= count;
+        }
+        if (frameRemaining > 0) return;
+
+        // Frame complete: the next byte starts a new header
+        frameHeader.clear();
+        if (frameType == Frame.TYPE_DATA) {
+            InboundStream completed = frameBody;
+            frameBody = null;
+            if (completed.remaining() == 0) completed.finish(null);
+        } else {
+            String line = new String(lineBytes, 0, lineLength, StandardCharsets.UTF_8);
+            lineLength = 0;
+            dispatch(line);
+        }
+    }
+
+    /**
+     * Method: dispatch(String line)
+     *      - Hands a complete command to the handler, which may switch us into body mode or into frames.
+     */
+    private void dispatch(String line) {
+        if (!handler.handleLine(line)) {
+            // The handler ended the session; let queued replies go out first and ignore anything sent after
+            closeAfterFlush();
+            ending = true;
+        }
+    }
+
+    /**
+     * Method: consumeBody(InboundStream upload, ByteBuffer buffer, int max)
+     *      - Writes up to max body bytes from the buffer into the upload.
+     *
+     * @return The number of bytes consumed from the buffer.
+     */
+    private int consumeBody(InboundStream upload, ByteBuffer buffer, int max) {
+        int count = (int) Math.min(Math.min(buffer.remaining(), max), upload.remaining());
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + count);
+        buffer.position(slice.limit());
+        upload.write(slice);
+        return count;
+    }
+
+    /**
+     * Method: finishBody(IOException failure)
+     *      - Line protocol: leaves body mode and reports the outcome to the handler.
+     */
+    private void finishBody(IOException failure) {
+        InboundStream completed = body;
+        body = null;
+        completed.finish(failure);
+    }
+
+    /**
+     * Method: startWork(Runnable work)
+     *      - Runs the work on a worker, then has the loop go on with the next piece or with reading.
+     */
+    private void startWork(Runnable work) {
+        workers.execute(() -> {
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                ServerLog.shared().error("command_failed", "client", remoteAddress, "error", e);
+                close();
+            } finally {
+                loop.execute(this::workDone);
+            }
+        });
+    }
+
+    /**
+     * Method: workDone()
+     *      - Runs on the loop once a piece of work has finished.
+     */
+    private void workDone() {
+        blocking.remove();
+        if (!blocking.isEmpty()) {
+            // Work is still carried out after a close, so uploads keep what they received
+            startWork(blocking.peek());
+            return;
+        }
+        if (closed) return;
+
+        // Go on with the commands that arrived meanwhile, then with reading
+        ByteBuffer buffer = pending;
+        pending = null;
+        if (buffer != null) parse(buffer);
+        if (!closed) updateInterest();
+    }
+
+    /**
+     * Method: updateInterest()
+     *      - Watches the socket for reads unless work is running, and for writes while a flush waits for them.
+     */
+    private void updateInterest() {
+        if (key == null || !key.isValid()) return;
+        int ops = blocking.isEmpty() ? SelectionKey.OP_READ : 0;
+        if (awaitingWritable) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /**
+     * Method: receivingBody()
+     *
+     * @return True while at least one upload is in progress.
+     */
+    private boolean receivingBody() {
+        return body != null || frameBody != null || !streams.isEmpty();
+    }
+
+    /**
+     * Method: bodyBuffer()
+     *
+     * @return A pooled direct buffer held only while a body is being received.
+     */
+    private ByteBuffer bodyBuffer() {
+        if (bodyBuffer == null) bodyBuffer = BufferPool.shared().acquire();
+        return bodyBuffer;
+    }
+
+    /**
+     * Method: scheduleFlush()
+     *      - Asks the loop to flush, unless a flush is already pending.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    /**
+     * Method: flush()
+     *      - Writes the outbound queue until it is empty, the socket is full or the write quota is used up.
+     */
+    private void flush() {
+        if (closed) {
+            // Entries queued after the close still hold files
+            outbound.clear();
+            flushScheduled.set(false);
+            return;
+        }
+        if (key == null) {
+            flushScheduled.set(false);
+            return;
+        }
+        try {
+            OutboundQueue.FlushResult result = outbound.flushTo(channel, WRITE_QUOTA);
+            if (result == OutboundQueue.FlushResult.CLOSE) {
+                closeNow();
+                return;
+            }
+            if (result == OutboundQueue.FlushResult.PENDING) {
+                // Socket buffer full (or quota reached): continue on the next writable event
+                waitForWritable();
+                return;
+            }
+            if (result == OutboundQueue.FlushResult.THROTTLED) {
+                // Held back by the scheduler: continue on its wakeup, not on the socket
+                awaitingWritable = false;
+                updateInterest();
+                flushScheduled.set(false);
+                if (woken.getAndSet(false)) scheduleFlush();
+                return;
+            }
+
+            // Everything written: stop watching for writability
+            awaitingWritable = false;
+            updateInterest();
+            flushScheduled.set(false);
+
+            // An entry queued after the queue ran empty but before the flag was cleared would otherwise wait forever
+            if (!outbound.isEmpty()) scheduleFlush();
+        } catch (IOException e) {
+            ServerLog.shared().warn("write_failed", "client", remoteAddress, "error", e.getMessage());
+            closeNow();
+        }
+    }
+
+    /**
+     * Method: wakeUp()
+     *      - Run by the transfer scheduler once a held-back download may go on.
+     */
+    private void wakeUp() {
+        woken.set(true);
+        scheduleFlush();
+    }
+
+    /**
+     * Method: waitForWritable()
+     *      - Keeps the flush pending and resumes it from onWritable().
+     */
+    private void waitForWritable() {
+        awaitingWritable = true;
+        updateInterest();
+    }
+
+    /**
+     * Method: closeNow()
+     *      - Closes the socket and releases queued files and buffers. Runs on the loop thread.
+     */
+    private void closeNow() {
+        if (closed) return;
+        closed = true;
+
+        // Uploads still in progress end with an error so their files are closed
+        EOFException failure = new EOFException("Connection closed during file upload");
+        if (body != null) finishBody(failure);
+        if (frameBody != null && !streams.containsValue(frameBody)) frameBody.finish(failure);
+        for (InboundStream upload : streams.values()) {
+            upload.finish(failure);
+        }
+        streams.clear();
+        frameBody = null;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.shared().warn("close_failed", "client", remoteAddress, "error", e.getMessage());
+        }
+
+        outbound.clear();
+        pending = null;
+        if (bodyBuffer != null) {
+            BufferPool.shared().release(bodyBuffer);
+            bodyBuffer = null;
+        }
+
+        // Let the handler leave the client registry
+        if (handler != null) handler.disconnect();
+    }
+}
@@ -0,0 +1,448 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Class for OutboundQueue
+ *      - Everything waiting to be written to one client: text lines, file bodies and a final close request.
+ *      - Any thread may add to the queue; only the connection's writer drains it.
+ *      - Lines are encoded by the writer, in whichever format (line protocol or frames) is in force when they go out.
+ *      - Consecutive lines are coalesced into one gathering write.
+ *      - With frames, queued file bodies become streams that take turns one DATA frame at a time, and lines are
+ *        written between frames, so chat and replies never wait behind a download.
+ *      - Chat messages from other clients are bounded: past the limit the overflow policy decides what happens.
+ *      - File bytes are paid for with tokens of the client's TransferScheduler account, if it has one; lines are not.
+ */
+public class OutboundQueue {
+    // Most lines coalesced into one gathering write
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * What to do with a client whose queued chat messages exceed the limit
+     *  - DROP: discard the new message for that client only.
+     *  - DISCONNECT: close that client's connection.
+     */
+    public enum OverflowPolicy {
+        DROP,
+        DISCONNECT
+    }
+
+    /**
+     * Result of a flush
+     *  - EMPTY: everything queued has been written.
+     *  - PENDING: the socket is full or the quota is used up; flush again when it can take more.
+     *  - CLOSE: every entry before the close request has been written; the connection should close now.
+     *  - THROTTLED: only file bytes are left and the scheduler holds them back; flush again once it runs the wakeup.
+     */
+    public enum FlushResult {
+        EMPTY,
+        PENDING,
+        CLOSE,
+        THROTTLED
+    }
+
+    /**
+     * Class for FileRegion
+     *      - A queued file body waiting to be written.
+     */
+    private static final class FileRegion {
+        private final FileBody file;
+        private final int streamId;
+        private long position;
+        private long remaining;
+
+        // In frame mode: the header of the current DATA frame and the body bytes it still covers
+        private ByteBuffer frameHeader;
+        private long frameRemaining;
+
+        private FileRegion(FileBody file, long position, long count, int streamId) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.streamId = streamId;
+        }
+
+        // Whether a DATA frame of this region has been started but not finished
+        private boolean inFrame() {
+            return frameHeader != null || frameRemaining > 0;
+        }
+    }
+
+    // Queued after the last reply of a session so the connection closes once it has been written
+    private static final Object CLOSE_MARKER = new Object();
+
+    // Queued after the reply accepting binary framing; everything behind it is written as frames
+    private static final Object FRAMES_MARKER = new Object();
+
+    private final ConcurrentLinkedQueue<Object> entries;
+    private final AtomicLong queuedLineBytes;
+    private final AtomicLong droppedMessages;
+    private final long limit;
+
+    // Whether the writer has passed FRAMES_MARKER (writer only)
+    private boolean frames;
+
+    // Frame mode: file bodies being sent, in the order they take their next turn (writer only)
+    private final ArrayDeque<FileRegion> streams;
+
+    // Pays for file bytes, and is run by the scheduler once a held-back transfer may go on (null: no limits)
+    private volatile TransferScheduler.Account account;
+    private volatile Runnable wakeup;
+
+    // Whether the last attempt to send file bytes was held back by the scheduler (writer only)
+    private boolean held;
+
+    // Lines taken off the queue for the current gathering write (writer only)
+    private final ByteBuffer[] batch;
+    private int batchStart;
+    private int batchEnd;
+
+    /**
+     * Constructor for OutboundQueue
+     *
+     * @param limit: Bytes of queued lines above which offered chat messages are refused.
+     */
+    public OutboundQueue(long limit) {
+        this.entries = new ConcurrentLinkedQueue<>();
+        this.queuedLineBytes = new AtomicLong();
+        this.droppedMessages = new AtomicLong();
+        this.limit = limit;
+        this.batch = new ByteBuffer[MAX_BATCH];
+        this.streams = new ArrayDeque<>();
+    }
+
+    /**
+     * Method: addLine(String line)
+     *      - Queues a reply for the client. Replies are part of the protocol and are never dropped.
+     */
+    public void addLine(String line) {
+        queuedLineBytes.addAndGet(line.length());
+        Metrics.shared().queuedLines(line.length());
+        entries.add(line);
+    }
+
+    /**
+     * Method: offerLine(String line)
+     *      - Queues a chat message from another client unless this client is already too far behind.
+     *
+     * @return False if the message was refused; the caller applies the overflow policy.
+     */
+    public boolean offerLine(String line) {
+        if (queuedLineBytes.get() + line.length() > limit) {
+            droppedMessages.incrementAndGet();
+            return false;
+        }
+        queuedLineBytes.addAndGet(line.length());
+        Metrics.shared().queuedLines(line.length());
+        entries.add(line);
+        return true;
+    }
+
+    /**
+     * Method: addFile(FileBody file, long position, long count, int streamId)
+     *      - Queues a file body; the queue closes it once it has been written or discarded.
+     *
+     * @param streamId: The stream the body's DATA frames belong to (ignored by the line protocol).
+     */
+    public void addFile(FileBody file, long position, long count, int streamId) {
+        entries.add(new FileRegion(file, position, count, streamId));
+    }
+
+    /**
+     * Method: addSwitchToFrames()
+     *      - Everything queued after this point is written as binary frames.
+     */
+    public void addSwitchToFrames() {
+        entries.add(FRAMES_MARKER);
+    }
+
+    /**
+     * Method: addClose()
+     *      - Asks the writer to close the connection after everything queued so far.
+     */
+    public void addClose() {
+        entries.add(CLOSE_MARKER);
+    }
+
+    /**
+     * Method: throttleWith(TransferScheduler.Account account, Runnable wakeup)
+     *      - From now on file bytes are paid for from the account; a flush held back by it returns THROTTLED, and
+     *        wakeup is run once it may go on.
+     */
+    public void throttleWith(TransferScheduler.Account account, Runnable wakeup) {
+        this.wakeup = wakeup;
+        this.account = account;
+    }
+
+    /**
+     * Method: isEmpty()
+     *
+     * @return True if nothing is waiting to be written.
+     */
+    public boolean isEmpty() {
+        return batchStart == batchEnd && streams.isEmpty() && entries.isEmpty();
+    }
+
+    /**
+     * Method: getDroppedMessages()
+     *
+     * @return The number of chat messages refused because this client was too far behind.
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Method: flushTo(WritableByteChannel channel, long quota)
+     *      - Writes queued entries in order until the queue is empty, the channel stops taking bytes or quota bytes were written.
+     *      - Frames: a started DATA frame is always finished first, then queued lines, then the next stream's turn.
+     *      - Works with blocking channels (which always make progress) and non-blocking ones (which may take nothing).
+     *      - Must only be called by the connection's writer.
+     */
+    public FlushResult flushTo(WritableByteChannel channel, long quota) throws IOException {
+        long written = 0;
+
+        while (written < quota) {
+            // Finish the current batch of lines first
+            if (batchStart < batchEnd) {
+                long sent = writeBatch(channel);
+                written += sent;
+                if (batchStart < batchEnd) {
+                    if (sent == 0) return FlushResult.PENDING;
+                    continue;
+                }
+            }
+
+            // A DATA frame on the wire cannot be interrupted
+            FileRegion current = streams.peek();
+            if (current != null && current.inFrame()) {
+                long sent = writeStreamTurn(channel, quota - written);
+                written += sent;
+                if (sent == 0 && current.inFrame()) return FlushResult.PENDING;
+                continue;
+            }
+
+            Object head = entries.peek();
+            if (head == FRAMES_MARKER) {
+                entries.poll();
+                frames = true;
+                continue;
+            }
+
+            // Lines go out ahead of any stream's next frame
+            if (head instanceof String) {
+                fillBatch();
+                continue;
+            }
+
+            if (head instanceof FileRegion && frames) {
+                // A new download joins the rotation; an empty body needs no DATA frame at all
+                FileRegion region = (FileRegion) entries.poll();
+                if (region.remaining == 0) closeFile(region);
+                else streams.add(region);
+                continue;
+            }
+
+            // Downloads in progress finish before the close request and whenever nothing else is waiting
+            if (current != null) {
+                long sent = writeStreamTurn(channel, quota - written);
+                written += sent;
+                if (held) return throttled();
+                if (sent == 0) return FlushResult.PENDING;
+                continue;
+            }
+
+            if (head == null) return FlushResult.EMPTY;
+            if (head == CLOSE_MARKER) return FlushResult.CLOSE;
+
+            FileRegion region = (FileRegion) head;
+            if (region.remaining == 0) {
+                // An empty body needs no bytes
+                entries.poll();
+                closeFile(region);
+                continue;
+            }
+            long sent = writeSlice(region, channel, quota - written);
+            written += sent;
+            if (held) return throttled();
+            if (region.remaining > 0) {
+                if (sent == 0) return FlushResult.PENDING;
+                continue;
+            }
+            entries.poll();
+            closeFile(region);
+        }
+        return isEmpty() ? FlushResult.EMPTY : FlushResult.PENDING;
+    }
+
+    /**
+     * Method: clear()
+     *      - Drops everything still queued and closes queued files. Used once the connection is closed.
+     */
+    public void clear() {
+        Object entry;
+        while ((entry = entries.poll()) != null) {
+            if (entry instanceof FileRegion) closeFile((FileRegion) entry);
+        }
+        for (FileRegion region : streams) {
+            closeFile(region);
+        }
+        streams.clear();
+        batchStart = batchEnd = 0;
+        Metrics.shared().queuedLines(-queuedLineBytes.getAndSet(0));
+    }
+
+    /**
+     * Method: fillBatch()
+     *      - Moves the consecutive lines at the head of the queue into the batch, encoding them for the wire.
+     */
+    private void fillBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        while (batchEnd < MAX_BATCH && entries.peek() instanceof String) {
+            String line = (String) entries.poll();
+            queuedLineBytes.addAndGet(-line.length());
+            Metrics.shared().queuedLines(-line.length());
+            batch[batchEnd++] = frames ? Frame.text(Frame.TYPE_MESSAGE, line) : encode(line);
+        }
+    }
+
+    /**
+     * Method: throttled()
+     *
+     * @return THROTTLED, after clearing the flag for the next flush.
+     */
+    private FlushResult throttled() {
+        held = false;
+        return FlushResult.THROTTLED;
+    }
+
+    /**
+     * Method: grant(long wanted)
+     *
+     * @return The file bytes the scheduler lets through now, at most wanted; 0 (and held set) if none.
+     */
+    private long grant(long wanted) {
+        TransferScheduler.Account payer = this.account;
+        if (payer == null) return wanted;
+        long granted = payer.acquire(wanted, wakeup);
+        if (granted == 0) held = true;
+        return granted;
+    }
+
+    /**
+     * Method: writeSlice(FileRegion region, WritableByteChannel channel, long quota)
+     *      - Line protocol: the body goes out raw, right after the line announcing its length.
+     *      - Bytes granted but not taken by the socket are given back to the scheduler.
+     */
+    private long writeSlice(FileRegion region, WritableByteChannel channel, long quota) throws IOException {
+        long granted = grant(Math.min(region.remaining, quota));
+        if (granted == 0) return 0;
+        long sent = region.file.transferTo(region.position, granted, channel);
+        if (sent < granted && account != null) account.refund(granted - sent);
+        region.position += sent;
+        region.remaining -= sent;
+        Metrics.shared().bytesOut(sent);
+        Metrics.shared().fileBytesOut(sent);
+        return sent;
+    }
+
+    /**
+     * Method: writeStreamTurn(WritableByteChannel channel, long quota)
+     *      - Frame mode: writes (part of) one DATA frame of the stream whose turn it is.
+     *      - Once the frame is complete the stream goes to the back of the rotation, or is closed when its body is done.
+     */
+    private long writeStreamTurn(WritableByteChannel channel, long quota) throws IOException {
+        FileRegion region = streams.peek();
+        long sent = writeFramedSlice(region, channel, quota);
+        if (region.inFrame()) return sent;
+
+        streams.poll();
+        if (region.remaining > 0) streams.add(region);
+        else closeFile(region);
+        return sent;
+    }
+
+    /**
+     * Method: writeFramedSlice(FileRegion region, WritableByteChannel channel, long quota)
+     *      - Frame mode: the body goes out as DATA frames, each header written before the file bytes it covers.
+     *      - A frame is only started for bytes the scheduler granted, so it never stalls halfway in front of lines.
+     */
+    private long writeFramedSlice(FileRegion region, WritableByteChannel channel, long quota) throws IOException {
+        long sent = 0;
+
+        // Start the next DATA frame
+        if (region.frameRemaining == 0 && region.frameHeader == null) {
+            int length = (int) grant(Math.min(region.remaining, Frame.DATA_FRAME_SIZE));
+            if (length == 0) return 0;
+            region.frameHeader = Frame.header(Frame.TYPE_DATA, region.streamId, length);
+            region.frameRemaining = length;
+        }
+
+        // Finish the header before any of its payload
+        if (region.frameHeader != null) {
+            sent += channel.write(region.frameHeader);
+            if (region.frameHeader.hasRemaining()) {
+                Metrics.shared().bytesOut(sent);
+                return sent;
+            }
+            region.frameHeader = null;
+        }
+
+        long body = region.file.transferTo(region.position, Math.min(region.frameRemaining, Math.max(quota - sent, 1)), channel);
+        region.position += body;
+        region.remaining -= body;
+        region.frameRemaining -= body;
+        Metrics.shared().bytesOut(sent + body);
+        Metrics.shared().fileBytesOut(body);
+        return sent + body;
+    }
+
+    /**
+     * Method: writeBatch(WritableByteChannel channel)
+     *      - Writes as much of the batch as the channel takes, with a single gathering write when possible.
+     */
+    private long writeBatch(WritableByteChannel channel) throws IOException {
+        long sent;
+        if (channel instanceof GatheringByteChannel) {
+            sent = ((GatheringByteChannel) channel).write(batch, batchStart, batchEnd - batchStart);
+        } else {
+            sent = channel.write(batch[batchStart]);
+        }
+
+        Metrics.shared().bytesOut(sent);
+
+        // Skip over lines that are now fully written
+        while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+            batch[batchStart++] = null;
+        }
+        return sent;
+    }
+
+    /**
+     * Method: encode(String line)
+     *
+     * @return The line as UTF-8 bytes with its terminator.
+     */
+    private static ByteBuffer encode(String line) {
+        // Line protocol: UTF-8 text and a newline
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Method: closeFile(FileRegion region)
+     *      - Closes a file whose body has been written or discarded.
+     */
+    private static void closeFile(FileRegion region) {
+        try {
+            region.file.close();
+        } catch (IOException e) {
+            ServerLog.shared().warn("close_failed", "error", e.getMessage());
+        }
+    }
+}
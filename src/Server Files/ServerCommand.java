@@ -0,0 +1,18 @@
+/**
+ *  Interface for ServerCommand
+ *      - What the server does for one command, e.g. '/get' (see CommandRegistry, where commands are registered by
+ *        their first word).
+ *      - Runs on the thread handling the client's connection, so it must not block for long.
+ */
+public interface ServerCommand {
+
+    /**
+     * Method: run(MPServer.ServerClientHandler client, CommandLine line)
+     *      - Carries out the command for the client that sent it.
+     *
+     * @param client: The client's handler, for replies (sendMessage) and its state.
+     * @param line: The command line, already split into words; only valid until this returns.
+     * @return False once the client has left and the connection should be closed.
+     */
+    boolean run(MPServer.ServerClientHandler client, CommandLine line);
+}
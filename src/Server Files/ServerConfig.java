@@ -0,0 +1,190 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Class for ServerConfig
+ *      - Tunable server settings, read from "fes.*" system properties (java -Dfes.outbound.limit=... MPServer).
+ */
+public class ServerConfig {
+    private final long outboundLimit;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final long compressionCacheLimit;
+    private final int directoryPageSize;
+    private final long hotCacheLimit;
+    private final int transfersPerClient;
+    private final int transferConnectionLimit;
+    private final long globalRate;
+    private final long userRate;
+    private final int metricsPort;
+    private final boolean logCommands;
+    private final String logFile;
+    private final ServerLog.Level logLevel;
+    private final Map<String, Integer> logSampling;
+    private final BlobStore.Backend storeBackend;
+    private final String storeRoot;
+    private final String filesDir;
+
+    /**
+     * Constructor for ServerConfig
+     *
+     * @param outboundLimit: Bytes of chat messages that may wait for one client before the overflow policy applies.
+     * @param overflowPolicy: What happens to a client that falls further behind than that.
+     * @param compressionCacheLimit: Bytes of compressed file copies kept for repeated downloads.
+     * @param directoryPageSize: Files listed per '/dir' reply.
+     * @param hotCacheLimit: Bytes of popular files kept memory-mapped for downloads.
+     * @param transfersPerClient: Extra download connections one client may attach.
+     * @param transferConnectionLimit: Extra download connections all clients together may attach.
+     * @param globalRate: Bytes per second of file transfers over all clients, 0 for unlimited.
+     * @param userRate: Bytes per second of file transfers per user, 0 for unlimited.
+     * @param metricsPort: Port serving the plain-text metrics over HTTP, 0 for none.
+     * @param logCommands: Whether every command received is logged.
+     * @param logFile: The rolling log file, empty for the console only.
+     * @param logLevel: The least important log entries written.
+     * @param logSampling: Log events written only once in every so many times, by event name.
+     * @param storeBackend: Where uploaded files are kept.
+     * @param storeRoot: The directory of the store on disk.
+     * @param filesDir: The directory of plain files offered as they are, next to the stored ones.
+     */
+    public ServerConfig(long outboundLimit, OutboundQueue.OverflowPolicy overflowPolicy, long compressionCacheLimit,
+                        int directoryPageSize, long hotCacheLimit, int transfersPerClient, int transferConnectionLimit,
+                        long globalRate, long userRate, int metricsPort, boolean logCommands, String logFile,
+                        ServerLog.Level logLevel, Map<String, Integer> logSampling, BlobStore.Backend storeBackend,
+                        String storeRoot, String filesDir) {
+        this.outboundLimit = outboundLimit;
+        this.overflowPolicy = overflowPolicy;
+        this.compressionCacheLimit = compressionCacheLimit;
+        this.directoryPageSize = directoryPageSize;
+        this.hotCacheLimit = hotCacheLimit;
+        this.transfersPerClient = transfersPerClient;
+        this.transferConnectionLimit = transferConnectionLimit;
+        this.globalRate = globalRate;
+        this.userRate = userRate;
+        this.metricsPort = metricsPort;
+        this.logCommands = logCommands;
+        this.logFile = logFile;
+        this.logLevel = logLevel;
+        this.logSampling = logSampling;
+        this.storeBackend = storeBackend;
+        this.storeRoot = storeRoot;
+        this.filesDir = filesDir;
+    }
+
+    /**
+     * Method: fromSystemProperties()
+     *      - fes.outbound.limit: queued bytes per client (default 1 MiB)
+     *      - fes.outbound.policy: "drop" (default) or "disconnect"
+     *      - fes.compress.cache: bytes of compressed copies cached for downloads (default 256 MiB, 0 to send every download raw)
+     *      - fes.dir.page: files listed per '/dir' page (default 100)
+     *      - fes.hot.cache: bytes of popular files kept memory-mapped for downloads (default 512 MiB, 0 to map nothing)
+     *      - fes.transfers.client: extra download connections per client (default 4, 0 to allow none)
+     *      - fes.transfers.max: extra download connections over all clients (default 64)
+     *      - fes.rate.global: bytes per second of file transfers over all clients, e.g. "100M" (default 0, unlimited)
+     *      - fes.rate.user: bytes per second of file transfers per user, e.g. "10M" (default 0, unlimited)
+     *      - fes.metrics.port: port for HTTP GET /metrics in plain text (default 0, not served)
+     *      - fes.log.commands: "false" stops logging every command received (default true)
+     *      - fes.log.file: the rolling log file (default ".logs/server.log", hidden from '/dir'; empty for none)
+     *      - fes.log.level: "debug", "info" (default), "warn" or "error"
+     *      - fes.log.sample: events logged only once in so many times, e.g. "command=100,chat=10" (default none)
+     *      - fes.store.backend: "disk" (default) or "memory", which keeps uploads only until the server stops
+     *      - fes.store.root: directory of the store on disk, with staged uploads and caches next to it, e.g. on a faster
+     *        volume (default ".store")
+     *      - fes.files.dir: directory of plain files copied in by hand and offered as they are (default "files")
+     *
+     * @return The configuration given on the command line, with defaults for anything missing.
+     */
+    public static ServerConfig fromSystemProperties() {
+        long outboundLimit = Long.getLong("fes.outbound.limit", 1024 * 1024);
+        OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(
+                System.getProperty("fes.outbound.policy", "drop").toUpperCase());
+        long compressionCacheLimit = Long.getLong("fes.compress.cache", 256L * 1024 * 1024);
+        int directoryPageSize = Math.max(1, Integer.getInteger("fes.dir.page", 100));
+        long hotCacheLimit = Long.getLong("fes.hot.cache", 512L * 1024 * 1024);
+        int transfersPerClient = Integer.getInteger("fes.transfers.client", 4);
+        int transferConnectionLimit = Integer.getInteger("fes.transfers.max", 64);
+        long globalRate = TransferScheduler.parseRate(System.getProperty("fes.rate.global", "0"));
+        long userRate = TransferScheduler.parseRate(System.getProperty("fes.rate.user", "0"));
+        int metricsPort = Integer.getInteger("fes.metrics.port", 0);
+        boolean logCommands = Boolean.parseBoolean(System.getProperty("fes.log.commands", "true"));
+        String logFile = System.getProperty("fes.log.file", ".logs/server.log");
+        ServerLog.Level logLevel = ServerLog.Level.valueOf(System.getProperty("fes.log.level", "info").toUpperCase());
+        Map<String, Integer> logSampling = new HashMap<>();
+        for (String sample : System.getProperty("fes.log.sample", "").split(",")) {
+            String[] parts = sample.split("=");
+            if (parts.length == 2) logSampling.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        BlobStore.Backend storeBackend = BlobStore.Backend.valueOf(System.getProperty("fes.store.backend", "disk").toUpperCase());
+        String storeRoot = System.getProperty("fes.store.root", ".store");
+        String filesDir = System.getProperty("fes.files.dir", "files");
+        return new ServerConfig(outboundLimit, overflowPolicy, compressionCacheLimit, directoryPageSize, hotCacheLimit,
+                transfersPerClient, transferConnectionLimit, globalRate, userRate, metricsPort, logCommands, logFile,
+                logLevel, logSampling, storeBackend, storeRoot, filesDir);
+    }
+
+    public long getOutboundLimit() {
+        return outboundLimit;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getCompressionCacheLimit() {
+        return compressionCacheLimit;
+    }
+
+    public int getDirectoryPageSize() {
+        return directoryPageSize;
+    }
+
+    public long getHotCacheLimit() {
+        return hotCacheLimit;
+    }
+
+    public int getTransfersPerClient() {
+        return transfersPerClient;
+    }
+
+    public int getTransferConnectionLimit() {
+        return transferConnectionLimit;
+    }
+
+    public long getGlobalRate() {
+        return globalRate;
+    }
+
+    public long getUserRate() {
+        return userRate;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public boolean isLogCommands() {
+        return logCommands;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public Map<String, Integer> getLogSampling() {
+        return logSampling;
+    }
+
+    public BlobStore.Backend getStoreBackend() {
+        return storeBackend;
+    }
+
+    public String getStoreRoot() {
+        return storeRoot;
+    }
+
+    public String getFilesDir() {
+        return filesDir;
+    }
+}
@@ -0,0 +1,390 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Class for ServerLog
+ *      - The server's log. Handler threads and event loops only put an entry into a ring buffer; one writer thread
+ *        formats the entries and writes them in batches, to the console and to a rolling log file. Nobody logging
+ *        ever waits for stdout or the disk, or for a lock.
+ *      - Entries are structured: a level, an event name and key/value fields, written as
+ *        '<time> <LEVEL> [<thread>] <event> key=value key="value with spaces"'.
+ *      - The ring is bounded. When it is full (the writer cannot keep up) entries are dropped and counted, and the
+ *        writer reports how many were lost once it catches up.
+ *      - Chatty events can be sampled: with 'command=100' only every 100th command is written.
+ */
+public final class ServerLog {
+    /**
+     * Enum for Level
+     *      - How important an entry is. Entries below the log's level are not even queued.
+     */
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    // Entries the ring holds (a power of two)
+    private static final int CAPACITY = 8192;
+
+    // Entries formatted into one write
+    private static final int BATCH = 512;
+
+    // Size a log file may reach before it is rolled, and the number of rolled files kept (server.log.1 ... .5)
+    private static final long MAX_FILE_BYTES = 10L * 1024 * 1024;
+    private static final int KEEP_FILES = 5;
+
+    // How long the writer sleeps when there is nothing to write, unless woken
+    private static final long IDLE_NANOS = 100_000_000L;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private static final ServerLog SHARED = new ServerLog();
+
+    /**
+     * Class for Entry
+     *      - One slot of the ring. Written by the thread that claimed it, read by the writer once it is published.
+     */
+    private static final class Entry {
+        private long time;
+        private Level level;
+        private String thread;
+        private String event;
+        private Object[] fields;
+        private int sample;
+    }
+
+    // The ring: slot i is free for position p when sequences[i] == p, and holds the entry of p when it is p + 1
+    private final Entry[] entries = new Entry[CAPACITY];
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+    private final Map<String, Integer> sampling = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> sampled = new ConcurrentHashMap<>();
+
+    private volatile Level level = Level.INFO;
+    private volatile boolean console = true;
+    private volatile File file;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+    private final Thread writer;
+
+    private FileChannel out;
+    private long fileBytes;
+
+    // The last timestamp formatted, reused while entries come from the same millisecond
+    private long stampMillis = -1;
+    private String stamp;
+
+    /**
+     * Constructor for ServerLog
+     */
+    private ServerLog() {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        this.writer = new Thread(this::write, "server-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Method: shared()
+     *
+     * @return The log of the whole server.
+     */
+    public static ServerLog shared() {
+        return SHARED;
+    }
+
+    /**
+     * Method: configure(String path, Level level, boolean console, Map<String, Integer> sampling)
+     *      - Sets where and what the log writes. Entries already queued are written under the new settings.
+     *
+     * @param path: The log file, rolled at MAX_FILE_BYTES; empty for none.
+     * @param level: The least important level written.
+     * @param console: Whether entries are also printed to the console.
+     * @param sampling: Events written only once in every so many times, by event name.
+     */
+    public void configure(String path, Level level, boolean console, Map<String, Integer> sampling) {
+        this.level = level;
+        this.console = console;
+        this.sampling.clear();
+        this.sampling.putAll(sampling);
+        this.file = path.isEmpty() ? null : new File(path);
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Method: sample(String event, int every)
+     *      - Writes only every so many entries of an event, or all of them when every is 1.
+     */
+    public void sample(String event, int every) {
+        if (every <= 1) sampling.remove(event);
+        else sampling.put(event, every);
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String event, Object... fields) {
+        log(Level.DEBUG, event, fields);
+    }
+
+    public void info(String event, Object... fields) {
+        log(Level.INFO, event, fields);
+    }
+
+    public void warn(String event, Object... fields) {
+        log(Level.WARN, event, fields);
+    }
+
+    public void error(String event, Object... fields) {
+        log(Level.ERROR, event, fields);
+    }
+
+    /**
+     * Method: log(Level level, String event, Object... fields)
+     *      - Queues an entry for the writer, or drops it if the ring is full. Never blocks.
+     *
+     * @param level: How important the entry is.
+     * @param event: What happened, as a short name (e.g. "joined", "store_failed").
+     * @param fields: Alternating keys and values; values are turned into text by the writer.
+     */
+    public void log(Level level, String event, Object... fields) {
+        if (!isEnabled(level)) return;
+        Integer every = sampling.get(event);
+        if (every != null && sampled.computeIfAbsent(event, name -> new AtomicLong()).getAndIncrement() % every != 0) {
+            return;
+        }
+
+        // Claim the next position, unless the writer has not freed its slot yet
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) (position & (CAPACITY - 1));
+            long sequence = sequences.get(slot);
+            if (sequence < position) {
+                dropped.increment();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) break;
+        }
+
+        Entry entry = entries[slot];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.thread = Thread.currentThread().getName();
+        entry.event = event;
+        entry.sample = every != null ? every : 0;
+        entry.fields = fields;
+        // Publish: the writer reads the entry only after seeing this
+        sequences.set(slot, position + 1);
+
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Method: shutdown()
+     *      - Writes what is queued and closes the log file. Waits at most a second.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method: write()
+     *      - The writer thread: takes batches of entries off the ring, formats them, and writes each batch at once.
+     */
+    private void write() {
+        StringBuilder batch = new StringBuilder(BATCH * 128);
+        while (true) {
+            batch.setLength(0);
+            drain(batch);
+            reportDropped(batch);
+            if (batch.length() > 0) {
+                output(batch.toString());
+                continue;
+            }
+            if (!running) break;
+
+            // Nothing to write: sleep until a logger wakes us (it checks 'sleeping' after publishing)
+            sleeping = true;
+            if (sequences.get((int) (head & (CAPACITY - 1))) != head + 1 && running) LockSupport.parkNanos(IDLE_NANOS);
+            sleeping = false;
+        }
+        closeFile();
+    }
+
+    /**
+     * Method: drain(StringBuilder batch)
+     *      - Formats up to BATCH published entries into batch and frees their slots.
+     *
+     * @return The number of entries taken.
+     */
+    private int drain(StringBuilder batch) {
+        int taken = 0;
+        while (taken < BATCH) {
+            int slot = (int) (head & (CAPACITY - 1));
+            if (sequences.get(slot) != head + 1) break;
+            Entry entry = entries[slot];
+            format(batch, entry);
+            entry.fields = null;
+            entry.thread = null;
+            sequences.set(slot, head + CAPACITY);
+            head++;
+            taken++;
+        }
+        return taken;
+    }
+
+    /**
+     * Method: reportDropped(StringBuilder batch)
+     *      - Adds a warning with the number of entries dropped since the last one, if any were.
+     */
+    private void reportDropped(StringBuilder batch) {
+        long total = dropped.sum();
+        if (total == droppedReported) return;
+        Entry entry = new Entry();
+        entry.time = System.currentTimeMillis();
+        entry.level = Level.WARN;
+        entry.thread = writer.getName();
+        entry.event = "log_dropped";
+        entry.fields = new Object[] {"count", total - droppedReported, "total", total};
+        format(batch, entry);
+        droppedReported = total;
+    }
+
+    private void format(StringBuilder line, Entry entry) {
+        if (entry.time != stampMillis) {
+            stampMillis = entry.time;
+            stamp = TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault()));
+        }
+        line.append(stamp).append(' ').append(entry.level).append(" [").append(entry.thread).append("] ").append(entry.event);
+        if (entry.sample > 0) line.append(" sampled=1/").append(entry.sample);
+        Object[] fields = entry.fields;
+        for (int i = 0; fields != null && i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            appendValue(line, String.valueOf(fields[i + 1]));
+        }
+        line.append('\n');
+    }
+
+    /**
+     * Method: appendValue(StringBuilder line, String value)
+     *      - Writes a value as is, or quoted (with '"', '\' and line breaks escaped) if it has spaces or symbols.
+     */
+    private static void appendValue(StringBuilder line, String value) {
+        boolean plain = !value.isEmpty();
+        for (int i = 0; i < value.length() && plain; i++) {
+            char c = value.charAt(i);
+            plain = c > ' ' && c != '"' && c != '=' && c != '\\';
+        }
+        if (plain) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') line.append('\\').append(c);
+            else if (c == '\n') line.append("\\n");
+            else if (c == '\r') line.append("\\r");
+            else line.append(c);
+        }
+        line.append('"');
+    }
+
+    /**
+     * Method: output(String text)
+     *      - Writes one batch to the console and the log file, rolling the file when it is full.
+     */
+    private void output(String text) {
+        if (console) System.out.print(text);
+
+        File target = file;
+        if (target == null) {
+            closeFile();
+            return;
+        }
+        try {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (out != null && fileBytes > 0 && fileBytes + bytes.length > MAX_FILE_BYTES) {
+                closeFile();
+                roll(target);
+            }
+            if (out == null) {
+                File parent = target.getAbsoluteFile().getParentFile();
+                if (parent != null) Files.createDirectories(parent.toPath());
+                out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+                fileBytes = out.size();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                fileBytes += out.write(buffer);
+            }
+        } catch (IOException e) {
+            // The console still has the entries; try the file again with the next batch
+            System.out.println("Error in writing log file " + target + ": " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    /**
+     * Method: roll(File target)
+     *      - Renames server.log to server.log.1, server.log.1 to server.log.2 and so on, dropping the oldest.
+     */
+    private static void roll(File target) throws IOException {
+        for (int i = KEEP_FILES - 1; i >= 0; i--) {
+            File from = i == 0 ? target : new File(target.getPath() + "." + i);
+            if (from.exists()) {
+                Files.move(from.toPath(), new File(target.getPath() + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *  Class for TransferEngine
+ *      - Moves file bodies from the server's disk to a client connection.
+ *      - Uses FileChannel.transferTo (sendfile on Linux) when the target is a socket channel,
+ *        and a buffered copy otherwise.
+ */
+public final class TransferEngine {
+    // Size of the heap buffer used by the buffered fallback path
+    private static final int FALLBACK_BUFFER_SIZE = 64 * 1024;
+
+    // Largest slice handed to a single transferTo call so progress is made in bounded steps
+    private static final long MAX_TRANSFER_SLICE = 8L * 1024 * 1024;
+
+    private TransferEngine() {
+    }
+
+    /**
+     * Method: sendSlice(FileChannel source, long position, long count, WritableByteChannel target)
+     *      - Sends up to count bytes of the source, starting at position, to the target.
+     *      - On a blocking target at least some bytes are always sent; on a non-blocking one 0 means the socket is full.
+     *
+     * @param source: The open file to read from.
+     * @param position: The offset in the file of the first byte to send.
+     * @param count: The most bytes to send; the caller has announced at least this many to the client.
+     * @param target: The client's channel.
+     * @return The number of bytes sent.
+     */
+    public static long sendSlice(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long sent;
+
+        // Socket channels take the zero-copy path
+        if (target instanceof SocketChannel) {
+            sent = source.transferTo(position, Math.min(count, MAX_TRANSFER_SLICE), target);
+        } else {
+            sent = sendBuffered(source, position, count, target);
+        }
+
+        // Nothing sent at end of file means the file shrank after its length was announced
+        if (sent <= 0 && count > 0 && position >= source.size()) {
+            throw new EOFException("File ended " + count + " bytes before the announced length");
+        }
+        return sent;
+    }
+
+    /**
+     * Method: sendBuffered(FileChannel source, long position, long count, WritableByteChannel target)
+     *      - Copies one buffer's worth of the file through the heap for targets that cannot take transferTo.
+     */
+    private static long sendBuffered(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FALLBACK_BUFFER_SIZE, count));
+        int bytesRead = source.read(buffer, position);
+        if (bytesRead <= 0) return 0;
+
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return bytesRead;
+    }
+}
@@ -0,0 +1,317 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Class for TransferScheduler
+ *      - Decides how fast file bodies go out, over all connections: a global rate (the link the server may use) and
+ *        a rate per user, both as token buckets. 0 means unlimited, the default.
+ *      - Every client has an Account; its extra download connections ('/attach') use their owner's, so opening more
+ *        connections does not get a user more than their share.
+ *      - Under a global rate the tokens of each tick are shared between the users waiting for them in proportion to
+ *        their weights (weighted fair sharing, max-min: what a user cannot take because of their own rate goes to the
+ *        others). Users that are not waiting get nothing, so the link is never left idle while someone has data.
+ *      - Only file bytes are counted. Replies and chat never wait for tokens, and with frames a DATA frame is only
+ *        started once its bytes are paid for, so messages still go out between frames while a transfer is held back.
+ *      - Rates and weights can be changed while the server runs (see the server console).
+ */
+public class TransferScheduler {
+    // Tokens are handed out this often
+    private static final long TICK_MILLIS = 10;
+
+    // Unused tokens are kept for at most this long, which bounds bursts
+    private static final double BURST_SECONDS = 0.1;
+
+    // Smallest grant worth a frame, unless the transfer wants less; smaller amounts are saved up first
+    private static final long MIN_GRANT = 16 * 1024;
+
+    private volatile long globalRate;
+    private volatile long userRate;
+    private final Set<Account> accounts;
+    private final Set<Account> waiting;
+    private final ScheduledExecutorService ticker;
+    private long lastTick;
+    private double globalTokens;
+
+    private final AtomicLong bytesGranted = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Class for Account
+     *      - The tokens, rate and weight of one user. Shared by all of that user's connections.
+     */
+    public final class Account {
+        private long tokens;
+        private long need;
+        private double allowance;
+        private volatile long rate = -1;
+        private int weight = 1;
+        private boolean closed;
+        private final Set<Runnable> wakeups = new LinkedHashSet<>();
+
+        private Account() {
+        }
+
+        /**
+         * Method: acquire(long wanted, Runnable wakeup)
+         *      - Asks to send up to wanted file bytes now.
+         *
+         * @param wanted: The bytes the transfer would send next.
+         * @param wakeup: Run (on the scheduler's thread) once tokens have arrived, if none are granted now.
+         * @return The bytes that may be sent, at most wanted; 0 if the transfer has to wait for wakeup.
+         */
+        public long acquire(long wanted, Runnable wakeup) {
+            if (wanted <= 0) return 0;
+            long rateNow = effectiveRate();
+            if (globalRate <= 0 && rateNow <= 0) {
+                // Nothing to limit
+                bytesGranted.addAndGet(wanted);
+                return wanted;
+            }
+
+            synchronized (TransferScheduler.this) {
+                if (tokens >= Math.min(wanted, MIN_GRANT)) {
+                    long granted = Math.min(wanted, tokens);
+                    tokens -= granted;
+                    bytesGranted.addAndGet(granted);
+                    return granted;
+                }
+                need = Math.min(wanted, MIN_GRANT);
+                wakeups.add(wakeup);
+                if (waiting.add(this)) {
+                    accounts.add(this);
+                    throttled.incrementAndGet();
+                }
+                return 0;
+            }
+        }
+
+        /**
+         * Method: refund(long bytes)
+         *      - Gives back tokens a transfer was granted but could not send (its socket was full).
+         */
+        public void refund(long bytes) {
+            if (bytes <= 0) return;
+            bytesGranted.addAndGet(-bytes);
+            if (globalRate <= 0 && effectiveRate() <= 0) return;
+            synchronized (TransferScheduler.this) {
+                tokens += bytes;
+            }
+        }
+
+        /**
+         * Method: setRate(long rate)
+         *      - Gives this user their own rate in bytes per second (0 for unlimited), or -1 for the default.
+         */
+        public void setRate(long rate) {
+            this.rate = rate;
+        }
+
+        /**
+         * Method: setWeight(int weight)
+         *      - Sets this user's share of the global rate relative to other waiting users (default 1).
+         */
+        public void setWeight(int weight) {
+            synchronized (TransferScheduler.this) {
+                this.weight = Math.max(1, weight);
+            }
+        }
+
+        /**
+         * Method: close()
+         *      - The user left. Downloads still being written out keep their place; the account is dropped once
+         *        none of them is waiting any more.
+         */
+        public void close() {
+            synchronized (TransferScheduler.this) {
+                closed = true;
+            }
+        }
+
+        private long effectiveRate() {
+            return rate >= 0 ? rate : userRate;
+        }
+    }
+
+    /**
+     * Constructor for TransferScheduler
+     *
+     * @param globalRate: Bytes per second for all file transfers together, 0 for unlimited.
+     * @param userRate: Bytes per second for the file transfers of one user, 0 for unlimited.
+     */
+    public TransferScheduler(long globalRate, long userRate) {
+        this.globalRate = globalRate;
+        this.userRate = userRate;
+        this.accounts = new LinkedHashSet<>();
+        this.waiting = new LinkedHashSet<>();
+        this.lastTick = System.nanoTime();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "transfer-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method: open()
+     *
+     * @return A new account, for a client that just connected.
+     */
+    public synchronized Account open() {
+        Account account = new Account();
+        accounts.add(account);
+        return account;
+    }
+
+    /**
+     * Method: setGlobalRate(long rate)
+     *      - Sets the bytes per second for all file transfers together, 0 for unlimited.
+     */
+    public void setGlobalRate(long rate) {
+        this.globalRate = Math.max(0, rate);
+    }
+
+    /**
+     * Method: setUserRate(long rate)
+     *      - Sets the bytes per second for each user without a rate of their own, 0 for unlimited.
+     */
+    public void setUserRate(long rate) {
+        this.userRate = Math.max(0, rate);
+    }
+
+    /**
+     * Method: shutdown()
+     *      - Stops handing out tokens.
+     */
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * Method: heldBack()
+     *
+     * @return The number of users whose transfers are waiting for tokens right now.
+     */
+    public synchronized int heldBack() {
+        return waiting.size();
+    }
+
+    /**
+     * Method: describe()
+     *
+     * @return The limits and counters, as one line.
+     */
+    public String describe() {
+        int users;
+        int held;
+        synchronized (this) {
+            users = accounts.size();
+            held = waiting.size();
+        }
+        return "Transfer scheduler: global limit " + formatRate(globalRate) + ", per-user limit " + formatRate(userRate) + ", "
+                + users + " users, " + held + " held back now, " + bytesGranted.get() + " bytes sent, "
+                + throttled.get() + " times held back";
+    }
+
+    /**
+     * Method: parseRate(String text)
+     *
+     * @return A rate such as "500K", "10M" or "1G" (bytes per second, powers of 1024) as a number of bytes.
+     */
+    public static long parseRate(String text) {
+        String value = text.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) unit = 1024;
+        else if (value.endsWith("M")) unit = 1024 * 1024;
+        else if (value.endsWith("G")) unit = 1024L * 1024 * 1024;
+        if (unit > 1) value = value.substring(0, value.length() - 1);
+        return (long) (Double.parseDouble(value) * unit);
+    }
+
+    private static String formatRate(long rate) {
+        return rate <= 0 ? "none" : rate + " bytes/s";
+    }
+
+    /**
+     * Method: tick()
+     *      - Refills the buckets and shares the new global tokens between the users waiting for them, then wakes
+     *        the transfers of every user that got some.
+     */
+    private void tick() {
+        List<Runnable> woken = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            double seconds = (now - lastTick) / 1e9;
+            lastTick = now;
+
+            // Each user's own bucket fills whether or not they are sending
+            accounts.removeIf(account -> account.closed && !waiting.contains(account));
+            for (Account account : accounts) {
+                long rate = account.effectiveRate();
+                if (rate > 0) account.allowance = Math.min(account.allowance + rate * seconds, burst(rate));
+            }
+
+            long global = globalRate;
+            if (global > 0) globalTokens = Math.min(globalTokens + global * seconds, burst(global));
+
+            // Water-filling: split the global tokens by weight; what a user's own rate leaves over goes round again
+            List<Account> open = new ArrayList<>(waiting);
+            while (!open.isEmpty()) {
+                double totalWeight = 0;
+                for (Account account : open) {
+                    totalWeight += account.weight;
+                }
+
+                double round = globalTokens;
+                boolean capped = false;
+                Iterator<Account> accountsLeft = open.iterator();
+                while (accountsLeft.hasNext()) {
+                    Account account = accountsLeft.next();
+                    boolean ownLimit = account.effectiveRate() > 0;
+                    double share = global > 0 ? round * account.weight / totalWeight : Double.POSITIVE_INFINITY;
+                    double own = ownLimit ? account.allowance : Double.POSITIVE_INFINITY;
+                    if (Double.isInfinite(Math.min(share, own))) {
+                        // The limits were lifted while this user waited
+                        accountsLeft.remove();
+                        continue;
+                    }
+
+                    long given = (long) Math.min(share, own);
+                    account.tokens += given;
+                    if (global > 0) globalTokens -= given;
+                    if (ownLimit) account.allowance -= given;
+                    if (own < share) {
+                        accountsLeft.remove();
+                        capped = true;
+                    }
+                }
+                if (!capped || global <= 0 || globalTokens < 1) break;
+            }
+
+            // Wake the transfers of users that can now send what they asked for (or a worthwhile part of it)
+            Iterator<Account> held = waiting.iterator();
+            while (held.hasNext()) {
+                Account account = held.next();
+                if (account.tokens >= account.need || (global <= 0 && account.effectiveRate() <= 0)) {
+                    woken.addAll(account.wakeups);
+                    account.wakeups.clear();
+                    held.remove();
+                }
+            }
+        }
+        for (Runnable wakeup : woken) {
+            wakeup.run();
+        }
+    }
+
+    private static double burst(long rate) {
+        return Math.max(rate * BURST_SECONDS, 1);
+    }
+}
@@ -0,0 +1,363 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ *  Class for UploadStaging
+ *      - Keeps uploads out of sight until they are complete: bytes go into a staging file in a hidden directory,
+ *        and a chunk list next to it records the hash of every fixed-size chunk received and forced to disk.
+ *      - Each received chunk is also put into the BlobStore, which keeps only one copy of identical chunks.
+ *      - A client can ask which chunks are there and send only the missing ones, even after a reconnect or a restart.
+ *        It can also offer chunk hashes up front: chunks the store already holds count as received without any bytes,
+ *        and the others are checked against their offered hash when they arrive, so a chunk damaged on the way is
+ *        turned away (and sent again) instead of being stored.
+ *      - Each chunk's CRC32C is computed from the same buffer its hash is, and kept in the manifest (see Crc32c).
+ *      - A new version of a stored file can also be built here from the old one and a delta (see DeltaPatch).
+ *      - Once every chunk is present the file is published in one step by writing its manifest to the BlobStore.
+ *      - Several uploads may fill the same file at once; updates to one file's chunk list are serialized. The locks
+ *        are a fixed set shared out by file name, so no lock is left behind per file ever uploaded.
+ */
+public class UploadStaging {
+    // Unit in which upload progress is tracked, chunks are deduplicated and ranges must be aligned
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    // Locks shared out by file name; two files rarely share one, and then only wait for each other
+    private static final int LOCK_STRIPES = 64;
+
+    private final File stagingDir;
+    private final File targetDir;
+    private final BlobStore store;
+    private final Object[] locks;
+
+    /**
+     * Class for ChunkList
+     *      - What is known about each chunk of one upload: its hash and CRC32C once received, and the hash the client
+     *        offered for it before.
+     */
+    private static final class ChunkList {
+        private final String[] hashes;
+        private final long[] crcs;
+        private final String[] expected;
+
+        ChunkList(int count) {
+            this.hashes = new String[count];
+            this.crcs = new long[count];
+            this.expected = new String[count];
+            Arrays.fill(crcs, -1);
+        }
+    }
+
+    /**
+     * Constructor for UploadStaging
+     *
+     * @param stagingDir: Directory for staging files and chunk lists; created when first needed.
+     * @param targetDir: The directory of plain (not deduplicated) files; a published upload replaces the one of its
+     *                   name there, and nothing outside it is ever deleted.
+     * @param store: Where received chunks and the manifests of complete files are kept.
+     */
+    public UploadStaging(File stagingDir, File targetDir, BlobStore store) {
+        this.stagingDir = stagingDir;
+        this.targetDir = targetDir;
+        this.store = store;
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < this.locks.length; i++) this.locks[i] = new Object();
+    }
+
+    /**
+     * Method: open(String filename, long size)
+     *      - Opens the staging file of an upload for positional writes.
+     *      - If the file was being uploaded with a different size, the old progress is thrown away.
+     *
+     * @return The channel to write the received ranges into; the caller closes it.
+     */
+    public FileChannel open(String filename, long size) throws IOException {
+        synchronized (lockFor(filename)) {
+            prepare(filename, size);
+            return FileChannel.open(dataFile(filename).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * Method: describe(String filename, long size)
+     *
+     * @return The chunks of the file already received, as comma-separated index ranges ("0-15,20"), or "-" if none.
+     */
+    public String describe(String filename, long size) {
+        String[] chunks;
+        synchronized (lockFor(filename)) {
+            ChunkList list = readChunks(filename, size);
+            chunks = list != null ? list.hashes : null;
+        }
+        if (chunks == null) return "-";
+
+        BitSet received = new BitSet(chunks.length);
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null) received.set(i);
+        }
+        return toRanges(received);
+    }
+
+    /**
+     * Method: toRanges(BitSet chunks)
+     *
+     * @return The chunk indexes as comma-separated ranges ("0-15,20"), or "-" if there are none.
+     */
+    public static String toRanges(BitSet chunks) {
+        StringBuilder ranges = new StringBuilder();
+        int start = chunks.nextSetBit(0);
+        while (start >= 0) {
+            int end = chunks.nextClearBit(start) - 1;
+            if (ranges.length() > 0) ranges.append(',');
+            ranges.append(start);
+            if (end > start) ranges.append('-').append(end);
+            start = chunks.nextSetBit(end + 1);
+        }
+        return ranges.length() > 0 ? ranges.toString() : "-";
+    }
+
+    /**
+     * Method: isAligned(long size, long offset, long length)
+     *
+     * @return True if the range starts on a chunk boundary and ends on one or at the end of the file.
+     */
+    public static boolean isAligned(long size, long offset, long length) {
+        return offset >= 0 && length >= 0 && offset + length <= size && offset % CHUNK_SIZE == 0
+                && (length % CHUNK_SIZE == 0 || offset + length == size);
+    }
+
+    /**
+     * Method: adopt(String filename, long size, int firstChunk, String[] hashes)
+     *      - Takes the client's word for the hashes of some chunks: those already in the store count as received.
+     *      - The others are remembered, and the bytes later received for them must match.
+     *      - Publishes the file if that leaves no chunk missing, in which case the upload needs no bytes at all.
+     *
+     * @param firstChunk: Index of the chunk the first hash belongs to.
+     * @return True if the file is now complete and published under its name.
+     */
+    public boolean adopt(String filename, long size, int firstChunk, String[] hashes) throws IOException {
+        synchronized (lockFor(filename)) {
+            prepare(filename, size);
+            ChunkList chunks = readChunks(filename, size);
+            for (int i = 0; i < hashes.length && firstChunk + i < chunks.hashes.length; i++) {
+                int chunk = firstChunk + i;
+                if (chunks.hashes[chunk] != null || !BlobStore.isHash(hashes[i])) continue;
+                if (store.has(hashes[i])) {
+                    chunks.hashes[chunk] = hashes[i];
+                } else {
+                    chunks.expected[chunk] = hashes[i];
+                }
+            }
+            return record(filename, size, chunks);
+        }
+    }
+
+    /**
+     * Method: complete(String filename, long size, long offset, long received, FileChannel channel, List<Integer> rejected, ByteBuffer buffer)
+     *      - Stores and records the chunks covered by the received part of a range, once they are on disk.
+     *      - A chunk that does not match the hash offered for it is not recorded, and is added to rejected.
+     *      - Publishes the file if that was the last missing chunk.
+     *      - Reads, hashes and syncs: call it off the event loops.
+     *
+     * @param received: Bytes of the range written, counted from offset (less than asked for if the upload broke off).
+     * @param rejected: Receives the indexes of damaged chunks, which have to be sent again.
+     * @param buffer: Scratch space of CHUNK_SIZE bytes the chunks are read into, reused by the caller from call to call.
+     * @return True if the file is now complete and published under its name.
+     */
+    public boolean complete(String filename, long size, long offset, long received, FileChannel channel, List<Integer> rejected,
+                            ByteBuffer buffer) throws IOException {
+        // The chunk list must never claim bytes that a crash could still lose
+        channel.force(false);
+
+        synchronized (lockFor(filename)) {
+            ChunkList chunks = readChunks(filename, size);
+            if (chunks == null) return false; // Restarted with another size in the meantime
+
+            long end = offset + received;
+            for (int chunk = (int) (offset / CHUNK_SIZE); chunk < chunks.hashes.length; chunk++) {
+                long chunkStart = (long) chunk * CHUNK_SIZE;
+                long chunkEnd = Math.min(chunkStart + CHUNK_SIZE, size);
+                if (chunkEnd > end) break;
+
+                // Hash the chunk and keep one copy of it in the store
+                buffer.clear().limit((int) (chunkEnd - chunkStart));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, chunkStart + buffer.position()) < 0) throw new IOException("Staging file is shorter than expected");
+                }
+                buffer.flip();
+                String hash = BlobStore.hash(buffer);
+                if (chunks.expected[chunk] != null && !chunks.expected[chunk].equals(hash)) {
+                    // Not what the client has: damaged on the way
+                    rejected.add(chunk);
+                    continue;
+                }
+                store.put(hash, buffer);
+                chunks.hashes[chunk] = hash;
+                chunks.crcs[chunk] = Crc32c.of(buffer);
+            }
+            return record(filename, size, chunks);
+        }
+    }
+
+    /**
+     * Method: createDeltaFile(String filename)
+     *
+     * @return A new, empty file in the staging directory to receive a delta upload of the file into.
+     */
+    public File createDeltaFile(String filename) throws IOException {
+        Files.createDirectories(stagingDir.toPath());
+        return File.createTempFile(filename + ".delta.", null, stagingDir);
+    }
+
+    /**
+     * Method: applyDelta(String filename, long size, FileBody basis, int blockSize, File delta, long deltaLength, ByteBuffer buffer)
+     *      - Builds the new version of a file in its staging file from the old version and a received delta
+     *        (see DeltaPatch), then stores its chunks and publishes it like a complete upload.
+     *      - The delta file is deleted either way.
+     *
+     * @param buffer: Scratch space of CHUNK_SIZE bytes, as for complete.
+     * @return True if the file is now complete and published under its name.
+     */
+    public boolean applyDelta(String filename, long size, FileBody basis, int blockSize, File delta, long deltaLength,
+                              ByteBuffer buffer) throws IOException {
+        try (FileChannel target = open(filename, size);
+             FileChannel in = FileChannel.open(delta.toPath(), StandardOpenOption.READ)) {
+            DeltaPatch.apply(basis, blockSize, in, deltaLength, target, size);
+            return complete(filename, size, 0, size, target, new ArrayList<>(), buffer);
+        } finally {
+            delta.delete();
+        }
+    }
+
+    /**
+     * Method: record(String filename, long size, ChunkList chunks)
+     *      - Saves the chunk list, or publishes the file and forgets the upload once no chunk is missing.
+     *
+     * @return True if the file was published.
+     */
+    private boolean record(String filename, long size, ChunkList chunks) throws IOException {
+        for (String hash : chunks.hashes) {
+            if (hash == null) {
+                writeChunks(filename, size, chunks);
+                return false;
+            }
+        }
+
+        // Every chunk is there: the manifest makes the file visible in one step, replacing any older copy
+        store.writeManifest(filename, new BlobStore.Manifest(size, CHUNK_SIZE, chunks.hashes, chunks.crcs));
+        new File(targetDir, filename).delete();
+        dataFile(filename).delete();
+        chunkFile(filename).delete();
+        return true;
+    }
+
+    /**
+     * Method: prepare(String filename, long size)
+     *      - Makes sure a staging file of this size and its chunk list exist, starting over if the size changed.
+     */
+    private void prepare(String filename, long size) throws IOException {
+        Files.createDirectories(stagingDir.toPath());
+        if (readChunks(filename, size) == null) {
+            // New upload (or a new size): start from an empty chunk list
+            writeChunks(filename, size, new ChunkList(chunkCount(size)));
+        }
+        try (FileChannel channel = FileChannel.open(dataFile(filename).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (channel.size() > size) channel.truncate(size);
+            if (channel.size() < size) {
+                // Extend to the final size so every chunk can be written in place
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+    }
+
+    /**
+     * Method: chunkCount(long size)
+     *
+     * @return The number of chunks a file of this size is made of.
+     */
+    private static int chunkCount(long size) {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Method: readChunks(String filename, long size)
+     *
+     * @return The recorded chunks of the upload (null hashes for missing chunks), or null if there is no upload of
+     *         this size and chunk size.
+     */
+    private ChunkList readChunks(String filename, long size) {
+        if (!chunkFile(filename).isFile()) return null;
+        try {
+            List<String> lines = Files.readAllLines(chunkFile(filename).toPath(), StandardCharsets.UTF_8);
+            if (!lines.get(0).equals(size + " " + CHUNK_SIZE) || lines.size() - 1 != chunkCount(size)) return null;
+
+            ChunkList chunks = new ChunkList(chunkCount(size));
+            for (int i = 0; i < chunks.hashes.length; i++) {
+                String[] words = lines.get(i + 1).split(" ");
+                if (BlobStore.isHash(words[0])) {
+                    chunks.hashes[i] = words[0];
+                    if (words.length > 1) chunks.crcs[i] = Long.parseLong(words[1], 16);
+                } else if (words[0].startsWith("-") && BlobStore.isHash(words[0].substring(1))) {
+                    chunks.expected[i] = words[0].substring(1);
+                }
+            }
+            return chunks;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Method: writeChunks(String filename, long size, ChunkList chunks)
+     *      - Replaces the chunk list: '<size> <chunk size>', then one line per chunk, written aside and renamed into
+     *        place: '<hash> <crc32c>' once received, '-<hash>' if only its offered hash is known, otherwise '-'.
+     */
+    private void writeChunks(String filename, long size, ChunkList chunks) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(size).append(' ').append(CHUNK_SIZE).append('\n');
+        for (int i = 0; i < chunks.hashes.length; i++) {
+            if (chunks.hashes[i] != null) {
+                text.append(chunks.hashes[i]);
+                if (chunks.crcs[i] >= 0) text.append(' ').append(Crc32c.toHex(chunks.crcs[i]));
+            } else {
+                text.append('-');
+                if (chunks.expected[i] != null) text.append(chunks.expected[i]);
+            }
+            text.append('\n');
+        }
+
+        File temporary = new File(stagingDir, filename + ".chunks.tmp");
+        try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer source = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (source.hasRemaining()) out.write(source);
+            out.force(false);
+        }
+        try {
+            Files.move(temporary.toPath(), chunkFile(filename).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), chunkFile(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Object lockFor(String filename) {
+        return locks[Math.floorMod(filename.hashCode(), locks.length)];
+    }
+
+    private File dataFile(String filename) {
+        return new File(stagingDir, filename + ".upload");
+    }
+
+    private File chunkFile(String filename) {
+        return new File(stagingDir, filename + ".chunks");
+    }
+}
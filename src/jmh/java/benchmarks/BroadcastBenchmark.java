@@ -0,0 +1,170 @@
+package benchmarks;
+
+import harness.ServerProcess;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *  Class for BroadcastBenchmark
+ *      - One '/chat' fanned out to N connected clients: an operation lasts from sending the message until every
+ *        client has read it, so the score is the server's fan-out latency at that many clients.
+ *      - The clients are plain channels on one selector in the benchmark thread; the first of them sends. Each chat
+ *        reaches every client as exactly one line, so counting line ends is enough to know when all have it.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BroadcastBenchmark {
+    // How long a broadcast may take before the benchmark gives up on it
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Param({"nio", "threaded"})
+    public String mode;
+
+    @Param({"10", "100", "1000"})
+    public int clients;
+
+    private ServerProcess server;
+    private Selector selector;
+    private SocketChannel[] channels;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private ByteBuffer chat;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = ServerProcess.start(mode, Map.of());
+        selector = Selector.open();
+        channels = new SocketChannel[clients];
+        for (int i = 0; i < clients; i++) {
+            channels[i] = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()));
+            channels[i].setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channels[i].configureBlocking(false);
+            channels[i].register(selector, SelectionKey.OP_READ);
+        }
+
+        // Only registered users may chat; everyone else just listens
+        write("/register sender");
+        chat = ByteBuffer.wrap("/chat hello everyone\n".getBytes(StandardCharsets.UTF_8));
+
+        // Once a chat reached everyone, all greetings are in too: start counting from quiet connections
+        awaitReady("ready");
+        while (selector.select(500) > 0) readSelected();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        for (SocketChannel channel : channels) channel.close();
+        selector.close();
+        server.close();
+    }
+
+    @Benchmark
+    public long broadcast() throws IOException {
+        chat.rewind();
+        while (chat.hasRemaining()) channels[0].write(chat);
+        return awaitLines(clients);
+    }
+
+    /**
+     * Method: awaitLines(long expected)
+     *      - Reads from every client until that many lines have arrived between them.
+     *
+     * @return The lines read.
+     */
+    private long awaitLines(long expected) throws IOException {
+        long lines = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (lines < expected) {
+            if (selector.select(TIMEOUT_MILLIS) == 0 && System.currentTimeMillis() > deadline) {
+                throw new SocketTimeoutException(lines + " of " + expected + " clients got the chat");
+            }
+            lines += readSelected();
+        }
+        return lines;
+    }
+
+    /**
+     * Method: awaitReady(String message)
+     *      - Chats the message until every client has received it. The server may still be accepting the last
+     *        clients when the first chat goes out, and those would never see it.
+     */
+    private void awaitReady(String message) throws IOException {
+        Map<SocketChannel, StringBuilder> received = new HashMap<>();
+        for (SocketChannel channel : channels) received.put(channel, new StringBuilder());
+        String line = "sender: " + message;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS * 3;
+        long resend = 0;
+        while (!received.isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new SocketTimeoutException(received.size() + " of " + clients + " clients never got ready");
+            }
+            if (System.currentTimeMillis() >= resend) {
+                write("/chat " + message);
+                resend = System.currentTimeMillis() + 1000;
+            }
+            selector.select(100);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SocketChannel channel = (SocketChannel) keys.next().channel();
+                keys.remove();
+                StringBuilder text = received.get(channel);
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    if (text != null) text.append(StandardCharsets.UTF_8.decode(buffer));
+                    buffer.clear();
+                }
+                if (text != null && text.indexOf(line) >= 0) received.remove(channel);
+            }
+        }
+    }
+
+    /**
+     * Method: readSelected()
+     *
+     * @return The line ends read from the clients the selector picked.
+     */
+    private long readSelected() throws IOException {
+        long lines = 0;
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SocketChannel channel = (SocketChannel) keys.next().channel();
+            keys.remove();
+            int read;
+            while ((read = channel.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') lines++;
+                }
+                buffer.clear();
+            }
+            if (read < 0) throw new IOException("The server closed a client's connection");
+        }
+        return lines;
+    }
+
+    private void write(String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) channels[0].write(bytes);
+    }
+}
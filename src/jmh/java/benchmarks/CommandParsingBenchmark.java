@@ -0,0 +1,108 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+
+/**
+ *  Class for CommandParsingBenchmark
+ *      - What the server does with every line before a command runs: split it into words (CommandLine), find the
+ *        command by its first word (CommandRegistry) and take out the words the command reads.
+ *      - legacyChain is the if/else chain this replaced, kept here as the baseline: ExtractNthWord (a String.split
+ *        per call) for every branch tried, and the stream that rebuilt '/chatuni' messages.
+ *      - Run with -prof gc to see the bytes allocated per line.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommandParsingBenchmark {
+    private static final MethodHandle NEW_LINE = DefaultPackage.constructor("CommandLine");
+    private static final MethodHandle PARSE = DefaultPackage.method("CommandLine", "parse", String.class);
+    private static final MethodHandle WORD = DefaultPackage.method("CommandLine", "word", int.class);
+    private static final MethodHandle REST = DefaultPackage.method("CommandLine", "rest", int.class);
+    private static final MethodHandle FIND = DefaultPackage.method("CommandRegistry", "find", "CommandLine");
+
+    static {
+        // The built-in commands register themselves when the server class is loaded
+        DefaultPackage.type("MPServer");
+    }
+
+    @Param({"/chat hello everyone, the build is green again", "/get quarterly-report.pdf 1048576 65536",
+            "/chatuni alice are you there?", "/unknown command"})
+    public String line;
+
+    // Reused for every line, as each client handler does
+    private Object commandLine;
+
+    @Setup
+    public void setUp() throws Throwable {
+        commandLine = (Object) NEW_LINE.invokeExact();
+    }
+
+    /**
+     * Method: dispatch(Blackhole blackhole)
+     *      - Parses the line, finds its command and reads its arguments as the handler would.
+     */
+    @Benchmark
+    public void dispatch(Blackhole blackhole) throws Throwable {
+        Object parsed = (Object) PARSE.invokeExact(commandLine, (Object) line);
+        Object command = (Object) FIND.invokeExact(parsed);
+        blackhole.consume(command);
+        if (command == null) return;
+        if (line.startsWith("/get ")) {
+            blackhole.consume((Object) WORD.invokeExact(parsed, (Object) 2));
+            blackhole.consume((Object) WORD.invokeExact(parsed, (Object) 3));
+        } else if (line.startsWith("/chatuni ")) {
+            blackhole.consume((Object) WORD.invokeExact(parsed, (Object) 2));
+            blackhole.consume((Object) REST.invokeExact(parsed, (Object) 3));
+        } else {
+            blackhole.consume((Object) REST.invokeExact(parsed, (Object) 2));
+        }
+    }
+
+    /**
+     * Method: legacyChain(Blackhole blackhole)
+     *      - The same work as dispatch, the way the server did it before CommandLine, for a registered user.
+     */
+    @Benchmark
+    public void legacyChain(Blackhole blackhole) {
+        String inputLine = line;
+        if (inputLine.equals("/leave")) {
+            blackhole.consume(1);
+        } else if (inputLine.equals("/?")) {
+            blackhole.consume(2);
+        } else if (ExtractNthWord(inputLine, 1).equals("/register")) {
+            blackhole.consume(ExtractNthWord(inputLine, 2));
+        } else if (ExtractNthWord(inputLine, 1).equals("/store")) {
+            blackhole.consume(ExtractNthWord(inputLine, 2));
+        } else if (ExtractNthWord(inputLine, 1).equals("/dir")) {
+            blackhole.consume(3);
+        } else if (ExtractNthWord(inputLine, 1).equals("/get")) {
+            blackhole.consume(ExtractNthWord(inputLine, 2));
+            blackhole.consume(ExtractNthWord(inputLine, 3));
+        } else if (ExtractNthWord(inputLine, 1).equals("/chat")) {
+            blackhole.consume(inputLine.substring(6));
+        } else if (ExtractNthWord(inputLine, 1).equals("/chatuni")) {
+            blackhole.consume(ExtractNthWord(inputLine, 2));
+            blackhole.consume(Arrays.stream(inputLine.split("\\s+")).skip(2).reduce((word1, word2) -> word1 + " " + word2).orElse(""));
+        } else {
+            blackhole.consume(4);
+        }
+    }
+
+    // As MPServer had it
+    private static String ExtractNthWord(String input, int nth) {
+        String[] words = input.split(" ");
+        return words[nth - 1];
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ *  Class for DefaultPackage
+ *      - The server and client classes live in the unnamed package, which JMH benchmarks (like any class in a named
+ *        package) cannot refer to by name. Benchmarks that call them in-process do so through method handles; kept
+ *        in static final fields, these are inlined by the JIT like direct calls.
+ *      - Every handle takes and returns Object (see MethodType.generic), so callers use invokeExact with casts to
+ *        Object.
+ */
+final class DefaultPackage {
+
+    private DefaultPackage() {
+    }
+
+    /**
+     * Method: type(String name)
+     *
+     * @return The class of that name (e.g. "CommandLine", "CommandRegistry$Command"), initialized.
+     */
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name, true, DefaultPackage.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("No class " + name + " on the classpath", e);
+        }
+    }
+
+    /**
+     * Method: constructor(String className, Object... parameters)
+     *
+     * @param parameters: Classes, or the names of classes in the unnamed package.
+     * @return A handle creating an instance.
+     */
+    static MethodHandle constructor(String className, Object... parameters) {
+        try {
+            Constructor<?> constructor = type(className).getConstructor(types(parameters));
+            MethodHandle handle = MethodHandles.publicLookup().unreflectConstructor(constructor);
+            return handle.asType(handle.type().generic());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No public constructor of " + className, e);
+        }
+    }
+
+    /**
+     * Method: method(String className, String name, Object... parameters)
+     *
+     * @param parameters: Classes, or the names of classes in the unnamed package.
+     * @return A handle calling the public method; an instance method takes its receiver first.
+     */
+    static MethodHandle method(String className, String name, Object... parameters) {
+        try {
+            Method method = type(className).getMethod(name, types(parameters));
+            MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+            return handle.asType(handle.type().generic());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No public method " + className + "." + name, e);
+        }
+    }
+
+    private static Class<?>[] types(Object[] parameters) {
+        Class<?>[] types = new Class<?>[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            types[i] = parameters[i] instanceof Class ? (Class<?>) parameters[i] : type((String) parameters[i]);
+        }
+        return types;
+    }
+}
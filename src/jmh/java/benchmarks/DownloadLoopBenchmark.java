@@ -0,0 +1,169 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Class for DownloadLoopBenchmark
+ *      - Sends one file body over a loopback socket the three ways the server can: TransferEngine on the socket
+ *        channel (transferTo, sendfile on Linux), TransferEngine's buffered fallback (the same socket behind a
+ *        stream channel), and legacyLoop, the one-byte DataOutputStream loop '/get' used before TransferEngine.
+ *      - A reader thread drains the other end; an operation ends once every byte has arrived there, so each one
+ *        is a whole download as the client sees it.
+ *      - legacyLoop makes a system call per byte: expect seconds per operation at the larger size.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class DownloadLoopBenchmark {
+    private static final MethodHandle SEND_SLICE = DefaultPackage.method("TransferEngine", "sendSlice",
+            FileChannel.class, long.class, long.class, WritableByteChannel.class);
+
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    private File file;
+    private SocketChannel sender;
+    private SocketChannel receiver;
+    private OutputStream senderStream;
+    private Thread drain;
+
+    // Bytes the reader thread has taken off the socket so far
+    private final AtomicLong received = new AtomicLong();
+
+    // Bytes sent by all operations so far
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        file = File.createTempFile("download-loop", ".bin");
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            receiver = SocketChannel.open(listener.getLocalAddress());
+            sender = listener.accept();
+        }
+        sender.socket().setTcpNoDelay(true);
+        senderStream = sender.socket().getOutputStream();
+
+        drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                int read;
+                while ((read = receiver.read(buffer)) >= 0) {
+                    received.addAndGet(read);
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // Closed at the end of the trial
+            }
+        }, "download-loop-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        sender.close();
+        receiver.close();
+        file.delete();
+    }
+
+    /**
+     * Method: transferTo()
+     *      - The path '/get' takes: TransferEngine straight onto the socket channel.
+     */
+    @Benchmark
+    public long transferTo() throws Throwable {
+        return send(sender);
+    }
+
+    /**
+     * Method: buffered()
+     *      - TransferEngine's fallback, taken when the target is not a socket channel.
+     */
+    @Benchmark
+    public long buffered() throws Throwable {
+        return send(Channels.newChannel(senderStream));
+    }
+
+    /**
+     * Method: legacyLoop()
+     *      - The loop as MPServer.getFile had it: one byte read and written at a time, unbuffered.
+     */
+    @Benchmark
+    public long legacyLoop() throws IOException {
+        DataOutputStream fileWriter = new DataOutputStream(senderStream);
+        try (FileInputStream fileReader = new FileInputStream(file)) {
+            byte[] buffer = new byte[1];
+            long sizeOfFile = file.length();
+            int bytesRead;
+            while ((bytesRead = fileReader.read(buffer)) != -1 && sizeOfFile > 0) {
+                fileWriter.write(buffer);
+                sizeOfFile -= bytesRead;
+            }
+            fileWriter.flush();
+        }
+        return arrived(size);
+    }
+
+    private long send(WritableByteChannel target) throws Throwable {
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < size) {
+                Object slice = (Object) SEND_SLICE.invokeExact((Object) source, (Object) position, (Object) (size - position), (Object) target);
+                position += (Long) slice;
+            }
+        }
+        return arrived(size);
+    }
+
+    /**
+     * Method: arrived(long count)
+     *      - Waits until the reader has taken the count bytes just sent off the socket.
+     */
+    private long arrived(long count) {
+        sent += count;
+        while (received.get() < sent) {
+            Thread.onSpinWait();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,121 @@
+package benchmarks;
+
+import harness.LatencyProxy;
+import harness.LineClient;
+import harness.ServerProcess;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ *  Class for ParallelDownloadBenchmark
+ *      - One file downloaded with '/get' (one connection) and with '/pget' (several), through a LatencyProxy that
+ *        adds a round trip and caps the bytes each connection has on their way, as a TCP window on a long link does.
+ *      - A single connection then moves at most WINDOW bytes per round trip; '/pget' should approach CONNECTIONS
+ *        times that, and tie with '/get' where the round trip is short.
+ *      - Each operation is one whole download into the working directory, with the files of the previous one
+ *        deleted first, so it never resumes.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ParallelDownloadBenchmark {
+    private static final String FILENAME = "pget-bench.bin";
+
+    // Bytes on their way per connection and direction
+    private static final int WINDOW = 1024 * 1024;
+
+    // Connections '/pget' downloads over (the server allows 4 extra ones per client by default)
+    private static final int CONNECTIONS = 4;
+
+    private static final MethodHandle NEW_CLIENT = DefaultPackage.constructor("FileExchangeClient", Consumer.class);
+    private static final MethodHandle CONNECT = DefaultPackage.method("FileExchangeClient", "connect", String.class, int.class);
+    private static final MethodHandle REGISTER = DefaultPackage.method("FileExchangeClient", "register", String.class);
+    private static final MethodHandle GET = DefaultPackage.method("FileExchangeClient", "get", String.class);
+    private static final MethodHandle PGET = DefaultPackage.method("FileExchangeClient", "pget", String.class, int.class);
+    private static final MethodHandle CLOSE = DefaultPackage.method("FileExchangeClient", "close");
+
+    @Param({"1", "20", "50"})
+    public int roundTripMillis;
+
+    @Param({"67108864"})
+    public int size;
+
+    private ServerProcess server;
+    private LatencyProxy proxy;
+    private Object client;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        server = ServerProcess.start("nio", Map.of());
+
+        // Uploaded straight to the server; only the downloads go over the slow link
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        try (LineClient seeder = new LineClient(server.getPort())) {
+            seeder.register("seeder");
+            seeder.store(FILENAME, data);
+        }
+
+        proxy = LatencyProxy.start(server.getPort(), roundTripMillis, WINDOW);
+        Consumer<String> quiet = notice -> { };
+        client = (Object) NEW_CLIENT.invokeExact((Object) quiet);
+        await((Object) CONNECT.invokeExact(client, (Object) "localhost", (Object) proxy.getPort()));
+        await((Object) REGISTER.invokeExact(client, (Object) "bench"));
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Throwable {
+        Object closed = (Object) CLOSE.invokeExact(client);
+        proxy.close();
+        server.close();
+        deleteDownload();
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteDownload() {
+        for (String suffix : new String[] {"", ".part", ".part.state", ".pget"}) {
+            new File(FILENAME + suffix).delete();
+        }
+    }
+
+    @Benchmark
+    public Object get() throws Throwable {
+        return await((Object) GET.invokeExact(client, (Object) FILENAME));
+    }
+
+    @Benchmark
+    public Object pget() throws Throwable {
+        return await((Object) PGET.invokeExact(client, (Object) FILENAME, (Object) CONNECTIONS));
+    }
+
+    private static Object await(Object future) throws IOException {
+        try {
+            return ((CompletableFuture<?>) future).get(10, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            throw new IOException("Download failed", e);
+        }
+    }
+}
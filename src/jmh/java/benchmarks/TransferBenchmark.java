@@ -0,0 +1,95 @@
+package benchmarks;
+
+import harness.LineClient;
+import harness.ServerProcess;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *  Class for TransferBenchmark
+ *      - '/get' and '/store' of whole files over loopback, at several file sizes and in each server mode. Besides
+ *        operations per second, JMH reports "bytes" per second (see Bytes).
+ *      - Every upload changes one word in each 1 MiB chunk, so no chunk is ever deduplicated and each one is hashed,
+ *        written and synced like fresh content. The server's directory is deleted after each trial.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransferBenchmark {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @Param({"nio", "threaded"})
+    public String mode;
+
+    @Param({"65536", "1048576", "67108864"})
+    public int size;
+
+    private ServerProcess server;
+    private LineClient client;
+    private byte[] data;
+    private final byte[] scratch = new byte[256 * 1024];
+    private long round;
+
+    /**
+     * Class for Bytes
+     *      - File bytes moved, reported by JMH as a rate next to the operations.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = ServerProcess.start(mode, Map.of());
+        client = new LineClient(server.getPort());
+        client.register("bench");
+        data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        client.store("download.bin", data);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public long get(Bytes bytes) throws IOException {
+        long received = client.get("download.bin", scratch);
+        bytes.bytes += received;
+        return received;
+    }
+
+    @Benchmark
+    public void store(Bytes bytes) throws IOException {
+        // New content in every chunk
+        round++;
+        for (int chunk = 0; chunk < data.length; chunk += CHUNK_SIZE) {
+            for (int i = 0; i < 8 && chunk + i < data.length; i++) data[chunk + i] = (byte) (round >>> (8 * i));
+        }
+        client.store("upload.bin", data);
+        bytes.bytes += data.length;
+    }
+}
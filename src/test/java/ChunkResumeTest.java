@@ -0,0 +1,84 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for ChunkResumeTest
+ *      - Chunk ranges of an upload are staged as they arrive and listed by '/chunks'; the file is only published
+ *        once every chunk is in, and a client finishing the upload sends only the chunks still missing.
+ */
+class ChunkResumeTest {
+    private static final int CHUNK = UploadStaging.CHUNK_SIZE;
+
+    // Five chunks, the last one short
+    private static final int SIZE = 4 * CHUNK + 100;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void uploadResumesWithTheMissingChunks(String mode) throws Exception {
+        String filename = "chunked-" + mode + ".bin";
+        byte[] data = new byte[SIZE];
+        new Random(12).nextBytes(data);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of());
+             LineClient first = new LineClient(server.getPort())) {
+            first.register("first");
+
+            // The first chunk, then the last two: the upload is left with a gap
+            storeRange(first, filename, data, 0, CHUNK);
+            assertTrue(first.readUntil("first <").endsWith("Stored part of " + filename + ", chunks received: 0"));
+            storeRange(first, filename, data, 3 * CHUNK, SIZE - 3 * CHUNK);
+            assertTrue(first.readUntil("first <").endsWith("Stored part of " + filename + ", chunks received: 0,3-4"));
+
+            first.send("/chunks " + filename + " " + SIZE);
+            assertEquals("CHUNKS " + filename + " " + SIZE + " " + CHUNK + " 0,3-4", first.readUntil("CHUNKS"));
+            first.send("/get " + filename);
+            assertEquals("FILE_FALSE", first.readUntil("FILE_"));
+
+            // Another client uploads the whole file: only chunks 1 and 2 go over the wire
+            File local = new File(filename);
+            Files.write(local.toPath(), data);
+            Queue<String> notices = new ConcurrentLinkedQueue<>();
+            FileExchangeClient client = new FileExchangeClient(notices::add);
+            try {
+                client.connect("localhost", server.getPort()).get(30, TimeUnit.SECONDS);
+                client.register("second").get(30, TimeUnit.SECONDS);
+                client.store(filename).get(60, TimeUnit.SECONDS);
+                assertTrue(notices.contains("Resuming upload of " + filename + ": 3 of 5 chunks already stored"), notices.toString());
+            } finally {
+                client.close();
+                local.delete();
+            }
+
+            assertEquals(SIZE, first.get(filename, new byte[64 * 1024]));
+            first.send("/stat " + filename);
+            assertEquals("STAT " + filename + " " + SIZE, first.readUntil("STAT"));
+        }
+    }
+
+    /**
+     * Method: storeRange(LineClient client, String filename, byte[] data, int offset, int length)
+     *      - Sends one range of the file on the line protocol: '/store', then '<size> <offset> <length>' and the bytes.
+     */
+    private static void storeRange(LineClient client, String filename, byte[] data, int offset, int length) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(("/store " + filename + "\n" + SIZE + " " + offset + " " + length + "\n").getBytes(StandardCharsets.UTF_8));
+        request.write(data, offset, length);
+        client.write(request.toByteArray());
+    }
+}
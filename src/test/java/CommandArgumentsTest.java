@@ -0,0 +1,42 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for CommandArgumentsTest
+ *      - Commands sent without their arguments are answered like other bad input, and the connection goes on.
+ */
+class CommandArgumentsTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void commandsWithoutArgumentsAreAnswered(String mode) throws IOException {
+        try (ServerProcess server = ServerProcess.start(mode, Map.of());
+             LineClient client = new LineClient(server.getPort())) {
+            client.register("tester");
+
+            client.send("/get");
+            assertEquals("FILE_FALSE", client.readUntil("FILE_"));
+            assertTrue(client.readLine().startsWith("Improper input"));
+
+            client.send("/store");
+            assertTrue(client.readUntil("Improper input").contains("/store <file name>"));
+
+            for (String command : new String[] {"/protocol", "/compress", "/verify", "/attach", "/offer", "/signatures",
+                    "/delta", "/chunks", "/checksums", "/stat", "/dir", "/chatuni"}) {
+                client.send(command);
+            }
+
+            // Every one of them was handled, in order, on a connection that still works
+            client.send("/stat missing.txt");
+            assertEquals("STAT_FALSE missing.txt", client.readUntil("STAT_FALSE missing"));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for CommandLineTest
+ *      - CommandLine splits a line like line.split(" ") did, without allocating the words.
+ */
+class CommandLineTest {
+
+    private static String[] words(CommandLine line) {
+        String[] words = new String[line.size()];
+        for (int i = 0; i < words.length; i++) words[i] = line.word(i + 1);
+        return words;
+    }
+
+    @Test
+    void splitsLikeStringSplit() {
+        CommandLine line = new CommandLine();
+        for (String text : new String[] {"/get a.txt", "/chat  two  spaces", "/dir   ", "", " leading", "/x a b c d e f g h i j k l m n o p q r s"}) {
+            assertArrayEquals(text.isEmpty() ? new String[0] : text.split(" "), words(line.parse(text)), text);
+        }
+    }
+
+    @Test
+    void restKeepsSpaces() {
+        CommandLine line = new CommandLine().parse("/chatuni bob hello  there ");
+        assertEquals("bob hello  there ", line.rest(2));
+        assertEquals("hello  there ", line.rest(3));
+        assertEquals("", line.rest(9));
+    }
+
+    @Test
+    void wordsPastTheEndThrow() {
+        CommandLine line = new CommandLine().parse("/get");
+        assertEquals(1, line.size());
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> line.word(2));
+        assertFalse(line.wordEquals(2, "a.txt"));
+        assertTrue(line.wordEquals(1, "/get"));
+    }
+
+    @Test
+    void reusedForTheNextLine() {
+        CommandLine line = new CommandLine();
+        line.parse("/store big.iso");
+        line.parse("/leave");
+        assertEquals(1, line.size());
+        assertEquals("/leave", line.word(1));
+    }
+}
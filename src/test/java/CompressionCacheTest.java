@@ -0,0 +1,146 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for CompressionCacheTest
+ *      - Copies are made on the builder, never by the request that found none, and the cache keeps track of them
+ *        in memory.
+ */
+class CompressionCacheTest {
+    private static final Codec DEFLATE = CodecRegistry.get("deflate");
+
+    @TempDir
+    Path files;
+
+    @TempDir
+    Path cacheDir;
+
+    // Builds queued by the cache, run when the test says so
+    private final List<Runnable> builds = new ArrayList<>();
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = files.resolve(name).toFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static FileBody open(File file) throws IOException {
+        return new ChannelBody(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    private FileBody request(CompressionCache cache, File file, String version) {
+        return cache.open(file.getName(), version, DEFLATE, () -> open(file), () -> version);
+    }
+
+    private void runBuilds() {
+        List<Runnable> queued = new ArrayList<>(builds);
+        builds.clear();
+        queued.forEach(Runnable::run);
+    }
+
+    private static byte[] text(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) ('a' + i % 7);
+        return data;
+    }
+
+    @Test
+    void firstRequestIsServedRawWhileTheCopyIsMade() throws IOException {
+        CompressionCache cache = new CompressionCache(cacheDir.toFile(), 1 << 20, builds::add);
+        File file = write("notes.txt", text(200_000));
+
+        assertNull(request(cache, file, "v1"));
+        assertNull(request(cache, file, "v1"));
+        assertEquals(1, builds.size(), "one build per version, however often it is asked for");
+
+        runBuilds();
+        try (FileBody copy = request(cache, file, "v1")) {
+            assertNotNull(copy);
+            assertTrue(copy.size() < file.length());
+        }
+    }
+
+    @Test
+    void filesNotWorthCompressingAreRememberedInMemory() throws IOException {
+        CompressionCache cache = new CompressionCache(cacheDir.toFile(), 1 << 20, builds::add);
+        byte[] noise = new byte[200_000];
+        new Random(3).nextBytes(noise);
+        File file = write("noise.bin", noise);
+
+        assertNull(request(cache, file, "v1"));
+        runBuilds();
+        assertNull(request(cache, file, "v1"));
+        assertTrue(builds.isEmpty(), "not sampled again");
+        assertEquals(0, cacheDir.toFile().list().length);
+
+        // A new version is judged on its own
+        cache.invalidate("noise.bin");
+        assertNull(request(cache, file, "v1"));
+        assertEquals(1, builds.size());
+    }
+
+    @Test
+    void leastRecentlyUsedCopiesAreEvicted() throws IOException {
+        File first = write("first.txt", text(100_000));
+        File second = write("second.txt", text(100_001));
+
+        // Room for one copy only
+        long copySize;
+        CompressionCache probe = new CompressionCache(files.resolve("probe").toFile(), 1 << 20, Runnable::run);
+        request(probe, first, "v1");
+        try (FileBody copy = request(probe, first, "v1")) {
+            copySize = copy.size();
+        }
+        CompressionCache cache = new CompressionCache(cacheDir.toFile(), copySize * 3 / 2, builds::add);
+
+        request(cache, first, "v1");
+        runBuilds();
+        request(cache, second, "v1");
+        runBuilds();
+
+        assertEquals(1, cacheDir.toFile().list().length, Arrays.toString(cacheDir.toFile().list()));
+        assertNull(request(cache, first, "v1"));
+        try (FileBody copy = request(cache, second, "v1")) {
+            assertNotNull(copy);
+        }
+    }
+
+    @Test
+    void invalidateDropsTheCopies() throws IOException {
+        CompressionCache cache = new CompressionCache(cacheDir.toFile(), 1 << 20, builds::add);
+        File file = write("notes.txt", text(200_000));
+        request(cache, file, "v1");
+        runBuilds();
+
+        cache.invalidate("notes.txt");
+        assertEquals(0, cacheDir.toFile().list().length);
+        assertNull(request(cache, file, "v1"));
+    }
+
+    @Test
+    void aCopyOfAFileReplacedMeanwhileIsDropped() throws IOException {
+        CompressionCache cache = new CompressionCache(cacheDir.toFile(), 1 << 20, builds::add);
+        File file = write("notes.txt", text(200_000));
+
+        assertNull(cache.open("notes.txt", "v1", DEFLATE, () -> open(file), () -> "v2"));
+        runBuilds();
+        assertNull(cache.open("notes.txt", "v1", DEFLATE, () -> open(file), () -> "v2"));
+        assertEquals(0, cacheDir.toFile().list().length);
+    }
+}
@@ -0,0 +1,51 @@
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ *  Class for DeltaStoreTest
+ *      - An edited file goes up as a delta against the server's copy, and comes back down as edited. The server signs
+ *        the old copy and rebuilds the new one off its event loops.
+ */
+class DeltaStoreTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void editedFileIsStoredAsADelta(String mode) throws Exception {
+        String filename = "delta-" + mode + ".bin";
+        File local = new File(filename);
+        byte[] data = new byte[5 * 1024 * 1024];
+        new Random(7).nextBytes(data);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of())) {
+            FileExchangeClient client = new FileExchangeClient(notice -> { });
+            try {
+                client.connect("localhost", server.getPort()).get(30, TimeUnit.SECONDS);
+                client.register("tester").get(30, TimeUnit.SECONDS);
+
+                Files.write(local.toPath(), data);
+                client.store(filename).get(60, TimeUnit.SECONDS);
+
+                // Change a few bytes in the middle; the rest matches the server's blocks
+                for (int i = 0; i < 100; i++) data[2 * 1024 * 1024 + i] ^= 0x5a;
+                Files.write(local.toPath(), data);
+                client.store(filename).get(60, TimeUnit.SECONDS);
+
+                Files.delete(local.toPath());
+                client.get(filename).get(60, TimeUnit.SECONDS);
+                assertArrayEquals(data, Files.readAllBytes(local.toPath()));
+            } finally {
+                client.close();
+                local.delete();
+            }
+        }
+    }
+}
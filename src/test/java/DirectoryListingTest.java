@@ -0,0 +1,71 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for DirectoryListingTest
+ *      - '/dir [prefix] [page]' lists the catalog one page at a time, in name order, and says how to get the next
+ *        page; a prefix narrows the listing to the names starting with it.
+ */
+class DirectoryListingTest {
+    // One listed file: name, size, modification time and checksum
+    private static final String ENTRY = "  \\d+ bytes  \\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}  crc32c [0-9a-f]{8}";
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void directoryIsPagedAndFiltered(String mode) throws IOException {
+        try (ServerProcess server = ServerProcess.start(mode, Map.of("fes.dir.page", "2"));
+             LineClient client = new LineClient(server.getPort())) {
+            client.register("tester");
+            for (String name : new String[] {"beta1", "alpha2", "beta2", "alpha1", "alpha3"}) {
+                client.store(name, name.getBytes(StandardCharsets.UTF_8));
+            }
+
+            assertEquals(List.of("alpha1", "alpha2", "Page 1 of 3 (5 files), next: /dir 2"), listing(client, "/dir", 2));
+            assertEquals(List.of("alpha3", "beta1", "Page 2 of 3 (5 files), next: /dir 3"), listing(client, "/dir 2", 2));
+            assertEquals(List.of("beta2", "Page 3 of 3 (5 files)"), listing(client, "/dir 3", 1));
+
+            assertEquals(List.of("alpha1", "alpha2", "Page 1 of 2 (3 files), next: /dir alpha 2"), listing(client, "/dir alpha", 2));
+            assertEquals(List.of("alpha3", "Page 2 of 2 (3 files)"), listing(client, "/dir alpha 2", 1));
+
+            // A single page has no page line
+            client.send("/dir beta");
+            client.readUntil("Server Directory:");
+            assertTrue(client.readLine().matches("beta1" + ENTRY));
+            assertTrue(client.readLine().matches("beta2" + ENTRY));
+
+            client.send("/dir gamma");
+            assertEquals("No files starting with \"gamma\".", client.readUntil("No files"));
+        }
+    }
+
+    /**
+     * Method: listing(LineClient client, String command, int entries)
+     *      - Sends a '/dir' command and reads its reply, checking the format of every entry.
+     *
+     * @return The names listed, then the page line.
+     */
+    private static List<String> listing(LineClient client, String command, int entries) throws IOException {
+        client.send(command);
+        client.readUntil("Server Directory:");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < entries; i++) {
+            String entry = client.readLine();
+            String name = entry.substring(0, entry.indexOf(' '));
+            assertTrue(entry.matches(name + ENTRY), entry);
+            lines.add(name);
+        }
+        lines.add(client.readLine());
+        return lines;
+    }
+}
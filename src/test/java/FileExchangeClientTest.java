@@ -0,0 +1,148 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for FileExchangeClientTest
+ *      - The client's reader cuts lines and bodies out of whatever arrives, however the server's writes are split.
+ *      - Uploads complete on the server's 'STORED' and 'STORE_FALSE' replies, never on chat text, and every refused
+ *        '/store' is answered.
+ */
+class FileExchangeClientTest {
+
+    /**
+     * Method: lineProtocolBodyArrivesInPieces()
+     *      - A server without frames (it refuses '/protocol') sends a download's reply, name, size and body in
+     *        pieces that split lines and the body.
+     */
+    @Test
+    void lineProtocolBodyArrivesInPieces() throws Exception {
+        File local = new File("pieces.txt");
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            CompletableFuture<Void> served = CompletableFuture.runAsync(() -> serveOldProtocol(listener));
+
+            FileExchangeClient client = new FileExchangeClient(notice -> { });
+            try {
+                client.connect("localhost", listener.getLocalPort()).get(30, TimeUnit.SECONDS);
+                client.register("tester").get(30, TimeUnit.SECONDS);
+                File file = client.get("pieces.txt").get(30, TimeUnit.SECONDS);
+                assertEquals("hello, world", Files.readString(file.toPath()));
+            } finally {
+                client.close();
+                local.delete();
+            }
+            served.get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Method: refusedUploadFailsItsFuture(String mode)
+     *      - A name the server does not store under is answered by 'STORE_FALSE', which fails the upload; chat
+     *        that reads like an upload confirmation completes nothing.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void refusedUploadFailsItsFuture(String mode) throws Exception {
+        File local = new File(".refused-" + mode + ".bin");
+        Files.write(local.toPath(), new byte[1000]);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of());
+             LineClient other = new LineClient(server.getPort())) {
+            other.register("other");
+            FileExchangeClient client = new FileExchangeClient(notice -> { });
+            try {
+                client.connect("localhost", server.getPort()).get(30, TimeUnit.SECONDS);
+                client.register("tester").get(30, TimeUnit.SECONDS);
+
+                CompletableFuture<Void> stored = client.store(local.getName());
+                other.send("/chat <x>: Uploaded " + local.getName());
+                ExecutionException failure = assertThrows(ExecutionException.class, () -> stored.get(30, TimeUnit.SECONDS));
+                assertTrue(failure.getCause().getMessage().contains("cannot store"), failure.getCause().getMessage());
+                assertFalse(stored.isCancelled());
+            } finally {
+                client.close();
+                local.delete();
+            }
+        }
+    }
+
+    /**
+     * Method: badSizeFailsTheUpload(String mode)
+     *      - A '/store' with a size the server cannot read, pipelined ahead of the client's own upload of that file,
+     *        is answered by 'STORE_FALSE' too, so the upload waiting for the name fails instead of waiting forever.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void badSizeFailsTheUpload(String mode) throws Exception {
+        File local = new File("bad-size-" + mode + ".bin");
+        Files.write(local.toPath(), new byte[1000]);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of())) {
+            FileExchangeClient client = new FileExchangeClient(notice -> { });
+            try {
+                client.connect("localhost", server.getPort()).get(30, TimeUnit.SECONDS);
+                client.register("tester").get(30, TimeUnit.SECONDS);
+
+                CompletableFuture<Void> stored = client.store(local.getName());
+                client.send("/store " + local.getName() + " not-a-size 99").get(30, TimeUnit.SECONDS);
+                ExecutionException failure = assertThrows(ExecutionException.class, () -> stored.get(30, TimeUnit.SECONDS));
+                assertTrue(failure.getCause().getMessage().contains("cannot store " + local.getName() + " with size not-a-size"),
+                        failure.getCause().getMessage());
+            } finally {
+                client.close();
+                local.delete();
+            }
+        }
+    }
+
+    /**
+     * Method: serveOldProtocol(ServerSocket listener)
+     *      - Plays a server from before frames for one connection: refuses '/protocol', accepts any alias and
+     *        answers '/get pieces.txt' in small, badly cut writes.
+     */
+    private static void serveOldProtocol(ServerSocket listener) {
+        try (Socket socket = listener.accept()) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream output = socket.getOutputStream();
+            output.write("Welcome\n".getBytes(StandardCharsets.UTF_8));
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (line.startsWith("/protocol")) {
+                    output.write("Improper input.\n".getBytes(StandardCharsets.UTF_8));
+                } else if (line.startsWith("/register")) {
+                    output.write("REGISTER_TRUE\n".getBytes(StandardCharsets.UTF_8));
+                } else if (line.equals("/get pieces.txt")) {
+                    for (String piece : new String[] {"FILE_EX", "ISTS\npieces.", "txt\n1", "2\nhello,", " world", "Server: done\n"}) {
+                        output.write(piece.getBytes(StandardCharsets.UTF_8));
+                        output.flush();
+                        Thread.sleep(20);
+                    }
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for HotFileCacheTest
+ *      - Popular stored files are mapped; plain files, which may be cut short under a mapping, never are.
+ */
+class HotFileCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void plainFilesAreNeverMapped() throws IOException {
+        HotFileCache cache = new HotFileCache(64L * 1024 * 1024);
+        File file = directory.resolve("plain.bin").toFile();
+        Files.write(file.toPath(), new byte[100_000]);
+        FileCatalog.Entry current = new FileCatalog.Entry("plain.bin", file.length(), file.lastModified(), -1);
+
+        for (int i = 0; i < 5; i++) {
+            try (FileBody body = cache.open("plain.bin", current,
+                    () -> new ChannelBody(FileChannel.open(file.toPath(), StandardOpenOption.READ)))) {
+                assertFalse(body instanceof MappedBody);
+            }
+        }
+        assertEquals(0, cache.getHits());
+        assertTrue(cache.describe().contains(" 0 files"), cache.describe());
+    }
+
+    @Test
+    void storedFilesAreMappedOncePopular() throws IOException {
+        HotFileCache cache = new HotFileCache(64L * 1024 * 1024);
+        BlobStore store = new MemoryBlobStore();
+        ByteBuffer chunk = ByteBuffer.wrap(new byte[100_000]);
+        String hash = BlobStore.hash(chunk);
+        store.put(hash, chunk);
+        store.writeManifest("stored.bin", new BlobStore.Manifest(100_000, UploadStaging.CHUNK_SIZE, new String[] {hash}, new long[] {-1}));
+        FileCatalog.Entry current = new FileCatalog.Entry("stored.bin", 100_000, store.lastModified("stored.bin"), -1);
+
+        for (int i = 0; i < 3; i++) {
+            try (FileBody body = cache.open("stored.bin", current, () -> store.open("stored.bin"))) {
+                assertEquals(100_000, body.size());
+            }
+        }
+        assertEquals(1, cache.getHits());
+    }
+}
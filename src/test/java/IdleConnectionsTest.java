@@ -0,0 +1,41 @@
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ *  Class for IdleConnectionsTest
+ *      - Many clients connect and then sit idle on one server, without registering, while another keeps asking it
+ *        something; afterwards every idle client is still answered (LoadGenerator's idle scenario).
+ *      - Holds 2000 clients by default; -Dfes.idle.clients=50000 runs the full load, which needs an open-file limit
+ *        above 50000 for the server and for the test each (ulimit -n).
+ *      - The virtual case needs a server on JDK 21 or later: it is skipped unless the build runs on one, or
+ *        -Dfes.server.java names one (see ServerProcess).
+ */
+class IdleConnectionsTest {
+    private static final int CLIENTS = Integer.getInteger("fes.idle.clients", 2000);
+
+    @ParameterizedTest
+    @ValueSource(strings = {"virtual", "nio"})
+    void idleClientsAreAllStillServed(String mode) throws Exception {
+        // On older JDKs the server quietly falls back to platform threads, which is not what is measured here
+        if (mode.equals("virtual")) {
+            assumeTrue(ServerProcess.javaVersion() >= 21, "virtual threads need a server on JDK 21+ (-Dfes.server.java)");
+        }
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of())) {
+            LoadGenerator load = new LoadGenerator(Map.of("port", String.valueOf(server.getPort()),
+                    "sessions", String.valueOf(CLIENTS), "concurrency", "32", "hold", "2",
+                    // About 28000 ephemeral ports per source address
+                    "sources", String.valueOf(CLIENTS / 25000 + 1)));
+            load.run("idle");
+            assertEquals(0, load.getFailures(), "see the report above");
+            assertFalse(server.output().contains("virtual_threads_unavailable"), server.output());
+        }
+    }
+}
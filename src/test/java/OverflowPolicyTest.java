@@ -0,0 +1,82 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for OverflowPolicyTest
+ *      - A client that stops reading while another one keeps sending it messages ('/chatuni'): once its queue is past
+ *        fes.outbound.limit, DROP leaves it connected and drops the messages it missed, and DISCONNECT closes its
+ *        connection.
+ *      - The kernel buffers of both ends take several MiB before the queue fills, so MESSAGES is well beyond that.
+ */
+class OverflowPolicyTest {
+    private static final int MESSAGES = 20000;
+    private static final String FILLER = "x".repeat(1000);
+
+    @ParameterizedTest
+    @CsvSource({"threaded,drop", "threaded,disconnect", "nio,drop", "nio,disconnect"})
+    void stalledReaderIsHandledByThePolicy(String mode, String policy) throws Exception {
+        try (ServerProcess server = ServerProcess.start(mode, Map.of("fes.outbound.limit", "65536", "fes.outbound.policy", policy));
+             LineClient stalled = new LineClient(server.getPort());
+             LineClient sender = new LineClient(server.getPort())) {
+            stalled.register("stalled");
+            sender.register("sender");
+
+            // The stalled client reads nothing while the messages go out; the unknown alias at the end is answered
+            // once the server has handled all of them
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (int i = 0; i < MESSAGES; i++) {
+                batch.write(("/chatuni stalled m" + i + " " + FILLER + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            batch.write("/chatuni nobody marker\n".getBytes(StandardCharsets.UTF_8));
+            sender.write(batch.toByteArray());
+            sender.readUntil("Sorry, inputted user alias does not exist.");
+
+            AtomicInteger received = new AtomicInteger();
+            if (policy.equals("disconnect")) {
+                // What was written before the close arrives, then the connection ends
+                assertTrue(drain(stalled, received, null), "the stalled client was not disconnected");
+            } else {
+                // Still connected: keep sending until something new gets through
+                CompletableFuture<Boolean> drained = CompletableFuture.supplyAsync(() -> drain(stalled, received, "From sender: after"));
+                long deadline = System.currentTimeMillis() + 30_000;
+                while (!drained.isDone() && System.currentTimeMillis() < deadline) {
+                    sender.send("/chatuni stalled after");
+                    Thread.sleep(100);
+                }
+                assertFalse(drained.get(1, TimeUnit.SECONDS), "the stalled client was disconnected");
+            }
+            assertTrue(received.get() < MESSAGES, received + " of " + MESSAGES + " messages arrived; none were dropped");
+        }
+    }
+
+    /**
+     * Method: drain(LineClient client, AtomicInteger received, String until)
+     *      - Reads the client's lines, counting the 'm<i>' messages, until the given line or the end of the connection.
+     *
+     * @return True if the connection ended first.
+     */
+    private static boolean drain(LineClient client, AtomicInteger received, String until) {
+        try {
+            String line;
+            while (!(line = client.readLine()).equals(until)) {
+                if (line.startsWith("From sender: m")) received.incrementAndGet();
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+}
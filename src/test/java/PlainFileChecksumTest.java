@@ -0,0 +1,49 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for PlainFileChecksumTest
+ *      - The checksums of a plain file are computed on first demand, off the event loop, and the commands behind
+ *        that demand are still answered after it.
+ */
+class PlainFileChecksumTest {
+    private static final int SIZE = 3 * 1024 * 1024 + 5;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void checksumsOfAPlainFileAreComputedInOrder(String mode) throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(5).nextBytes(data);
+        CRC32C whole = new CRC32C();
+        whole.update(data);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of())) {
+            // Copied in by hand, so the server has no checksums for it yet; the server may not have made the
+            // directory yet
+            Files.createDirectories(server.getDirectory().resolve("files"));
+            Files.write(server.getDirectory().resolve("files").resolve("plain.bin"), data);
+
+            try (LineClient client = new LineClient(server.getPort())) {
+                client.register("tester");
+                client.write("/checksums plain.bin\n/stat plain.bin\n".getBytes(StandardCharsets.UTF_8));
+
+                String header = client.readUntil("CHECKSUMS");
+                assertEquals("CHECKSUMS plain.bin " + SIZE + " " + UploadStaging.CHUNK_SIZE + " 4 " + Crc32c.toHex(whole.getValue()), header);
+                assertTrue(client.readLine().startsWith("CRCS plain.bin 0 "));
+                assertEquals("STAT plain.bin " + SIZE, client.readUntil("STAT"));
+            }
+        }
+    }
+}
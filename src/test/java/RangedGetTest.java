@@ -0,0 +1,106 @@
+import harness.LatencyProxy;
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for RangedGetTest
+ *      - '/get <file> <offset> [length]' sends just that range, cut at the end of the file, and refuses one that
+ *        starts past it.
+ *      - A download cut off half way keeps what arrived, and the next '/get' of the file resumes from there.
+ */
+class RangedGetTest {
+    private static final int SIZE = 8 * 1024 * 1024 + 7;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void rangesAreSentAsAsked(String mode) throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(9).nextBytes(data);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of());
+             LineClient client = new LineClient(server.getPort())) {
+            client.register("tester");
+            client.store("ranged.bin", data);
+
+            client.send("/get ranged.bin 1000000 500000");
+            client.readUntil("FILE_RANGE");
+            assertEquals("ranged.bin", client.readLine());
+            assertEquals("1000000 500000 " + SIZE, client.readLine());
+            assertArrayEquals(Arrays.copyOfRange(data, 1000000, 1500000), client.readBytes(500000));
+
+            // Past the end: only what is there
+            client.send("/get ranged.bin " + (SIZE - 10) + " 100");
+            client.readUntil("FILE_RANGE");
+            assertEquals("ranged.bin", client.readLine());
+            assertEquals((SIZE - 10) + " 10 " + SIZE, client.readLine());
+            assertArrayEquals(Arrays.copyOfRange(data, SIZE - 10, SIZE), client.readBytes(10));
+
+            client.send("/get ranged.bin " + (SIZE + 1));
+            assertEquals("FILE_FALSE", client.readUntil("FILE_"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void interruptedDownloadResumes(String mode) throws Exception {
+        String filename = "resumed-" + mode + ".bin";
+        byte[] data = new byte[SIZE];
+        new Random(10).nextBytes(data);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of())) {
+            try (LineClient seeder = new LineClient(server.getPort())) {
+                seeder.register("seeder");
+                seeder.store(filename, data);
+            }
+
+            // About 1.3 MiB/s through the proxy, so the connection is cut well before the end
+            try (LatencyProxy proxy = LatencyProxy.start(server.getPort(), 50, 64 * 1024)) {
+                FileExchangeClient slow = new FileExchangeClient(notice -> { });
+                try {
+                    slow.connect("localhost", proxy.getPort()).get(30, TimeUnit.SECONDS);
+                    slow.register("slow").get(30, TimeUnit.SECONDS);
+                    CompletableFuture<File> cut = slow.get(filename);
+                    Thread.sleep(1500);
+                    proxy.close();
+                    assertThrows(ExecutionException.class, () -> cut.get(30, TimeUnit.SECONDS));
+                } finally {
+                    slow.close();
+                }
+            }
+            long kept = DownloadFile.resumeOffset(filename);
+            assertTrue(kept > 0 && kept < SIZE, "kept " + kept + " bytes");
+
+            Queue<String> notices = new ConcurrentLinkedQueue<>();
+            FileExchangeClient client = new FileExchangeClient(notices::add);
+            try {
+                client.connect("localhost", server.getPort()).get(30, TimeUnit.SECONDS);
+                client.register("tester").get(30, TimeUnit.SECONDS);
+                File file = client.get(filename).get(60, TimeUnit.SECONDS);
+                assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+                assertTrue(notices.contains("Resuming " + filename + " from byte " + kept), notices.toString());
+            } finally {
+                client.close();
+                new File(filename).delete();
+                DownloadFile.discard(filename);
+            }
+        }
+    }
+}
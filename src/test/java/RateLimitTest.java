@@ -0,0 +1,56 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for RateLimitTest
+ *      - With fes.rate.user, each user's downloads go no faster than that rate, and two users downloading at the
+ *        same time each get the whole rate.
+ */
+class RateLimitTest {
+    private static final int SIZE = 3 * 1024 * 1024;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void downloadsAreHeldToTheUserRate(String mode) throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(13).nextBytes(data);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of("fes.rate.user", "1M"));
+             LineClient first = new LineClient(server.getPort());
+             LineClient second = new LineClient(server.getPort())) {
+            first.register("first");
+            second.register("second");
+            first.store("limited.bin", data);
+
+            long started = System.nanoTime();
+            CompletableFuture<Long> other = CompletableFuture.supplyAsync(() -> download(second));
+            long mine = download(first);
+            long theirs = other.get(60, TimeUnit.SECONDS);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+            // 3 MiB at 1 MiB/s, less the 0.1 s burst; a shared rate would take twice as long
+            assertEquals(SIZE, mine);
+            assertEquals(SIZE, theirs);
+            assertTrue(millis >= 2500, "both downloads took only " + millis + " ms");
+            assertTrue(millis < 5000, "both downloads took " + millis + " ms");
+        }
+    }
+
+    private static long download(LineClient client) {
+        try {
+            return client.get("limited.bin", new byte[64 * 1024]);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for RecursiveTransferTest
+ *      - '/store -r' uploads a directory tree under the files' own names, skipping names the server cannot keep, and
+ *        '/get -r' brings every matching file back down; both pipelined (FileExchangeClient.storeAll and getAll).
+ */
+class RecursiveTransferTest {
+    private static final int FILES = 24;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void treeGoesUpAndComesBack(String mode) throws Exception {
+        String prefix = "tree-" + mode + "-";
+        Path tree = Files.createTempDirectory("fes-tree");
+        Random random = new Random(14);
+
+        // Files of several sizes spread over nested directories, plus two the server cannot take
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < FILES; i++) {
+            byte[] data = new byte[random.nextInt(i % 4 == 0 ? 3 * 1024 * 1024 : 64 * 1024)];
+            random.nextBytes(data);
+            String name = prefix + i + ".bin";
+            Path directory = tree.resolve("d" + (i % 3)).resolve("e" + (i % 2));
+            Files.createDirectories(directory);
+            Files.write(directory.resolve(name), data);
+            files.put(name, data);
+        }
+        Files.write(tree.resolve(".hidden"), new byte[10]);
+        Files.write(tree.resolve(prefix + "0.bin"), new byte[10]);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of())) {
+            FileExchangeClient client = new FileExchangeClient(notice -> { });
+            try {
+                client.connect("localhost", server.getPort()).get(30, TimeUnit.SECONDS);
+                client.register("tester").get(30, TimeUnit.SECONDS);
+
+                FileExchangeClient.Batch stored = client.storeAll(tree.toFile()).get(120, TimeUnit.SECONDS);
+                assertEquals(FILES, stored.getFiles(), stored.getFailures().toString());
+                assertEquals(2, stored.getFailures().size(), stored.getFailures().toString());
+
+                FileExchangeClient.Batch fetched = client.getAll(prefix + "*").get(120, TimeUnit.SECONDS);
+                assertEquals(FILES, fetched.getFiles(), fetched.getFailures().toString());
+                assertTrue(fetched.getFailures().isEmpty(), fetched.getFailures().toString());
+                for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                    assertArrayEquals(file.getValue(), Files.readAllBytes(Path.of(file.getKey())), file.getKey());
+                }
+            } finally {
+                client.close();
+                for (String name : files.keySet()) new File(name).delete();
+                ServerProcess.deleteTree(tree);
+            }
+        }
+    }
+}
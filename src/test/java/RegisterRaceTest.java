@@ -0,0 +1,57 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ *  Class for RegisterRaceTest
+ *      - Clients that ask for the same alias at the same moment: the registry lets exactly one of them have it, and
+ *        the rest are refused.
+ */
+class RegisterRaceTest {
+    private static final int CLIENTS = 8;
+    private static final int ROUNDS = 20;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void exactlyOneClientGetsAnAlias(String mode) throws Exception {
+        ExecutorService racers = Executors.newFixedThreadPool(CLIENTS);
+        List<LineClient> clients = new ArrayList<>();
+        try (ServerProcess server = ServerProcess.start(mode, Map.of())) {
+            for (int i = 0; i < CLIENTS; i++) clients.add(new LineClient(server.getPort()));
+
+            for (int round = 0; round < ROUNDS; round++) {
+                String alias = "racer-" + round;
+                CyclicBarrier start = new CyclicBarrier(CLIENTS);
+                List<Future<String>> replies = new ArrayList<>();
+                for (LineClient client : clients) {
+                    replies.add(racers.submit(() -> {
+                        start.await();
+                        client.send("/register " + alias);
+                        return client.readUntil("REGISTER_");
+                    }));
+                }
+
+                int winners = 0;
+                for (Future<String> reply : replies) {
+                    if (reply.get(30, TimeUnit.SECONDS).equals("REGISTER_TRUE")) winners++;
+                }
+                assertEquals(1, winners, "clients given " + alias);
+            }
+        } finally {
+            for (LineClient client : clients) client.close();
+            racers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for UploadOrderTest
+ *      - An upload is hashed and stored off the event loop, yet commands sent right behind it are answered after it,
+ *        and see the file it published.
+ */
+class UploadOrderTest {
+    private static final int SIZE = 3 * 1024 * 1024 + 17;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "nio"})
+    void commandsAfterAnUploadWaitForIt(String mode) throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(11).nextBytes(data);
+
+        try (ServerProcess server = ServerProcess.start(mode, Map.of());
+             LineClient client = new LineClient(server.getPort())) {
+            client.register("tester");
+
+            // Two uploads and a question about each, all in one write
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (String name : new String[] {"first.bin", "second.bin"}) {
+                batch.write(("/store " + name + "\n" + SIZE + "\n").getBytes(StandardCharsets.UTF_8));
+                batch.write(data);
+                batch.write(("/stat " + name + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            client.write(batch.toByteArray());
+
+            for (String name : new String[] {"first.bin", "second.bin"}) {
+                String reply = client.readUntil("tester <");
+                assertTrue(reply.endsWith(">: Uploaded " + name), reply);
+                assertEquals("STORED " + name, client.readLine());
+                assertEquals("STAT " + name + " " + SIZE, client.readUntil("STAT"));
+            }
+            assertEquals(SIZE, client.get("second.bin", new byte[64 * 1024]));
+        }
+    }
+}
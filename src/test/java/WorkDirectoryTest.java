@@ -0,0 +1,76 @@
+import harness.LineClient;
+import harness.ServerProcess;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *  Class for WorkDirectoryTest
+ *      - Staged uploads, compressed copies and checksums live with the store, never in the server's working
+ *        directory; the memory store keeps them in a temporary directory it deletes when the server stops.
+ */
+class WorkDirectoryTest {
+    private static final int SIZE = 3 * 1024 * 1024;
+
+    @Test
+    void diskStoreKeepsItsWorkUnderItsRoot() throws IOException {
+        try (ServerProcess server = ServerProcess.start("nio", Map.of())) {
+            exercise(server);
+            assertEquals(Set.of(".store", "files", "server.out"), names(server.getDirectory()));
+            assertTrue(Files.isDirectory(server.getDirectory().resolve(".store").resolve("uploads")));
+        }
+    }
+
+    @Test
+    void memoryStoreLeavesNothingBehind() throws IOException {
+        Path temporary = Files.createTempDirectory("fes-tmp");
+        try {
+            try (ServerProcess server = ServerProcess.start("nio", Map.of("fes.store.backend", "memory"),
+                    List.of("-Djava.io.tmpdir=" + temporary))) {
+                exercise(server);
+                assertEquals(Set.of("files", "server.out"), names(server.getDirectory()));
+                Set<String> work = names(temporary);
+                assertEquals(1, work.size(), work.toString());
+                assertTrue(work.iterator().next().startsWith("fes-memory-store-"), work.toString());
+            }
+
+            // Stopped like Ctrl+C stops it
+            assertEquals(Set.of(), names(temporary));
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Method: exercise(ServerProcess server)
+     *      - Uploads a file of several chunks, downloads it and asks for its checksums.
+     */
+    private static void exercise(ServerProcess server) throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(3).nextBytes(data);
+        try (LineClient client = new LineClient(server.getPort())) {
+            client.register("tester");
+            client.store("work.bin", data);
+            assertEquals(SIZE, client.get("work.bin", new byte[64 * 1024]));
+            client.send("/checksums work.bin");
+            client.readUntil("CHECKSUMS work.bin");
+        }
+    }
+
+    private static Set<String> names(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toSet());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package harness;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Class for LatencyProxy
+ *      - A TCP proxy on loopback that makes every connection through it behave like one over a long link: bytes
+ *        arrive half a round trip after they were sent, in each direction.
+ *      - At most `window` bytes are on their way per direction, like a TCP window that does not grow, so one
+ *        connection moves at most window / round trip bytes per second, and several connections add up.
+ *      - Each connection gets four threads (a reader and a delayed writer per direction); meant for a handful of
+ *        connections in tests and benchmarks.
+ */
+public final class LatencyProxy implements Closeable {
+    // Most bytes read from a socket at once
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final ServerSocket listener;
+    private final int targetPort;
+    private final long delayNanos;
+    private final int window;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    /**
+     * Class for Packet
+     *      - Bytes read from one side, and when they may be written to the other.
+     */
+    private static final class Packet {
+        private final byte[] bytes;
+        private final long due;
+
+        Packet(byte[] bytes, long due) {
+            this.bytes = bytes;
+            this.due = due;
+        }
+    }
+
+    private LatencyProxy(ServerSocket listener, int targetPort, long delayNanos, int window) {
+        this.listener = listener;
+        this.targetPort = targetPort;
+        this.delayNanos = delayNanos;
+        this.window = window;
+    }
+
+    /**
+     * Method: start(int targetPort, long roundTripMillis, int window)
+     *
+     * @param targetPort: The loopback port connections are passed on to.
+     * @param roundTripMillis: The round trip added to every connection.
+     * @param window: Bytes on their way per direction and connection.
+     * @return The running proxy; connect to getPort().
+     */
+    public static LatencyProxy start(int targetPort, long roundTripMillis, int window) throws IOException {
+        ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        LatencyProxy proxy = new LatencyProxy(listener, targetPort, TimeUnit.MILLISECONDS.toNanos(roundTripMillis) / 2, window);
+        Thread acceptor = new Thread(proxy::accept, "latency-proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return proxy;
+    }
+
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        for (Socket socket : sockets) socket.close();
+    }
+
+    private void accept() {
+        while (!listener.isClosed()) {
+            try {
+                Socket client = listener.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                pipe(client, server);
+                pipe(server, client);
+            } catch (IOException e) {
+                // Closed, or the target is gone: nothing more to accept
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method: pipe(Socket from, Socket to)
+     *      - Copies one direction of a connection, each read held back until it is due, and ends that direction of
+     *        the other side once this one has ended.
+     */
+    private void pipe(Socket from, Socket to) throws IOException {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        LinkedBlockingQueue<Packet> packets = new LinkedBlockingQueue<>();
+        Semaphore inFlight = new Semaphore(window);
+        Packet end = new Packet(new byte[0], 0);
+
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[Math.min(READ_SIZE, window)];
+            try {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    inFlight.acquire(read);
+                    packets.add(new Packet(Arrays.copyOf(buffer, read), System.nanoTime() + delayNanos));
+                }
+            } catch (IOException | InterruptedException e) {
+                // The connection is gone
+            }
+            packets.add(end);
+        }, "latency-proxy-read");
+
+        Thread writer = new Thread(() -> {
+            try {
+                Packet packet;
+                while ((packet = packets.take()) != end) {
+                    long wait = packet.due - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                    out.write(packet.bytes);
+                    out.flush();
+                    inFlight.release(packet.bytes.length);
+                }
+                to.shutdownOutput();
+            } catch (IOException | InterruptedException e) {
+                // The connection is gone
+            }
+        }, "latency-proxy-write");
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+}
@@ -0,0 +1,149 @@
+package harness;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  Class for LineClient
+ *      - A bare client of the plain line protocol (no frames, compression or checksums), so a benchmark measures the
+ *        server rather than the client's own bookkeeping, and a test sees exactly what the server sends. Every call
+ *        blocks until its answer is in.
+ */
+public final class LineClient implements Closeable {
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * Constructor for LineClient
+     *      - Connects and reads the server's greeting.
+     */
+    public LineClient(int port) throws IOException {
+        this.socket = new Socket("localhost", port);
+        this.socket.setTcpNoDelay(true);
+        this.input = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        this.output = socket.getOutputStream();
+        readLine();
+    }
+
+    /**
+     * Method: register(String alias)
+     *      - Registers, failing if the alias is taken.
+     */
+    public void register(String alias) throws IOException {
+        send("/register " + alias);
+        String reply;
+        while (!(reply = readLine()).equals("REGISTER_TRUE")) {
+            if (reply.equals("REGISTER_FALSE")) throw new IOException("Alias " + alias + " refused");
+        }
+    }
+
+    /**
+     * Method: get(String filename, byte[] scratch)
+     *      - Downloads a whole file and throws its bytes away.
+     *
+     * @return The size of the file.
+     */
+    public long get(String filename, byte[] scratch) throws IOException {
+        send("/get " + filename);
+        String reply;
+        while (!(reply = readLine()).equals("FILE_EXISTS")) {
+            if (reply.equals("FILE_FALSE")) throw new IOException("No file " + filename + " on the server");
+        }
+        readLine();
+        long size = Long.parseLong(readLine());
+        for (long remaining = size; remaining > 0; ) {
+            int read = input.read(scratch, 0, (int) Math.min(scratch.length, remaining));
+            if (read < 0) throw new EOFException("Connection closed during " + filename);
+            remaining -= read;
+        }
+        return size;
+    }
+
+    /**
+     * Method: readBytes(int length)
+     *
+     * @return The next length bytes from the server, e.g. a body announced by the lines before it.
+     */
+    public byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int done = 0; done < length; ) {
+            int read = input.read(bytes, done, length - done);
+            if (read < 0) throw new EOFException("Connection closed " + (length - done) + " bytes early");
+            done += read;
+        }
+        return bytes;
+    }
+
+    /**
+     * Method: store(String filename, byte[] data)
+     *      - Uploads data as a file and waits until the server has published it.
+     */
+    public void store(String filename, byte[] data) throws IOException {
+        output.write(("/store " + filename + "\n" + data.length + "\n").getBytes(StandardCharsets.UTF_8));
+        output.write(data);
+        output.flush();
+        String reply;
+        while (!(reply = readLine()).equals("STORED " + filename)) {
+            if (reply.startsWith("STORE_FALSE " + filename + " ")) throw new IOException(reply);
+        }
+    }
+
+    /**
+     * Method: send(String command)
+     *      - Sends one line.
+     */
+    public void send(String command) throws IOException {
+        output.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    /**
+     * Method: write(byte[] bytes)
+     *      - Sends the bytes as they are, e.g. several commands and bodies in one go.
+     */
+    public void write(byte[] bytes) throws IOException {
+        output.write(bytes);
+        output.flush();
+    }
+
+    /**
+     * Method: readUntil(String prefix)
+     *
+     * @return The next line from the server that starts with the prefix; the lines before it are skipped.
+     */
+    public String readUntil(String prefix) throws IOException {
+        String reply;
+        while (!(reply = readLine()).startsWith(prefix)) {
+            // Not the line waited for
+        }
+        return reply;
+    }
+
+    /**
+     * Method: readLine()
+     *
+     * @return The next line from the server, without its terminator.
+     */
+    public String readLine() throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) throw new EOFException("Connection closed");
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,202 @@
+package harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ *  Class for ServerProcess
+ *      - An MPServer in a JVM of its own, started from the test classpath in a fresh working directory, for tests and
+ *        benchmarks that talk to it over loopback like any client does.
+ *      - A process of its own keeps the server's shared state (log, metrics, console) out of the caller's JVM, and
+ *        its files out of the checkout; the directory is deleted when the server is closed.
+ *      - The server runs on the test's own JDK, or on the java given by -Dfes.server.java (e.g. a JDK 21 one for
+ *        virtual threads while the build stays on 17).
+ */
+public final class ServerProcess implements AutoCloseable {
+    // How long a server may take to start listening
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+
+    // The java the servers run on
+    private static final String JAVA = System.getProperty("fes.server.java", Path.of(System.getProperty("java.home"), "bin", "java").toString());
+
+    // Its feature version (17, 21, ...), read once when first asked for
+    private static int javaVersion;
+
+    private final Process process;
+    private final Path directory;
+    private final int port;
+
+    private ServerProcess(Process process, Path directory, int port) {
+        this.process = process;
+        this.directory = directory;
+        this.port = port;
+    }
+
+    /**
+     * Method: start(String mode, Map<String, String> properties)
+     *      - Starts a server and waits until it takes connections.
+     *
+     * @param mode: "threaded", "virtual" or "nio".
+     * @param properties: fes.* settings (see ServerConfig), on top of a quiet log.
+     * @return The running server.
+     */
+    public static ServerProcess start(String mode, Map<String, String> properties) throws IOException {
+        return start(mode, properties, List.of());
+    }
+
+    /**
+     * Method: start(String mode, Map<String, String> properties, List<String> jvmOptions)
+     *      - As start(mode, properties), with extra options for the server's JVM (e.g. "-Xss256k").
+     */
+    public static ServerProcess start(String mode, Map<String, String> properties, List<String> jvmOptions) throws IOException {
+        Path directory = Files.createTempDirectory("fes-server");
+        int port = freePort();
+
+        List<String> command = new ArrayList<>();
+        command.add(JAVA);
+        command.addAll(jvmOptions);
+        command.add("-Dfes.log.file=");
+        command.add("-Dfes.log.level=warn");
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            command.add("-D" + property.getKey() + "=" + property.getValue());
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("MPServer");
+        command.add(mode);
+        command.add(String.valueOf(port));
+
+        Process process = new ProcessBuilder(command).directory(directory.toFile())
+                .redirectErrorStream(true).redirectOutput(directory.resolve("server.out").toFile()).start();
+        // No operator: the console ends at once
+        process.getOutputStream().close();
+
+        ServerProcess server = new ServerProcess(process, directory, port);
+        server.awaitListening();
+        return server;
+    }
+
+    /**
+     * Method: javaVersion()
+     *
+     * @return The feature version of the java servers are started with, e.g. 21.
+     */
+    public static synchronized int javaVersion() throws IOException {
+        if (javaVersion == 0) {
+            Process process = new ProcessBuilder(JAVA, "-version").redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+
+            // 'openjdk version "21.0.1" 2023-10-17', or "1.8.0_392" before Java 9
+            Matcher version = Pattern.compile("version \"(?:1\\.)?(\\d+)").matcher(output);
+            if (!version.find()) throw new IOException("No version in the output of " + JAVA + " -version: " + output);
+            javaVersion = Integer.parseInt(version.group(1));
+        }
+        return javaVersion;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Method: getDirectory()
+     *
+     * @return The server's working directory.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Method: output()
+     *
+     * @return What the server printed so far.
+     */
+    public String output() {
+        try {
+            return Files.readString(directory.resolve("server.out"), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "(no output: " + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Method: close()
+     *      - Stops the server and deletes its directory.
+     */
+    @Override
+    public void close() {
+        process.destroy();
+        try {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deleteTree(directory);
+    }
+
+    /**
+     * Method: awaitListening()
+     *      - Polls the port until the server accepts a connection, or fails with its output if it died first.
+     */
+    private void awaitListening() throws IOException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    String output = output();
+                    close();
+                    throw new IOException("Server did not start on port " + port + ": " + output, e);
+                }
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while the server started", e);
+            }
+        }
+    }
+
+    /**
+     * Method: freePort()
+     *
+     * @return A port nothing listens on right now.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Method: deleteTree(Path root)
+     *      - Deletes a directory and everything in it, ignoring what is already gone.
+     */
+    public static void deleteTree(Path root) {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> tree = Files.walk(root)) {
+            tree.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException | UncheckedIOException e) {
+            // Left for the temporary directory's own cleanup
+        }
+    }
+}